@@ -0,0 +1,350 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The attributes of a {@link MailImpl}, shared between the copies of a mail
+ * until one of them modifies them.
+ *
+ * Copying only increments a reference count: the copies keep reading the same
+ * map, and the first one writing to it takes a private copy of the map first.
+ * Values of well known immutable types (String, primitive wrappers, enums,
+ * ...) are shared for good. Other values may be modified in place by whoever
+ * gets them, so they are "borrowed": each copy clones such a value (through
+ * serialization) the first time it hands it out, and the values which are
+ * never read are never cloned. Mutable values which were already handed out
+ * (or set) before copying may still be modified through the references the
+ * callers hold, so these are cloned for the copy right away.
+ *
+ * Instances are not thread safe, like MailImpl itself, but two copies may be
+ * used by two different threads.
+ */
+final class CopyOnWriteMailAttributes {
+
+    /**
+     * Classes of which all instances are immutable.
+     */
+    private static final Set<Class<?>> IMMUTABLE_TYPES = new HashSet<Class<?>>(Arrays.<Class<?>> asList(String.class, Boolean.class, Character.class, Byte.class, Short.class, Integer.class, Long.class, Float.class, Double.class, BigInteger.class, BigDecimal.class));
+
+    /**
+     * Used internally to track the reference count of a shared map.
+     */
+    private static final class AttributesReferenceTracker {
+
+        /**
+         * reference counter
+         */
+        private int referenceCount = 1;
+
+        private final HashMap<String, Object> map;
+
+        private AttributesReferenceTracker(HashMap<String, Object> map) {
+            this.map = map;
+        }
+
+        private synchronized void incrementReferenceCount() {
+            referenceCount++;
+        }
+
+        /**
+         * Return a private copy of the map if it is shared, in which case the
+         * caller does no longer reference it, or null if the caller is the
+         * only one referencing it.
+         *
+         * The copy is taken before the reference is given up and both happen
+         * under the lock: once the count drops to one the last owner may
+         * modify the map in place.
+         */
+        private synchronized HashMap<String, Object> detach() {
+            if (referenceCount > 1) {
+                HashMap<String, Object> copy = new HashMap<String, Object>(map);
+                referenceCount--;
+                return copy;
+            }
+            return null;
+        }
+    }
+
+    private AttributesReferenceTracker refCount;
+
+    /**
+     * Keys of the values which are shared with another copy and must be
+     * cloned before being handed out. Null when there are none.
+     */
+    private Set<String> borrowed;
+
+    /**
+     * Keys of the mutable values owned by this instance which were handed out
+     * to a caller. Null when there are none.
+     */
+    private Set<String> handedOut;
+
+    /**
+     * True once the map itself was handed out, so any of its values may be
+     * referenced by a caller.
+     */
+    private boolean mapHandedOut;
+
+    /**
+     * Create attributes backed by the given map, which must not be used by the
+     * caller afterwards.
+     *
+     * @param map
+     *            the attributes, may be null
+     */
+    CopyOnWriteMailAttributes(HashMap<String, Object> map) {
+        refCount = new AttributesReferenceTracker(map == null ? new HashMap<String, Object>() : map);
+    }
+
+    private CopyOnWriteMailAttributes(AttributesReferenceTracker refCount, Set<String> borrowed) {
+        this.refCount = refCount;
+        this.borrowed = borrowed;
+    }
+
+    /**
+     * Return a copy of these attributes. Both this instance and the copy
+     * borrow the mutable values from then on, except the ones this instance
+     * handed out: the copy gets clones of them, so it needs a map of its own.
+     *
+     * @return the copy
+     */
+    CopyOnWriteMailAttributes copy() {
+        Set<String> mutable = null;
+        for (Map.Entry<String, Object> entry : refCount.map.entrySet()) {
+            if (!isImmutable(entry.getValue())) {
+                if (mutable == null) {
+                    mutable = new HashSet<String>();
+                }
+                mutable.add(entry.getKey());
+            }
+        }
+        Set<String> owned = mapHandedOut ? mutable : handedOut;
+        if (owned == null || owned.isEmpty()) {
+            // the keys borrowed so far are a subset of the mutable ones
+            borrowed = mutable;
+            refCount.incrementReferenceCount();
+            return new CopyOnWriteMailAttributes(refCount, mutable == null ? null : new HashSet<String>(mutable));
+        }
+
+        // the handed out values are owned by this instance, so they are
+        // neither in the borrowed keys nor in a shared map
+        HashMap<String, Object> map = new HashMap<String, Object>(refCount.map);
+        Set<String> shared = new HashSet<String>(mutable);
+        for (String key : owned) {
+            map.put(key, cloneSerializableObject(map.get(key)));
+            shared.remove(key);
+        }
+        borrowed = shared.isEmpty() ? null : shared;
+        return new CopyOnWriteMailAttributes(new AttributesReferenceTracker(map), borrowed == null ? null : new HashSet<String>(borrowed));
+    }
+
+    /**
+     * Return the value of the given attribute.
+     */
+    Serializable get(String key) {
+        Object value = refCount.map.get(key);
+        if (borrowed != null && borrowed.remove(key)) {
+            value = cloneSerializableObject(value);
+            writable().put(key, value);
+        }
+        handOut(key, value);
+        return (Serializable) value;
+    }
+
+    /**
+     * Set the given attribute, returning the previous value.
+     */
+    Serializable put(String key, Serializable value) {
+        // the caller keeps a reference to the value
+        handOut(key, value);
+        return (Serializable) own(key, writable().put(key, value));
+    }
+
+    /**
+     * Remove the given attribute, returning the previous value.
+     */
+    Serializable remove(String key) {
+        if (handedOut != null) {
+            handedOut.remove(key);
+        }
+        return (Serializable) own(key, writable().remove(key));
+    }
+
+    void clear() {
+        writable().clear();
+        borrowed = null;
+        handedOut = null;
+    }
+
+    boolean isEmpty() {
+        return refCount.map.isEmpty();
+    }
+
+    /**
+     * Return an iterator on the attribute names. Its remove method removes the
+     * attribute.
+     */
+    Iterator<String> names() {
+        final Iterator<String> names = writable().keySet().iterator();
+        return new Iterator<String>() {
+            private String current;
+
+            public boolean hasNext() {
+                return names.hasNext();
+            }
+
+            public String next() {
+                current = names.next();
+                return current;
+            }
+
+            public void remove() {
+                names.remove();
+                if (borrowed != null) {
+                    borrowed.remove(current);
+                }
+                if (handedOut != null) {
+                    handedOut.remove(current);
+                }
+            }
+        };
+    }
+
+    /**
+     * Return the map holding the attributes, to be serialized. The map must
+     * not be modified.
+     */
+    HashMap<String, Object> readOnlyMap() {
+        return refCount.map;
+    }
+
+    /**
+     * Return the map holding the attributes, owned by this instance only. From
+     * then on all its values count as handed out.
+     */
+    HashMap<String, Object> ownedMap() {
+        HashMap<String, Object> map = writable();
+        if (borrowed != null) {
+            for (String key : borrowed) {
+                map.put(key, cloneSerializableObject(map.get(key)));
+            }
+            borrowed = null;
+        }
+        mapHandedOut = true;
+        return map;
+    }
+
+    /**
+     * Take a private copy of the map if it is shared and return it.
+     */
+    private HashMap<String, Object> writable() {
+        HashMap<String, Object> copy = refCount.detach();
+        if (copy != null) {
+            refCount = new AttributesReferenceTracker(copy);
+        }
+        return refCount.map;
+    }
+
+    /**
+     * Remember that the given value of the key was handed out if it is
+     * mutable, forget about the key otherwise.
+     */
+    private void handOut(String key, Object value) {
+        if (!isImmutable(value)) {
+            if (handedOut == null) {
+                handedOut = new HashSet<String>();
+            }
+            handedOut.add(key);
+        } else if (handedOut != null) {
+            handedOut.remove(key);
+        }
+    }
+
+    /**
+     * Return the given value removed from the map, cloned if it was borrowed
+     * as the caller may modify it.
+     */
+    private Object own(String key, Object previous) {
+        if (borrowed != null && borrowed.remove(key)) {
+            return cloneSerializableObject(previous);
+        }
+        return previous;
+    }
+
+    /**
+     * Return a value which can be stored in another mail: the value itself if
+     * it is immutable, a clone otherwise.
+     *
+     * @param value
+     *            the attribute value
+     * @return the value to store
+     */
+    static Object cloneValue(Object value) {
+        return isImmutable(value) ? value : cloneSerializableObject(value);
+    }
+
+    private static boolean isImmutable(Object value) {
+        return value == null || value instanceof Enum<?> || IMMUTABLE_TYPES.contains(value.getClass());
+    }
+
+    /**
+     * This methods provide cloning for serializable objects. Mail Attributes
+     * are Serializable but not Clonable so we need a deep copy. If the value
+     * can not be cloned it is returned as is.
+     *
+     * @param o
+     *            Object to be cloned
+     * @return the cloned Object
+     */
+    private static Object cloneSerializableObject(Object o) {
+        try {
+            ByteArrayOutputStream b = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(b);
+            out.writeObject(o);
+            out.flush();
+            out.close();
+            ByteArrayInputStream bi = new ByteArrayInputStream(b.toByteArray());
+            ObjectInputStream in = new ObjectInputStream(bi);
+            return in.readObject();
+        } catch (IOException e) {
+            // the value is not really serializable
+            return o;
+        } catch (ClassNotFoundException e) {
+            // should never happen as we just serialized it
+            return o;
+        }
+    }
+
+}
@@ -28,12 +28,9 @@ import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.ParseException;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OptionalDataException;
 import java.io.OutputStream;
 import java.io.Serializable;
@@ -106,16 +103,17 @@ public class MailImpl implements Disposable, Mail {
      */
     private Date lastUpdated = new Date();
     /**
-     * Attributes added to this MailImpl instance
+     * Attributes added to this MailImpl instance, shared with its duplicates
+     * until modified
      */
-    private HashMap attributes;
+    private CopyOnWriteMailAttributes attributes;
 
     /**
      * A constructor that creates a new, uninitialized MailImpl
      */
     public MailImpl() {
         setState(Mail.DEFAULT);
-        attributes = new HashMap();
+        attributes = new CopyOnWriteMailAttributes(null);
     }
 
     /**
@@ -167,23 +165,16 @@ public class MailImpl implements Disposable, Mail {
         setRemoteHost(mail.getRemoteHost());
         setRemoteAddr(mail.getRemoteAddr());
         setLastUpdated(mail.getLastUpdated());
-        try {
-            if (mail instanceof MailImpl) {
-                setAttributesRaw((HashMap) cloneSerializableObject(((MailImpl) mail).getAttributesRaw()));
-            } else {
-                HashMap attribs = new HashMap();
-                for (Iterator i = mail.getAttributeNames(); i.hasNext();) {
-                    String hashKey = (String) i.next();
-                    attribs.put(hashKey, cloneSerializableObject(mail.getAttribute(hashKey)));
-                }
-                setAttributesRaw(attribs);
+        if (mail instanceof MailImpl) {
+            // values are only cloned when one of the mails modifies them
+            attributes = ((MailImpl) mail).attributes.copy();
+        } else {
+            HashMap<String, Object> attribs = new HashMap<String, Object>();
+            for (Iterator i = mail.getAttributeNames(); i.hasNext();) {
+                String hashKey = (String) i.next();
+                attribs.put(hashKey, CopyOnWriteMailAttributes.cloneValue(mail.getAttribute(hashKey)));
             }
-        } catch (IOException e) {
-            // should never happen for in memory streams
-            setAttributesRaw(new HashMap());
-        } catch (ClassNotFoundException e) {
-            // should never happen as we just serialized it
-            setAttributesRaw(new HashMap());
+            attributes = new CopyOnWriteMailAttributes(attribs);
         }
     }
 
@@ -526,10 +517,10 @@ public class MailImpl implements Disposable, Mail {
         // the following is under try/catch to be backwards compatible
         // with messages created with James version <= 2.2.0a8
         try {
-            attributes = (HashMap) in.readObject();
+            attributes = new CopyOnWriteMailAttributes((HashMap) in.readObject());
         } catch (OptionalDataException ode) {
             if (ode.eof) {
-                attributes = new HashMap();
+                attributes = new CopyOnWriteMailAttributes(null);
             } else {
                 throw ode;
             }
@@ -554,7 +545,7 @@ public class MailImpl implements Disposable, Mail {
         out.writeObject(remoteHost);
         out.writeObject(remoteAddr);
         out.writeObject(lastUpdated);
-        out.writeObject(attributes);
+        out.writeObject(attributes.readOnlyMap());
     }
 
     /**
@@ -579,7 +570,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      **/
     public HashMap getAttributesRaw() {
-        return attributes;
+        return attributes.ownedMap();
     }
 
     /**
@@ -597,7 +588,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      **/
     public void setAttributesRaw(HashMap attr) {
-        this.attributes = (attr == null) ? new HashMap() : attr;
+        this.attributes = new CopyOnWriteMailAttributes(attr);
     }
 
     /**
@@ -605,7 +596,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Serializable getAttribute(String key) {
-        return (Serializable) attributes.get(key);
+        return attributes.get(key);
     }
 
     /**
@@ -613,7 +604,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Serializable setAttribute(String key, Serializable object) {
-        return (Serializable) attributes.put(key, object);
+        return attributes.put(key, object);
     }
 
     /**
@@ -621,7 +612,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Serializable removeAttribute(String key) {
-        return (Serializable) attributes.remove(key);
+        return attributes.remove(key);
     }
 
     /**
@@ -637,7 +628,7 @@ public class MailImpl implements Disposable, Mail {
      * @since 2.2.0
      */
     public Iterator getAttributeNames() {
-        return attributes.keySet().iterator();
+        return attributes.names();
     }
 
     /**
@@ -649,27 +640,6 @@ public class MailImpl implements Disposable, Mail {
         return !attributes.isEmpty();
     }
 
-    /**
-     * This methods provide cloning for serializable objects. Mail Attributes
-     * are Serializable but not Clonable so we need a deep copy
-     * 
-     * @param o
-     *            Object to be cloned
-     * @return the cloned Object
-     * @throws IOException
-     * @throws ClassNotFoundException
-     */
-    private static Object cloneSerializableObject(Object o) throws IOException, ClassNotFoundException {
-        ByteArrayOutputStream b = new ByteArrayOutputStream();
-        ObjectOutputStream out = new ObjectOutputStream(b);
-        out.writeObject(o);
-        out.flush();
-        out.close();
-        ByteArrayInputStream bi = new ByteArrayInputStream(b.toByteArray());
-        ObjectInputStream in = new ObjectInputStream(bi);
-        return in.readObject();
-    }
-
     private static final java.util.Random random = new java.util.Random(); // Used
                                                                            // to
                                                                            // generate
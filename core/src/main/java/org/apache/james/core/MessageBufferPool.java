@@ -0,0 +1,373 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Pool of fixed size direct memory chunks in which
+ * {@link MimeMessageInputStreamSource} stores the messages. Chunks are kept
+ * off the heap and reused, so that large messages received concurrently do
+ * not put pressure on the garbage collector.
+ * 
+ * The pool allocates at most {@link #getMemoryBudget()} bytes. A message which
+ * grows over {@link #getSpillThreshold()} bytes, or which can not get a chunk
+ * because the budget is used up, is spilled to a file in
+ * {@link #getSpillDirectory()}.
+ * 
+ * Chunks are handed out through a {@link Lease}, which tracks the chunks of
+ * one owner. If the owner becomes unreachable without closing its lease, its
+ * chunks are reclaimed the next time a chunk is acquired, so a message which
+ * is never disposed does not drain the pool.
+ * 
+ * The shared instance is configured by the system properties
+ * {@link #CHUNK_SIZE}, {@link #SPILL_THRESHOLD}, {@link #MEMORY_BUDGET} and
+ * {@link #SPILL_DIRECTORY}, and is exposed via JMX.
+ */
+public class MessageBufferPool implements MessageBufferPoolMBean {
+
+    /**
+     * System property holding the size of a chunk in bytes. Default is 16kb
+     */
+    public final static String CHUNK_SIZE = "james.message.buffer.chunksize";
+
+    /**
+     * System property holding the number of bytes after which a message is
+     * spilled to a file. Default is 100kb
+     */
+    public final static String SPILL_THRESHOLD = "james.message.buffer.threshold";
+
+    /**
+     * System property holding the maximum number of bytes of direct memory used
+     * for messages. Default is 64mb
+     */
+    public final static String MEMORY_BUDGET = "james.message.buffer.budget";
+
+    /**
+     * System property holding the directory in which messages are spilled.
+     * Default is java.io.tmpdir
+     */
+    public final static String SPILL_DIRECTORY = "james.message.buffer.spilldir";
+
+    private final static String MBEAN_NAME = "org.apache.james:type=component,name=messagebufferpool";
+
+    private static MessageBufferPool instance;
+
+    private final int chunkSize;
+
+    private final int spillThreshold;
+
+    private final long memoryBudget;
+
+    private final File spillDirectory;
+
+    private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private final AtomicInteger pooled = new AtomicInteger();
+
+    private final AtomicLong allocated = new AtomicLong();
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong spilled = new AtomicLong();
+
+    private final AtomicLong exhausted = new AtomicLong();
+
+    private final AtomicLong reclaimed = new AtomicLong();
+
+    /**
+     * The leases whose owner was collected
+     */
+    private final ReferenceQueue<Object> unreachable = new ReferenceQueue<Object>();
+
+    /**
+     * The open leases, which must stay reachable to be enqueued
+     */
+    private final Set<Lease> leases = Collections.newSetFromMap(new ConcurrentHashMap<Lease, Boolean>());
+
+    public MessageBufferPool(int chunkSize, int spillThreshold, long memoryBudget, File spillDirectory) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.spillThreshold = spillThreshold;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Return the pool shared by all {@link MimeMessageInputStreamSource}s,
+     * creating and registering it on first use.
+     * 
+     * @return the shared pool
+     */
+    public static synchronized MessageBufferPool getInstance() {
+        if (instance == null) {
+            instance = new MessageBufferPool(Integer.getInteger(CHUNK_SIZE, 16 * 1024), Integer.getInteger(SPILL_THRESHOLD, 100 * 1024), Long.getLong(MEMORY_BUDGET, 64 * 1024 * 1024), new File(System.getProperty(SPILL_DIRECTORY, System.getProperty("java.io.tmpdir"))));
+            try {
+                MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+                mbeanServer.registerMBean(instance, new ObjectName(MBEAN_NAME));
+            } catch (Exception e) {
+                // the pool works without JMX
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * Open a {@link Lease} for the given owner. The chunks acquired through it
+     * go back to the pool when the lease is closed, or once the owner became
+     * unreachable.
+     * 
+     * @param owner
+     *            the object using the chunks
+     * @return lease
+     */
+    public Lease lease(Object owner) {
+        Lease lease = new Lease(owner);
+        leases.add(lease);
+        return lease;
+    }
+
+    /**
+     * Give back the chunks of the owners which were collected without
+     * closing their lease
+     */
+    private void reclaim() {
+        Lease lease;
+        while ((lease = (Lease) unreachable.poll()) != null) {
+            reclaimed.addAndGet(lease.close());
+        }
+    }
+
+    /**
+     * Return an empty chunk, or null if the memory budget is used up.
+     * 
+     * @return chunk or null
+     */
+    public ByteBuffer acquire() {
+        reclaim();
+        ByteBuffer chunk = pool.poll();
+        if (chunk != null) {
+            pooled.decrementAndGet();
+        } else {
+            long current;
+            do {
+                current = allocated.get();
+                if (current + chunkSize > memoryBudget) {
+                    exhausted.incrementAndGet();
+                    return null;
+                }
+            } while (!allocated.compareAndSet(current, current + chunkSize));
+            chunk = ByteBuffer.allocateDirect(chunkSize);
+        }
+        used.addAndGet(chunkSize);
+        return chunk;
+    }
+
+    /**
+     * Give back a chunk obtained by {@link #acquire()}. The chunk must not be
+     * used anymore.
+     * 
+     * @param chunk
+     *            the chunk
+     */
+    public void release(ByteBuffer chunk) {
+        chunk.clear();
+        used.addAndGet(-chunkSize);
+        pooled.incrementAndGet();
+        pool.offer(chunk);
+    }
+
+    /**
+     * Create the file to which a message is spilled.
+     * 
+     * @param prefix
+     *            the prefix of the file name
+     * @return the new, empty, file
+     * @throws IOException
+     *             if the file can not be created
+     */
+    public File createSpillFile(String prefix) throws IOException {
+        spilled.incrementAndGet();
+        // File.createTempFile needs at least 3 characters
+        return File.createTempFile(prefix.length() < 3 ? prefix + "___" : prefix, ".m64", spillDirectory);
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getChunkSize()
+     */
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getSpillThreshold()
+     */
+    public int getSpillThreshold() {
+        return spillThreshold;
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getSpillDirectory()
+     */
+    public String getSpillDirectory() {
+        return spillDirectory.getAbsolutePath();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getMemoryBudget()
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getAllocatedBytes()
+     */
+    public long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getUsedBytes()
+     */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getPooledChunks()
+     */
+    public int getPooledChunks() {
+        return pooled.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getSpilledMessages()
+     */
+    public long getSpilledMessages() {
+        return spilled.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getBudgetExhaustedCount()
+     */
+    public long getBudgetExhaustedCount() {
+        return exhausted.get();
+    }
+
+    /**
+     * @see org.apache.james.core.MessageBufferPoolMBean#getReclaimedChunks()
+     */
+    public long getReclaimedChunks() {
+        return reclaimed.get();
+    }
+
+    /**
+     * The chunks acquired by one owner. The lease does not keep the owner
+     * reachable.
+     */
+    public final class Lease extends PhantomReference<Object> {
+
+        private final Set<ByteBuffer> chunks = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+        private boolean closed;
+
+        private Lease(Object owner) {
+            super(owner, unreachable);
+        }
+
+        /**
+         * Return an empty chunk, or null if the memory budget is used up.
+         * 
+         * @return chunk or null
+         */
+        public ByteBuffer acquire() {
+            ByteBuffer chunk = MessageBufferPool.this.acquire();
+            if (chunk != null) {
+                synchronized (this) {
+                    if (!closed) {
+                        chunks.add(chunk);
+                        return chunk;
+                    }
+                }
+                MessageBufferPool.this.release(chunk);
+            }
+            return null;
+        }
+
+        /**
+         * Give back a chunk obtained by {@link #acquire()}. The chunk must not
+         * be used anymore.
+         * 
+         * @param chunk
+         *            the chunk
+         */
+        public void release(ByteBuffer chunk) {
+            boolean owned;
+            synchronized (this) {
+                owned = chunks.remove(chunk);
+            }
+            if (owned) {
+                MessageBufferPool.this.release(chunk);
+            }
+        }
+
+        /**
+         * Give back all the chunks which were not released yet. No chunk can
+         * be acquired afterwards.
+         * 
+         * @return the number of chunks given back
+         */
+        public int close() {
+            List<ByteBuffer> remaining;
+            synchronized (this) {
+                closed = true;
+                remaining = new ArrayList<ByteBuffer>(chunks);
+                chunks.clear();
+            }
+            leases.remove(this);
+            clear();
+            for (ByteBuffer chunk : remaining) {
+                MessageBufferPool.this.release(chunk);
+            }
+            return remaining.size();
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+/**
+ * Management interface of the {@link MessageBufferPool}
+ */
+public interface MessageBufferPoolMBean {
+
+    /**
+     * Return the size of a chunk in bytes
+     * 
+     * @return chunkSize
+     */
+    int getChunkSize();
+
+    /**
+     * Return the maximum number of bytes a message may keep in memory before
+     * it is spilled to a file
+     * 
+     * @return threshold
+     */
+    int getSpillThreshold();
+
+    /**
+     * Return the directory in which the spilled messages are stored
+     * 
+     * @return directory
+     */
+    String getSpillDirectory();
+
+    /**
+     * Return the maximum number of bytes of direct memory the pool may allocate
+     * 
+     * @return budget
+     */
+    long getMemoryBudget();
+
+    /**
+     * Return the number of bytes of direct memory allocated by the pool
+     * 
+     * @return allocated
+     */
+    long getAllocatedBytes();
+
+    /**
+     * Return the number of bytes currently used by messages
+     * 
+     * @return used
+     */
+    long getUsedBytes();
+
+    /**
+     * Return the number of chunks waiting in the pool to be reused
+     * 
+     * @return pooled
+     */
+    int getPooledChunks();
+
+    /**
+     * Return the number of messages which were spilled to a file
+     * 
+     * @return spilled
+     */
+    long getSpilledMessages();
+
+    /**
+     * Return how many times a chunk was requested while the whole memory
+     * budget was in use
+     * 
+     * @return exhausted
+     */
+    long getBudgetExhaustedCount();
+
+    /**
+     * Return the number of chunks which were given back to the pool because
+     * their owner became unreachable without being disposed
+     * 
+     * @return reclaimed
+     */
+    long getReclaimedChunks();
+
+}
@@ -0,0 +1,194 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.mail.MessagingException;
+
+/**
+ * The header block of the message stored in a {@link MimeMessageSource}, read
+ * once and kept with the source. It allows to get the headers, and to reach
+ * the body, without parsing the message again.
+ */
+public class MimeMessageHeaderIndex {
+
+    /**
+     * The raw bytes of the header block, including the empty line which
+     * separates it from the body
+     */
+    private final byte[] headerBytes;
+
+    /**
+     * The number of header lines, continuation lines included
+     */
+    private final int headerLines;
+
+    /**
+     * True if all the lines of the header block end with CRLF
+     */
+    private final boolean crlf;
+
+    private MimeMessageHeaderIndex(byte[] headerBytes, int headerLines, boolean crlf) {
+        this.headerBytes = headerBytes;
+        this.headerLines = headerLines;
+        this.crlf = crlf;
+    }
+
+    /**
+     * Read the header block from the given stream, which must support mark.
+     */
+    private static MimeMessageHeaderIndex read(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(1024);
+        int lines = 0;
+        boolean crlf = true;
+        int lineLength = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            header.write(c);
+            if (c == '\n' || c == '\r') {
+                if (c == '\r') {
+                    in.mark(1);
+                    int next = in.read();
+                    if (next == '\n') {
+                        header.write(next);
+                    } else {
+                        crlf = false;
+                        if (next != -1) {
+                            in.reset();
+                        }
+                    }
+                } else {
+                    crlf = false;
+                }
+                if (lineLength == 0) {
+                    // the empty line ends the header block
+                    break;
+                }
+                lines++;
+                lineLength = 0;
+            } else {
+                lineLength++;
+            }
+        }
+        if (lineLength > 0) {
+            // last line of a message without body nor line terminator
+            lines++;
+            crlf = false;
+        }
+        return new MimeMessageHeaderIndex(header.toByteArray(), lines, crlf);
+    }
+
+    /**
+     * Read the header block of the given source.
+     * 
+     * @param source
+     *            the source
+     * @return the index
+     * @throws IOException
+     *             if the source can not be read
+     */
+    public static MimeMessageHeaderIndex read(MimeMessageSource source) throws IOException {
+        InputStream in = source.getInputStream();
+        try {
+            return read(new BufferedInputStream(in, 4096));
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the offset of the first byte of the body in the message
+     * 
+     * @return bodyOffset
+     */
+    public long getBodyOffset() {
+        return headerBytes.length;
+    }
+
+    /**
+     * Return the number of header lines, continuation lines included
+     * 
+     * @return headerLines
+     */
+    public int getHeaderLineCount() {
+        return headerLines;
+    }
+
+    /**
+     * Return true if the raw header block is exactly what writing the parsed
+     * headers would produce, so that it can be copied as is.
+     * 
+     * @return canonical
+     */
+    public boolean isCanonical() {
+        return crlf && headerLines > 0;
+    }
+
+    /**
+     * Return a stream on the raw header block
+     * 
+     * @return headerStream
+     */
+    public InputStream getHeaderInputStream() {
+        return new ByteArrayInputStream(headerBytes);
+    }
+
+    /**
+     * Parse the header block
+     * 
+     * @return headers
+     * @throws MessagingException
+     *             if the headers can not be parsed
+     */
+    public MailHeaders getHeaders() throws MessagingException {
+        return new MailHeaders(getHeaderInputStream());
+    }
+
+    /**
+     * Return a stream on the body of the message stored in the given source.
+     * 
+     * @param source
+     *            the source this index was read from
+     * @return bodyStream
+     * @throws IOException
+     *             if the source can not be read
+     */
+    public InputStream getBodyInputStream(MimeMessageSource source) throws IOException {
+        InputStream in = source.getInputStream();
+        // skipping is cheap on the shared streams returned by the sources
+        long remaining = getBodyOffset();
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() == -1) {
+                    break;
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+        return in;
+    }
+
+}
@@ -16,53 +16,115 @@
  * specific language governing permissions and limitations      *
  * under the License.                                           *
  ****************************************************************/
-
 package org.apache.james.core;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.DeferredFileOutputStream;
 import org.apache.james.lifecycle.api.Disposable;
 
 import javax.mail.MessagingException;
-import javax.mail.util.SharedByteArrayInputStream;
 import javax.mail.util.SharedFileInputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.List;
 
 /**
  * Takes an input stream and creates a repeatable input stream source for a
  * MimeMessageWrapper. It does this by completely reading the input stream and
- * saving that to data to an {@link DeferredFileOutputStream} with its threshold set to 100kb
+ * saving that data in chunks of direct memory taken from the
+ * {@link MessageBufferPool}. Messages bigger than the spill threshold of the
+ * pool, or which can not get memory from it, are stored in a temporary file.
+ *
+ * Data written through {@link #getWritableOutputStream()} or
+ * {@link #write(ByteBuffer)} is copied straight into the chunks, and the
+ * streams returned by {@link #getInputStream()} read them in place.
  */
 public class MimeMessageInputStreamSource extends MimeMessageSource implements Disposable {
 
     private final List<InputStream> streams = new ArrayList<InputStream>();
 
     /**
-     * A temporary file used to hold the message stream
+     * The pool providing the chunks
      */
-    private DeferredFileOutputStream out;
+    private final MessageBufferPool pool;
 
     /**
-     * The full path of the temporary file
+     * The chunks taken from the pool, given back on dispose or once this
+     * source became unreachable
      */
-    private String sourceId;
+    private final MessageBufferPool.Lease lease;
+
+    /**
+     * The chunks holding the message while it is kept in memory
+     */
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+
+    /**
+     * The chunks handed out to readers, marked as released on dispose
+     */
+    private final List<SharedChunkInputStream.Chunks> snapshots = new ArrayList<SharedChunkInputStream.Chunks>();
+
+    /**
+     * The number of bytes written
+     */
+    private long size;
 
     /**
-     * 100kb threshold for the stream.
+     * The temporary file used to hold the message once spilled
      */
-    private final static int THRESHOLD = 1024 * 100;
+    private File file;
+
+    private FileOutputStream fileOut;
+
+    private FileChannel channel;
 
     /**
-     * Temporary directory to use
+     * Collects the data written to the file. Comes from the pool if
+     * stagingPooled is true
      */
-    private final static File TMPDIR = new File(System.getProperty("java.io.tmpdir"));
+    private ByteBuffer staging;
+
+    private boolean stagingPooled;
+
+    /**
+     * The stream handed out for writing, created on demand
+     */
+    private ChunkOutputStream chunkOut;
+
+    private boolean closed;
+
+    private boolean disposed;
+
+    /**
+     * Line terminators seen in the body so far
+     */
+    private long bodyLines;
+
+    /**
+     * True once the empty line ending the headers was written
+     */
+    private boolean inBody;
+
+    /**
+     * Length of the current header line
+     */
+    private int headerLineLength;
+
+    /**
+     * True if the last byte written was a CR
+     */
+    private boolean lastCR;
+
+    /**
+     * The unique identifier of the source, used as temp file prefix
+     */
+    private String sourceId;
 
     /**
      * Construct a new MimeMessageInputStreamSource from an
@@ -73,29 +135,28 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
      * @throws MessagingException if an error occurs while trying to store the stream
      */
     public MimeMessageInputStreamSource(String key, InputStream in) throws MessagingException {
-        super();
-        // We want to immediately read this into a temporary file
-        // Create a temp file and channel the input stream into it
+        this(key, in, MessageBufferPool.getInstance());
+    }
+
+    /**
+     * Construct a new MimeMessageInputStreamSource from an
+     * <code>InputStream</code>, storing it in memory taken from the given
+     * pool.
+     *
+     * @param key  the prefix for the name of the temp file
+     * @param in   the stream containing the MimeMessage
+     * @param pool the pool providing the memory
+     * @throws MessagingException if an error occurs while trying to store the stream
+     */
+    public MimeMessageInputStreamSource(String key, InputStream in, MessageBufferPool pool) throws MessagingException {
+        this(key, pool);
         try {
-            out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
-            IOUtils.copy(in, out);
-            sourceId = key;
+            IOUtils.copy(in, getWritableOutputStream());
+            getWritableOutputStream().close();
         } catch (IOException ioe) {
+            dispose();
             throw new MessagingException("Unable to retrieve the data: " + ioe.getMessage(), ioe);
         } finally {
-            try {
-                if (out != null) {
-                    out.close();
-
-                    File file = out.getFile();
-                    if (file != null) {
-                        file.delete();
-                    }
-                }
-            } catch (IOException ioe) {
-                // Ignored - logging unavailable to log this non-fatal error.
-            }
-
             try {
                 if (in != null) {
                     in.close();
@@ -103,13 +164,24 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
             } catch (IOException ioe) {
                 // Ignored - logging unavailable to log this non-fatal error.
             }
-
         }
     }
 
     public MimeMessageInputStreamSource(String key) {
+        this(key, MessageBufferPool.getInstance());
+    }
+
+    /**
+     * Construct a new, empty, MimeMessageInputStreamSource using the given
+     * pool.
+     *
+     * @param key  the prefix for the name of the temp file
+     * @param pool the pool providing the memory
+     */
+    public MimeMessageInputStreamSource(String key, MessageBufferPool pool) {
         super();
-        out = new DeferredFileOutputStream(THRESHOLD, key, ".m64", TMPDIR);
+        this.pool = pool;
+        this.lease = pool.lease(this);
         sourceId = key;
     }
 
@@ -123,52 +195,271 @@ public class MimeMessageInputStreamSource extends MimeMessageSource implements D
     }
 
     /**
-     * Get an input stream to retrieve the data stored in the temporary file
+     * Get an input stream to retrieve the data stored in memory or in the
+     * temporary file
      *
-     * @return a <code>BufferedInputStream</code> containing the data
+     * @return a <code>SharedInputStream</code> containing the data
      */
     public synchronized InputStream getInputStream() throws IOException {
+        if (disposed) {
+            throw new IOException("Source already disposed");
+        }
         InputStream in;
-        if (out.isInMemory()) {
-            in = new SharedByteArrayInputStream(out.getData());
+        if (file == null) {
+            SharedChunkInputStream.Chunks snapshot = new SharedChunkInputStream.Chunks(this, chunks.toArray(new ByteBuffer[chunks.size()]), pool.getChunkSize(), size);
+            snapshots.add(snapshot);
+            in = new SharedChunkInputStream(snapshot);
         } else {
-            in = new SharedFileInputStream(out.getFile());
+            flushStaging();
+            in = new SharedFileInputStream(file);
         }
         streams.add(in);
         return in;
     }
 
     /**
-     * Get the size of the temp file
+     * Get the size of the message
      *
-     * @return the size of the temp file
+     * @return the size of the message
      * @throws IOException if an error is encoutered while computing the size of the
      *                     message
      */
     @Override
-    public long getMessageSize() throws IOException {
-        return out.getByteCount();
+    public synchronized long getMessageSize() throws IOException {
+        return size;
     }
 
-    public OutputStream getWritableOutputStream() {
-        return out;
+    /**
+     * Return true if the message is held in memory, false if it was spilled to
+     * a file.
+     *
+     * @return inMemory
+     */
+    public synchronized boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Return the stream to which the message can be written. Closing it
+     * completes the message.
+     *
+     * @return the stream
+     */
+    public synchronized OutputStream getWritableOutputStream() {
+        if (chunkOut == null) {
+            chunkOut = new ChunkOutputStream();
+        }
+        return chunkOut;
+    }
+
+    /**
+     * Append the remaining bytes of the given buffer to the message, without
+     * intermediate copy. The position of the buffer is moved to its limit.
+     *
+     * @param data
+     *            the bytes to append
+     * @throws IOException
+     *             if the data can not be stored
+     */
+    public synchronized void write(ByteBuffer data) throws IOException {
+        for (int i = data.position(); i < data.limit(); i++) {
+            count(data.get(i));
+        }
+        while (data.hasRemaining()) {
+            ByteBuffer target = target();
+            int n = Math.min(data.remaining(), target.remaining());
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + n);
+            target.put(part);
+            data.position(data.position() + n);
+            size += n;
+        }
+    }
+
+    private synchronized void write(int b) throws IOException {
+        target().put((byte) b);
+        count((byte) b);
+        size++;
+    }
+
+    /**
+     * Keep track of the body lines while the message is written, so that
+     * they never have to be counted by reading it again.
+     */
+    private void count(byte b) {
+        boolean terminator = b == '\r' || (b == '\n' && !lastCR);
+        lastCR = b == '\r';
+        if (inBody) {
+            if (terminator) {
+                bodyLines++;
+            }
+        } else if (terminator) {
+            inBody = headerLineLength == 0;
+            headerLineLength = 0;
+        } else if (b != '\n') {
+            headerLineLength++;
+        }
+    }
+
+    /**
+     * Return the number of body lines counted while the message was written.
+     */
+    @Override
+    protected synchronized long computeBodyLineCount() throws IOException {
+        return bodyLines;
+    }
+
+    /**
+     * Return the buffer the next bytes must be written to, taking a new chunk
+     * or spilling the message to a file when needed.
+     */
+    private ByteBuffer target() throws IOException {
+        if (closed || disposed) {
+            throw new IOException("Stream closed");
+        }
+        if (file != null) {
+            if (!staging.hasRemaining()) {
+                flushStaging();
+            }
+            return staging;
+        }
+        if (!chunks.isEmpty()) {
+            ByteBuffer last = chunks.get(chunks.size() - 1);
+            if (last.hasRemaining()) {
+                return last;
+            }
+        }
+        ByteBuffer chunk = size < pool.getSpillThreshold() ? lease.acquire() : null;
+        if (chunk == null) {
+            spill();
+            return staging;
+        }
+        chunks.add(chunk);
+        return chunk;
+    }
+
+    /**
+     * Move the data held in memory to a temporary file, which receives all
+     * the data written from now on.
+     */
+    private void spill() throws IOException {
+        file = pool.createSpillFile(sourceId);
+        fileOut = new FileOutputStream(file);
+        channel = fileOut.getChannel();
+        for (ByteBuffer chunk : chunks) {
+            chunk.flip();
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+        }
+        // keep one of the chunks to collect the writes to the file, the
+        // pool has none left if there is no chunk yet
+        stagingPooled = !chunks.isEmpty();
+        if (stagingPooled) {
+            staging = chunks.remove(0);
+            staging.clear();
+        } else {
+            staging = ByteBuffer.allocate(pool.getChunkSize());
+        }
+        releaseChunks();
+    }
+
+    private void flushStaging() throws IOException {
+        if (staging != null && staging.position() > 0) {
+            staging.flip();
+            while (staging.hasRemaining()) {
+                channel.write(staging);
+            }
+            staging.clear();
+        }
+    }
+
+    private synchronized void close() throws IOException {
+        if (!closed && !disposed) {
+            closed = true;
+            if (file != null) {
+                try {
+                    flushStaging();
+                } finally {
+                    releaseStaging();
+                    fileOut.close();
+                }
+            }
+        }
+    }
+
+    private void releaseChunks() {
+        for (SharedChunkInputStream.Chunks snapshot : snapshots) {
+            snapshot.release();
+        }
+        snapshots.clear();
+        for (ByteBuffer chunk : chunks) {
+            lease.release(chunk);
+        }
+        chunks.clear();
+    }
+
+    private void releaseStaging() {
+        if (staging != null) {
+            if (stagingPooled) {
+                lease.release(staging);
+            }
+            staging = null;
+        }
     }
 
     @Override
-    public void dispose() {
+    public synchronized void dispose() {
         // explicit close all streams
         for (InputStream stream : streams) {
             IOUtils.closeQuietly(stream);
         }
+        streams.clear();
 
-        if (out != null) {
-            IOUtils.closeQuietly(out);
-            File file = out.getFile();
+        if (!disposed) {
+            disposed = true;
+            releaseChunks();
+            releaseStaging();
+            if (fileOut != null) {
+                IOUtils.closeQuietly(fileOut);
+                fileOut = null;
+                channel = null;
+            }
             if (file != null) {
                 FileUtils.deleteQuietly(file);
                 file = null;
             }
-            out = null;
+            lease.close();
+        }
+    }
+
+    /**
+     * Writes to the chunks of the source.
+     */
+    private final class ChunkOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            MimeMessageInputStreamSource.this.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            MimeMessageInputStreamSource.this.write(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (MimeMessageInputStreamSource.this) {
+                if (!closed && !disposed) {
+                    flushStaging();
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            MimeMessageInputStreamSource.this.close();
         }
     }
 
@@ -31,6 +31,16 @@ import java.io.InputStream;
  */
 public abstract class MimeMessageSource {
 
+    /**
+     * The header block of the message, read on first use
+     */
+    private MimeMessageHeaderIndex headerIndex;
+
+    /**
+     * The number of lines of the body, computed on first use
+     */
+    private long bodyLineCount = -1;
+
     /**
      * Returns a unique String ID that represents the location from where this
      * file is loaded. This will be used to identify where the data is,
@@ -81,4 +91,71 @@ public abstract class MimeMessageSource {
         return size;
     }
 
+    /**
+     * Return the header block of the message. It is read from the data on the
+     * first call only, so that the headers are parsed once for all the
+     * messages using this source.
+     * 
+     * @return the header index
+     * @throws IOException
+     *             if an error occurs while reading the data
+     */
+    public synchronized MimeMessageHeaderIndex getHeaderIndex() throws IOException {
+        if (headerIndex == null) {
+            headerIndex = MimeMessageHeaderIndex.read(this);
+        }
+        return headerIndex;
+    }
+
+    /**
+     * Return the number of lines of the message body, as counted by
+     * {@link #computeBodyLineCount()} on the first call.
+     * 
+     * @return the number of lines of the body
+     * @throws IOException
+     *             if an error occurs while reading the data
+     */
+    public synchronized long getBodyLineCount() throws IOException {
+        if (bodyLineCount < 0) {
+            bodyLineCount = computeBodyLineCount();
+        }
+        return bodyLineCount;
+    }
+
+    /**
+     * Count the line terminators (CRLF, LF or a lone CR) of the body. Default
+     * implementation scans the raw body bytes, sources which see the data
+     * while it is written can override this to return a count they kept.
+     * 
+     * @return the number of lines of the body
+     * @throws IOException
+     *             if an error occurs while reading the data
+     */
+    protected long computeBodyLineCount() throws IOException {
+        InputStream in = getHeaderIndex().getBodyInputStream(this);
+        try {
+            long lines = 0;
+            boolean cr = false;
+            byte[] data = new byte[4096];
+            int read;
+            while ((read = in.read(data)) > 0) {
+                for (int i = 0; i < read; i++) {
+                    byte b = data[i];
+                    if (b == '\r' || (b == '\n' && !cr)) {
+                        lines++;
+                    }
+                    cr = b == '\r';
+                }
+            }
+            return lines;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ioe) {
+                // Exception ignored because logging is
+                // unavailable
+            }
+        }
+    }
+
 }
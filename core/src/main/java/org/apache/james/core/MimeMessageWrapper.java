@@ -80,8 +80,6 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
      */
     private InputStream sourceIn;
 
-    private long initialHeaderSize;
-
     private MimeMessageWrapper(Session session) {
         super(session);
         this.headers = null;
@@ -193,13 +191,10 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
             // Another thread has already loaded these headers
         } else if (source != null) {
             try {
-                InputStream in = source.getInputStream();
-                try {
-                    headers = createInternetHeaders(in);
-
-                } finally {
-                    IOUtils.closeQuietly(in);
-                }
+                // only the cached header block is parsed, the source is not
+                // read again
+                InputStream in = source.getHeaderIndex().getHeaderInputStream();
+                headers = createInternetHeaders(in);
             } catch (IOException ioe) {
                 throw new MessagingException("Unable to parse headers from stream: " + ioe.getMessage(), ioe);
             }
@@ -299,22 +294,26 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
             // and write to this outputstream
 
             // First handle the headers
-            InputStream in = source.getInputStream();
+            MimeMessageHeaderIndex index = source.getHeaderIndex();
+            InputStream in = null;
             try {
-                InternetHeaders myHeaders;
-                MailHeaders parsedHeaders = new MailHeaders(in);
-
-                // check if we should use the parsed headers or not
+                // check if we should use the original headers or not
                 if (!isHeaderModified()) {
-                    myHeaders = parsedHeaders;
+                    if (ignoreList.length == 0 && index.isCanonical()) {
+                        // nothing to filter, the raw header block can be
+                        // copied as is
+                        IOUtils.copy(index.getHeaderInputStream(), headerOs);
+                    } else {
+                        IOUtils.copy(new InternetHeadersInputStream(index.getHeaders().getNonMatchingHeaderLines(ignoreList)), headerOs);
+                    }
                 } else {
                     // The headers was modified so we need to call saveChanges() just to be sure
                     // See JAMES-1320
                     if (!saved)
                         saveChanges();
-                    myHeaders = headers;
+                    IOUtils.copy(new InternetHeadersInputStream(headers.getNonMatchingHeaderLines(ignoreList)), headerOs);
                 }
-                IOUtils.copy(new InternetHeadersInputStream(myHeaders.getNonMatchingHeaderLines(ignoreList)), headerOs);
+                in = index.getBodyInputStream(source);
                 IOUtils.copy(in, bodyOs);
             } finally {
                 IOUtils.closeQuietly(in);
@@ -349,11 +348,7 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         if (source != null) {
             try {
                 long fullSize = source.getMessageSize();
-                if (headers == null) {
-                    loadHeaders();
-                }
-                // 2 == CRLF
-                return (int) (fullSize - initialHeaderSize - 2);
+                return (int) (fullSize - source.getHeaderIndex().getBodyOffset());
 
             } catch (IOException e) {
                 throw new MessagingException("Unable to calculate message size");
@@ -369,11 +364,21 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     }
 
     /**
-     * Corrects JavaMail 1.1 version which always returns -1. Only corrected for
-     * content less than 5000 bytes, to avoid memory hogging.
+     * Corrects JavaMail 1.1 version which always returns -1. As long as the
+     * body was not modified the count kept by the source is returned, without
+     * reading the body.
      */
     @Override
     public int getLineCount() throws MessagingException {
+        synchronized (this) {
+            if (source != null && !bodyModified) {
+                try {
+                    return (int) source.getBodyLineCount();
+                } catch (IOException e) {
+                    return -1;
+                }
+            }
+        }
         InputStream in;
         try {
             in = getContentStream();
@@ -608,8 +613,6 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
         if (headers != null) {
             return headers;
         } else {
-            initialHeaderSize = newHeaders.getSize();
-
             return newHeaders;
         }
     }
@@ -631,12 +634,8 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
     @Override
     public synchronized InputStream getRawInputStream() throws MessagingException {
         if (!messageParsed && !isModified() && source != null) {
-            InputStream is;
             try {
-                is = source.getInputStream();
-                // skip the headers.
-                new MailHeaders(is);
-                return is;
+                return source.getHeaderIndex().getBodyInputStream(source);
             } catch (IOException e) {
                 throw new MessagingException("Unable to read the stream: " + e.getMessage(), e);
             }
@@ -671,11 +670,9 @@ public class MimeMessageWrapper extends MimeMessage implements Disposable {
                 if (!bodyModified && source != null) {
                     // ok only the headers were modified so we don't need to
                     // copy the whole message content into memory
-                    InputStream in = source.getInputStream();
-                    
                     // skip over headers from original stream we want to use the
                     // in memory ones
-                    new MailHeaders(in);
+                    InputStream in = source.getHeaderIndex().getBodyInputStream(source);
 
                     // now construct the new stream using the in memory headers
                     // and the body from the original source
@@ -0,0 +1,213 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.mail.internet.SharedInputStream;
+
+/**
+ * {@link SharedInputStream} reading the chunks of a
+ * {@link MimeMessageInputStreamSource} in place. Sub streams created by
+ * {@link #newStream(long, long)} share the same chunks, nothing is copied.
+ *
+ * Each read holds the read lock of the {@link Chunks}, so they can not be
+ * given back to the pool, and reused by another message, while they are
+ * read.
+ */
+final class SharedChunkInputStream extends InputStream implements SharedInputStream {
+
+    /**
+     * The chunks of a message, shared by all the streams reading it.
+     */
+    static final class Chunks {
+
+        /**
+         * Keeps the source reachable while its chunks are read, so they are
+         * not reclaimed by the pool
+         */
+        @SuppressWarnings("unused")
+        private final Object owner;
+
+        private final ByteBuffer[] buffers;
+
+        private final int chunkSize;
+
+        private final long length;
+
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Set once the chunks went back to the pool. Guarded by the lock
+         */
+        private boolean released;
+
+        Chunks(Object owner, ByteBuffer[] buffers, int chunkSize, long length) {
+            this.owner = owner;
+            this.buffers = buffers;
+            this.chunkSize = chunkSize;
+            this.length = length;
+        }
+
+        /**
+         * Mark the chunks as released, waiting for the reads in progress.
+         * They can be given back to the pool afterwards.
+         */
+        void release() {
+            lock.writeLock().lock();
+            try {
+                released = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private final Chunks chunks;
+
+    private final long start;
+
+    private final long end;
+
+    private long pos;
+
+    private long mark;
+
+    SharedChunkInputStream(Chunks chunks) {
+        this(chunks, 0, chunks.length);
+    }
+
+    private SharedChunkInputStream(Chunks chunks, long start, long end) {
+        this.chunks = chunks;
+        this.start = start;
+        this.end = end;
+        this.pos = start;
+        this.mark = start;
+    }
+
+    /**
+     * Take the read lock of the chunks, which must be unlocked by
+     * {@link #endRead()}
+     */
+    private void beginRead() throws IOException {
+        chunks.lock.readLock().lock();
+        if (chunks.released) {
+            chunks.lock.readLock().unlock();
+            throw new IOException("Message data was already disposed");
+        }
+    }
+
+    private void endRead() {
+        chunks.lock.readLock().unlock();
+    }
+
+    @Override
+    public int read() throws IOException {
+        beginRead();
+        try {
+            if (pos >= end) {
+                return -1;
+            }
+            ByteBuffer chunk = chunks.buffers[(int) (pos / chunks.chunkSize)];
+            int b = chunk.get((int) (pos % chunks.chunkSize)) & 0xFF;
+            pos++;
+            return b;
+        } finally {
+            endRead();
+        }
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        beginRead();
+        try {
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= end) {
+                return -1;
+            }
+            int read = 0;
+            while (read < len && pos < end) {
+                int offset = (int) (pos % chunks.chunkSize);
+                int n = (int) Math.min(Math.min(len - read, chunks.chunkSize - offset), end - pos);
+                ByteBuffer chunk = chunks.buffers[(int) (pos / chunks.chunkSize)].duplicate();
+                chunk.position(offset);
+                chunk.get(b, off + read, n);
+                read += n;
+                pos += n;
+            }
+            return read;
+        } finally {
+            endRead();
+        }
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = Math.max(0, Math.min(n, end - pos));
+        pos += skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, end - pos);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = pos;
+    }
+
+    @Override
+    public synchronized void reset() {
+        pos = mark;
+    }
+
+    /**
+     * @see javax.mail.internet.SharedInputStream#getPosition()
+     */
+    public long getPosition() {
+        return pos - start;
+    }
+
+    /**
+     * @see javax.mail.internet.SharedInputStream#newStream(long, long)
+     */
+    public InputStream newStream(long newStart, long newEnd) {
+        if (newStart < 0) {
+            throw new IllegalArgumentException("start < 0");
+        }
+        if (newEnd == -1) {
+            newEnd = end - start;
+        }
+        return new SharedChunkInputStream(chunks, start + newStart, Math.min(end, start + newEnd));
+    }
+
+}
@@ -25,6 +25,8 @@ import org.apache.mailet.Mail;
 
 import javax.mail.MessagingException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
 import static org.junit.Assert.*;
 import org.junit.Test;
 
@@ -102,4 +104,130 @@ public class MailImplTest extends MailTestAllImplementations {
         helperTestInitialState(duplicate);
         helperTestMessageSize(duplicate, 0);
     }
+
+    @Test
+    public void testDuplicateSharesAttributesUntilModified() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("string", "value");
+        mail.setAttribute("removed", "value");
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        duplicate.setAttribute("string", "changed");
+        duplicate.removeAttribute("removed");
+        duplicate.setAttribute("added", "value");
+
+        assertEquals("value", mail.getAttribute("string"));
+        assertEquals("value", mail.getAttribute("removed"));
+        assertNull(mail.getAttribute("added"));
+        assertEquals("changed", duplicate.getAttribute("string"));
+        assertNull(duplicate.getAttribute("removed"));
+        assertEquals("value", duplicate.getAttribute("added"));
+    }
+
+    @Test
+    public void testDuplicateDoesNotShareMutableAttributes() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList list = new ArrayList();
+        list.add("first");
+        mail.setAttribute("list", list);
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+        MailImpl secondDuplicate = (MailImpl) mail.duplicate();
+
+        ((ArrayList) duplicate.getAttribute("list")).add("duplicate");
+        ((ArrayList) mail.getAttribute("list")).add("original");
+
+        assertEquals("[first, original]", mail.getAttribute("list").toString());
+        assertEquals("[first, duplicate]", duplicate.getAttribute("list").toString());
+        assertEquals("[first]", secondDuplicate.getAttribute("list").toString());
+        assertEquals("[first]", secondDuplicate.getAttributesRaw().get("list").toString());
+    }
+
+    @Test
+    public void testMutableAttributeModifiedAfterDuplicate() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList set = new ArrayList();
+        set.add("first");
+        mail.setAttribute("set", set);
+        ArrayList read = new ArrayList();
+        read.add("first");
+        mail.setAttribute("read", read);
+        read = (ArrayList) mail.getAttribute("read");
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        // the references taken before duplicating still belong to the mail
+        set.add("original");
+        read.add("original");
+
+        assertEquals("[first, original]", mail.getAttribute("set").toString());
+        assertEquals("[first, original]", mail.getAttribute("read").toString());
+        assertEquals("[first]", duplicate.getAttribute("set").toString());
+        assertEquals("[first]", duplicate.getAttribute("read").toString());
+    }
+
+    @Test
+    public void testMutableAttributeOfRawMapModifiedAfterDuplicate() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        ArrayList list = new ArrayList();
+        list.add("first");
+        HashMap raw = mail.getAttributesRaw();
+        raw.put("list", list);
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        list.add("original");
+
+        assertEquals("[first, original]", mail.getAttribute("list").toString());
+        assertEquals("[first]", duplicate.getAttribute("list").toString());
+    }
+
+    @Test
+    public void testAttributesRawIsNotShared() throws MessagingException {
+        MailImpl mail = new MailImpl();
+        mail.setAttribute("string", "value");
+        MailImpl duplicate = (MailImpl) mail.duplicate();
+
+        HashMap raw = duplicate.getAttributesRaw();
+        raw.put("string", "changed");
+
+        assertEquals("value", mail.getAttribute("string"));
+        assertEquals("changed", duplicate.getAttribute("string"));
+    }
+
+    @Test
+    public void testDuplicatesModifiedConcurrently() throws Exception {
+        for (int run = 0; run < 100; run++) {
+            MailImpl mail = new MailImpl();
+            for (int i = 0; i < 5000; i++) {
+                mail.setAttribute("key" + i, "value");
+            }
+            final MailImpl duplicate = (MailImpl) mail.duplicate();
+            final CountDownLatch start = new CountDownLatch(1);
+            final Exception[] failure = new Exception[1];
+
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        duplicate.setAttribute("key0", "duplicate");
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                }
+            };
+            writer.start();
+            start.countDown();
+            for (int i = 0; i < 100; i++) {
+                mail.setAttribute("other" + i, "original");
+            }
+            writer.join();
+
+            assertNull(failure[0]);
+            assertEquals("value", mail.getAttribute("key0"));
+            assertEquals("duplicate", duplicate.getAttribute("key0"));
+            for (int i = 0; i < 100; i++) {
+                assertEquals("original", mail.getAttribute("other" + i));
+                assertNull(duplicate.getAttribute("other" + i));
+            }
+        }
+    }
 }
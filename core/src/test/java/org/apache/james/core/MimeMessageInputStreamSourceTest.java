@@ -0,0 +1,225 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.core;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.SharedInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class MimeMessageInputStreamSourceTest {
+
+    private final static int CHUNK_SIZE = 64;
+
+    private final MessageBufferPool pool = new MessageBufferPool(CHUNK_SIZE, 4 * CHUNK_SIZE, 8 * CHUNK_SIZE, new File(System.getProperty("java.io.tmpdir")));
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < length; i++) {
+            content[i] = (byte) ('a' + i % 26);
+        }
+        return content;
+    }
+
+    private MimeMessageInputStreamSource write(byte[] content) throws IOException {
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", pool);
+        OutputStream out = source.getWritableOutputStream();
+        // mix the different ways to write
+        out.write(content[0]);
+        source.write(ByteBuffer.wrap(content, 1, content.length / 2 - 1));
+        out.write(content, content.length / 2, content.length - content.length / 2);
+        out.close();
+        return source;
+    }
+
+    @Test
+    public void testSmallMessageStaysInMemory() throws IOException {
+        byte[] content = content(3 * CHUNK_SIZE + 10);
+        MimeMessageInputStreamSource source = write(content);
+
+        assertTrue(source.isInMemory());
+        assertEquals(content.length, source.getMessageSize());
+        assertArrayEquals(content, IOUtils.toByteArray(source.getInputStream()));
+        assertEquals(4 * CHUNK_SIZE, pool.getUsedBytes());
+
+        source.dispose();
+        assertEquals(0, pool.getUsedBytes());
+        assertEquals(4, pool.getPooledChunks());
+    }
+
+    @Test
+    public void testBigMessageIsSpilled() throws IOException {
+        byte[] content = content(10 * CHUNK_SIZE + 10);
+        MimeMessageInputStreamSource source = write(content);
+
+        assertFalse(source.isInMemory());
+        assertEquals(content.length, source.getMessageSize());
+        assertArrayEquals(content, IOUtils.toByteArray(source.getInputStream()));
+        assertEquals(1, pool.getSpilledMessages());
+        assertEquals(0, pool.getUsedBytes());
+
+        source.dispose();
+        assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void testExhaustedBudgetSpills() throws IOException {
+        MimeMessageInputStreamSource first = write(content(4 * CHUNK_SIZE));
+        MimeMessageInputStreamSource second = write(content(4 * CHUNK_SIZE));
+        byte[] content = content(CHUNK_SIZE);
+        MimeMessageInputStreamSource third = write(content);
+
+        assertTrue(first.isInMemory());
+        assertTrue(second.isInMemory());
+        assertFalse(third.isInMemory());
+        assertEquals(1, pool.getBudgetExhaustedCount());
+        assertArrayEquals(content, IOUtils.toByteArray(third.getInputStream()));
+
+        first.dispose();
+        second.dispose();
+        third.dispose();
+        assertEquals(8 * CHUNK_SIZE, pool.getAllocatedBytes());
+        assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    public void testSharedSubStreams() throws IOException, MessagingException {
+        byte[] content = content(3 * CHUNK_SIZE);
+        MimeMessageInputStreamSource source = new MimeMessageInputStreamSource("test", new ByteArrayInputStream(content), pool);
+        InputStream in = source.getInputStream();
+        assertTrue(in instanceof SharedInputStream);
+
+        assertEquals(CHUNK_SIZE - 10, in.skip(CHUNK_SIZE - 10));
+        assertEquals(CHUNK_SIZE - 10, ((SharedInputStream) in).getPosition());
+        InputStream sub = ((SharedInputStream) in).newStream(CHUNK_SIZE - 10, 2 * CHUNK_SIZE + 10);
+        assertArrayEquals(Arrays.copyOfRange(content, CHUNK_SIZE - 10, 2 * CHUNK_SIZE + 10), IOUtils.toByteArray(sub));
+        InputStream tail = ((SharedInputStream) sub).newStream(CHUNK_SIZE, -1);
+        assertArrayEquals(Arrays.copyOfRange(content, 2 * CHUNK_SIZE - 10, 2 * CHUNK_SIZE + 10), IOUtils.toByteArray(tail));
+
+        source.dispose();
+        try {
+            in.read();
+            fail("the chunks were released");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testBodyLineCountIsKeptWhileWriting() throws IOException, MessagingException {
+        String[] messages = new String[] { "Subject: test\r\n\r\nline1\r\nline2\r\n", "Subject: test\n\nline1\nline2\rline3\r\n\r\nlast", "Subject: test\r\n", "Subject: test\r\n\r\n" };
+        long[] expected = new long[] { 2, 4, 0, 0 };
+        for (int i = 0; i < messages.length; i++) {
+            final MimeMessageInputStreamSource source = write(messages[i].getBytes("US-ASCII"));
+            MimeMessageSource scanned = new MimeMessageSource() {
+                public String getSourceId() {
+                    return source.getSourceId();
+                }
+
+                public InputStream getInputStream() throws IOException {
+                    return source.getInputStream();
+                }
+            };
+            assertEquals(messages[i], expected[i], source.getBodyLineCount());
+            assertEquals(messages[i], expected[i], scanned.getBodyLineCount());
+            source.dispose();
+        }
+    }
+
+    @Test
+    public void testReadRacingDisposeNeverSeesOtherMessage() throws Exception {
+        final byte[] a = new byte[4 * CHUNK_SIZE];
+        Arrays.fill(a, (byte) 'a');
+        byte[] b = new byte[4 * CHUNK_SIZE];
+        Arrays.fill(b, (byte) 'b');
+
+        for (int run = 0; run < 200; run++) {
+            MimeMessageInputStreamSource source = write(a);
+            final InputStream in = source.getInputStream();
+            final Throwable[] failure = new Throwable[1];
+            Thread reader = new Thread() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[7];
+                    try {
+                        while (true) {
+                            int n = in.read(buffer);
+                            if (n == -1) {
+                                // read again from the start
+                                in.reset();
+                                continue;
+                            }
+                            for (int i = 0; i < n; i++) {
+                                if (buffer[i] != 'a') {
+                                    failure[0] = new AssertionError("read " + (char) buffer[i]);
+                                    return;
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        // the source was disposed
+                    }
+                }
+            };
+            reader.start();
+            source.dispose();
+            MimeMessageInputStreamSource other = write(b);
+            reader.join();
+            other.dispose();
+            assertEquals(null, failure[0]);
+        }
+    }
+
+    @Test
+    public void testChunksOfUndisposedSourceAreReclaimed() throws Exception {
+        MimeMessageInputStreamSource source = write(content(3 * CHUNK_SIZE));
+        InputStream in = source.getInputStream();
+        source = null;
+        System.gc();
+        pool.release(pool.acquire());
+        // the stream keeps the chunks in use
+        assertEquals(3 * CHUNK_SIZE, pool.getUsedBytes());
+        assertEquals(3 * CHUNK_SIZE, IOUtils.toByteArray(in).length);
+
+        in = null;
+        for (int i = 0; i < 50 && pool.getUsedBytes() > 0; i++) {
+            System.gc();
+            Thread.sleep(10);
+            pool.release(pool.acquire());
+        }
+        assertEquals(0, pool.getUsedBytes());
+        assertEquals(3, pool.getReclaimedChunks());
+    }
+
+}
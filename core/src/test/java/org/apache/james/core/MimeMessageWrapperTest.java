@@ -327,4 +327,38 @@ public class MimeMessageWrapperTest extends MimeMessageFromStreamTest {
         mw.saveChanges();
         assertEquals(body.length(), mw.getSize());
     }
+
+    @Test
+    public void testHeaderIndexIsSharedBySourceUsers() throws Exception {
+        final int[] reads = new int[1];
+        final MimeMessageInputStreamSource delegate = new MimeMessageInputStreamSource("test", new SharedByteArrayInputStream((content + sep + body).getBytes()));
+        MimeMessageSource source = new MimeMessageSource() {
+            public String getSourceId() {
+                return delegate.getSourceId();
+            }
+
+            public InputStream getInputStream() throws IOException {
+                reads[0]++;
+                return delegate.getInputStream();
+            }
+
+            public long getMessageSize() throws IOException {
+                return delegate.getMessageSize();
+            }
+        };
+        MimeMessageWrapper first = new MimeMessageWrapper(source);
+        MimeMessageWrapper second = new MimeMessageWrapper(source);
+
+        assertEquals("foo", first.getSubject());
+        assertEquals("foo", second.getSubject());
+        assertEquals(body.length(), second.getSize());
+        assertEquals(1, reads[0]);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        first.writeTo(out);
+        assertEquals(content + sep + body, out.toString());
+        assertEquals(2, reads[0]);
+
+        LifecycleUtil.dispose(delegate);
+    }
 }
@@ -0,0 +1,237 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.domainlist.lib;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.james.domainlist.api.DomainList;
+import org.apache.james.domainlist.api.DomainListException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link DomainList} answering from an in-memory snapshot of another one.
+ * 
+ * The snapshot holds the domains returned by {@link DomainList#getDomains()},
+ * so with an {@link AbstractDomainList} it includes the autodetected host name
+ * and IP addresses. {@link #containsDomain(String)} is a lookup in an
+ * immutable set, without database query or DNS lookup.
+ * 
+ * The snapshot is taken again when a domain is added or removed through this
+ * list, and when it is older than refreshInterval milliseconds. In the latter
+ * case the caller noticing it refreshes the snapshot while the other callers
+ * keep using the previous one; if the refresh fails the previous snapshot is
+ * kept until the next attempt. A change which fails is reported without
+ * refreshing the snapshot, while a refresh which fails after a successful
+ * change is only logged, and attempted again on the next lookup.
+ */
+public class CachingDomainList implements DomainList {
+
+    /**
+     * Default time in milliseconds after which the snapshot is refreshed
+     */
+    public final static long DEFAULT_REFRESH_INTERVAL = 60000;
+
+    private final static Logger LOG = LoggerFactory.getLogger(CachingDomainList.class);
+
+    /**
+     * An immutable view of the domains
+     */
+    private final static class Snapshot {
+
+        /**
+         * The domains as returned by the underlying list, null if none
+         */
+        private final String[] domains;
+
+        /**
+         * The lower cased domains
+         */
+        private final Set<String> lookup;
+
+        private final long taken;
+
+        private Snapshot(String[] domains, long taken) {
+            this.domains = domains;
+            Set<String> set = new HashSet<String>();
+            if (domains != null) {
+                for (String domain : domains) {
+                    set.add(domain.toLowerCase(Locale.US));
+                }
+            }
+            this.lookup = Collections.unmodifiableSet(set);
+            this.taken = taken;
+        }
+    }
+
+    private final DomainList domainList;
+
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * True if the snapshot could not be refreshed after a change
+     */
+    private volatile boolean outdated;
+
+    private long refreshInterval = DEFAULT_REFRESH_INTERVAL;
+
+    /**
+     * Create a cache in front of the given list.
+     * 
+     * @param domainList
+     *            the list holding the domains
+     */
+    public CachingDomainList(DomainList domainList) {
+        this.domainList = domainList;
+    }
+
+    /**
+     * Return the list holding the domains.
+     * 
+     * @return the underlying list
+     */
+    public DomainList getDomainList() {
+        return domainList;
+    }
+
+    /**
+     * Set the time after which the snapshot is refreshed, 0 to refresh it only
+     * when a domain is added or removed
+     * 
+     * @param refreshInterval
+     *            the time in milliseconds
+     */
+    public void setRefreshInterval(long refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    /**
+     * Read the settings from the given configuration: refreshInterval (in
+     * milliseconds).
+     * 
+     * @param config
+     *            the cache configuration
+     */
+    public void configure(Configuration config) {
+        setRefreshInterval(config.getLong("refreshInterval", DEFAULT_REFRESH_INTERVAL));
+    }
+
+    /**
+     * @see org.apache.james.domainlist.api.DomainList#getDomains()
+     */
+    public String[] getDomains() throws DomainListException {
+        String[] domains = snapshot().domains;
+        // callers may modify the returned array
+        return domains == null ? null : domains.clone();
+    }
+
+    /**
+     * @see org.apache.james.domainlist.api.DomainList#containsDomain(java.lang.String)
+     */
+    public boolean containsDomain(String domain) throws DomainListException {
+        return snapshot().lookup.contains(domain.toLowerCase(Locale.US));
+    }
+
+    /**
+     * @see org.apache.james.domainlist.api.DomainList#addDomain(java.lang.String)
+     */
+    public void addDomain(String domain) throws DomainListException {
+        domainList.addDomain(domain);
+        refreshAfterChange();
+    }
+
+    /**
+     * @see org.apache.james.domainlist.api.DomainList#removeDomain(java.lang.String)
+     */
+    public void removeDomain(String domain) throws DomainListException {
+        domainList.removeDomain(domain);
+        refreshAfterChange();
+    }
+
+    /**
+     * @see org.apache.james.domainlist.api.DomainList#getDefaultDomain()
+     */
+    public String getDefaultDomain() throws DomainListException {
+        return domainList.getDefaultDomain();
+    }
+
+    /**
+     * Take a new snapshot of the domains now.
+     * 
+     * @throws DomainListException
+     *             if the domains can not be read, the previous snapshot is
+     *             kept then
+     */
+    public synchronized void refresh() throws DomainListException {
+        long now = System.currentTimeMillis();
+        snapshot = new Snapshot(domainList.getDomains(), now);
+        outdated = false;
+    }
+
+    /**
+     * Take a new snapshot after a successful change. The change is done, so a
+     * failure is only logged and the snapshot refreshed on the next lookup.
+     */
+    private void refreshAfterChange() {
+        try {
+            refresh();
+        } catch (DomainListException e) {
+            LOG.warn("Unable to refresh the domains after a change, keeping the previous ones", e);
+            outdated = true;
+        }
+    }
+
+    /**
+     * Return the current snapshot, taking the first one or refreshing an
+     * expired one.
+     */
+    private Snapshot snapshot() throws DomainListException {
+        Snapshot current = snapshot;
+        if (current == null) {
+            synchronized (this) {
+                if (snapshot == null) {
+                    refresh();
+                }
+                return snapshot;
+            }
+        }
+        boolean expired = refreshInterval > 0 && System.currentTimeMillis() - current.taken >= refreshInterval;
+        if ((outdated || expired) && refreshing.compareAndSet(false, true)) {
+            // only one caller refreshes, the others use the current snapshot
+            try {
+                refresh();
+                current = snapshot;
+            } catch (DomainListException e) {
+                LOG.warn("Unable to refresh the domains, keeping the previous ones", e);
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        return current;
+    }
+
+}
@@ -37,13 +37,56 @@ import org.apache.james.lifecycle.api.Configurable;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.apache.james.util.TimeToLiveCache;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
 
 /**
+ * Base class of the RecipientRewriteTable implementations.
  * 
+ * If mappingCacheTime is set, the fully expanded mappings of the addresses
+ * looked up are cached for that many milliseconds, including the addresses
+ * without mapping and the error mappings, so that the same recipients do not
+ * hit the backend and do not get their mappings parsed and expanded again. At
+ * most mappingCacheSize addresses are cached. The cache is cleared whenever a
+ * mapping is added or removed through this instance or the table is
+ * configured again; changes made directly in the backend are seen once the
+ * entries expire, which is why the cache is off by default.
  */
 public abstract class AbstractRecipientRewriteTable implements RecipientRewriteTable, LogEnabled, Configurable {
+
+    /**
+     * Default time in milliseconds the mappings of an address are cached, 0
+     * as the changes made directly in the backend would not be seen at once
+     */
+    public final static long DEFAULT_MAPPING_CACHE_TIME = 0;
+
+    /**
+     * Default maximum number of addresses whose mappings are cached
+     */
+    public final static int DEFAULT_MAPPING_CACHE_SIZE = 10000;
+
+    /**
+     * The cached mappings of an address
+     */
+    private final static class Resolution {
+
+        /**
+         * The mappings, null if the address has none
+         */
+        private final Collection<String> mappings;
+
+        /**
+         * The error of an error mapping, null if none
+         */
+        private final String error;
+
+        private Resolution(Collection<String> mappings, String error) {
+            this.mappings = mappings;
+            this.error = error;
+        }
+    }
+
     // The maximum mappings which will process before throwing exception
     private int mappingLimit = 10;
 
@@ -53,6 +96,14 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
 
     private DomainList domainList;
 
+    /**
+     * The mappings resolved while the table was changed are not cached,
+     * thanks to the generation of the cache
+     */
+    private final TimeToLiveCache<String, Resolution> cache = new TimeToLiveCache<String, Resolution>(DEFAULT_MAPPING_CACHE_SIZE);
+
+    private long mappingCacheTime = DEFAULT_MAPPING_CACHE_TIME;
+
     @Inject
     public void setDomainList(DomainList domainList) {
         this.domainList = domainList;
@@ -68,7 +119,13 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         } catch (IllegalArgumentException e) {
             throw new ConfigurationException(e.getMessage());
         }
-        doConfigure(config);
+        setMappingCacheTime(config.getLong("mappingCacheTime", DEFAULT_MAPPING_CACHE_TIME));
+        setMappingCacheSize(config.getInt("mappingCacheSize", DEFAULT_MAPPING_CACHE_SIZE));
+        try {
+            doConfigure(config);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     public void setLog(Logger logger) {
@@ -87,6 +144,7 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
 
     public void setRecursiveMapping(boolean recursive) {
         this.recursive = recursive;
+        clearMappingCache();
     }
 
     /**
@@ -101,6 +159,37 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         if (mappingLimit < 1)
             throw new IllegalArgumentException("The minimum mappingLimit is 1");
         this.mappingLimit = mappingLimit;
+        clearMappingCache();
+    }
+
+    /**
+     * Set the time to cache the mappings of an address, 0 to not cache them
+     * 
+     * @param mappingCacheTime
+     *            the time in milliseconds
+     */
+    public void setMappingCacheTime(long mappingCacheTime) {
+        this.mappingCacheTime = mappingCacheTime;
+        clearMappingCache();
+    }
+
+    /**
+     * Set the maximum number of addresses whose mappings are cached
+     * 
+     * @param mappingCacheSize
+     *            the number of addresses
+     */
+    public void setMappingCacheSize(int mappingCacheSize) {
+        cache.setMaxSize(mappingCacheSize);
+    }
+
+    /**
+     * Drop the cached mappings. Subclasses changing their mappings by other
+     * means than {@link #addMappingInternal(String, String, String)} and
+     * {@link #removeMappingInternal(String, String, String)} must call it.
+     */
+    protected void clearMappingCache() {
+        cache.clear();
     }
 
     /**
@@ -108,7 +197,25 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      *      String)
      */
     public Collection<String> getMappings(String user, String domain) throws ErrorMappingException, RecipientRewriteTableException {
-        return getMappings(user, domain, mappingLimit);
+        String key = user + "@" + domain;
+        Resolution resolution = cache.get(key);
+        if (resolution == null) {
+            int current = cache.getGeneration();
+            Collection<String> mappings = null;
+            String error = null;
+            try {
+                mappings = getMappings(user, domain, mappingLimit);
+            } catch (ErrorMappingException e) {
+                error = e.getMessage();
+            }
+            resolution = new Resolution(mappings, error);
+            cache.put(key, resolution, mappingCacheTime, current);
+        }
+        if (resolution.error != null) {
+            throw new ErrorMappingException(resolution.error);
+        }
+        // callers may modify the returned collection
+        return resolution.mappings == null ? null : new ArrayList<String>(resolution.mappings);
     }
 
     public Collection<String> getMappings(String user, String domain, int mappingLimit) throws ErrorMappingException, RecipientRewriteTableException {
@@ -208,7 +315,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
 
         checkMapping(user, domain, regex);
         getLogger().info("Add regex mapping => " + regex + " for user: " + user + " domain: " + domain);
-        addMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        try {
+            addMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        } finally {
+            clearMappingCache();
+        }
 
     }
 
@@ -218,7 +329,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      */
     public void removeRegexMapping(String user, String domain, String regex) throws RecipientRewriteTableException {
         getLogger().info("Remove regex mapping => " + regex + " for user: " + user + " domain: " + domain);
-        removeMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        try {
+            removeMappingInternal(user, domain, RecipientRewriteTable.REGEX_PREFIX + regex);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     /**
@@ -240,7 +355,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
         }
         checkMapping(user, domain, address);
         getLogger().info("Add address mapping => " + address + " for user: " + user + " domain: " + domain);
-        addMappingInternal(user, domain, address);
+        try {
+            addMappingInternal(user, domain, address);
+        } finally {
+            clearMappingCache();
+        }
 
     }
 
@@ -257,7 +376,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
             }
         }
         getLogger().info("Remove address mapping => " + address + " for user: " + user + " domain: " + domain);
-        removeMappingInternal(user, domain, address);
+        try {
+            removeMappingInternal(user, domain, address);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     /**
@@ -267,7 +390,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
     public void addErrorMapping(String user, String domain, String error) throws RecipientRewriteTableException {
         checkMapping(user, domain, error);
         getLogger().info("Add error mapping => " + error + " for user: " + user + " domain: " + domain);
-        addMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        try {
+            addMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        } finally {
+            clearMappingCache();
+        }
 
     }
 
@@ -277,7 +404,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      */
     public void removeErrorMapping(String user, String domain, String error) throws RecipientRewriteTableException {
         getLogger().info("Remove error mapping => " + error + " for user: " + user + " domain: " + domain);
-        removeMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        try {
+            removeMappingInternal(user, domain, RecipientRewriteTable.ERROR_PREFIX + error);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     /**
@@ -352,7 +483,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      */
     public void addAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
         getLogger().info("Add domain mapping: " + aliasDomain + " => " + realDomain);
-        addMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        try {
+            addMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     /**
@@ -361,7 +496,11 @@ public abstract class AbstractRecipientRewriteTable implements RecipientRewriteT
      */
     public void removeAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
         getLogger().info("Remove domain mapping: " + aliasDomain + " => " + realDomain);
-        removeMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        try {
+            removeMappingInternal(null, aliasDomain, RecipientRewriteTable.ALIASDOMAIN_PREFIX + realDomain);
+        } finally {
+            clearMappingCache();
+        }
     }
 
     protected Logger getLogger() {
@@ -24,6 +24,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -36,6 +37,16 @@ import org.apache.mailet.MailAddress;
  */
 public class RecipientRewriteTableUtil {
 
+    /**
+     * Maximum number of compiled regex mappings kept
+     */
+    private static final int MAX_PATTERNS = 1000;
+
+    /**
+     * The compiled regular expressions of the regex mappings, by expression
+     */
+    private static final ConcurrentHashMap<String, Pattern> PATTERNS = new ConcurrentHashMap<String, Pattern>();
+
     private RecipientRewriteTableUtil() {
     }
 
@@ -73,7 +84,7 @@ public class RecipientRewriteTableUtil {
         // log("regex: address = " + address.toString());
         // log("regex: replace = " + targetString.substring(msgPos + 1));
 
-        Pattern pattern = Pattern.compile(targetString.substring(identifierLength, msgPos));
+        Pattern pattern = compile(targetString.substring(identifierLength, msgPos));
         Matcher match = pattern.matcher(address.toString());
 
         if (match.matches()) {
@@ -110,6 +121,23 @@ public class RecipientRewriteTableUtil {
         return str;
     }
 
+    /**
+     * Return the compiled pattern of the given regular expression, compiling
+     * it only the first time as the same regex mappings are applied to every
+     * message.
+     */
+    private static Pattern compile(String regex) {
+        Pattern pattern = PATTERNS.get(regex);
+        if (pattern == null) {
+            pattern = Pattern.compile(regex);
+            if (PATTERNS.size() >= MAX_PATTERNS) {
+                PATTERNS.clear();
+            }
+            PATTERNS.put(regex, pattern);
+        }
+        return pattern;
+    }
+
     /**
      * Replace substrings of one string with another string and return altered
      * string.
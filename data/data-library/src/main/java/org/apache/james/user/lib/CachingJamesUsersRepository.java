@@ -0,0 +1,180 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib;
+
+import java.util.Collection;
+import java.util.Map;
+
+import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.apache.james.user.api.JamesUsersRepository;
+
+/**
+ * {@link CachingUsersRepository} in front of a {@link JamesUsersRepository}.
+ * 
+ * The users are cached the same way, the mappings and the settings of the
+ * aliases and forwarding are handed to the underlying repository, so that
+ * the components looking for a
+ * {@link org.apache.james.rrt.api.RecipientRewriteTable} still find them.
+ * 
+ * @deprecated Please use {@link CachingUsersRepository} in front of a
+ *             {@link org.apache.james.user.api.UsersRepository}
+ */
+@Deprecated
+public class CachingJamesUsersRepository extends CachingUsersRepository implements JamesUsersRepository {
+
+    private final JamesUsersRepository repository;
+
+    /**
+     * Create a cache in front of the given repository.
+     * 
+     * @param repository
+     *            the repository holding the users and their mappings
+     */
+    public CachingJamesUsersRepository(JamesUsersRepository repository) {
+        super(repository);
+        this.repository = repository;
+    }
+
+    /**
+     * @see org.apache.james.user.api.JamesUsersRepository#setEnableAliases(boolean)
+     */
+    public void setEnableAliases(boolean enableAliases) {
+        repository.setEnableAliases(enableAliases);
+    }
+
+    /**
+     * @see org.apache.james.user.api.JamesUsersRepository#setEnableForwarding(boolean)
+     */
+    public void setEnableForwarding(boolean enableForwarding) {
+        repository.setEnableForwarding(enableForwarding);
+    }
+
+    /**
+     * @see org.apache.james.user.api.JamesUsersRepository#setIgnoreCase(boolean)
+     */
+    public void setIgnoreCase(boolean ignoreCase) {
+        repository.setIgnoreCase(ignoreCase);
+        clear();
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#getMappings(java.lang.String,
+     *      java.lang.String)
+     */
+    public Collection<String> getMappings(String user, String domain) throws ErrorMappingException, RecipientRewriteTableException {
+        return repository.getMappings(user, domain);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#addRegexMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void addRegexMapping(String user, String domain, String regex) throws RecipientRewriteTableException {
+        repository.addRegexMapping(user, domain, regex);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#removeRegexMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void removeRegexMapping(String user, String domain, String regex) throws RecipientRewriteTableException {
+        repository.removeRegexMapping(user, domain, regex);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#addAddressMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void addAddressMapping(String user, String domain, String address) throws RecipientRewriteTableException {
+        repository.addAddressMapping(user, domain, address);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#removeAddressMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void removeAddressMapping(String user, String domain, String address) throws RecipientRewriteTableException {
+        repository.removeAddressMapping(user, domain, address);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#addErrorMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void addErrorMapping(String user, String domain, String error) throws RecipientRewriteTableException {
+        repository.addErrorMapping(user, domain, error);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#removeErrorMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void removeErrorMapping(String user, String domain, String error) throws RecipientRewriteTableException {
+        repository.removeErrorMapping(user, domain, error);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#getUserDomainMappings(java.lang.String,
+     *      java.lang.String)
+     */
+    public Collection<String> getUserDomainMappings(String user, String domain) throws RecipientRewriteTableException {
+        return repository.getUserDomainMappings(user, domain);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#addMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void addMapping(String user, String domain, String mapping) throws RecipientRewriteTableException {
+        repository.addMapping(user, domain, mapping);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#removeMapping(java.lang.String,
+     *      java.lang.String, java.lang.String)
+     */
+    public void removeMapping(String user, String domain, String mapping) throws RecipientRewriteTableException {
+        repository.removeMapping(user, domain, mapping);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#getAllMappings()
+     */
+    public Map<String, Collection<String>> getAllMappings() throws RecipientRewriteTableException {
+        return repository.getAllMappings();
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#addAliasDomainMapping(java.lang.String,
+     *      java.lang.String)
+     */
+    public void addAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
+        repository.addAliasDomainMapping(aliasDomain, realDomain);
+    }
+
+    /**
+     * @see org.apache.james.rrt.api.RecipientRewriteTable#removeAliasDomainMapping(java.lang.String,
+     *      java.lang.String)
+     */
+    public void removeAliasDomainMapping(String aliasDomain, String realDomain) throws RecipientRewriteTableException {
+        repository.removeAliasDomainMapping(aliasDomain, realDomain);
+    }
+
+}
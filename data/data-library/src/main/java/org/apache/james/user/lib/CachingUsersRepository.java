@@ -0,0 +1,331 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Iterator;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.api.model.User;
+import org.apache.james.util.TimeToLiveCache;
+
+/**
+ * {@link UsersRepository} caching the answers of another one.
+ * 
+ * The existence of the looked up users is cached for timeToLive milliseconds
+ * and their absence for negativeTimeToLive milliseconds, so that the
+ * recipients and logins checked again and again (or the random names of a
+ * dictionary attack) do not each hit the database or the directory. The
+ * passwords successfully tested are cached too, as salted digests only.
+ * Failed password tests are never cached.
+ * 
+ * The entries of a user are dropped when it is added, updated or removed
+ * through this repository. Changes made to the underlying repository by other
+ * means are seen once the entries expire, or after {@link #invalidate(String)}
+ * or {@link #clear()}.
+ * 
+ * {@link #getUserByName(String)} always returns the user of the underlying
+ * repository, only the absence of a user is answered from the cache.
+ * 
+ * Use {@link CachingJamesUsersRepository} in front of a
+ * {@link org.apache.james.user.api.JamesUsersRepository}, so that its
+ * mappings stay available.
+ */
+public class CachingUsersRepository implements UsersRepository {
+
+    /**
+     * Default time in milliseconds an existing user is cached
+     */
+    public final static long DEFAULT_TIME_TO_LIVE = 60000;
+
+    /**
+     * Default time in milliseconds an unknown user is cached
+     */
+    public final static long DEFAULT_NEGATIVE_TIME_TO_LIVE = 30000;
+
+    /**
+     * Default maximum number of cached users
+     */
+    public final static int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * A cached user
+     */
+    private final static class Entry {
+
+        private final boolean exists;
+
+        /**
+         * Salted digest of the last password tested successfully, null if
+         * none
+         */
+        private final byte[] digest;
+
+        private Entry(boolean exists, byte[] digest) {
+            this.exists = exists;
+            this.digest = digest;
+        }
+    }
+
+    private final UsersRepository repository;
+
+    /**
+     * The answers got from the underlying repository while a user was changed
+     * are not cached, thanks to the generation of the cache
+     */
+    private final TimeToLiveCache<String, Entry> cache = new TimeToLiveCache<String, Entry>(DEFAULT_CACHE_SIZE);
+
+    private final byte[] salt = new byte[16];
+
+    private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+    private long negativeTimeToLive = DEFAULT_NEGATIVE_TIME_TO_LIVE;
+
+    /**
+     * Create a cache in front of the given repository.
+     * 
+     * @param repository
+     *            the repository holding the users
+     */
+    public CachingUsersRepository(UsersRepository repository) {
+        this.repository = repository;
+        new SecureRandom().nextBytes(salt);
+    }
+
+    /**
+     * Return the repository holding the users.
+     * 
+     * @return the underlying repository
+     */
+    public UsersRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * Set the time to cache the existing users, 0 to not cache them
+     * 
+     * @param timeToLive
+     *            the time in milliseconds
+     */
+    public void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Set the time to cache the unknown users, 0 to not cache them
+     * 
+     * @param negativeTimeToLive
+     *            the time in milliseconds
+     */
+    public void setNegativeTimeToLive(long negativeTimeToLive) {
+        this.negativeTimeToLive = negativeTimeToLive;
+    }
+
+    /**
+     * Set the maximum number of cached users
+     * 
+     * @param cacheSize
+     *            the number of users
+     */
+    public void setCacheSize(int cacheSize) {
+        cache.setMaxSize(cacheSize);
+    }
+
+    /**
+     * Read the settings from the given configuration: timeToLive,
+     * negativeTimeToLive (both in milliseconds) and cacheSize.
+     * 
+     * @param config
+     *            the cache configuration
+     */
+    public void configure(Configuration config) {
+        setTimeToLive(config.getLong("timeToLive", DEFAULT_TIME_TO_LIVE));
+        setNegativeTimeToLive(config.getLong("negativeTimeToLive", DEFAULT_NEGATIVE_TIME_TO_LIVE));
+        setCacheSize(config.getInt("cacheSize", DEFAULT_CACHE_SIZE));
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#addUser(java.lang.String,
+     *      java.lang.String)
+     */
+    public void addUser(String username, String password) throws UsersRepositoryException {
+        try {
+            repository.addUser(username, password);
+        } finally {
+            invalidate(username);
+        }
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#getUserByName(java.lang.String)
+     */
+    public User getUserByName(String name) throws UsersRepositoryException {
+        Entry entry = cache.get(name);
+        if (entry != null && !entry.exists) {
+            return null;
+        }
+        int current = cache.getGeneration();
+        User user = repository.getUserByName(name);
+        if (entry == null) {
+            cache(name, user != null, null, current);
+        }
+        return user;
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#updateUser(org.apache.james.user.api.model.User)
+     */
+    public void updateUser(User user) throws UsersRepositoryException {
+        try {
+            repository.updateUser(user);
+        } finally {
+            invalidate(user.getUserName());
+        }
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#removeUser(java.lang.String)
+     */
+    public void removeUser(String name) throws UsersRepositoryException {
+        try {
+            repository.removeUser(name);
+        } finally {
+            invalidate(name);
+        }
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#contains(java.lang.String)
+     */
+    public boolean contains(String name) throws UsersRepositoryException {
+        Entry entry = cache.get(name);
+        if (entry != null) {
+            return entry.exists;
+        }
+        int current = cache.getGeneration();
+        boolean exists = repository.contains(name);
+        cache(name, exists, null, current);
+        return exists;
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#test(java.lang.String,
+     *      java.lang.String)
+     */
+    public boolean test(String name, String password) throws UsersRepositoryException {
+        Entry entry = cache.get(name);
+        if (entry != null && !entry.exists) {
+            return false;
+        }
+        byte[] digest = digest(name, password);
+        if (entry != null && entry.digest != null && MessageDigest.isEqual(entry.digest, digest)) {
+            return true;
+        }
+        int current = cache.getGeneration();
+        if (repository.test(name, password)) {
+            cache(name, true, digest, current);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#countUsers()
+     */
+    public int countUsers() throws UsersRepositoryException {
+        return repository.countUsers();
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#list()
+     */
+    public Iterator<String> list() throws UsersRepositoryException {
+        return repository.list();
+    }
+
+    /**
+     * @see org.apache.james.user.api.UsersRepository#supportVirtualHosting()
+     */
+    public boolean supportVirtualHosting() throws UsersRepositoryException {
+        return repository.supportVirtualHosting();
+    }
+
+    /**
+     * Drop the cached entries of the given user, whatever the case of its
+     * name, after it was changed in the underlying repository.
+     * 
+     * @param name
+     *            the name of the user
+     */
+    public void invalidate(String name) {
+        cache.invalidate(name);
+        for (Iterator<String> it = cache.keySet().iterator(); it.hasNext();) {
+            if (it.next().equalsIgnoreCase(name)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all the cached entries.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * Return the number of cached users.
+     * 
+     * @return the size of the cache
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    private void cache(String name, boolean exists, byte[] digest, int lookupGeneration) {
+        cache.put(name, new Entry(exists, digest), exists ? timeToLive : negativeTimeToLive, lookupGeneration);
+    }
+
+    /**
+     * Return the salted digest of the given credentials.
+     */
+    private byte[] digest(String name, String password) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt);
+            md.update(name.getBytes("UTF-8"));
+            md.update((byte) 0);
+            md.update(password.getBytes("UTF-8"));
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is always available
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -0,0 +1,188 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.domainlist.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.domainlist.api.DomainList;
+import org.apache.james.domainlist.api.DomainListException;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the CachingDomainList, checking the underlying list is only read when
+ * the snapshot has to be taken.
+ */
+public class CachingDomainListTest {
+
+    /**
+     * In memory DomainList counting the reads of the domains.
+     */
+    private static class CountingDomainList implements DomainList {
+
+        private final List<String> domains = new ArrayList<String>();
+
+        private int reads;
+
+        private boolean failing;
+
+        private boolean failingChanges;
+
+        public String[] getDomains() throws DomainListException {
+            reads++;
+            if (failing) {
+                throw new DomainListException("Unavailable");
+            }
+            return domains.isEmpty() ? null : domains.toArray(new String[domains.size()]);
+        }
+
+        public boolean containsDomain(String domain) throws DomainListException {
+            fail("The underlying list should not be queried");
+            return false;
+        }
+
+        public void addDomain(String domain) throws DomainListException {
+            if (failingChanges) {
+                throw new DomainListException("Unavailable");
+            }
+            domains.add(domain);
+        }
+
+        public void removeDomain(String domain) throws DomainListException {
+            if (failingChanges) {
+                throw new DomainListException("Unavailable");
+            }
+            domains.remove(domain);
+        }
+
+        public String getDefaultDomain() throws DomainListException {
+            return "localhost";
+        }
+    }
+
+    private CountingDomainList backend;
+
+    private CachingDomainList domainList;
+
+    @Before
+    public void setUp() throws Exception {
+        backend = new CountingDomainList();
+        backend.addDomain("localhost");
+        backend.addDomain("Domain1.tld");
+        domainList = new CachingDomainList(backend);
+        domainList.setRefreshInterval(0);
+    }
+
+    @Test
+    public void testContainsDomainReadsOnce() throws DomainListException {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(domainList.containsDomain("domain1.tld"));
+            assertTrue(domainList.containsDomain("LOCALHOST"));
+            assertFalse(domainList.containsDomain("domain2.tld"));
+        }
+        assertEquals(1, backend.reads);
+    }
+
+    @Test
+    public void testGetDomainsReturnsCopy() throws DomainListException {
+        String[] domains = domainList.getDomains();
+        assertEquals(2, domains.length);
+        domains[0] = "other.tld";
+        assertEquals("localhost", domainList.getDomains()[0]);
+        assertEquals(1, backend.reads);
+    }
+
+    @Test
+    public void testMutationRefreshes() throws DomainListException {
+        assertFalse(domainList.containsDomain("domain2.tld"));
+        domainList.addDomain("domain2.tld");
+        assertTrue(domainList.containsDomain("domain2.tld"));
+        domainList.removeDomain("Domain1.tld");
+        assertFalse(domainList.containsDomain("domain1.tld"));
+        domainList.removeDomain("localhost");
+        domainList.removeDomain("domain2.tld");
+        assertNull(domainList.getDomains());
+    }
+
+    @Test
+    public void testChangeInBackendSeenAfterRefreshInterval() throws Exception {
+        domainList.setRefreshInterval(50);
+        assertFalse(domainList.containsDomain("domain2.tld"));
+        backend.addDomain("domain2.tld");
+        assertFalse(domainList.containsDomain("domain2.tld"));
+        Thread.sleep(100);
+        assertTrue(domainList.containsDomain("domain2.tld"));
+        assertEquals(2, backend.reads);
+    }
+
+    @Test
+    public void testFailedRefreshKeepsSnapshot() throws Exception {
+        domainList.setRefreshInterval(50);
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        backend.failing = true;
+        Thread.sleep(100);
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        assertEquals(2, backend.reads);
+    }
+
+    @Test
+    public void testFailedChangeIsReported() throws Exception {
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        backend.failingChanges = true;
+        try {
+            domainList.removeDomain("domain1.tld");
+            fail("The failure should be reported");
+        } catch (DomainListException e) {
+            // expected
+        }
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        assertEquals(1, backend.reads);
+    }
+
+    @Test
+    public void testFailedRefreshAfterChange() throws Exception {
+        assertFalse(domainList.containsDomain("domain2.tld"));
+        backend.failing = true;
+        // the domain is added, only the refresh fails
+        domainList.addDomain("domain2.tld");
+        assertTrue(domainList.containsDomain("domain1.tld"));
+        backend.failing = false;
+        assertTrue(domainList.containsDomain("domain2.tld"));
+        assertEquals(4, backend.reads);
+    }
+
+    @Test
+    public void testFailedFirstReadIsReported() {
+        backend.failing = true;
+        try {
+            domainList.containsDomain("domain1.tld");
+            fail("The failure should be reported");
+        } catch (DomainListException e) {
+            // expected
+        }
+    }
+
+}
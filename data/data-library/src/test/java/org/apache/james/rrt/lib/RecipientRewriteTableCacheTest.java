@@ -0,0 +1,184 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.rrt.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.rrt.api.RecipientRewriteTable;
+import org.apache.james.rrt.api.RecipientRewriteTable.ErrorMappingException;
+import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the cache of the mappings of AbstractRecipientRewriteTable, counting
+ * the lookups reaching the backend.
+ */
+public class RecipientRewriteTableCacheTest {
+
+    private static class CountingRecipientRewriteTable extends AbstractRecipientRewriteTable {
+
+        private final Map<String, String> mappings = new HashMap<String, String>();
+
+        private int lookups;
+
+        @Override
+        protected void addMappingInternal(String user, String domain, String mapping) throws RecipientRewriteTableException {
+            String key = getFixedUser(user) + "@" + getFixedDomain(domain);
+            String existing = mappings.get(key);
+            mappings.put(key, existing == null ? mapping : existing + ";" + mapping);
+        }
+
+        @Override
+        protected void removeMappingInternal(String user, String domain, String mapping) throws RecipientRewriteTableException {
+            String key = getFixedUser(user) + "@" + getFixedDomain(domain);
+            String existing = mappings.get(key);
+            if (existing != null) {
+                Collection<String> map = RecipientRewriteTableUtil.mappingToCollection(existing);
+                map.remove(mapping);
+                mappings.remove(key);
+                if (!map.isEmpty()) {
+                    mappings.put(key, RecipientRewriteTableUtil.CollectionToMapping(map));
+                }
+            }
+        }
+
+        @Override
+        protected Collection<String> getUserDomainMappingsInternal(String user, String domain) throws RecipientRewriteTableException {
+            String mapping = mappings.get(user + "@" + domain);
+            return mapping == null ? null : RecipientRewriteTableUtil.mappingToCollection(mapping);
+        }
+
+        @Override
+        protected Map<String, Collection<String>> getAllMappingsInternal() throws RecipientRewriteTableException {
+            throw new UnsupportedOperationException("Not implemented");
+        }
+
+        @Override
+        protected String mapAddressInternal(String user, String domain) throws RecipientRewriteTableException {
+            lookups++;
+            Map<String, String> targets = new HashMap<String, String>(mappings);
+            return RecipientRewriteTableUtil.getTargetString(user, domain, targets);
+        }
+    }
+
+    private CountingRecipientRewriteTable table;
+
+    @Before
+    public void setUp() throws Exception {
+        table = new CountingRecipientRewriteTable();
+        table.setLog(LoggerFactory.getLogger("MockLog"));
+        table.setMappingCacheTime(60000);
+    }
+
+    @Test
+    public void testMappingsAreCached() throws Exception {
+        table.addAddressMapping("user1", "domain1", "user2@domain2");
+        table.addAddressMapping("user2", "domain2", "user3@domain3");
+
+        assertEquals("[user3@domain3]", table.getMappings("user1", "domain1").toString());
+        int lookups = table.lookups;
+        assertEquals("[user3@domain3]", table.getMappings("user1", "domain1").toString());
+        assertEquals(lookups, table.lookups);
+
+        // the returned mappings can be modified by the caller
+        table.getMappings("user1", "domain1").clear();
+        assertEquals("[user3@domain3]", table.getMappings("user1", "domain1").toString());
+    }
+
+    @Test
+    public void testMissingMappingsAreCached() throws Exception {
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertEquals(1, table.lookups);
+    }
+
+    @Test
+    public void testErrorMappingsAreCached() throws Exception {
+        table.addErrorMapping("user1", "domain1", "554 BOUNCE");
+        for (int i = 0; i < 2; i++) {
+            try {
+                table.getMappings("user1", "domain1");
+                fail("Error mapping");
+            } catch (ErrorMappingException e) {
+                assertEquals("554 BOUNCE", e.getMessage());
+            }
+        }
+        assertEquals(1, table.lookups);
+    }
+
+    @Test
+    public void testChangesClearTheCache() throws Exception {
+        assertNull(table.getMappings("user1", "domain1"));
+        table.addAddressMapping("user1", "domain1", "user2@domain2");
+        assertEquals("[user2@domain2]", table.getMappings("user1", "domain1").toString());
+
+        // a change further down the chain applies too
+        table.addAddressMapping("user2", "domain2", "user3@domain3");
+        assertEquals("[user3@domain3]", table.getMappings("user1", "domain1").toString());
+
+        table.removeAddressMapping("user2", "domain2", "user3@domain3");
+        table.removeAddressMapping("user1", "domain1", "user2@domain2");
+        assertNull(table.getMappings("user1", "domain1"));
+    }
+
+    @Test
+    public void testRegexMapping() throws Exception {
+        table.addRegexMapping(RecipientRewriteTable.WILDCARD, "domain1", "(.*)@(domain1):${1}@domain2");
+        assertEquals("[user1@domain2]", table.getMappings("user1", "domain1").toString());
+        assertEquals("[user2@domain2]", table.getMappings("user2", "domain1").toString());
+    }
+
+    @Test
+    public void testNoCachingByDefault() throws Exception {
+        table.configure(new HierarchicalConfiguration());
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertEquals(2, table.lookups);
+    }
+
+    @Test
+    public void testNoCaching() throws Exception {
+        table.setMappingCacheTime(0);
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertNull(table.getMappings("nobody", "domain1"));
+        assertEquals(2, table.lookups);
+    }
+
+    @Test
+    public void testCacheSizeIsBounded() throws Exception {
+        table.setMappingCacheSize(10);
+        for (int i = 0; i < 100; i++) {
+            assertNull(table.getMappings("user" + i, "domain1"));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertNull(table.getMappings("user" + i, "domain1"));
+        }
+        assertEquals(100, table.lookups);
+    }
+
+}
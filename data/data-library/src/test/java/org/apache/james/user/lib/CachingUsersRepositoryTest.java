@@ -0,0 +1,178 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.user.lib;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.apache.james.rrt.api.RecipientRewriteTable;
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.user.api.model.JamesUser;
+import org.apache.james.user.api.model.User;
+import org.apache.james.user.lib.mock.MockUsersRepository;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the CachingUsersRepository, counting the lookups reaching the
+ * underlying repository.
+ */
+public class CachingUsersRepositoryTest {
+
+    private static class CountingUsersRepository extends MockUsersRepository {
+
+        private int lookups;
+
+        @Override
+        public boolean contains(String name) throws UsersRepositoryException {
+            lookups++;
+            return super.contains(name);
+        }
+
+        @Override
+        public User getUserByName(String name) throws UsersRepositoryException {
+            lookups++;
+            return super.getUserByName(name);
+        }
+    }
+
+    private CountingUsersRepository repository;
+
+    private CachingUsersRepository cache;
+
+    @Before
+    public void setUp() throws Exception {
+        repository = new CountingUsersRepository();
+        repository.addUser("john", "secret");
+        repository.lookups = 0;
+        cache = new CachingUsersRepository(repository);
+    }
+
+    @Test
+    public void testExistingUsersAreCached() throws UsersRepositoryException {
+        assertTrue(cache.contains("john"));
+        assertTrue(cache.contains("john"));
+        assertNotNull(cache.getUserByName("john"));
+        // the user itself is always read from the repository
+        assertEquals(2, repository.lookups);
+    }
+
+    @Test
+    public void testUnknownUsersAreCached() throws UsersRepositoryException {
+        assertFalse(cache.contains("jane"));
+        assertFalse(cache.contains("jane"));
+        assertNull(cache.getUserByName("jane"));
+        assertFalse(cache.test("jane", "secret"));
+        assertEquals(1, repository.lookups);
+    }
+
+    @Test
+    public void testPasswordsAreCached() throws UsersRepositoryException {
+        assertTrue(cache.test("john", "secret"));
+        int lookups = repository.lookups;
+        assertTrue(cache.test("john", "secret"));
+        assertEquals(lookups, repository.lookups);
+
+        // failures always reach the repository
+        assertFalse(cache.test("john", "wrong"));
+        assertFalse(cache.test("john", "wrong"));
+        assertEquals(lookups + 2, repository.lookups);
+    }
+
+    @Test
+    public void testAddInvalidates() throws UsersRepositoryException {
+        assertFalse(cache.contains("jane"));
+        cache.addUser("jane", "pass");
+        assertTrue(cache.contains("jane"));
+        assertTrue(cache.test("jane", "pass"));
+    }
+
+    @Test
+    public void testUpdateInvalidates() throws UsersRepositoryException {
+        assertTrue(cache.test("john", "secret"));
+        User user = cache.getUserByName("john");
+        user.setPassword("changed");
+        cache.updateUser(user);
+        assertFalse(cache.test("john", "secret"));
+        assertTrue(cache.test("john", "changed"));
+    }
+
+    @Test
+    public void testRemoveInvalidates() throws UsersRepositoryException {
+        assertTrue(cache.test("john", "secret"));
+        cache.removeUser("john");
+        assertFalse(cache.contains("john"));
+        assertFalse(cache.test("john", "secret"));
+    }
+
+    @Test
+    public void testInvalidateIgnoresCase() throws UsersRepositoryException {
+        assertFalse(cache.contains("JOHN"));
+        cache.invalidate("john");
+        assertEquals(0, cache.getCacheSize());
+    }
+
+    @Test
+    public void testNoCaching() throws UsersRepositoryException {
+        cache.setTimeToLive(0);
+        cache.setNegativeTimeToLive(0);
+        cache.contains("john");
+        cache.contains("jane");
+        assertEquals(0, cache.getCacheSize());
+        assertEquals(2, repository.lookups);
+    }
+
+    @Test
+    public void testCacheSizeIsBounded() throws UsersRepositoryException {
+        cache.setCacheSize(10);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(cache.contains("user" + i));
+        }
+        assertEquals(10, cache.getCacheSize());
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testJamesUsersRepositoryKeepsMappings() throws Exception {
+        MockUsersRepository jamesRepository = new MockUsersRepository();
+        jamesRepository.setForceUseJamesUser();
+        jamesRepository.addUser("jane", "pass");
+        JamesUser user = (JamesUser) jamesRepository.getUserByName("jane");
+        user.setAliasing(true);
+        user.setAlias("janet");
+        jamesRepository.updateUser(user);
+
+        CachingJamesUsersRepository jamesCache = new CachingJamesUsersRepository(jamesRepository);
+        jamesCache.setEnableAliases(true);
+        assertTrue(jamesCache instanceof RecipientRewriteTable);
+        assertTrue(jamesCache.contains("jane"));
+
+        Collection<String> expected = new ArrayList<String>();
+        expected.add("janet@localhost");
+        assertEquals(expected, jamesCache.getMappings("jane", "localhost"));
+    }
+
+}
@@ -0,0 +1,62 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.api;
+
+import java.net.InetAddress;
+import java.util.Collection;
+
+/**
+ * {@link DNSService} which also supports non-blocking lookups. This allows
+ * callers to start many lookups at once (like the queries against several DNS
+ * blacklists) and wait for them together, instead of doing one lookup after
+ * the other.
+ * 
+ * Each method starts the lookup and returns directly. The result and the
+ * exceptions are the same as for the corresponding blocking method of
+ * {@link DNSService}. If the lookup can not be started, because too many
+ * lookups are pending, the returned {@link DNSFuture} fails with a
+ * {@link java.util.concurrent.RejectedExecutionException}.
+ */
+public interface AsyncDNSService extends DNSService {
+
+    /**
+     * @see DNSService#findMXRecords(String)
+     */
+    DNSFuture<Collection<String>> findMXRecordsAsync(String hostname);
+
+    /**
+     * @see DNSService#findTXTRecords(String)
+     */
+    DNSFuture<Collection<String>> findTXTRecordsAsync(String hostname);
+
+    /**
+     * @see DNSService#getAllByName(String)
+     */
+    DNSFuture<InetAddress[]> getAllByNameAsync(String host);
+
+    /**
+     * @see DNSService#getByName(String)
+     */
+    DNSFuture<InetAddress> getByNameAsync(String host);
+
+    /**
+     * @see DNSService#getHostName(InetAddress)
+     */
+    DNSFuture<String> getHostNameAsync(InetAddress addr);
+}
@@ -0,0 +1,45 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.api;
+
+import java.util.concurrent.Future;
+
+/**
+ * The result of an asynchronous DNS lookup. Beside waiting for the result with
+ * {@link #get()} a {@link DNSFutureListener} can be registered, which gets
+ * notified once the lookup completed.
+ * 
+ * If the lookup failed {@link #get()} throws an
+ * {@link java.util.concurrent.ExecutionException} whose cause is the exception
+ * the blocking method of {@link DNSService} would have thrown.
+ * 
+ * @param <T>
+ *            type of the result
+ */
+public interface DNSFuture<T> extends Future<T> {
+
+    /**
+     * Add a {@link DNSFutureListener} which gets notified when the lookup
+     * completed. If it is already completed the listener gets notified
+     * directly.
+     * 
+     * @param listener
+     */
+    void addListener(DNSFutureListener<T> listener);
+}
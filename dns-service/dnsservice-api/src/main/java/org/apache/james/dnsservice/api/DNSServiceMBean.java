@@ -49,4 +49,28 @@ public interface DNSServiceMBean {
      * Clear the cache of the service
      */
     void clearCache();
+
+    /**
+     * Return the number of names in the cache of resolved MX hosts and
+     * addresses
+     * 
+     * @return resolverCacheSize
+     */
+    int getResolverCacheSize();
+
+    /**
+     * Return the number of lookups which were answered by the cache of
+     * resolved MX hosts and addresses
+     * 
+     * @return hits
+     */
+    long getResolverCacheHits();
+
+    /**
+     * Return the number of lookups which were not answered by the cache of
+     * resolved MX hosts and addresses
+     * 
+     * @return misses
+     */
+    long getResolverCacheMisses();
 }
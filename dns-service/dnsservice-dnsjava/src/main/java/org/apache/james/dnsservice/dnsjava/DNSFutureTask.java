@@ -0,0 +1,79 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.dnsjava;
+
+import org.apache.james.dnsservice.api.DNSFuture;
+import org.apache.james.dnsservice.api.DNSFutureListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * {@link FutureTask} which runs a lookup and notifies the registered
+ * {@link DNSFutureListener}s when it completed
+ *
+ * @param <T> type of the result
+ */
+public class DNSFutureTask<T> extends FutureTask<T> implements DNSFuture<T> {
+
+    private List<DNSFutureListener<T>> listeners = new ArrayList<DNSFutureListener<T>>();
+
+    private boolean completed = false;
+
+    public DNSFutureTask(Callable<T> callable) {
+        super(callable);
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSFuture#addListener(org.apache.james.dnsservice.api.DNSFutureListener)
+     */
+    public void addListener(DNSFutureListener<T> listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        listener.operationComplete(this);
+    }
+
+    /**
+     * Complete the future with the given failure without running the lookup
+     * 
+     * @param cause
+     */
+    public void fail(Throwable cause) {
+        setException(cause);
+    }
+
+    @Override
+    protected void done() {
+        List<DNSFutureListener<T>> toNotify;
+        synchronized (this) {
+            completed = true;
+            toNotify = listeners;
+            listeners = null;
+        }
+        for (DNSFutureListener<T> listener : toNotify) {
+            listener.operationComplete(this);
+        }
+    }
+}
@@ -20,7 +20,8 @@ package org.apache.james.dnsservice.dnsjava;
 
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
-import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.dnsservice.api.AsyncDNSService;
+import org.apache.james.dnsservice.api.DNSFuture;
 import org.apache.james.dnsservice.api.DNSServiceMBean;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
 import org.apache.james.lifecycle.api.Configurable;
@@ -44,6 +45,7 @@ import org.xbill.DNS.TextParseException;
 import org.xbill.DNS.Type;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
@@ -52,11 +54,20 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Provides DNS client functionality to services running inside James
  */
-public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled, Configurable {
+public class DNSJavaService implements AsyncDNSService, DNSServiceMBean, LogEnabled, Configurable {
 
     /**
      * A resolver instance used to retrieve DNS records. This is a reference to
@@ -109,6 +120,51 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
 
     private Logger logger;
 
+    /**
+     * Maximum number of names in each resolver cache, 0 disables them
+     */
+    private int resolverCacheSize = 10000;
+
+    private long resolverCacheMinTTL = 30;
+
+    private long resolverCacheMaxTTL = 3600;
+
+    private long resolverCacheNegativeTTL = 60;
+
+    private long resolverCacheStaleTime = 300;
+
+    /**
+     * Cache of the MX hosts of a domain, grouped by priority
+     */
+    private ResolverCache<List<List<String>>> mxCache;
+
+    /**
+     * Cache of the addresses of a host
+     */
+    private ResolverCache<InetAddress[]> addressCache;
+
+    /**
+     * Refreshes the stale entries of the resolver caches
+     */
+    private ExecutorService refresher;
+
+    /**
+     * Maximum number of lookups which run in parallel for the asynchronous
+     * methods
+     */
+    private int maxAsyncLookups = 50;
+
+    /**
+     * Maximum number of lookups of the asynchronous methods which wait for a
+     * free lookup thread. Further lookups fail directly.
+     */
+    private int maxQueuedLookups = 1000;
+
+    /**
+     * Runs the lookups of the asynchronous methods
+     */
+    private ThreadPoolExecutor asyncExecutor;
+
     /**
      * @see org.apache.james.lifecycle.api.LogEnabled#setLog(org.slf4j.Logger)
      */
@@ -175,6 +231,24 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         dnsCredibility = authoritative ? Credibility.AUTH_ANSWER : Credibility.NONAUTH_ANSWER;
 
         maxCacheSize = configuration.getInt("maxcachesize", maxCacheSize);
+
+        maxAsyncLookups = configuration.getInt("maxasynclookups", maxAsyncLookups);
+        if (maxAsyncLookups < 1) {
+            throw new ConfigurationException("maxasynclookups must be greater than 0");
+        }
+        maxQueuedLookups = configuration.getInt("maxqueuedlookups", maxQueuedLookups);
+        if (maxQueuedLookups < 1) {
+            throw new ConfigurationException("maxqueuedlookups must be greater than 0");
+        }
+
+        resolverCacheSize = configuration.getInt("resolvercache.maxentries", resolverCacheSize);
+        resolverCacheMinTTL = configuration.getLong("resolvercache.minttl", resolverCacheMinTTL);
+        resolverCacheMaxTTL = configuration.getLong("resolvercache.maxttl", resolverCacheMaxTTL);
+        resolverCacheNegativeTTL = configuration.getLong("resolvercache.negativettl", resolverCacheNegativeTTL);
+        resolverCacheStaleTime = configuration.getLong("resolvercache.staletime", resolverCacheStaleTime);
+        if (resolverCacheMinTTL > resolverCacheMaxTTL) {
+            throw new ConfigurationException("resolvercache.minttl must not be greater than resolvercache.maxttl");
+        }
     }
 
     @PostConstruct
@@ -216,6 +290,25 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
             logger.info("Registered cache, resolver and search paths as DNSJava defaults");
         }
 
+        // idle lookup threads are stopped, so there is no cost if the
+        // asynchronous methods are not used
+        asyncExecutor = new ThreadPoolExecutor(maxAsyncLookups, maxAsyncLookups, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(maxQueuedLookups), new DaemonThreadFactory("DNSService lookup"), new FailLookupPolicy());
+        asyncExecutor.allowCoreThreadTimeOut(true);
+
+        if (resolverCacheSize > 0) {
+            refresher = Executors.newSingleThreadExecutor(new DaemonThreadFactory("DNSService cache refresh"));
+            mxCache = new ResolverCache<List<List<String>>>(resolverCacheSize, new ResolverCache.Loader<List<List<String>>>() {
+                public ResolverCache.Resolution<List<List<String>>> load(String name) throws TemporaryResolutionException {
+                    return resolveMXRecords(name);
+                }
+            }, refresher, resolverCacheMinTTL, resolverCacheMaxTTL, resolverCacheNegativeTTL, resolverCacheStaleTime, logger);
+            addressCache = new ResolverCache<InetAddress[]>(resolverCacheSize, new ResolverCache.Loader<InetAddress[]>() {
+                public ResolverCache.Resolution<InetAddress[]> load(String name) throws UnknownHostException {
+                    return resolveAddresses(name);
+                }
+            }, refresher, resolverCacheMinTTL, resolverCacheMaxTTL, resolverCacheNegativeTTL, resolverCacheStaleTime, logger);
+        }
+
         // Cache the local hostname and local address. This is needed because
         // the following issues:
         // JAMES-787
@@ -228,6 +321,109 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         logger.debug("DNSService ...init end");
     }
 
+    @PreDestroy
+    public void destroy() {
+        if (asyncExecutor != null) {
+            asyncExecutor.shutdownNow();
+        }
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private static final class DaemonThreadFactory implements ThreadFactory {
+        private final String name;
+        private int count = 0;
+
+        public DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        public synchronized Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + " (" + (count++) + ")");
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * Fails the future of a lookup which can not be run, because too many
+     * lookups are waiting or the service was shut down. The caller sees the
+     * {@link RejectedExecutionException} as the cause of the failure, like any
+     * other failed lookup.
+     */
+    private static final class FailLookupPolicy implements RejectedExecutionHandler {
+
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            String reason = executor.isShutdown() ? "DNSService is shut down" : "Too many pending asynchronous lookups";
+            ((DNSFutureTask<?>) r).fail(new RejectedExecutionException(reason));
+        }
+    }
+
+    /**
+     * Run the given lookup on the lookup threads
+     */
+    private <T> DNSFuture<T> submit(Callable<T> lookup) {
+        DNSFutureTask<T> future = new DNSFutureTask<T>(lookup);
+        asyncExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.AsyncDNSService#findMXRecordsAsync(String)
+     */
+    public DNSFuture<Collection<String>> findMXRecordsAsync(final String hostname) {
+        return submit(new Callable<Collection<String>>() {
+            public Collection<String> call() throws TemporaryResolutionException {
+                return findMXRecords(hostname);
+            }
+        });
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.AsyncDNSService#findTXTRecordsAsync(String)
+     */
+    public DNSFuture<Collection<String>> findTXTRecordsAsync(final String hostname) {
+        return submit(new Callable<Collection<String>>() {
+            public Collection<String> call() {
+                return findTXTRecords(hostname);
+            }
+        });
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.AsyncDNSService#getAllByNameAsync(String)
+     */
+    public DNSFuture<InetAddress[]> getAllByNameAsync(final String host) {
+        return submit(new Callable<InetAddress[]>() {
+            public InetAddress[] call() throws UnknownHostException {
+                return getAllByName(host);
+            }
+        });
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.AsyncDNSService#getByNameAsync(String)
+     */
+    public DNSFuture<InetAddress> getByNameAsync(final String host) {
+        return submit(new Callable<InetAddress>() {
+            public InetAddress call() throws UnknownHostException {
+                return getByName(host);
+            }
+        });
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.AsyncDNSService#getHostNameAsync(java.net.InetAddress)
+     */
+    public DNSFuture<String> getHostNameAsync(final InetAddress addr) {
+        return submit(new Callable<String>() {
+            public String call() {
+                return getHostName(addr);
+            }
+        });
+    }
+
     /**
      * Return the list of DNS servers in use by this service
      *
@@ -260,6 +456,25 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         if (answers == null) {
             return servers;
         }
+        for (List<String> samePrio : groupMXRecords(answers)) {
+            // shuffle entries with same prio
+            // JAMES-913
+            List<String> shuffled = new ArrayList<String>(samePrio);
+            Collections.shuffle(shuffled);
+            servers.addAll(shuffled);
+        }
+        return servers;
+    }
+
+    /**
+     * Return the targets of the given MX records, grouped by priority and
+     * sorted by it
+     *
+     * @param answers the MX records
+     * @return groups
+     */
+    private List<List<String>> groupMXRecords(Record[] answers) {
+        List<List<String>> groups = new ArrayList<List<String>>();
 
         MXRecord[] mxAnswers = new MXRecord[answers.length];
 
@@ -270,49 +485,133 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
         // are in sequence
         Arrays.sort(mxAnswers, mxComparator);
 
-        // now add the mx records to the right list and take care of shuffle
-        // mx records with the same priority
+        // now add the mx records with the same priority to one group
         int currentPrio = -1;
-        List<String> samePrio = new ArrayList<String>();
+        List<String> samePrio = null;
         for (int i = 0; i < mxAnswers.length; i++) {
-            boolean same = false;
-            boolean lastItem = i + 1 == mxAnswers.length;
             MXRecord mx = mxAnswers[i];
-            if (i == 0) {
+            if (samePrio == null || currentPrio != mx.getPriority()) {
                 currentPrio = mx.getPriority();
-            } else {
-                same = currentPrio == mx.getPriority();
+                samePrio = new ArrayList<String>();
+                groups.add(samePrio);
             }
 
             String mxRecord = mx.getTarget().toString();
-            if (same) {
-                samePrio.add(mxRecord);
-            } else {
-                // shuffle entries with same prio
-                // JAMES-913
-                Collections.shuffle(samePrio);
-                servers.addAll(samePrio);
+            samePrio.add(mxRecord);
+            logger.debug("Found MX record " + mxRecord);
+        }
+        return groups;
+    }
+
+    /**
+     * Resolve the MX hosts of the given domain for the resolver cache. If
+     * there are no MX records the domain itself is used, as in
+     * {@link #findMXRecords(String)}.
+     *
+     * @param hostname domain name to look up
+     * @return resolution the MX hosts grouped by priority or <code>null</code> if none was found
+     * @throws TemporaryResolutionException get thrown on temporary problems
+     */
+    private ResolverCache.Resolution<List<List<String>>> resolveMXRecords(String hostname) throws TemporaryResolutionException {
+        Record answers[] = lookup(hostname, Type.MX, "MX");
+        if (answers != null && answers.length > 0) {
+            return new ResolverCache.Resolution<List<List<String>>>(groupMXRecords(answers), minTTL(answers));
+        }
 
-                samePrio.clear();
-                samePrio.add(mxRecord);
+        logger.info("Couldn't resolve MX records for domain " + hostname + ".");
+        try {
+            getByName(hostname);
+            List<List<String>> groups = new ArrayList<List<String>>();
+            groups.add(Collections.singletonList(hostname));
+            return new ResolverCache.Resolution<List<List<String>>>(groups, resolverCacheNegativeTTL);
+        } catch (UnknownHostException uhe) {
+            logger.error("Couldn't resolve IP address for host " + hostname + ".");
+            return null;
+        }
+    }
 
-            }
+    /**
+     * Resolve the A records of the given host for the resolver cache
+     *
+     * @param name the name of the host
+     * @return resolution the addresses or <code>null</code> if none was found
+     * @throws UnknownHostException
+     */
+    private ResolverCache.Resolution<InetAddress[]> resolveAddresses(String name) throws UnknownHostException {
+        Record[] records = lookupNoException(name, Type.A, "A");
+        if (records == null || records.length == 0) {
+            return null;
+        }
+        InetAddress[] addrs = new InetAddress[records.length];
+        for (int i = 0; i < records.length; i++) {
+            ARecord a = (ARecord) records[i];
+            addrs[i] = InetAddress.getByAddress(name, a.getAddress().getAddress());
+        }
+        return new ResolverCache.Resolution<InetAddress[]>(addrs, minTTL(records));
+    }
 
-            if (lastItem) {
-                // shuffle entries with same prio
-                // JAMES-913
-                Collections.shuffle(samePrio);
-                servers.addAll(samePrio);
+    /**
+     * Return the smallest TTL of the given records
+     */
+    private long minTTL(Record[] records) {
+        long ttl = Long.MAX_VALUE;
+        for (Record record : records) {
+            ttl = Math.min(ttl, record.getTTL());
+        }
+        return ttl;
+    }
+
+    /**
+     * Lookup the addresses of the given host, using the resolver cache if
+     * it's enabled
+     *
+     * @param name the name of the host
+     * @return addresses or <code>null</code> if none was found
+     */
+    private InetAddress[] lookupAddresses(String name) {
+        if (addressCache != null) {
+            try {
+                return addressCache.get(name);
+            } catch (TemporaryResolutionException e) {
+                return null;
+            } catch (UnknownHostException e) {
+                return null;
             }
-            logger.debug("Found MX record " + mxRecord);
         }
-        return servers;
+        try {
+            ResolverCache.Resolution<InetAddress[]> resolution = resolveAddresses(name);
+            return resolution == null ? null : resolution.getValue();
+        } catch (UnknownHostException e) {
+            return null;
+        }
     }
 
     /**
      * @see org.apache.james.dnsservice.api.DNSService#findMXRecords(String)
      */
     public Collection<String> findMXRecords(String hostname) throws TemporaryResolutionException {
+        if (mxCache != null) {
+            List<List<String>> groups;
+            try {
+                groups = mxCache.get(hostname);
+            } catch (UnknownHostException e) {
+                // never thrown by the MX resolution
+                groups = null;
+            }
+            List<String> servers = new ArrayList<String>();
+            if (groups != null) {
+                for (List<String> samePrio : groups) {
+                    // shuffle entries with same prio on every call, the
+                    // cache keeps them sorted
+                    // JAMES-913
+                    List<String> shuffled = new ArrayList<String>(samePrio);
+                    Collections.shuffle(shuffled);
+                    servers.addAll(shuffled);
+                }
+            }
+            return Collections.unmodifiableCollection(servers);
+        }
+
         List<String> servers = new ArrayList<String>();
         try {
             servers = findMXRecordsRaw(hostname);
@@ -443,11 +742,10 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
 
             return org.xbill.DNS.Address.getByAddress(name);
         } catch (UnknownHostException e) {
-            Record[] records = lookupNoException(name, Type.A, "A");
+            InetAddress[] addrs = lookupAddresses(name);
 
-            if (records != null && records.length >= 1) {
-                ARecord a = (ARecord) records[0];
-                return InetAddress.getByAddress(name, a.getAddress().getAddress());
+            if (addrs != null && addrs.length >= 1) {
+                return addrs[0];
             } else
                 throw e;
         }
@@ -467,15 +765,11 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
             InetAddress addr = org.xbill.DNS.Address.getByAddress(name);
             return new InetAddress[]{addr};
         } catch (UnknownHostException e) {
-            Record[] records = lookupNoException(name, Type.A, "A");
+            InetAddress[] addrs = lookupAddresses(name);
 
-            if (records != null && records.length >= 1) {
-                InetAddress[] addrs = new InetAddress[records.length];
-                for (int i = 0; i < records.length; i++) {
-                    ARecord a = (ARecord) records[i];
-                    addrs[i] = InetAddress.getByAddress(name, a.getAddress().getAddress());
-                }
-                return addrs;
+            if (addrs != null && addrs.length >= 1) {
+                // the cached array must not be changed by the caller
+                return addrs.clone();
             } else
                 throw e;
         }
@@ -541,6 +835,40 @@ public class DNSJavaService implements DNSService, DNSServiceMBean, LogEnabled,
      */
     public void clearCache() {
         cache.clearCache();
+        if (mxCache != null) {
+            mxCache.clear();
+            addressCache.clear();
+        }
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSServiceMBean#getResolverCacheSize()
+     */
+    public int getResolverCacheSize() {
+        if (mxCache == null) {
+            return 0;
+        }
+        return mxCache.size() + addressCache.size();
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSServiceMBean#getResolverCacheHits()
+     */
+    public long getResolverCacheHits() {
+        if (mxCache == null) {
+            return 0;
+        }
+        return mxCache.getHits() + addressCache.getHits();
+    }
+
+    /**
+     * @see org.apache.james.dnsservice.api.DNSServiceMBean#getResolverCacheMisses()
+     */
+    public long getResolverCacheMisses() {
+        if (mxCache == null) {
+            return 0;
+        }
+        return mxCache.getMisses() + addressCache.getMisses();
     }
 
 }
@@ -0,0 +1,276 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.dnsjava;
+
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.slf4j.Logger;
+
+import java.net.UnknownHostException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache for the final results of a resolution, like the sorted MX host
+ * list of a domain. This avoids the repeated lookups, parsing and sorting for
+ * the same name which the dnsjava {@link org.xbill.DNS.Cache} can not save.
+ * <p/>
+ * Results are cached for their TTL, clamped to the configured minimum and
+ * maximum. Failed resolutions (no records, {@link UnknownHostException} or
+ * {@link TemporaryResolutionException}) are cached for the negative TTL.
+ * An expired positive result is still returned for the stale time, while it
+ * gets refreshed in the background.
+ *
+ * @param <V> type of the cached result
+ */
+public class ResolverCache<V> {
+
+    /**
+     * Resolves a name
+     */
+    public interface Loader<V> {
+
+        /**
+         * Resolve the given name
+         *
+         * @param name
+         * @return resolution the result and the TTL of it or <code>null</code> if nothing was found
+         * @throws TemporaryResolutionException
+         * @throws UnknownHostException
+         */
+        Resolution<V> load(String name) throws TemporaryResolutionException, UnknownHostException;
+    }
+
+    /**
+     * The result of a resolution and the TTL of it in seconds
+     */
+    public static final class Resolution<V> {
+        private final V value;
+        private final long ttl;
+
+        public Resolution(V value, long ttl) {
+            this.value = value;
+            this.ttl = ttl;
+        }
+
+        public V getValue() {
+            return value;
+        }
+
+        public long getTTL() {
+            return ttl;
+        }
+    }
+
+    private final Map<String, Cached<V>> entries;
+    private final Loader<V> loader;
+    private final Executor refresher;
+    private final long minTTL;
+    private final long maxTTL;
+    private final long negativeTTL;
+    private final long staleTime;
+    private final Logger logger;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries  maximal number of cached names
+     * @param loader      used to resolve names which are not cached
+     * @param refresher   executes the background refresh of stale entries
+     * @param minTTL      minimal time in seconds a result is cached
+     * @param maxTTL      maximal time in seconds a result is cached
+     * @param negativeTTL time in seconds a failed resolution is cached
+     * @param staleTime   time in seconds an expired result may still be returned while it is refreshed
+     * @param logger
+     */
+    public ResolverCache(final int maxEntries, Loader<V> loader, Executor refresher, long minTTL, long maxTTL, long negativeTTL, long staleTime, Logger logger) {
+        this.entries = new LinkedHashMap<String, Cached<V>>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Cached<V>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.loader = loader;
+        this.refresher = refresher;
+        this.minTTL = minTTL;
+        this.maxTTL = maxTTL;
+        this.negativeTTL = negativeTTL;
+        this.staleTime = staleTime;
+        this.logger = logger;
+    }
+
+    /**
+     * Return the result for the given name, either from the cache or by
+     * resolving it
+     *
+     * @param name
+     * @return value or <code>null</code> if nothing was found
+     * @throws TemporaryResolutionException
+     * @throws UnknownHostException
+     */
+    public V get(String name) throws TemporaryResolutionException, UnknownHostException {
+        String key = name.toLowerCase();
+        long now = System.currentTimeMillis();
+        Cached<V> entry;
+        boolean refresh = false;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null) {
+                if (now < entry.expires) {
+                    hits.incrementAndGet();
+                } else if (now < entry.staleUntil) {
+                    hits.incrementAndGet();
+                    if (!entry.refreshing) {
+                        entry.refreshing = true;
+                        refresh = true;
+                    }
+                } else {
+                    entry = null;
+                }
+            }
+            if (entry == null) {
+                misses.incrementAndGet();
+            }
+        }
+
+        if (refresh) {
+            refresh(key);
+        }
+        if (entry == null) {
+            entry = load(key, false);
+        }
+        return entry.result();
+    }
+
+    private void refresh(final String key) {
+        refresher.execute(new Runnable() {
+
+            public void run() {
+                load(key, true);
+            }
+        });
+    }
+
+    /**
+     * Resolve the name and cache the result. A failed refresh keeps the stale
+     * result, so it can be used until the stale time is over.
+     */
+    private Cached<V> load(String key, boolean refresh) {
+        Cached<V> entry;
+        long now = System.currentTimeMillis();
+        try {
+            Resolution<V> resolution = loader.load(key);
+            if (resolution == null) {
+                entry = new Cached<V>(null, null, now + negativeTTL * 1000, 0);
+            } else {
+                long ttl = Math.min(Math.max(resolution.getTTL(), minTTL), maxTTL);
+                long expires = now + ttl * 1000;
+                entry = new Cached<V>(resolution.getValue(), null, expires, expires + staleTime * 1000);
+            }
+        } catch (TemporaryResolutionException e) {
+            entry = new Cached<V>(null, e, now + negativeTTL * 1000, 0);
+        } catch (UnknownHostException e) {
+            entry = new Cached<V>(null, e, now + negativeTTL * 1000, 0);
+        } catch (RuntimeException e) {
+            logger.error("Unable to resolve " + key, e);
+            synchronized (entries) {
+                Cached<V> old = entries.get(key);
+                if (old != null) {
+                    old.refreshing = false;
+                }
+            }
+            throw e;
+        }
+        synchronized (entries) {
+            Cached<V> old = entries.get(key);
+            if (refresh && entry.error != null && old != null && old.error == null && old.value != null) {
+                old.refreshing = false;
+                return old;
+            }
+            entries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Remove all cached results
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Return the number of cached names
+     *
+     * @return size
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Return the number of lookups which were answered from the cache
+     *
+     * @return hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of lookups which needed a resolution
+     *
+     * @return misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private static final class Cached<V> {
+        private final V value;
+        private final Exception error;
+        private final long expires;
+        private final long staleUntil;
+        private boolean refreshing;
+
+        public Cached(V value, Exception error, long expires, long staleUntil) {
+            this.value = value;
+            this.error = error;
+            this.expires = expires;
+            this.staleUntil = staleUntil;
+        }
+
+        public V result() throws TemporaryResolutionException, UnknownHostException {
+            if (error instanceof TemporaryResolutionException) {
+                throw (TemporaryResolutionException) error;
+            } else if (error instanceof UnknownHostException) {
+                throw (UnknownHostException) error;
+            }
+            return value;
+        }
+    }
+}
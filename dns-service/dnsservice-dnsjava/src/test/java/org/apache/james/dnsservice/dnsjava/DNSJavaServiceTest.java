@@ -23,7 +23,14 @@ import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.commons.configuration.DefaultConfigurationBuilder;
+import org.apache.james.dnsservice.api.DNSFuture;
+import org.apache.james.dnsservice.api.DNSFutureListener;
 import org.junit.After;
 import static org.junit.Assert.*;
 import org.junit.Before;
@@ -143,6 +150,78 @@ public class DNSJavaServiceTest {
         assertTrue(records.contains("mx1.one-mx.bar."));
 
     }
+    @Test
+    public void testMXAsync() throws Exception {
+        dnsServer.setResolver(null);
+        dnsServer.setCache(new ZoneCache("three-mx.bar."));
+        final CountDownLatch latch = new CountDownLatch(1);
+        DNSFuture<Collection<String>> future = dnsServer.findMXRecordsAsync("three-mx.bar.");
+        future.addListener(new DNSFutureListener<Collection<String>>() {
+            public void operationComplete(DNSFuture<Collection<String>> future) {
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(10, TimeUnit.SECONDS));
+        ArrayList<String> records = new ArrayList<String>(future.get());
+        assertEquals(3, records.size());
+        assertEquals("mx3.three-mx.bar.", records.get(2));
+
+        // a listener which is added after the completion gets notified directly
+        final CountDownLatch directLatch = new CountDownLatch(1);
+        future.addListener(new DNSFutureListener<Collection<String>>() {
+            public void operationComplete(DNSFuture<Collection<String>> future) {
+                directLatch.countDown();
+            }
+        });
+        assertEquals(0, directLatch.getCount());
+    }
+
+    @Test
+    public void testAsyncLookupsAreBounded() throws Exception {
+        TestableDNSServer bounded = new TestableDNSServer();
+        DefaultConfigurationBuilder db = new DefaultConfigurationBuilder();
+        db.load(new ByteArrayInputStream(("<dnsserver><autodiscover>true</autodiscover><authoritative>false</authoritative><setAsDNSJavaDefault>false</setAsDNSJavaDefault>"
+                + "<maxasynclookups>1</maxasynclookups><maxqueuedlookups>1</maxqueuedlookups></dnsserver>").getBytes()));
+        bounded.setLog(LoggerFactory.getLogger("MockLog"));
+        bounded.configure(db);
+        bounded.init();
+
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            bounded.setResolver(null);
+            bounded.setCache(new ZoneCache("three-mx.bar.") {
+                @Override
+                public SetResponse lookupRecords(Name arg0, int arg1, int arg2) {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    return super.lookupRecords(arg0, arg1, arg2);
+                }
+            });
+
+            // one lookup runs, one waits and the third one is rejected
+            DNSFuture<Collection<String>> running = bounded.findMXRecordsAsync("three-mx.bar.");
+            DNSFuture<Collection<String>> waiting = bounded.findMXRecordsAsync("three-mx.bar.");
+            DNSFuture<Collection<String>> rejected = bounded.findMXRecordsAsync("three-mx.bar.");
+            assertTrue(rejected.isDone());
+            try {
+                rejected.get();
+                fail("The lookup must be rejected");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+
+            release.countDown();
+            assertEquals(3, running.get(10, TimeUnit.SECONDS).size());
+            assertEquals(3, waiting.get(10, TimeUnit.SECONDS).size());
+        } finally {
+            release.countDown();
+            bounded.destroy();
+        }
+    }
+
     /*
      * public void testCNAMEasMXrecords() throws Exception { // Zone z =
      * loadZone("brandilyncollins.com."); dnsServer.setResolver(null);
@@ -189,7 +268,7 @@ public class DNSJavaServiceTest {
         return zone;
     }
 
-    private final class ZoneCache extends Cache {
+    private class ZoneCache extends Cache {
 
         Zone z = null;
 
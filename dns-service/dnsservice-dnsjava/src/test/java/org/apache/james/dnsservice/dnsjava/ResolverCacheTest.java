@@ -0,0 +1,157 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.dnsjava;
+
+import java.net.UnknownHostException;
+import java.util.concurrent.Executor;
+
+import org.apache.james.dnsservice.api.TemporaryResolutionException;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.*;
+
+public class ResolverCacheTest {
+
+    private final Executor sameThread = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final class CountingLoader implements ResolverCache.Loader<String> {
+        private int loads;
+        private String value = "value";
+        private long ttl = 3600;
+        private boolean temporaryFailure;
+
+        public ResolverCache.Resolution<String> load(String name) throws TemporaryResolutionException {
+            loads++;
+            if (temporaryFailure) {
+                throw new TemporaryResolutionException("DNSService is temporary not reachable");
+            }
+            if (value == null) {
+                return null;
+            }
+            return new ResolverCache.Resolution<String>(value + loads, ttl);
+        }
+    }
+
+    private ResolverCache<String> createCache(CountingLoader loader, long minTTL, long maxTTL, long negativeTTL, long staleTime) {
+        return new ResolverCache<String>(2, loader, sameThread, minTTL, maxTTL, negativeTTL, staleTime, LoggerFactory.getLogger("MockLog"));
+    }
+
+    @Test
+    public void testCachedUntilTTL() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        ResolverCache<String> cache = createCache(loader, 0, 3600, 60, 0);
+        assertEquals("value1", cache.get("example.com."));
+        assertEquals("value1", cache.get("EXAMPLE.com."));
+        assertEquals(1, loader.loads);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testTTLIsClamped() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.ttl = 3600;
+        ResolverCache<String> cache = createCache(loader, 0, 1, 60, 0);
+        cache.get("example.com.");
+        Thread.sleep(1100);
+        assertEquals("value2", cache.get("example.com."));
+        assertEquals(2, loader.loads);
+    }
+
+    @Test
+    public void testNegativeCaching() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.value = null;
+        ResolverCache<String> cache = createCache(loader, 0, 3600, 60, 0);
+        assertNull(cache.get("example.com."));
+        assertNull(cache.get("example.com."));
+        assertEquals(1, loader.loads);
+    }
+
+    @Test
+    public void testTemporaryFailureIsCached() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.temporaryFailure = true;
+        ResolverCache<String> cache = createCache(loader, 0, 3600, 60, 0);
+        for (int i = 0; i < 2; i++) {
+            try {
+                cache.get("example.com.");
+                fail("TemporaryResolutionException expected");
+            } catch (TemporaryResolutionException e) {
+                // expected
+            }
+        }
+        assertEquals(1, loader.loads);
+    }
+
+    @Test
+    public void testStaleWhileRevalidate() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        loader.ttl = 1;
+        ResolverCache<String> cache = createCache(loader, 0, 1, 60, 3600);
+        cache.get("example.com.");
+        Thread.sleep(1100);
+
+        // the stale value is returned and refreshed in the background
+        assertEquals("value1", cache.get("example.com."));
+        assertEquals("value2", cache.get("example.com."));
+
+        // a failed refresh keeps the stale value
+        Thread.sleep(1100);
+        loader.temporaryFailure = true;
+        assertEquals("value2", cache.get("example.com."));
+        assertEquals("value2", cache.get("example.com."));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        CountingLoader loader = new CountingLoader();
+        ResolverCache<String> cache = createCache(loader, 0, 3600, 60, 0);
+        cache.get("a.com.");
+        cache.get("b.com.");
+        cache.get("a.com.");
+        cache.get("c.com.");
+        assertEquals(2, cache.size());
+        assertEquals(3, loader.loads);
+        cache.get("a.com.");
+        assertEquals(3, loader.loads);
+        cache.get("b.com.");
+        assertEquals(4, loader.loads);
+    }
+
+    @Test(expected = UnknownHostException.class)
+    public void testUnknownHostIsRethrown() throws Exception {
+        ResolverCache<String> cache = new ResolverCache<String>(2, new ResolverCache.Loader<String>() {
+            public ResolverCache.Resolution<String> load(String name) throws UnknownHostException {
+                throw new UnknownHostException(name);
+            }
+        }, sameThread, 0, 3600, 60, 0, LoggerFactory.getLogger("MockLog"));
+        try {
+            cache.get("example.com.");
+        } catch (UnknownHostException e) {
+            // cached
+        }
+        cache.get("example.com.");
+    }
+}
@@ -68,6 +68,32 @@ public class Inet4Network implements InetNetwork {
         }
     }
 
+    /**
+     * Return the address of this network, with the netmask already applied.
+     * 
+     * @return the masked network address (4 bytes)
+     */
+    public byte[] getNetworkAddress() {
+        return network.getAddress();
+    }
+
+    /**
+     * Return the number of leading bits covered by the netmask, or -1 if the
+     * netmask is not contiguous (eg. 255.0.255.0) and can therefore not be
+     * expressed as a CIDR prefix.
+     * 
+     * @return the prefix length, or -1
+     */
+    public int getPrefixLength() {
+        byte[] mask = netmask.getAddress();
+        int bits = (mask[0] & 0xFF) << 24 | (mask[1] & 0xFF) << 16 | (mask[2] & 0xFF) << 8 | (mask[3] & 0xFF);
+        int prefix = Integer.bitCount(bits);
+        if (bits != (prefix == 0 ? 0 : -1 << (32 - prefix))) {
+            return -1;
+        }
+        return prefix;
+    }
+
     /**
      * @see java.lang.Object#toString()
      */
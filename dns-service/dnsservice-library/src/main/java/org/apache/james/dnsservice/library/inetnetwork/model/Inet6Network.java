@@ -68,6 +68,29 @@ public class Inet6Network implements InetNetwork {
         }
     }
 
+    /**
+     * Return the address of this network, with the netmask already applied.
+     * 
+     * @return the masked network address (16 bytes)
+     */
+    public byte[] getNetworkAddress() {
+        return network.getAddress();
+    }
+
+    /**
+     * Return the number of leading bits compared by {@link #contains(InetAddress)}.
+     * The netmask is applied on whole bytes, so this is always a multiple of 8.
+     * 
+     * @return the prefix length
+     */
+    public int getPrefixLength() {
+        int bytes = 0;
+        for (int mask = netmask; mask > 0 && bytes < 16; mask = mask >> 1) {
+            bytes++;
+        }
+        return bytes * 8;
+    }
+
     /**
      * Return String representation of this class.
      * 
@@ -0,0 +1,220 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.netmatcher;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.james.dnsservice.library.inetnetwork.model.Inet4Network;
+import org.apache.james.dnsservice.library.inetnetwork.model.Inet6Network;
+import org.apache.james.dnsservice.library.inetnetwork.model.InetNetwork;
+
+/**
+ * Path compressed binary radix trie holding a set of {@link InetNetwork}s.
+ *
+ * One trie is kept per address family, so a lookup walks at most one node
+ * per bit of the address (32 for IPv4, 128 for IPv6) whatever the number of
+ * networks. Networks which can not be expressed as a prefix (IPv4 networks
+ * with a non contiguous netmask) are kept aside and checked one by one.
+ *
+ * Instances are filled once and then only read, so they can be shared between
+ * threads once safely published.
+ */
+class InetNetworkTrie {
+
+    /**
+     * A node of the trie. The node covers the first <code>bits</code> bits of
+     * <code>key</code>; the bits after that are always zero.
+     */
+    private static final class Node {
+
+        private final byte[] key;
+
+        private final int bits;
+
+        private boolean terminal;
+
+        private Node zero;
+
+        private Node one;
+
+        private Node(byte[] key, int bits, boolean terminal) {
+            this.key = mask(key, bits);
+            this.bits = bits;
+            this.terminal = terminal;
+        }
+
+        private Node child(int bit) {
+            return bit == 0 ? zero : one;
+        }
+
+        private void setChild(int bit, Node node) {
+            if (bit == 0) {
+                zero = node;
+            } else {
+                one = node;
+            }
+        }
+    }
+
+    private Node v4Root;
+
+    private Node v6Root;
+
+    private final List<InetNetwork> others = new ArrayList<InetNetwork>();
+
+    /**
+     * Add the given network to the trie.
+     *
+     * @param network
+     *            the network to add
+     */
+    public void add(InetNetwork network) {
+        if (network instanceof Inet4Network) {
+            Inet4Network net = (Inet4Network) network;
+            int prefix = net.getPrefixLength();
+            if (prefix < 0) {
+                others.add(network);
+            } else {
+                v4Root = insert(v4Root, net.getNetworkAddress(), prefix);
+            }
+        } else if (network instanceof Inet6Network) {
+            Inet6Network net = (Inet6Network) network;
+            v6Root = insert(v6Root, net.getNetworkAddress(), net.getPrefixLength());
+        } else {
+            others.add(network);
+        }
+    }
+
+    /**
+     * Return true if the given address is contained in one of the networks of
+     * this trie.
+     *
+     * @param ip
+     *            the address to check
+     * @return true if one of the networks contains the address
+     */
+    public boolean contains(InetAddress ip) {
+        byte[] address = ip.getAddress();
+        Node node = address.length == 4 ? v4Root : v6Root;
+        while (node != null && matches(node, address)) {
+            if (node.terminal) {
+                return true;
+            }
+            if (node.bits == address.length * 8) {
+                break;
+            }
+            node = node.child(bit(address, node.bits));
+        }
+        for (InetNetwork network : others) {
+            if (network.contains(ip)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Insert the prefix of the given length below root and return the
+     * (possibly new) root.
+     */
+    private static Node insert(Node root, byte[] key, int bits) {
+        if (root == null) {
+            return new Node(key, bits, true);
+        }
+        Node parent = null;
+        Node node = root;
+        while (true) {
+            int common = Math.min(commonPrefix(node.key, key), Math.min(node.bits, bits));
+            if (common < node.bits) {
+                // split the edge leading to node
+                Node split = new Node(key, common, common == bits);
+                split.setChild(bit(node.key, common), node);
+                if (common < bits) {
+                    split.setChild(bit(key, common), new Node(key, bits, true));
+                }
+                if (parent == null) {
+                    return split;
+                }
+                parent.setChild(bit(key, parent.bits), split);
+                return root;
+            }
+            if (node.bits == bits) {
+                node.terminal = true;
+                return root;
+            }
+            Node child = node.child(bit(key, node.bits));
+            if (child == null) {
+                node.setChild(bit(key, node.bits), new Node(key, bits, true));
+                return root;
+            }
+            parent = node;
+            node = child;
+        }
+    }
+
+    /**
+     * Return true if the first node.bits bits of the address equal the key of
+     * the node.
+     */
+    private static boolean matches(Node node, byte[] address) {
+        int full = node.bits >> 3;
+        for (int i = 0; i < full; i++) {
+            if (node.key[i] != address[i]) {
+                return false;
+            }
+        }
+        int rest = node.bits & 7;
+        if (rest == 0) {
+            return true;
+        }
+        int mask = 0xFF << (8 - rest);
+        return ((node.key[full] ^ address[full]) & mask) == 0;
+    }
+
+    /**
+     * Return the number of leading bits the two keys have in common.
+     */
+    private static int commonPrefix(byte[] a, byte[] b) {
+        for (int i = 0; i < a.length; i++) {
+            int diff = (a[i] ^ b[i]) & 0xFF;
+            if (diff != 0) {
+                return i * 8 + Integer.numberOfLeadingZeros(diff) - 24;
+            }
+        }
+        return a.length * 8;
+    }
+
+    private static int bit(byte[] key, int index) {
+        return (key[index >> 3] >> (7 - (index & 7))) & 1;
+    }
+
+    private static byte[] mask(byte[] key, int bits) {
+        byte[] masked = new byte[key.length];
+        int full = bits >> 3;
+        System.arraycopy(key, 0, masked, 0, full);
+        int rest = bits & 7;
+        if (rest != 0) {
+            masked[full] = (byte) (key[full] & (0xFF << (8 - rest)));
+        }
+        return masked;
+    }
+
+}
@@ -22,7 +22,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.Collection;
 import java.util.Comparator;
-import java.util.Iterator;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -35,6 +34,11 @@ import org.apache.james.dnsservice.library.inetnetwork.model.InetNetwork;
  * 
  * NetMatcher provides a means for checking whether a particular IPv4 or IPv6
  * address or domain name is within a set of subnets.
+ * 
+ * Lookups go through a radix trie of the networks, so their cost depends on
+ * the length of the address rather than on the number of networks. The set of
+ * networks can be replaced at runtime with {@link #reload(String[])}; lookups
+ * running at the same time see either the old or the new set, never a mix.
  */
 public class NetMatcher {
 
@@ -44,9 +48,33 @@ public class NetMatcher {
     private DNSService dnsServer;
 
     /**
-     * The Set of InetNetwork to match against.
+     * The networks to match against. Replaced as a whole on reload.
      */
-    private SortedSet<InetNetwork> networks;
+    private volatile Networks networks;
+
+    /**
+     * Immutable snapshot of the configured networks.
+     */
+    private static final class Networks {
+
+        /**
+         * The sorted Set of InetNetwork, used for the String representation.
+         */
+        private final SortedSet<InetNetwork> set;
+
+        /**
+         * The same networks, indexed for lookups.
+         */
+        private final InetNetworkTrie trie;
+
+        private Networks(SortedSet<InetNetwork> set) {
+            this.set = set;
+            this.trie = new InetNetworkTrie();
+            for (InetNetwork network : set) {
+                trie.add(network);
+            }
+        }
+    }
 
     /**
      * Create a new instance of Netmatcher.
@@ -58,7 +86,7 @@ public class NetMatcher {
      */
     public NetMatcher(final String[] nets, DNSService dnsServer) {
         this.dnsServer = dnsServer;
-        initInetNetworks(nets);
+        reload(nets);
     }
 
     /**
@@ -71,11 +99,35 @@ public class NetMatcher {
      */
     public NetMatcher(final Collection<String> nets, DNSService dnsServer) {
         this.dnsServer = dnsServer;
-        initInetNetworks(nets);
+        reload(nets);
+    }
+
+    /**
+     * Replace the networks of this NetMatcher by the given ones. The new set
+     * is built aside and then swapped in at once.
+     * 
+     * @param nets
+     *            a String[] which holds all networks
+     */
+    public void reload(final String[] nets) {
+        networks = new Networks(initInetNetworks(nets));
+    }
+
+    /**
+     * Replace the networks of this NetMatcher by the given ones.
+     * 
+     * @param nets
+     *            a Collection which holds all networks
+     * @see #reload(String[])
+     */
+    public void reload(final Collection<String> nets) {
+        reload(nets.toArray(new String[] {}));
     }
 
     /**
-     * The given String may represent an IP address or a host name.
+     * The given String may represent an IP address or a host name. IP address
+     * literals are parsed directly, only host names are resolved through the
+     * DNSService.
      * 
      * @param hostIP
      *            the ipAddress or host name to check
@@ -86,7 +138,10 @@ public class NetMatcher {
         InetAddress ip = null;
 
         try {
-            ip = dnsServer.getByName(hostIP);
+            ip = parseLiteral(hostIP);
+            if (ip == null) {
+                ip = dnsServer.getByName(hostIP);
+            }
         } catch (UnknownHostException uhe) {
             log("Cannot resolve address for " + hostIP + ": " + uhe.getMessage());
             return false;
@@ -105,23 +160,14 @@ public class NetMatcher {
      * @return true if match the network
      */
     public boolean matchInetNetwork(final InetAddress ip) {
-
-        boolean sameNet = false;
-
-        for (Iterator<InetNetwork> iter = networks.iterator(); (!sameNet) && iter.hasNext();) {
-            InetNetwork network = iter.next();
-            sameNet = network.contains(ip);
-        }
-
-        return sameNet;
-
+        return networks.trie.contains(ip);
     }
 
     /**
      * Return a sorted representation of the inet networks.
      */
     public String toString() {
-        return networks.toString();
+        return networks.set.toString();
     }
 
     /**
@@ -134,24 +180,54 @@ public class NetMatcher {
     }
 
     /**
-     * Init the class with the given networks.
+     * Return the InetAddress represented by the given IP address literal
+     * without any DNS lookup, or null if the String is not an IP address.
      * 
-     * @param nets
-     *            a Collection which holds all networks
+     * @param host
+     *            the ipAddress or host name
+     * @return the InetAddress, or null for host names
+     * @throws UnknownHostException
+     *             if the String looks like an IPv6 address but is invalid
      */
-    private void initInetNetworks(final Collection<String> nets) {
-        initInetNetworks(nets.toArray(new String[] {}));
+    private static InetAddress parseLiteral(final String host) throws UnknownHostException {
+        if (host.indexOf(':') >= 0) {
+            // never resolved by the JDK, only parsed
+            return InetAddress.getByName(host);
+        }
+        byte[] address = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return null;
+                }
+            } else if (c == '.' && value >= 0 && part < 3) {
+                address[part++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (part != 3 || value < 0) {
+            return null;
+        }
+        address[part] = (byte) value;
+        return InetAddress.getByAddress(address);
     }
 
     /**
-     * Init the class with the given networks.
+     * Build the sorted Set of the given networks.
      * 
      * @param nets
      *            a String[] which holds all networks
+     * @return the Set of networks which could be parsed
      */
-    private void initInetNetworks(final String[] nets) {
+    private SortedSet<InetNetwork> initInetNetworks(final String[] nets) {
 
-        networks = new TreeSet<InetNetwork>(new Comparator<InetNetwork>() {
+        SortedSet<InetNetwork> set = new TreeSet<InetNetwork>(new Comparator<InetNetwork>() {
             public int compare(InetNetwork in1, InetNetwork in2) {
                 return in1.toString().compareTo(in2.toString());
             }
@@ -162,12 +238,14 @@ public class NetMatcher {
         for (String net : nets) {
             try {
                 InetNetwork inet = inetNetwork.getFromString(net);
-                networks.add(inet);
+                set.add(inet);
             } catch (UnknownHostException uhe) {
                 log("Cannot resolve address: " + uhe.getMessage());
             }
         }
 
+        return set;
+
     }
 
 }
@@ -0,0 +1,124 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.dnsservice.library.netmatcher;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.james.dnsservice.api.mock.DNSFixture;
+import org.apache.james.dnsservice.library.inetnetwork.InetNetworkBuilder;
+import org.apache.james.dnsservice.library.inetnetwork.model.InetNetwork;
+import org.junit.Test;
+
+/**
+ * Test the InetNetworkTrie class, comparing its answers with the ones of the
+ * networks themselves.
+ */
+public class InetNetworkTrieTest {
+
+    private final InetNetworkBuilder builder = new InetNetworkBuilder(DNSFixture.DNS_SERVER_IPV4_MOCK);
+
+    private InetNetworkTrie trie(String... nets) throws UnknownHostException {
+        InetNetworkTrie trie = new InetNetworkTrie();
+        for (String net : nets) {
+            trie.add(builder.getFromString(net));
+        }
+        return trie;
+    }
+
+    private static InetAddress ip(String ip) throws UnknownHostException {
+        return InetAddress.getByName(ip);
+    }
+
+    @Test
+    public void testNestedNetworks() throws UnknownHostException {
+        InetNetworkTrie trie = trie("10.1.2.0/24", "10.0.0.0/8", "10.1.0.0/16", "192.168.1.7");
+
+        assertEquals(true, trie.contains(ip("10.1.2.3")));
+        assertEquals(true, trie.contains(ip("10.200.0.1")));
+        assertEquals(true, trie.contains(ip("192.168.1.7")));
+        assertEquals(false, trie.contains(ip("192.168.1.6")));
+        assertEquals(false, trie.contains(ip("11.0.0.1")));
+    }
+
+    @Test
+    public void testSiblingNetworks() throws UnknownHostException {
+        InetNetworkTrie trie = trie("192.168.1.0/25", "192.168.1.128/26");
+
+        assertEquals(true, trie.contains(ip("192.168.1.1")));
+        assertEquals(true, trie.contains(ip("192.168.1.130")));
+        assertEquals(false, trie.contains(ip("192.168.1.200")));
+        assertEquals(false, trie.contains(ip("192.168.2.1")));
+    }
+
+    @Test
+    public void testDefaultRoute() throws UnknownHostException {
+        InetNetworkTrie trie = trie("0.0.0.0/0");
+
+        assertEquals(true, trie.contains(ip("1.2.3.4")));
+        assertEquals(false, trie.contains(ip("::1")));
+    }
+
+    @Test
+    public void testNonContiguousNetmask() throws UnknownHostException {
+        InetNetworkTrie trie = trie("10.0.1.0/255.0.255.0");
+
+        assertEquals(true, trie.contains(ip("10.20.1.30")));
+        assertEquals(false, trie.contains(ip("10.20.2.30")));
+    }
+
+    @Test
+    public void testIpV6Networks() throws UnknownHostException {
+        InetNetworkTrie trie = trie(DNSFixture.LOCALHOST_IP_V6_ADDRESSES);
+
+        assertEquals(true, trie.contains(ip("::1")));
+        assertEquals(false, trie.contains(ip("::2")));
+        assertEquals(true, trie.contains(ip("2781:0db8:1234:8612:45ee:ffff:fffe:0001")));
+        assertEquals(false, trie.contains(ip("2781:0db8:1235:8612:45ee:ffff:fffe:0001")));
+        assertEquals(false, trie.contains(ip("127.0.0.1")));
+    }
+
+    @Test
+    public void testSameAnswersAsLinearScan() throws UnknownHostException {
+        Random random = new Random(42);
+        List<InetNetwork> networks = new ArrayList<InetNetwork>();
+        InetNetworkTrie trie = new InetNetworkTrie();
+        for (int i = 0; i < 500; i++) {
+            // keep the first octet small so that networks overlap
+            String net = random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256) + "/" + (random.nextInt(25) + 8);
+            InetNetwork network = builder.getFromString(net);
+            networks.add(network);
+            trie.add(network);
+        }
+        for (int i = 0; i < 20000; i++) {
+            InetAddress address = ip(random.nextInt(4) + "." + random.nextInt(256) + "." + random.nextInt(256) + "." + random.nextInt(256));
+            boolean expected = false;
+            for (InetNetwork network : networks) {
+                expected |= network.contains(address);
+            }
+            assertEquals(address.toString(), expected, trie.contains(address));
+        }
+    }
+
+}
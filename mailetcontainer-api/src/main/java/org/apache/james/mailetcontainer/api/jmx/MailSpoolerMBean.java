@@ -36,4 +36,27 @@ public interface MailSpoolerMBean {
      */
     int getCurrentSpoolCount();
 
+    /**
+     * Return the maximal number of mails which are allowed to be dequeued but
+     * not processed yet
+     * 
+     * @return maxInFlight
+     */
+    int getMaxInFlight();
+
+    /**
+     * Return the number of mails which were dequeued but are not done yet
+     * 
+     * @return inFlightCount
+     */
+    int getInFlightCount();
+
+    /**
+     * Return the number of mails which were dequeued and wait for a free
+     * spool thread
+     * 
+     * @return waitingCount
+     */
+    int getWaitingCount();
+
 }
@@ -39,6 +39,8 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -63,6 +65,28 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
     private AtomicInteger processingActive = new AtomicInteger(0);
 
+    /**
+     * Number of mails which were dequeued but not yet handed to a worker
+     * thread
+     */
+    private AtomicInteger waiting = new AtomicInteger(0);
+
+    /**
+     * Number of mails which were dequeued and are not done yet
+     */
+    private AtomicInteger inFlight = new AtomicInteger(0);
+
+    /**
+     * Maximal number of dequeued but not yet processed mails
+     */
+    private int maxInFlight;
+
+    /**
+     * Credits for dequeuing. A credit is taken before dequeuing a mail and
+     * given back once the processing of the mail is done
+     */
+    private Semaphore credits;
+
     /**
      * Spool threads are active
      */
@@ -103,6 +127,11 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         numDequeueThreads = config.getInt("dequeueThreads", 2);
 
         numThreads = config.getInt("threads", 100);
+
+        maxInFlight = config.getInt("maxInFlight", numThreads);
+        if (maxInFlight < 1) {
+            throw new ConfigurationException("maxInFlight must be greater than 0");
+        }
     }
 
     /**
@@ -117,8 +146,10 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
         if (logger.isInfoEnabled()) {
             StringBuffer infoBuffer = new StringBuffer(64).append(getClass().getName()).append(" uses ").append(numThreads).append(" Thread(s)");
             logger.info(infoBuffer.toString());
+            logger.info(getClass().getName() + " allows " + maxInFlight + " mail(s) in flight");
         }
 
+        credits = new Semaphore(maxInFlight);
         active.set(true);
         workerService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "spooler", numThreads);
         dequeueService = JMXEnabledThreadPoolExecutor.newFixedThreadPool("org.apache.james:type=component,component=mailetcontainer,name=mailspooler,sub-type=threadpool", "dequeuer", numDequeueThreads);
@@ -143,14 +174,37 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
 
         while (active.get()) {
 
+            // wait until there is some space left before dequeue the next
+            // mail. This makes sure we not drain the whole queue into memory
+            // if the workers can not keep up
+            try {
+                credits.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+
             final MailQueueItem queueItem;
             try {
                 queueItem = queue.deQueue();
+            } catch (MailQueueException e1) {
+                credits.release();
+                if (active.get() && logger.isErrorEnabled()) {
+                    logger.error("Exception dequeue mail", e1);
+
+                }
+                continue;
+            }
+
+            inFlight.incrementAndGet();
+            waiting.incrementAndGet();
+            try {
                 workerService.execute(new Runnable() {
 
                     @Override
                     public void run() {
                         try {
+                            waiting.decrementAndGet();
                             numActive.incrementAndGet();
 
                             // increase count
@@ -183,14 +237,24 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
                         } finally {
                             processingActive.decrementAndGet();
                             numActive.decrementAndGet();
+                            inFlight.decrementAndGet();
+                            credits.release();
                         }
 
                     }
                 });
-            } catch (MailQueueException e1) {
-                if (active.get() && logger.isErrorEnabled()) {
-                    logger.error("Exception dequeue mail", e1);
-
+            } catch (RejectedExecutionException e) {
+                // the worker pool was shutdown, so give the mail back to the
+                // queue
+                waiting.decrementAndGet();
+                inFlight.decrementAndGet();
+                credits.release();
+                try {
+                    queueItem.done(false);
+                } catch (MailQueueException e1) {
+                    if (logger.isErrorEnabled()) {
+                        logger.error("Unable to rollback mail " + queueItem.getMail().getName(), e1);
+                    }
                 }
             }
         }
@@ -242,4 +306,19 @@ public class JamesMailSpooler implements Runnable, Disposable, Configurable, Log
     public int getCurrentSpoolCount() {
         return processingActive.get();
     }
+
+    @Override
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    @Override
+    public int getInFlightCount() {
+        return inFlight.get();
+    }
+
+    @Override
+    public int getWaitingCount() {
+        return waiting.get();
+    }
 }
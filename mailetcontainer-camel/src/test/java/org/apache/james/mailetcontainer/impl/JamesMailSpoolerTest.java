@@ -0,0 +1,202 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mailetcontainer.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.core.MailImpl;
+import org.apache.james.mailetcontainer.api.MailProcessor;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.mailet.Mail;
+import org.junit.After;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test the credits limiting the number of mails the spooler dequeues before
+ * they are processed.
+ */
+public class JamesMailSpoolerTest {
+
+    /**
+     * Queue handing out the enqueued mails, blocking while empty
+     */
+    private static class BlockingMailQueue implements MailQueue, MailQueueFactory {
+
+        private final BlockingQueue<Mail> mails = new LinkedBlockingQueue<Mail>();
+
+        private final AtomicInteger done = new AtomicInteger();
+
+        public MailQueue getQueue(String name) {
+            return this;
+        }
+
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            enQueue(mail);
+        }
+
+        public void enQueue(Mail mail) throws MailQueueException {
+            mails.add(mail);
+        }
+
+        public void enQueue(Collection<Mail> mails) throws MailQueueException {
+            this.mails.addAll(mails);
+        }
+
+        public MailQueueItem deQueue() throws MailQueueException {
+            final Mail mail;
+            try {
+                mail = mails.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailQueueException("Interrupted", e);
+            }
+            return new MailQueueItem() {
+                public Mail getMail() {
+                    return mail;
+                }
+
+                public void done(boolean success) throws MailQueueException {
+                    done.incrementAndGet();
+                }
+            };
+        }
+    }
+
+    /**
+     * Processor blocking each mail until it gets a permit
+     */
+    private static class BlockingMailProcessor implements MailProcessor {
+
+        private final Semaphore permits = new Semaphore(0);
+
+        private final AtomicInteger started = new AtomicInteger();
+
+        public void service(Mail mail) throws MessagingException {
+            started.incrementAndGet();
+            permits.acquireUninterruptibly();
+        }
+    }
+
+    private final BlockingMailQueue queue = new BlockingMailQueue();
+
+    private final BlockingMailProcessor processor = new BlockingMailProcessor();
+
+    private JamesMailSpooler spooler;
+
+    private JamesMailSpooler start(int threads, int maxInFlight) throws Exception {
+        HierarchicalConfiguration config = new HierarchicalConfiguration();
+        config.addProperty("dequeueThreads", "1");
+        config.addProperty("threads", String.valueOf(threads));
+        config.addProperty("maxInFlight", String.valueOf(maxInFlight));
+
+        spooler = new JamesMailSpooler();
+        spooler.setLog(LoggerFactory.getLogger("MockLog"));
+        spooler.setMailQueueFactory(queue);
+        spooler.setMailProcessor(processor);
+        spooler.configure(config);
+        spooler.init();
+        return spooler;
+    }
+
+    @After
+    public void tearDown() {
+        if (spooler != null) {
+            // let the blocked mails complete so that dispose does not wait
+            processor.permits.release(100);
+            spooler.dispose();
+        }
+    }
+
+    private void enqueue(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            queue.enQueue(new MailImpl("mail" + i, null, null));
+        }
+    }
+
+    private static void await(AtomicInteger counter, int expected) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000;
+        while (counter.get() < expected && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, counter.get());
+    }
+
+    @Test
+    public void testDequeueBlocksAtMaxInFlight() throws Exception {
+        start(4, 2);
+        enqueue(3);
+
+        await(processor.started, 2);
+        // give the dequeue thread the time to take another mail if it could
+        Thread.sleep(200);
+        assertEquals(2, processor.started.get());
+        assertEquals(1, queue.mails.size());
+        assertEquals(2, spooler.getInFlightCount());
+        assertEquals(2, spooler.getCurrentSpoolCount());
+        assertEquals(0, spooler.getWaitingCount());
+
+        // a completed mail gives its credit back
+        processor.permits.release();
+        await(queue.done, 1);
+        await(processor.started, 3);
+        assertEquals(0, queue.mails.size());
+        assertEquals(2, spooler.getInFlightCount());
+
+        processor.permits.release(2);
+        await(queue.done, 3);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (spooler.getInFlightCount() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, spooler.getInFlightCount());
+        assertEquals(0, spooler.getCurrentSpoolCount());
+    }
+
+    @Test
+    public void testWaitingMailsCountInFlight() throws Exception {
+        start(1, 2);
+        enqueue(3);
+
+        await(processor.started, 1);
+        long timeout = System.currentTimeMillis() + 10000;
+        while (spooler.getWaitingCount() < 1 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(200);
+        // one mail processed by the only worker, one waiting for it
+        assertEquals(2, spooler.getInFlightCount());
+        assertEquals(1, spooler.getCurrentSpoolCount());
+        assertEquals(1, spooler.getWaitingCount());
+        assertEquals(1, queue.mails.size());
+        assertEquals(2, spooler.getMaxInFlight());
+    }
+}
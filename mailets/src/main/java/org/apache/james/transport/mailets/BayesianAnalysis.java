@@ -63,7 +63,10 @@ import org.apache.mailet.base.RFC2822Headers;
  * stored in a JDBC database. After a training session, the Corpus must be
  * rebuilt from the database in order to acquire the new frequencies. Every 10
  * minutes a special thread in this mailet will check if any change was made to
- * the database by the feeder, and rebuild the corpus if necessary.
+ * the database by the feeder, and rebuild the corpus if necessary. When the
+ * sqlResources file defines the revision statements, only the token rows
+ * changed since the previous load are read, and the changes made by the
+ * feeders of other servers sharing the database are seen too.
  * </p>
  * 
  * <p>
@@ -350,14 +353,14 @@ public class BayesianAnalysis extends GenericMailet {
 
         try {
             // this is synchronized to avoid concurrent update of the corpus
+            boolean changed;
             synchronized (JDBCBayesianAnalyzer.DATABASE_LOCK) {
-                analyzer.tokenCountsClear();
-                analyzer.loadHamNSpam(conn);
-                analyzer.buildCorpus();
-                analyzer.tokenCountsClear();
+                changed = analyzer.refreshCorpus(conn);
             }
 
-            log("BayesianAnalysis Corpus loaded");
+            if (changed) {
+                log("BayesianAnalysis Corpus loaded");
+            }
 
             touchLastCorpusLoadTime();
 
@@ -430,11 +433,11 @@ public class BayesianAnalysis extends GenericMailet {
                 Thread.sleep(CORPUS_RELOAD_INTERVAL);
 
                 while (true) {
-                    if (analysis.getLastCorpusLoadTime() < JDBCBayesianAnalyzer.getLastDatabaseUpdateTime()) {
-                        analysis.log("Reloading Corpus ...");
+                    // with revisions, checking for changes is a single row
+                    // query, and the feeder may run on another server
+                    if (analysis.analyzer.isRevisionSupported() || analysis.getLastCorpusLoadTime() < JDBCBayesianAnalyzer.getLastDatabaseUpdateTime()) {
                         try {
                             analysis.loadData(analysis.datasource.getConnection());
-                            analysis.log("Corpus reloaded");
                         } catch (java.sql.SQLException se) {
                             analysis.log("SQLException: ", se);
                         }
@@ -0,0 +1,562 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.transport.mailets;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.queue.api.MailQueue.MailQueueException;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.slf4j.Logger;
+
+/**
+ * Schedules the delivery of the mails of the outgoing {@link MailQueue} per
+ * destination domain.
+ * 
+ * A dispatcher thread takes the mails from the {@link MailQueue} and sorts them
+ * into one FIFO per domain of the first recipient. The delivery threads take
+ * the mails round-robin over all domains, so a slow domain can not block the
+ * mails of the other domains. The number of concurrent deliveries per domain is
+ * limited. A domain whose delivery fails temporary (like a 4xx response) is
+ * slowed down: no new delivery is started before an exponential backoff
+ * elapsed and only one delivery is allowed until a delivery succeeds again.
+ * 
+ * The number of mails which are taken from the {@link MailQueue} but not yet
+ * delivered is limited, the rest stays in the {@link MailQueue}. A domain only
+ * gets a few more mails than it may deliver at once, further mails are put
+ * back to the {@link MailQueue} with a delay. So a slowed down domain can not
+ * fill up the buffer and stop the mails of the other domains from being taken.
+ * 
+ * The statistics and the backoff of a domain are kept after all its mails were
+ * delivered. Only the ones of the least recently used domains are dropped once
+ * more than {@link #MAX_STATISTICS} domains are known.
+ */
+public class DomainDeliveryScheduler implements DomainDeliverySchedulerMBean {
+
+    /**
+     * Maximal number of domains for which statistics are kept
+     */
+    public final static int MAX_STATISTICS = 1000;
+
+    /**
+     * Number of mails a domain may have waiting in addition to the ones it may
+     * deliver at once
+     */
+    public final static int PENDING_SLACK = 5;
+
+    private final MailQueue queue;
+    private final int maxDeliveriesPerDomain;
+    private final int maxBuffered;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final Logger log;
+
+    private final Object lock = new Object();
+    private final Map<String, Domain> domains = new HashMap<String, Domain>();
+    private final LinkedList<Domain> ring = new LinkedList<Domain>();
+    private final Map<String, Statistics> statistics = new LinkedHashMap<String, Statistics>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Statistics> eldest) {
+            return size() > MAX_STATISTICS;
+        }
+    };
+    private int buffered = 0;
+    private volatile boolean closed = false;
+
+    private Thread dispatcher;
+    private MBeanServer mbeanServer;
+    private ObjectName mbeanName;
+
+    /**
+     * @param queue
+     *            the queue to take the mails from
+     * @param maxDeliveriesPerDomain
+     *            maximal number of concurrent deliveries per domain
+     * @param maxBuffered
+     *            maximal number of mails which are taken from the queue but not
+     *            yet delivered
+     * @param initialBackoff
+     *            backoff in milliseconds after the first temporary failure
+     * @param maxBackoff
+     *            maximal backoff in milliseconds
+     * @param log
+     */
+    public DomainDeliveryScheduler(MailQueue queue, int maxDeliveriesPerDomain, int maxBuffered, long initialBackoff, long maxBackoff, Logger log) {
+        this.queue = queue;
+        this.maxDeliveriesPerDomain = maxDeliveriesPerDomain;
+        this.maxBuffered = maxBuffered;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.log = log;
+    }
+
+    /**
+     * Start the dispatcher thread and register the MBean with the given name,
+     * if not <code>null</code>. If an MBean with this name is already
+     * registered, like for a second scheduler on the same queue, an
+     * <code>instance</code> key is appended to make the name unique.
+     * 
+     * @param jmxName
+     */
+    public void start(String jmxName) {
+        dispatcher = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "Remote delivery dispatcher");
+        dispatcher.start();
+
+        if (jmxName != null) {
+            mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            try {
+                ObjectName name = new ObjectName(jmxName);
+                for (int instance = 2; mbeanName == null; instance++) {
+                    try {
+                        mbeanServer.registerMBean(this, name);
+                        mbeanName = name;
+                    } catch (InstanceAlreadyExistsException e) {
+                        name = new ObjectName(jmxName + ",instance=" + instance);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("Unable to register mbean " + jmxName, e);
+            }
+        }
+    }
+
+    /**
+     * Return the name the MBean was registered with
+     * 
+     * @return name or <code>null</code> if it is not registered
+     */
+    public ObjectName getObjectName() {
+        return mbeanName;
+    }
+
+    /**
+     * Stop the dispatcher and roll back all mails which were taken from the
+     * {@link MailQueue} but not yet delivered
+     */
+    public void close() {
+        closed = true;
+        if (dispatcher != null) {
+            dispatcher.interrupt();
+        }
+
+        List<MailQueueItem> rollback = new ArrayList<MailQueueItem>();
+        synchronized (lock) {
+            Iterator<Domain> it = domains.values().iterator();
+            while (it.hasNext()) {
+                Domain domain = it.next();
+                rollback.addAll(domain.pending);
+                domain.pending.clear();
+            }
+            buffered = 0;
+            lock.notifyAll();
+        }
+        for (int i = 0; i < rollback.size(); i++) {
+            try {
+                rollback.get(i).done(false);
+            } catch (MailQueueException e) {
+                log.error("Unable to rollback mail " + rollback.get(i).getMail().getName(), e);
+            }
+        }
+
+        if (mbeanName != null) {
+            try {
+                mbeanServer.unregisterMBean(mbeanName);
+            } catch (Exception e) {
+                log.warn("Unable to unregister mbean " + mbeanName, e);
+            }
+            mbeanName = null;
+        }
+    }
+
+    private void dispatch() {
+        while (!closed) {
+            try {
+                synchronized (lock) {
+                    while (buffered >= maxBuffered && !closed) {
+                        lock.wait();
+                    }
+                }
+                if (closed) {
+                    break;
+                }
+                MailQueueItem item = queue.deQueue();
+                offer(domainOf(item.getMail()), item);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (MailQueueException e) {
+                if (!closed) {
+                    log.error("Unable to dequeue mail", e);
+                }
+            }
+        }
+    }
+
+    private String domainOf(Mail mail) {
+        Iterator<MailAddress> recipients = mail.getRecipients().iterator();
+        if (recipients.hasNext()) {
+            return recipients.next().getDomain().toLowerCase();
+        }
+        return "";
+    }
+
+    private void offer(String name, MailQueueItem item) throws MailQueueException {
+        long delay;
+        synchronized (lock) {
+            if (closed) {
+                item.done(false);
+                return;
+            }
+            Domain domain = domains.get(name);
+            if (domain == null) {
+                domain = new Domain(name, getStatistics(name));
+                domains.put(name, domain);
+                ring.add(domain);
+            }
+            if (domain.pending.size() < domain.limit() + PENDING_SLACK) {
+                domain.pending.add(item);
+                buffered++;
+                lock.notifyAll();
+                return;
+            }
+            domain.statistics.deferred++;
+            delay = Math.max(domain.statistics.backoffUntil - System.currentTimeMillis(), initialBackoff);
+        }
+
+        // the domain has enough mails waiting, so try again later
+        Mail mail = item.getMail();
+        try {
+            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+        } catch (MailQueueException e) {
+            item.done(false);
+            throw e;
+        }
+        item.done(true);
+        LifecycleUtil.dispose(mail);
+    }
+
+    /**
+     * Take the next mail which can be delivered. This blocks until a mail of a
+     * domain which is below its limit and not slowed down is available.
+     * 
+     * @return delivery or <code>null</code> if the scheduler was closed
+     * @throws InterruptedException
+     */
+    public Delivery take() throws InterruptedException {
+        synchronized (lock) {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                long wait = 0;
+                for (int i = 0; i < ring.size(); i++) {
+                    // rotate, so the domains are served round-robin
+                    Domain domain = ring.removeFirst();
+                    ring.addLast(domain);
+
+                    if (domain.pending.isEmpty() || domain.inFlight >= domain.limit()) {
+                        continue;
+                    }
+                    if (domain.statistics.backoffUntil > now) {
+                        long remaining = domain.statistics.backoffUntil - now;
+                        if (wait == 0 || remaining < wait) {
+                            wait = remaining;
+                        }
+                        continue;
+                    }
+                    domain.inFlight++;
+                    domain.statistics.attempts++;
+                    buffered--;
+                    lock.notifyAll();
+                    return new Delivery(domain, domain.pending.removeFirst());
+                }
+                lock.wait(wait);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Mark the {@link Delivery} as finished. A temporary failure slows the
+     * domain down, a successful delivery ends the slow down. A bounce does not
+     * change it.
+     * 
+     * @param delivery
+     * @param result
+     */
+    public void done(Delivery delivery, Result result) {
+        synchronized (lock) {
+            Domain domain = delivery.domain;
+            Statistics stats = domain.statistics;
+            domain.inFlight--;
+            if (result == Result.TEMPORARY_FAILURE) {
+                stats.failed++;
+                stats.backoff = stats.backoff == 0 ? initialBackoff : Math.min(stats.backoff * 2, maxBackoff);
+                stats.backoffUntil = System.currentTimeMillis() + stats.backoff;
+            } else if (result == Result.BOUNCED) {
+                stats.bounced++;
+            } else {
+                stats.delivered++;
+                stats.backoff = 0;
+                stats.backoffUntil = 0;
+            }
+
+            if (domain.pending.isEmpty() && domain.inFlight == 0) {
+                // forget about domains without mails, so the map does not
+                // grow forever. The statistics and the backoff are kept.
+                domains.remove(domain.name);
+                ring.remove(domain);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private Domain getDomain(String domain) {
+        return domains.get(domain.toLowerCase());
+    }
+
+    /**
+     * Return the statistics of the given domain, created if needed. Must be
+     * called while holding the lock.
+     */
+    private Statistics getStatistics(String name) {
+        Statistics stats = statistics.get(name);
+        if (stats == null) {
+            stats = new Statistics();
+            statistics.put(name, stats);
+        }
+        return stats;
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getDomains()
+     */
+    public List<String> getDomains() {
+        synchronized (lock) {
+            return new ArrayList<String>(domains.keySet());
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getKnownDomains()
+     */
+    public List<String> getKnownDomains() {
+        synchronized (lock) {
+            return new ArrayList<String>(statistics.keySet());
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getQueueDepth(java.lang.String)
+     */
+    public int getQueueDepth(String domain) {
+        synchronized (lock) {
+            Domain d = getDomain(domain);
+            return d == null ? 0 : d.pending.size();
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getInFlightCount(java.lang.String)
+     */
+    public int getInFlightCount(String domain) {
+        synchronized (lock) {
+            Domain d = getDomain(domain);
+            return d == null ? 0 : d.inFlight;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getDeliveredCount(java.lang.String)
+     */
+    public long getDeliveredCount(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : stats.delivered;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getAttemptCount(java.lang.String)
+     */
+    public long getAttemptCount(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : stats.attempts;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getBouncedCount(java.lang.String)
+     */
+    public long getBouncedCount(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : stats.bounced;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getDeferredCount(java.lang.String)
+     */
+    public long getDeferredCount(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : stats.deferred;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getTemporaryFailureCount(java.lang.String)
+     */
+    public long getTemporaryFailureCount(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : stats.failed;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getThroughput(java.lang.String)
+     */
+    public double getThroughput(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            if (stats == null) {
+                return 0;
+            }
+            long time = System.currentTimeMillis() - stats.since;
+            return time <= 0 ? 0 : stats.delivered * 60000d / time;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getBackoff(java.lang.String)
+     */
+    public long getBackoff(String domain) {
+        synchronized (lock) {
+            Statistics stats = statistics.get(domain.toLowerCase());
+            return stats == null ? 0 : Math.max(0, stats.backoffUntil - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getBufferedCount()
+     */
+    public int getBufferedCount() {
+        synchronized (lock) {
+            return buffered;
+        }
+    }
+
+    /**
+     * @see org.apache.james.transport.mailets.DomainDeliverySchedulerMBean#getMaxDeliveriesPerDomain()
+     */
+    public int getMaxDeliveriesPerDomain() {
+        return maxDeliveriesPerDomain;
+    }
+
+    /**
+     * Scheduling state of a domain which has mails waiting or in delivery
+     */
+    private final class Domain {
+        private final String name;
+        private final Statistics statistics;
+        private final LinkedList<MailQueueItem> pending = new LinkedList<MailQueueItem>();
+        private int inFlight;
+
+        public Domain(String name, Statistics statistics) {
+            this.name = name;
+            this.statistics = statistics;
+        }
+
+        /**
+         * Only allow one delivery while the domain is slowed down
+         */
+        public int limit() {
+            return statistics.backoff > 0 ? 1 : maxDeliveriesPerDomain;
+        }
+    }
+
+    /**
+     * Delivery statistics and backoff of a domain
+     */
+    private final static class Statistics {
+        private final long since = System.currentTimeMillis();
+        private long attempts;
+        private long delivered;
+        private long bounced;
+        private long failed;
+        private long deferred;
+        private long backoff;
+        private long backoffUntil;
+    }
+
+    /**
+     * Outcome of a {@link Delivery}
+     */
+    public enum Result {
+        /** the mail was sent */
+        DELIVERED,
+        /** the delivery failed temporary, the mail is retried later */
+        TEMPORARY_FAILURE,
+        /** the delivery failed permanently, the mail was bounced */
+        BOUNCED
+    }
+
+    /**
+     * A mail which was taken for delivery
+     */
+    public final static class Delivery {
+        private final Domain domain;
+        private final MailQueueItem item;
+
+        private Delivery(Domain domain, MailQueueItem item) {
+            this.domain = domain;
+            this.item = item;
+        }
+
+        public MailQueueItem getItem() {
+            return item;
+        }
+    }
+}
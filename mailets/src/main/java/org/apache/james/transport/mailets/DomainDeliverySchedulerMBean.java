@@ -0,0 +1,139 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.transport.mailets;
+
+import java.util.List;
+
+/**
+ * Management interface of the {@link DomainDeliveryScheduler}
+ */
+public interface DomainDeliverySchedulerMBean {
+
+    /**
+     * Return the domains which have mails waiting or in delivery
+     * 
+     * @return domains
+     */
+    List<String> getDomains();
+
+    /**
+     * Return the domains for which statistics are available, including the
+     * ones without mails waiting or in delivery
+     * 
+     * @return domains
+     */
+    List<String> getKnownDomains();
+
+    /**
+     * Return the number of mails which wait for delivery to the given domain
+     * 
+     * @param domain
+     * @return depth
+     */
+    int getQueueDepth(String domain);
+
+    /**
+     * Return the number of mails which are currently delivered to the given
+     * domain
+     * 
+     * @param domain
+     * @return inFlight
+     */
+    int getInFlightCount(String domain);
+
+    /**
+     * Return the number of delivery attempts to the given domain which were
+     * started
+     * 
+     * @param domain
+     * @return attempts
+     */
+    long getAttemptCount(String domain);
+
+    /**
+     * Return the number of delivery attempts to the given domain which sent
+     * the mail
+     * 
+     * @param domain
+     * @return delivered
+     */
+    long getDeliveredCount(String domain);
+
+    /**
+     * Return the number of delivery attempts to the given domain which failed
+     * permanently, so the mail was bounced
+     * 
+     * @param domain
+     * @return bounced
+     */
+    long getBouncedCount(String domain);
+
+    /**
+     * Return the number of mails to the given domain which were put back to
+     * the queue, as the domain had enough mails waiting
+     * 
+     * @param domain
+     * @return deferred
+     */
+    long getDeferredCount(String domain);
+
+    /**
+     * Return the number of delivery attempts to the given domain which failed
+     * temporary
+     * 
+     * @param domain
+     * @return failed
+     */
+    long getTemporaryFailureCount(String domain);
+
+    /**
+     * Return the number of mails per minute which were sent to the given
+     * domain, measured since the first mail to the domain was seen
+     * 
+     * @param domain
+     * @return throughput
+     */
+    double getThroughput(String domain);
+
+    /**
+     * Return the time in milliseconds until new deliveries to the given domain
+     * are started again, 0 if the domain is not slowed down
+     * 
+     * @param domain
+     * @return backoff
+     */
+    long getBackoff(String domain);
+
+    /**
+     * Return the number of mails which were taken from the queue and wait for
+     * delivery
+     * 
+     * @return buffered
+     */
+    int getBufferedCount();
+
+    /**
+     * Return the maximal number of concurrent deliveries per domain
+     * 
+     * @return max
+     */
+    int getMaxDeliveriesPerDomain();
+}
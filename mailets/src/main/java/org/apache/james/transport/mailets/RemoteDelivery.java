@@ -33,6 +33,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
@@ -57,6 +58,7 @@ import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
 import javax.mail.internet.ParseException;
 
+import org.apache.james.core.MailImpl;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.dnsservice.api.TemporaryResolutionException;
 import org.apache.james.dnsservice.library.MXHostAddressIterator;
@@ -68,6 +70,7 @@ import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.api.MailQueueFactory;
+import org.apache.james.transport.mailets.DomainDeliveryScheduler.Result;
 import org.apache.james.transport.util.MailetContextLog;
 import org.apache.james.util.TimeConverter;
 import org.apache.mailet.HostAddress;
@@ -133,6 +136,21 @@ import org.apache.mailet.base.GenericMailet;
  *  AUTH command. Default is not to issue the AUTH command.
  * <li><b>gatewayPassword</b> (required if <code>gatewayUsername</code>) is set - a String representing the password to be used
  * to authenticate the user using the AUTH command. 
+ * <li><b>maxConnectionsPerHost</b> (optional) - an Integer for the maximal number of open connections to one SMTP server. If set,
+ * connections are kept open after a successful delivery and reused for the next mails to the same server. Default is 0, which
+ * opens a new connection for every mail.</li>
+ * <li><b>connectionIdleTimeout</b> (optional) - an Integer for the time in milliseconds after which an unused connection
+ * is closed. Only used if <code>maxConnectionsPerHost</code> is set. Default is 30000</li>
+ * <li><b>maxDeliveriesPerDomain</b> (optional) - an Integer for the maximal number of concurrent deliveries to one recipient
+ * domain. If set, the mails are scheduled round-robin over the recipient domains, so a slow domain can not occupy all
+ * delivery threads. Per domain statistics are exposed over JMX. Default is 0, which takes the mails in queue order.</li>
+ * <li><b>maxBufferedMails</b> (optional) - an Integer for the maximal number of mails which are taken from the queue
+ * and wait for their domain. Only used if <code>maxDeliveriesPerDomain</code> is set. Default is ten times
+ * <code>deliveryThreads</code>. Mails of a domain which already has enough mails waiting are put back to the queue with a
+ * delay, so they do not fill up this buffer.</li>
+ * <li><b>domainBackoff</b> (optional) - a String for the time to pause new deliveries to a domain after a temporary failure,
+ * doubled for each further failure up to <code>maxDomainBackoff</code>. Only used if <code>maxDeliveriesPerDomain</code> is set.
+ * Default is 5 seconds, respectively 5 minutes.</li>
  * <li><b>heloName</b> (optional) - a String containing the name used in the SMTP HELO and EHLO commands. Default is the default domain, 
  * which is typically <code>localhost</code>.</li> 
  * <li><b>mail.*</b> (optional) - Any property beginning with <code>mail.</code> described in the Javadoc for package
@@ -251,6 +269,24 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
     
     private boolean isSSLEnable = false;
 
+    /** Pool of open SMTP connections, null if connections are not reused */
+    private SMTPTransportPool transportPool = null;
+
+    private int maxConnectionsPerHost = 0;
+
+    private long connectionIdleTimeout = 30000;
+
+    /** Schedules the deliveries per domain, null if not enabled */
+    private DomainDeliveryScheduler scheduler = null;
+
+    private int maxDeliveriesPerDomain = 0;
+
+    private int maxBufferedMails = 0;
+
+    private long domainBackoff = 5000;
+
+    private long maxDomainBackoff = 300000;
+
     @Inject
     @Named("domainlist")
     public void setDomainList(DomainList domainList) {
@@ -428,8 +464,53 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         	usePriority = Boolean.valueOf(prio);
         }
 
+        try {
+            if (getInitParameter("maxConnectionsPerHost") != null) {
+                maxConnectionsPerHost = Integer.parseInt(getInitParameter("maxConnectionsPerHost"));
+            }
+        } catch (Exception e) {
+            log("Invalid maxConnectionsPerHost setting: " + getInitParameter("maxConnectionsPerHost"));
+        }
+
+        try {
+            if (getInitParameter("connectionIdleTimeout") != null) {
+                connectionIdleTimeout = Integer.parseInt(getInitParameter("connectionIdleTimeout"));
+            }
+        } catch (Exception e) {
+            log("Invalid connectionIdleTimeout setting: " + getInitParameter("connectionIdleTimeout"));
+        }
+
+        if (maxConnectionsPerHost > 0) {
+            transportPool = new SMTPTransportPool(maxConnectionsPerHost, connectionIdleTimeout);
+        }
+
         // Start Workers Threads.
         workersThreadCount = Integer.parseInt(getInitParameter("deliveryThreads"));
+
+        try {
+            if (getInitParameter("maxDeliveriesPerDomain") != null) {
+                maxDeliveriesPerDomain = Integer.parseInt(getInitParameter("maxDeliveriesPerDomain"));
+            }
+            if (getInitParameter("maxBufferedMails") != null) {
+                maxBufferedMails = Integer.parseInt(getInitParameter("maxBufferedMails"));
+            }
+            if (getInitParameter("domainBackoff") != null) {
+                domainBackoff = TimeConverter.getMilliSeconds(getInitParameter("domainBackoff"));
+            }
+            if (getInitParameter("maxDomainBackoff") != null) {
+                maxDomainBackoff = TimeConverter.getMilliSeconds(getInitParameter("maxDomainBackoff"));
+            }
+        } catch (Exception e) {
+            log("Invalid domain scheduling setting", e);
+        }
+
+        if (maxDeliveriesPerDomain > 0) {
+            if (maxBufferedMails <= 0) {
+                maxBufferedMails = workersThreadCount * 10;
+            }
+            scheduler = new DomainDeliveryScheduler(queue, maxDeliveriesPerDomain, maxBufferedMails, domainBackoff, maxDomainBackoff, logAdapter);
+            scheduler.start("org.apache.james:type=component,name=remotedelivery,queue=" + outgoing);
+        }
         initDeliveryThreads();
     }
 
@@ -656,7 +737,8 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             // Store the new message containers, organized by server, in the
             // outgoing mail repository
             String name = mail.getName();
-            for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+            if (targets.size() == 1) {
+                Map.Entry<String, Collection<MailAddress>> entry = targets.entrySet().iterator().next();
                 if (isDebug) {
                     StringBuilder logMessageBuffer = new StringBuilder(128).append("Sending mail to ").append(entry.getValue()).append(" on host ").append(entry.getKey());
                     log(logMessageBuffer.toString());
@@ -669,6 +751,31 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 } catch (MailQueueException e) {
                     log("Unable to queue mail " + mail.getName() + " for recipients + " + mail.getRecipients().toString(), e);
                 }
+            } else if (!targets.isEmpty()) {
+                // Enqueue one copy per server as one batch, so the queue only
+                // needs to commit once
+                List<Mail> mails = new ArrayList<Mail>(targets.size());
+                try {
+                    for (Map.Entry<String, Collection<MailAddress>> entry : targets.entrySet()) {
+                        if (isDebug) {
+                            StringBuilder logMessageBuffer = new StringBuilder(128).append("Sending mail to ").append(entry.getValue()).append(" on host ").append(entry.getKey());
+                            log(logMessageBuffer.toString());
+                        }
+                        StringBuilder nameBuffer = new StringBuilder(128).append(name).append("-to-").append(entry.getKey());
+                        MailImpl copy = new MailImpl(mail, nameBuffer.toString());
+                        copy.setRecipients(entry.getValue());
+                        copy.setState(mail.getState());
+                        copy.setErrorMessage(mail.getErrorMessage());
+                        mails.add(copy);
+                    }
+                    queue.enQueue(mails);
+                } catch (MessagingException e) {
+                    log("Unable to queue mail " + name + " for recipients + " + recipients.toString(), e);
+                } finally {
+                    for (Mail copy : mails) {
+                        LifecycleUtil.dispose(copy);
+                    }
+                }
             }
         } else {
             // Store the mail unaltered for processing by the gateway server(s)
@@ -697,11 +804,18 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         // Mark flag so threads from this Mailet stop themselves
         destroyed = true;
 
+        if (scheduler != null) {
+            scheduler.close();
+        }
+
         // Wake up all threads from waiting for an accept
         for (Iterator<Thread> i = workersThreads.iterator(); i.hasNext();) {
             Thread t = i.next();
             t.interrupt();
         }
+        if (transportPool != null) {
+            transportPool.close();
+        }
         notifyAll();
     }
 
@@ -760,85 +874,30 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         try {
             while (!Thread.interrupted() && !destroyed) {
                 try {
-                    // Get the 'mail' object that is ready for deliverying. If
-                    // no
-                    // message is
-                    // ready, the 'accept' will block until message is ready.
-                    // The amount
-                    // of time to block is determined by the 'getWaitTime'
-                    // method of the
-                    // MultipleDelayFilter.
-                    MailQueueItem queueItem = queue.deQueue();
-                    Mail mail = queueItem.getMail();
-
-                    String key = mail.getName();
-
-                    try {
-                        if (isDebug) {
-                            String message = Thread.currentThread().getName() + " will process mail " + key;
-                            log(message);
+                    if (scheduler != null) {
+                        DomainDeliveryScheduler.Delivery delivery = scheduler.take();
+                        if (delivery == null) {
+                            break;
                         }
-
-                        // Deliver message
-                        if (deliver(mail, session)) {
-                            // Message was successfully delivered/fully
-                            // failed...
-                            // delete it
-                            LifecycleUtil.dispose(mail);
-                            // workRepository.remove(key);
-                        } else {
-                            // Something happened that will delay delivery.
-                            // Store it back in the retry repository.
-                            // workRepository.store(mail);
-                            int retries = 0;
-                            try {
-                                retries = Integer.parseInt(mail.getErrorMessage());
-                            } catch (NumberFormatException e) {
-                                // Something strange was happen with the
-                                // errorMessage..
-                            }
-
-                            long delay = getNextDelay(retries);
-                            
-                            if (usePriority) {
-                                // Use lowest priority for retries. See JAMES-1311
-                                mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
-                            }
-                            queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
-                            LifecycleUtil.dispose(mail);
-
-                            // This is an update, so we have to unlock and
-                            // notify or this mail is kept locked by this
-                            // thread.
-                            // workRepository.unlock(key);
-
-                            // Note: We do not notify because we updated an
-                            // already existing mail and we are now free to
-                            // handle
-                            // more mails.
-                            // Furthermore this mail should not be processed now
-                            // because we have a retry time scheduling.
+                        // an exception counts as temporary failure as the
+                        // mail was not delivered
+                        Result result = Result.TEMPORARY_FAILURE;
+                        try {
+                            result = process(delivery.getItem(), session);
+                        } finally {
+                            scheduler.done(delivery, result);
                         }
-
-                        // Clear the object handle to make sure it recycles
-                        // this object.
-                        mail = null;
-                        queueItem.done(true);
-                    } catch (Exception e) {
-                        // Prevent unexpected exceptions from causing looping by
-                        // removing message from outgoing.
-                        // DO NOT CHANGE THIS to catch Error! For example, if
-                        // there were an OutOfMemory condition caused because
-                        // something else in the server was abusing memory, we
-                        // would
-                        // not want to start purging the retrying spool!
-                        log("Exception caught in RemoteDelivery.run()", e);
-                        LifecycleUtil.dispose(mail);
-                        // workRepository.remove(key);
-                        queueItem.done(false);
-                        throw new MailQueueException("Unable to perform dequeue", e);
+                    } else {
+                        // Get the 'mail' object that is ready for deliverying. If
+                        // no
+                        // message is
+                        // ready, the 'accept' will block until message is ready.
+                        // The amount
+                        // of time to block is determined by the 'getWaitTime'
+                        // method of the
+                        // MultipleDelayFilter.
+                        process(queue.deQueue(), session);
                     }
-
                 } catch (Throwable e) {
                     if (!destroyed) {
                         log("Exception caught in RemoteDelivery.run()", e);
@@ -851,6 +910,89 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         }
     }
 
+    /**
+     * Deliver the {@link Mail} of the given {@link MailQueueItem} and enqueue it
+     * again for a later retry if the delivery failed temporary
+     * 
+     * @param queueItem
+     * @param session
+     * @return result
+     * @throws MailQueueException
+     */
+    private Result process(MailQueueItem queueItem, Session session) throws MailQueueException {
+        Mail mail = queueItem.getMail();
+
+        String key = mail.getName();
+
+        try {
+            if (isDebug) {
+                String message = Thread.currentThread().getName() + " will process mail " + key;
+                log(message);
+            }
+
+            // Deliver message
+            Result result = deliver(mail, session);
+            if (result != Result.TEMPORARY_FAILURE) {
+                // Message was successfully delivered/fully
+                // failed...
+                // delete it
+                LifecycleUtil.dispose(mail);
+                // workRepository.remove(key);
+            } else {
+                // Something happened that will delay delivery.
+                // Store it back in the retry repository.
+                // workRepository.store(mail);
+                int retries = 0;
+                try {
+                    retries = Integer.parseInt(mail.getErrorMessage());
+                } catch (NumberFormatException e) {
+                    // Something strange was happen with the
+                    // errorMessage..
+                }
+
+                long delay = getNextDelay(retries);
+
+                if (usePriority) {
+                    // Use lowest priority for retries. See JAMES-1311
+                    mail.setAttribute(MailPrioritySupport.MAIL_PRIORITY, MailPrioritySupport.LOW_PRIORITY);
+                }
+                queue.enQueue(mail, delay, TimeUnit.MILLISECONDS);
+                LifecycleUtil.dispose(mail);
+
+                // This is an update, so we have to unlock and
+                // notify or this mail is kept locked by this
+                // thread.
+                // workRepository.unlock(key);
+
+                // Note: We do not notify because we updated an
+                // already existing mail and we are now free to
+                // handle
+                // more mails.
+                // Furthermore this mail should not be processed now
+                // because we have a retry time scheduling.
+            }
+
+            // Clear the object handle to make sure it recycles
+            // this object.
+            mail = null;
+            queueItem.done(true);
+            return result;
+        } catch (Exception e) {
+            // Prevent unexpected exceptions from causing looping by
+            // removing message from outgoing.
+            // DO NOT CHANGE THIS to catch Error! For example, if
+            // there were an OutOfMemory condition caused because
+            // something else in the server was abusing memory, we
+            // would
+            // not want to start purging the retrying spool!
+            log("Exception caught in RemoteDelivery.run()", e);
+            LifecycleUtil.dispose(mail);
+            // workRepository.remove(key);
+            queueItem.done(false);
+            throw new MailQueueException("Unable to perform dequeue", e);
+        }
+    }
+
     /**
      * We can assume that the recipients of this message are all going to the
      * same mail server. We will now rely on the DNS server to do DNS MX record
@@ -861,10 +1003,10 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      *            org.apache.james.core.MailImpl
      * @param session
      *            javax.mail.Session
-     * @return boolean Whether the delivery was successful and the message can
-     *         be deleted
+     * @return result Whether the delivery was successful, failed permanently
+     *         (in both cases the message can be deleted) or failed temporary
      */
-    private boolean deliver(Mail mail, Session session) {
+    private Result deliver(Mail mail, Session session) {
         try {
             if (isDebug) {
                 log("Attempting to deliver " + mail.getName());
@@ -882,7 +1024,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
             if (addr.length <= 0) {
                 log("No recipients specified... not sure how this could have happened.");
-                return true;
+                return Result.DELIVERED;
             }
 
             // Figure out which servers to try to send to. This collection
@@ -952,30 +1094,62 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     // NOTIFY= after RCPT TO line.
 
                     Transport transport = null;
+                    SMTPTransportPool.Connection connection = null;
+                    boolean reusable = false;
                     try {
-                        transport = session.getTransport(outgoingMailServer);
-                        try {
-                            if (authUser != null) {
-                                transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
-                            } else {
-                                transport.connect();
+                        if (transportPool != null) {
+                            String poolKey = outgoingMailServer.getHostName() + "/" + outgoingMailServer.getHost() + ":" + outgoingMailServer.getPort();
+                            try {
+                                connection = transportPool.acquire(poolKey, connectionTimeout);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new MessagingException("Interrupted while waiting for a connection to " + outgoingMailServer.getHostName(), e);
+                            }
+                            if (connection == null) {
+                                // Treat it like a failed connect and try the
+                                // next server
+                                log("Maximal number of connections to " + outgoingMailServer.getHostName() + " at " + outgoingMailServer.getHost() + " reached");
+                                continue;
                             }
-                        } catch (MessagingException me) {
-                            // Any error on connect should cause the mailet to
-                            // attempt
-                            // to connect to the next SMTP server associated
-                            // with this
-                            // MX record. Just log the exception. We'll worry
-                            // about
-                            // failing the message at the end of the loop.
+                            transport = connection.getTransport();
+                        }
+                        if (transport == null) {
+                            Session transportSession = session;
+                            if (connection != null) {
+                                // pooled transports need their own session as
+                                // the sender is set per mail
+                                transportSession = obtainSession(copyProperties(props));
+                            }
+                            transport = transportSession.getTransport(outgoingMailServer);
+                            try {
+                                if (authUser != null) {
+                                    transport.connect(outgoingMailServer.getHostName(), authUser, authPass);
+                                } else {
+                                    transport.connect();
+                                }
+                            } catch (MessagingException me) {
+                                // Any error on connect should cause the mailet to
+                                // attempt
+                                // to connect to the next SMTP server associated
+                                // with this
+                                // MX record. Just log the exception. We'll worry
+                                // about
+                                // failing the message at the end of the loop.
                             
-                            // Also include the stacktrace if debug is enabled. See JAMES-1257
-                            if (isDebug) {
-                                log(me.getMessage(), me.getCause());
-                            } else {
-                                log(me.getMessage());
+                                // Also include the stacktrace if debug is enabled. See JAMES-1257
+                                if (isDebug) {
+                                    log(me.getMessage(), me.getCause());
+                                } else {
+                                    log(me.getMessage());
+                                }
+                                continue;
+                            }
+                            if (connection != null) {
+                                connection.setTransport(transportSession, transport);
                             }
-                            continue;
+                        }
+                        if (connection != null) {
+                            connection.getSession().getProperties().put("mail.smtp.from", props.get("mail.smtp.from"));
                         }
                         // if the transport is a SMTPTransport (from sun) some
                         // performance enhancement can be done.
@@ -1025,8 +1199,14 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                             }
                         }
                         transport.sendMessage(message, addr);
+                        reusable = true;
                     } finally {
-                        if (transport != null) {
+                        if (connection != null) {
+                            // Keep the connection open for the next mail to
+                            // this host if the transaction was successful
+                            transportPool.release(connection, reusable);
+                            transport = null;
+                        } else if (transport != null) {
                             try {
                                 // James-899: transport.close() sends QUIT to
                                 // the server; if that fails
@@ -1046,7 +1226,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     logMessageBuffer = new StringBuilder(256).append("Mail (").append(mail.getName()).append(") sent successfully to ").append(outgoingMailServer.getHostName()).append(" at ").append(outgoingMailServer.getHost()).append(" from ").append(props.get("mail.smtp.from")).append(" for ")
                             .append(mail.getRecipients());
                     log(logMessageBuffer.toString());
-                    return true;
+                    return Result.DELIVERED;
                 } catch (SendFailedException sfe) {
                     logSendFailedException(sfe);
 
@@ -1122,7 +1302,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             // Copy the recipients as direct modification may not be possible
             Collection<MailAddress> recipients = new ArrayList<MailAddress>(mail.getRecipients());
 
-            boolean deleteMessage = false;
+            Result result = Result.TEMPORARY_FAILURE;
 
             /*
              * If you send a message that has multiple invalid addresses, you'll
@@ -1151,7 +1331,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
                     // If we got an SMTPSendFailedException, use its RetCode to
                     // determine default permanent/temporary failure
-                    deleteMessage = (returnCode >= 500 && returnCode <= 599);
+                    result = (returnCode >= 500 && returnCode <= 599) ? Result.BOUNCED : Result.TEMPORARY_FAILURE;
                 } else {
                     // Sometimes we'll get a normal SendFailedException with
                     // nested SMTPAddressFailedException, so use the latter
@@ -1162,7 +1342,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                         me = (MessagingException) ne;
                         if (me.getClass().getName().endsWith(".SMTPAddressFailedException")) {
                             int returnCode = ((Integer) invokeGetter(me, "getReturnCode")).intValue();
-                            deleteMessage = (returnCode >= 500 && returnCode <= 599);
+                            result = (returnCode >= 500 && returnCode <= 599) ? Result.BOUNCED : Result.TEMPORARY_FAILURE;
                         }
                     }
                 }
@@ -1197,7 +1377,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                     
                     if (isDebug)
                         log("Invalid recipients: " + recipients);
-                    deleteMessage = failMessage(mail, sfe, true);
+                    result = failMessage(mail, sfe, true);
                 }
             }
 
@@ -1221,15 +1401,15 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                         log("Unsent recipients: " + recipients);
                     if (sfe.getClass().getName().endsWith(".SMTPSendFailedException")) {
                         int returnCode = ((Integer) invokeGetter(sfe, "getReturnCode")).intValue();
-                        deleteMessage = failMessage(mail, sfe, returnCode >= 500 && returnCode <= 599);
+                        result = failMessage(mail, sfe, returnCode >= 500 && returnCode <= 599);
                     } else {
-                        deleteMessage = failMessage(mail, sfe, false);
+                        result = failMessage(mail, sfe, false);
                     }
                 }
             }
             
            
-            return deleteMessage;
+            return result;
         } catch (MessagingException ex) {
             // We should do a better job checking this... if the failure is a
             // general
@@ -1438,9 +1618,10 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
      * @param ex
      *            javax.mail.MessagingException
      * @param permanent
-     * @return boolean Whether the message failed fully and can be deleted
+     * @return result {@link Result#BOUNCED} if the message failed fully and can
+     *         be deleted
      */
-    private boolean failMessage(Mail mail, Exception ex, boolean permanent) {
+    private Result failMessage(Mail mail, Exception ex, boolean permanent) {
         StringWriter sout = new StringWriter();
         PrintWriter out = new PrintWriter(sout, true);
         if (permanent) {
@@ -1483,7 +1664,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
                 ++retries;
                 mail.setErrorMessage(retries + "");
                 mail.setLastUpdated(new Date());
-                return false;
+                return Result.TEMPORARY_FAILURE;
             } else {
                 logBuffer = new StringBuilder(128).append("Bouncing message ").append(mail.getName()).append(" after ").append(retries).append(" retries");
                 log(logBuffer.toString());
@@ -1492,7 +1673,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
 
         if (mail.getSender() == null) {
             log("Null Sender: no bounce will be generated for " + mail.getName());
-            return true;
+            return Result.BOUNCED;
         }
 
         if (bounceProcessor != null) {
@@ -1520,7 +1701,7 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
             // do an old style bounce
             bounce(mail, ex);
         }
-        return true;
+        return Result.BOUNCED;
     }
 
     /**
@@ -1601,6 +1782,12 @@ public class RemoteDelivery extends GenericMailet implements Runnable {
         return Session.getInstance(props);
     }
 
+    private Properties copyProperties(Properties props) {
+        Properties copy = new Properties();
+        copy.putAll(props);
+        return copy;
+    }
+
     /**
      * Returns an Iterator over org.apache.mailet.HostAddress, a specialized
      * subclass of javax.mail.URLName, which provides location information for
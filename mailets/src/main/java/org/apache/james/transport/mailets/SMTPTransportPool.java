@@ -0,0 +1,411 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+
+package org.apache.james.transport.mailets;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * Pool of connected SMTP {@link Transport}s which is used by
+ * {@link RemoteDelivery} to send consecutive mails to the same host over one
+ * connection.
+ * 
+ * The number of connections per host is limited. Idle connections are closed
+ * after the configured timeout. Before an idle connection is reused a
+ * <code>RSET</code> is issued, which also makes sure the server did not drop
+ * the connection in the meantime. The <code>RSET</code> is supported for the
+ * SMTP transports of the Geronimo and the Sun JavaMail implementations. A
+ * {@link Transport} which can not be reset is never pooled but closed on
+ * release.
+ * 
+ * Each pooled {@link Transport} has its own {@link Session}, so the session
+ * properties which are set per mail (like <code>mail.smtp.from</code>) can be
+ * changed safely while the connection is borrowed.
+ */
+public class SMTPTransportPool {
+
+    private final static String RSET = "RSET";
+    private final static int RSET_OK = 250;
+
+    /**
+     * The way to issue a <code>RSET</code> per {@link Transport} class
+     */
+    private final static ConcurrentMap<Class<?>, Resetter> RESETTERS = new ConcurrentHashMap<Class<?>, Resetter>();
+
+    private final int maxConnectionsPerHost;
+    private final long idleTimeout;
+    private final Map<String, Host> hosts = new HashMap<String, Host>();
+    private long lastEviction = System.currentTimeMillis();
+    private volatile boolean closed = false;
+
+    /**
+     * @param maxConnectionsPerHost
+     *            the maximal number of open connections to one host
+     * @param idleTimeout
+     *            time in milliseconds after which an idle connection gets
+     *            closed
+     */
+    public SMTPTransportPool(int maxConnectionsPerHost, long idleTimeout) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Acquire a connection to the host with the given key. The returned
+     * {@link Connection} holds a connected {@link Transport} if an idle one was
+     * available, otherwise the caller needs to connect and set one via
+     * {@link Connection#setTransport(Session, Transport)}.
+     * 
+     * The {@link Connection} must be given back with
+     * {@link #release(Connection, boolean)} in any case.
+     * 
+     * @param key
+     * @param timeout
+     *            time in milliseconds to wait if the maximal number of
+     *            connections to the host is reached
+     * @return connection or <code>null</code> if the timeout elapsed
+     * @throws InterruptedException
+     */
+    public Connection acquire(String key, long timeout) throws InterruptedException {
+        evictIdle();
+
+        Host host;
+        synchronized (hosts) {
+            host = hosts.get(key);
+            if (host == null) {
+                host = new Host(maxConnectionsPerHost);
+                hosts.put(key, host);
+            }
+            // keeps the host in the map while we wait for a permit and use
+            // the connection, so the limit applies to all callers
+            host.references++;
+        }
+        boolean acquired = false;
+        try {
+            acquired = host.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+        } finally {
+            if (!acquired) {
+                unreference(host);
+            }
+        }
+        if (!acquired) {
+            return null;
+        }
+
+        Connection connection = new Connection(key, host);
+        while (true) {
+            Connection idle;
+            synchronized (host) {
+                idle = host.idle.poll();
+            }
+            if (idle == null) {
+                break;
+            }
+            if (reset(idle.transport)) {
+                connection.session = idle.session;
+                connection.transport = idle.transport;
+                break;
+            } else {
+                close(idle.transport);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Give the {@link Connection} back to the pool
+     * 
+     * @param connection
+     * @param reusable
+     *            true if the {@link Transport} can be used for the next mail,
+     *            false if it should get closed
+     */
+    public void release(Connection connection, boolean reusable) {
+        Host host = connection.host;
+        try {
+            if (connection.transport != null) {
+                if (reusable && !closed && isResettable(connection.transport) && connection.transport.isConnected()) {
+                    connection.lastUsed = System.currentTimeMillis();
+                    synchronized (host) {
+                        host.idle.addFirst(connection);
+                    }
+                } else {
+                    close(connection.transport);
+                }
+            }
+        } finally {
+            host.permits.release();
+            unreference(host);
+        }
+    }
+
+    /**
+     * Return true if a <code>RSET</code> can be issued on the given
+     * {@link Transport}, which is needed to pool it
+     * 
+     * @param transport
+     * @return resettable
+     */
+    public static boolean isResettable(Transport transport) {
+        return getResetter(transport.getClass()) != Resetter.UNSUPPORTED;
+    }
+
+    /**
+     * Close all idle connections. Connections which are in use get closed
+     * when they are released.
+     */
+    public void close() {
+        closed = true;
+        synchronized (hosts) {
+            Iterator<Host> it = hosts.values().iterator();
+            while (it.hasNext()) {
+                Host host = it.next();
+                synchronized (host) {
+                    while (!host.idle.isEmpty()) {
+                        close(host.idle.removeFirst().transport);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close all connections which were idle longer than the timeout
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        synchronized (hosts) {
+            if (now - lastEviction < 1000) {
+                return;
+            }
+            lastEviction = now;
+
+            Iterator<Host> it = hosts.values().iterator();
+            while (it.hasNext()) {
+                Host host = it.next();
+                synchronized (host) {
+                    // the most recently used connections are at the head
+                    while (!host.idle.isEmpty() && now - host.idle.getLast().lastUsed > idleTimeout) {
+                        close(host.idle.removeLast().transport);
+                    }
+                    if (host.idle.isEmpty() && host.references == 0) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    private void unreference(Host host) {
+        synchronized (hosts) {
+            host.references--;
+        }
+    }
+
+    /**
+     * Issue a <code>RSET</code> to start a new mail transaction on the
+     * {@link Transport}
+     * 
+     * @return success
+     */
+    private boolean reset(Transport transport) {
+        try {
+            return getResetter(transport.getClass()).reset(transport) == RSET_OK;
+        } catch (Exception e) {
+            // the connection is broken
+            return false;
+        }
+    }
+
+    private static Resetter getResetter(Class<?> transportClass) {
+        Resetter resetter = RESETTERS.get(transportClass);
+        if (resetter == null) {
+            resetter = Resetter.create(transportClass);
+            RESETTERS.put(transportClass, resetter);
+        }
+        return resetter;
+    }
+
+    /**
+     * Sends a command over the connection of a SMTP {@link Transport}. The
+     * JavaMail implementations have no common api for this, so it is looked up
+     * by reflection once per {@link Transport} class.
+     */
+    private static class Resetter {
+
+        private final static Resetter UNSUPPORTED = new Resetter(null, null, null);
+
+        /** the connection field of a Geronimo SMTPTransport, if any */
+        private final Field connection;
+        private final Method command;
+        /** returns the code of the reply of a Geronimo SMTPConnection */
+        private final Method code;
+
+        private Resetter(Field connection, Method command, Method code) {
+            this.connection = connection;
+            this.command = command;
+            this.code = code;
+        }
+
+        private static Resetter create(Class<?> transportClass) {
+            // Sun: public int simpleCommand(String)
+            try {
+                return new Resetter(null, transportClass.getMethod("simpleCommand", new Class[] { String.class }), null);
+            } catch (NoSuchMethodException e) {
+                // try the next one
+            }
+
+            // Geronimo: the SMTPConnection in the connection field has a
+            // SMTPReply sendCommand(String)
+            Field connection = findField(transportClass, "connection");
+            if (connection != null) {
+                Method sendCommand = findMethod(connection.getType(), "sendCommand", String.class);
+                Method getCode = sendCommand == null ? null : findMethod(sendCommand.getReturnType(), "getCode");
+                if (getCode != null) {
+                    try {
+                        connection.setAccessible(true);
+                        sendCommand.setAccessible(true);
+                        getCode.setAccessible(true);
+                        return new Resetter(connection, sendCommand, getCode);
+                    } catch (SecurityException e) {
+                        // not allowed
+                    }
+                }
+            }
+            return UNSUPPORTED;
+        }
+
+        /**
+         * @return the reply code of the <code>RSET</code>
+         */
+        private int reset(Transport transport) throws Exception {
+            if (command == null) {
+                throw new MessagingException("RSET is not supported by " + transport.getClass().getName());
+            }
+            if (connection == null) {
+                return ((Integer) command.invoke(transport, new Object[] { RSET })).intValue();
+            }
+            Object target = connection.get(transport);
+            if (target == null) {
+                throw new MessagingException("Not connected");
+            }
+            Object reply = command.invoke(target, new Object[] { RSET });
+            return ((Integer) code.invoke(reply, new Object[0])).intValue();
+        }
+
+        private static Field findField(Class<?> clazz, String name) {
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                try {
+                    return c.getDeclaredField(name);
+                } catch (NoSuchFieldException e) {
+                    // look in the super class
+                }
+            }
+            return null;
+        }
+
+        private static Method findMethod(Class<?> clazz, String name, Class<?>... parameterTypes) {
+            for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+                try {
+                    return c.getDeclaredMethod(name, parameterTypes);
+                } catch (NoSuchMethodException e) {
+                    // look in the super class
+                }
+            }
+            return null;
+        }
+    }
+
+    private void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            // the server may already have closed the connection
+        }
+    }
+
+    private final static class Host {
+        private final Semaphore permits;
+        private final LinkedList<Connection> idle = new LinkedList<Connection>();
+
+        /**
+         * Number of callers which wait for or hold a connection. Guarded by
+         * the hosts map.
+         */
+        private int references;
+
+        public Host(int maxConnections) {
+            this.permits = new Semaphore(maxConnections, true);
+        }
+    }
+
+    /**
+     * A connection to one host which was acquired from the pool
+     */
+    public final static class Connection {
+        private final String key;
+        private final Host host;
+        private Session session;
+        private Transport transport;
+        private long lastUsed;
+
+        private Connection(String key, Host host) {
+            this.key = key;
+            this.host = host;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        public Transport getTransport() {
+            return transport;
+        }
+
+        /**
+         * Set the connected {@link Transport} and the {@link Session} it
+         * belongs to
+         * 
+         * @param session
+         * @param transport
+         */
+        public void setTransport(Session session, Transport transport) {
+            this.session = session;
+            this.transport = transport;
+        }
+    }
+}
@@ -21,7 +21,8 @@ package org.apache.james.transport.mailets;
 
 import java.util.Iterator;
 
-import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
+import org.apache.james.util.scanner.SpamdResult;
 import org.apache.mailet.base.GenericMailet;
 import org.apache.mailet.Mail;
 
@@ -35,7 +36,10 @@ import javax.mail.internet.MimeMessage;
  * contains the score and the threshold score for spam (usually 5.0). If the
  * message exceeds the threshold, the header X-Spam-Flag will be added with the
  * value of YES. The default host for spamd is localhost and the default port is
- * 783.
+ * 783. spamdHost may list several hosts, separated by commas, each one
+ * optionally followed by ":port"; they are used in turn. A message which is not
+ * scanned within spamdTimeout milliseconds (30000 by default) goes on without
+ * the attributes.
  * 
  * <pre>
  * <code>
@@ -50,6 +54,7 @@ import javax.mail.internet.MimeMessage;
  * &lt;mailet notmatch="SenderHostIsLocal" class="SpamAssassin"&gt;
  * &lt;spamdHost&gt;localhost&lt;/spamdHost&gt;
  * &lt;spamdPort&gt;783&lt;/spamdPort&gt;
+ * &lt;spamdTimeout&gt;30000&lt;/spamdTimeout&gt;
  * </pre>
  */
 public class SpamAssassin extends GenericMailet {
@@ -58,6 +63,10 @@ public class SpamAssassin extends GenericMailet {
 
     int spamdPort;
 
+    long spamdTimeout;
+
+    SpamdClient client;
+
     /**
      * @see org.apache.mailet.base.GenericMailet#init()
      */
@@ -78,6 +87,28 @@ public class SpamAssassin extends GenericMailet {
                 throw new MessagingException("Please configure a valid port. Not valid: " + spamdPort);
             }
         }
+
+        String timeout = getInitParameter("spamdTimeout");
+        if (timeout == null || timeout.equals("")) {
+            spamdTimeout = SpamdClient.DEFAULT_TIMEOUT;
+        } else {
+            try {
+                spamdTimeout = Long.parseLong(timeout);
+            } catch (NumberFormatException e) {
+                throw new MessagingException("Please configure a valid timeout. Not valid: " + timeout);
+            }
+        }
+
+        client = new SpamdClient(spamdHost, spamdPort, SpamdClient.DEFAULT_MAX_CONNECTIONS, spamdTimeout, SpamdClient.DEFAULT_RETRY_INTERVAL);
+    }
+
+    /**
+     * @see org.apache.mailet.base.GenericMailet#destroy()
+     */
+    public void destroy() {
+        if (client != null) {
+            client.dispose();
+        }
     }
 
     /**
@@ -88,8 +119,7 @@ public class SpamAssassin extends GenericMailet {
             MimeMessage message = mail.getMessage();
 
             // Invoke spamassian connection and scan the message
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            SpamdResult sa = client.scan(message);
 
             Iterator<String> headers = sa.getHeadersAsAttribute().keySet().iterator();
 
@@ -0,0 +1,341 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.james.queue.api.MailQueue;
+import org.apache.james.transport.mailets.DomainDeliveryScheduler.Result;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class DomainDeliverySchedulerTest {
+
+    private final static long BACKOFF = 200;
+
+    private FakeMailQueue queue;
+    private DomainDeliveryScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new FakeMailQueue();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (scheduler != null) {
+            scheduler.close();
+        }
+    }
+
+    private DomainDeliveryScheduler start(int maxDeliveriesPerDomain, String... recipients) throws Exception {
+        scheduler = new DomainDeliveryScheduler(queue, maxDeliveriesPerDomain, 100, BACKOFF, BACKOFF * 2, LoggerFactory.getLogger(getClass()));
+        scheduler.start(null);
+        for (int i = 0; i < recipients.length; i++) {
+            queue.enQueue(createMail("mail" + i, recipients[i]));
+        }
+        awaitBuffered(recipients.length);
+        return scheduler;
+    }
+
+    @Test
+    public void testDomainsAreServedRoundRobin() throws Exception {
+        start(10, "1@a.com", "2@a.com", "3@a.com", "4@b.com", "5@c.com");
+
+        List<String> domains = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            domains.add(domainOf(scheduler.take()));
+        }
+        assertEquals("[a.com, b.com, c.com, a.com, a.com]", domains.toString());
+    }
+
+    @Test
+    public void testSlowDomainDoesNotBlockOthers() throws Exception {
+        start(2, "1@slow.com", "2@slow.com", "3@slow.com", "4@slow.com", "5@fast.com");
+
+        assertEquals("slow.com", domainOf(scheduler.take()));
+        assertEquals("fast.com", domainOf(scheduler.take()));
+        assertEquals("slow.com", domainOf(scheduler.take()));
+        assertEquals(2, scheduler.getInFlightCount("slow.com"));
+        assertEquals(2, scheduler.getQueueDepth("slow.com"));
+
+        // slow.com reached its limit
+        assertNull(takeWithin(BACKOFF));
+    }
+
+    @Test
+    public void testBackoffAfterTemporaryFailure() throws Exception {
+        start(10, "1@a.com", "2@a.com", "3@a.com");
+
+        DomainDeliveryScheduler.Delivery first = scheduler.take();
+        DomainDeliveryScheduler.Delivery second = scheduler.take();
+        scheduler.done(first, Result.TEMPORARY_FAILURE);
+        assertTrue(scheduler.getBackoff("a.com") > 0);
+
+        // paused and limited to one delivery, which is still in flight
+        assertNull(takeWithin(BACKOFF * 2));
+        scheduler.done(second, Result.TEMPORARY_FAILURE);
+
+        // the backoff doubled
+        assertTrue(scheduler.getBackoff("a.com") > BACKOFF);
+        long start = System.currentTimeMillis();
+        DomainDeliveryScheduler.Delivery third = scheduler.take();
+        assertTrue(System.currentTimeMillis() - start >= BACKOFF);
+        assertNotNull(third);
+
+        // a success ends the backoff
+        scheduler.done(third, Result.DELIVERED);
+        assertEquals(0, scheduler.getBackoff("a.com"));
+    }
+
+    @Test
+    public void testBackoffDoesNotBlockOtherDomains() throws Exception {
+        start(10, "1@a.com", "2@a.com", "3@b.com");
+
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        DomainDeliveryScheduler.Delivery delivery = takeWithin(BACKOFF / 2);
+        assertNotNull(delivery);
+        assertEquals("b.com", domainOf(delivery));
+    }
+
+    @Test
+    public void testBackedOffDomainDoesNotFillTheBuffer() throws Exception {
+        // a buffer of 10 mails and a backoff longer than the test
+        scheduler = new DomainDeliveryScheduler(queue, 2, 10, 60000, 60000, LoggerFactory.getLogger(getClass()));
+        scheduler.start(null);
+        queue.enQueue(createMail("first", "first@slow.com"));
+        awaitBuffered(1);
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        assertTrue(scheduler.getBackoff("slow.com") > 0);
+
+        for (int i = 0; i < 20; i++) {
+            queue.enQueue(createMail("slow" + i, i + "@slow.com"));
+        }
+        for (int i = 0; i < 5; i++) {
+            queue.enQueue(createMail("fast" + i, i + "@fast.com"));
+        }
+
+        // the slow domain only keeps what it may deliver plus the slack, so
+        // the other domain keeps delivering
+        for (int i = 0; i < 5; i++) {
+            DomainDeliveryScheduler.Delivery delivery = takeWithin(5000);
+            assertNotNull(delivery);
+            assertEquals("fast.com", domainOf(delivery));
+            scheduler.done(delivery, Result.DELIVERED);
+        }
+        assertEquals(1 + DomainDeliveryScheduler.PENDING_SLACK, scheduler.getQueueDepth("slow.com"));
+        assertEquals(20 - 1 - DomainDeliveryScheduler.PENDING_SLACK, scheduler.getDeferredCount("slow.com"));
+        assertEquals(5, scheduler.getDeliveredCount("fast.com"));
+
+        // the excess went back to the queue, delayed at least until the
+        // backoff ends
+        synchronized (queue.delays) {
+            assertEquals(20 - 1 - DomainDeliveryScheduler.PENDING_SLACK, queue.delays.size());
+            for (Long delay : queue.delays) {
+                assertTrue(delay > 50000);
+            }
+        }
+        assertTrue(scheduler.getBackoff("slow.com") > 0);
+    }
+
+    @Test
+    public void testBounceIsNotCountedAsDelivered() throws Exception {
+        start(10, "1@a.com", "2@a.com", "3@a.com");
+
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        scheduler.done(scheduler.take(), Result.BOUNCED);
+
+        assertEquals(0, scheduler.getDeliveredCount("a.com"));
+        assertEquals(1, scheduler.getBouncedCount("a.com"));
+
+        // a bounce does not end the backoff, so the next failure doubles it
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        assertTrue(scheduler.getBackoff("a.com") > BACKOFF);
+    }
+
+    @Test
+    public void testIdleDomainIsRemovedDuringBackoff() throws Exception {
+        start(10, "1@a.com");
+
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        assertFalse(scheduler.getDomains().contains("a.com"));
+        assertTrue(scheduler.getBackoff("a.com") > 0);
+
+        // the backoff still applies to new mails of the domain
+        queue.enQueue(createMail("mail2", "2@a.com"));
+        awaitBuffered(1);
+        long start = System.currentTimeMillis();
+        assertNotNull(scheduler.take());
+        assertTrue(System.currentTimeMillis() - start >= BACKOFF / 2);
+    }
+
+    @Test
+    public void testStatisticsAreKeptAfterDomainDrained() throws Exception {
+        start(10, "1@a.com", "2@a.com");
+
+        scheduler.done(scheduler.take(), Result.TEMPORARY_FAILURE);
+        scheduler.done(scheduler.take(), Result.DELIVERED);
+
+        assertFalse(scheduler.getDomains().contains("a.com"));
+        assertTrue(scheduler.getKnownDomains().contains("a.com"));
+        assertEquals(2, scheduler.getAttemptCount("a.com"));
+        assertEquals(1, scheduler.getDeliveredCount("a.com"));
+        assertEquals(1, scheduler.getTemporaryFailureCount("A.COM"));
+
+        queue.enQueue(createMail("mail3", "3@a.com"));
+        awaitBuffered(1);
+        scheduler.done(scheduler.take(), Result.DELIVERED);
+        assertEquals(3, scheduler.getAttemptCount("a.com"));
+        assertEquals(2, scheduler.getDeliveredCount("a.com"));
+    }
+
+    @Test
+    public void testCloseRollsBackBufferedMails() throws Exception {
+        start(1, "1@a.com", "2@a.com", "3@b.com");
+        scheduler.take();
+        scheduler.close();
+        scheduler = null;
+
+        assertEquals(2, queue.rolledBack.size());
+    }
+
+    @Test
+    public void testSameJmxNameIsMadeUnique() throws Exception {
+        String name = "org.apache.james:type=component,name=remotedelivery,queue=DomainDeliverySchedulerTest";
+        DomainDeliveryScheduler first = new DomainDeliveryScheduler(queue, 1, 1, BACKOFF, BACKOFF, LoggerFactory.getLogger(getClass()));
+        DomainDeliveryScheduler second = new DomainDeliveryScheduler(queue, 1, 1, BACKOFF, BACKOFF, LoggerFactory.getLogger(getClass()));
+        first.start(name);
+        try {
+            second.start(name);
+            try {
+                assertEquals(name, first.getObjectName().toString());
+                assertNotNull(second.getObjectName());
+                assertFalse(first.getObjectName().equals(second.getObjectName()));
+            } finally {
+                second.close();
+            }
+        } finally {
+            first.close();
+        }
+    }
+
+    private DomainDeliveryScheduler.Delivery takeWithin(long timeout) throws Exception {
+        final List<DomainDeliveryScheduler.Delivery> result = new ArrayList<DomainDeliveryScheduler.Delivery>();
+        Thread taker = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    DomainDeliveryScheduler.Delivery delivery = scheduler.take();
+                    synchronized (result) {
+                        result.add(delivery);
+                    }
+                } catch (InterruptedException e) {
+                    // timed out
+                }
+            }
+        };
+        taker.start();
+        taker.join(timeout);
+        taker.interrupt();
+        taker.join();
+        synchronized (result) {
+            return result.isEmpty() ? null : result.get(0);
+        }
+    }
+
+    private void awaitBuffered(int count) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 5000;
+        while (scheduler.getBufferedCount() < count && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, scheduler.getBufferedCount());
+    }
+
+    private static String domainOf(DomainDeliveryScheduler.Delivery delivery) {
+        return delivery.getItem().getMail().getRecipients().iterator().next().getDomain();
+    }
+
+    private static Mail createMail(String name, String recipient) throws Exception {
+        Mail mail = new FakeMail();
+        mail.setName(name);
+        List<MailAddress> recipients = new ArrayList<MailAddress>();
+        recipients.add(new MailAddress(recipient));
+        mail.setRecipients(recipients);
+        return mail;
+    }
+
+    private final static class FakeMailQueue implements MailQueue {
+        private final LinkedBlockingQueue<Mail> mails = new LinkedBlockingQueue<Mail>();
+        private final List<Mail> rolledBack = new ArrayList<Mail>();
+        private final List<Long> delays = new ArrayList<Long>();
+
+        public void enQueue(Mail mail, long delay, TimeUnit unit) throws MailQueueException {
+            // delayed mails are not handed out again
+            synchronized (delays) {
+                delays.add(unit.toMillis(delay));
+            }
+        }
+
+        public void enQueue(Mail mail) throws MailQueueException {
+            mails.add(mail);
+        }
+
+        public void enQueue(Collection<Mail> mails) throws MailQueueException {
+            this.mails.addAll(mails);
+        }
+
+        public MailQueueItem deQueue() throws MailQueueException {
+            try {
+                final Mail mail = mails.take();
+                return new MailQueueItem() {
+
+                    public Mail getMail() {
+                        return mail;
+                    }
+
+                    public void done(boolean success) throws MailQueueException {
+                        if (!success) {
+                            synchronized (rolledBack) {
+                                rolledBack.add(mail);
+                            }
+                        }
+                    }
+                };
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MailQueueException("Interrupted", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.transport.mailets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SMTPTransportPoolTest {
+
+    private final static String KEY = "localhost";
+
+    private FakeSMTPServer server;
+    private SMTPTransportPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new FakeSMTPServer();
+        server.start();
+        pool = new SMTPTransportPool(1, 60000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.shutdown();
+    }
+
+    @Test
+    public void testReleasedConnectionIsReused() throws Exception {
+        SMTPTransportPool.Connection connection = pool.acquire(KEY, 1000);
+        assertNull(connection.getTransport());
+        Transport transport = connect(connection);
+        assertTrue(SMTPTransportPool.isResettable(transport));
+        send(connection);
+        pool.release(connection, true);
+
+        for (int i = 0; i < 2; i++) {
+            connection = pool.acquire(KEY, 1000);
+            assertSame(transport, connection.getTransport());
+            send(connection);
+            pool.release(connection, true);
+        }
+
+        assertEquals(1, server.connections.get());
+        assertEquals(3, server.messages.get());
+        assertEquals(2, server.resets.get());
+    }
+
+    @Test
+    public void testConnectionIsNotReusedIfResetFails() throws Exception {
+        SMTPTransportPool.Connection connection = pool.acquire(KEY, 1000);
+        connect(connection);
+        send(connection);
+        pool.release(connection, true);
+
+        server.rejectReset = true;
+        connection = pool.acquire(KEY, 1000);
+        assertNull(connection.getTransport());
+        server.rejectReset = false;
+        connect(connection);
+        send(connection);
+        pool.release(connection, true);
+
+        assertEquals(2, server.connections.get());
+        assertEquals(2, server.messages.get());
+    }
+
+    @Test
+    public void testConnectionIsNotReusedIfNotReusable() throws Exception {
+        SMTPTransportPool.Connection connection = pool.acquire(KEY, 1000);
+        connect(connection);
+        pool.release(connection, false);
+
+        connection = pool.acquire(KEY, 1000);
+        assertNull(connection.getTransport());
+        pool.release(connection, false);
+        assertEquals(1, server.connections.get());
+    }
+
+    @Test
+    public void testConnectionsPerHostAreLimited() throws Exception {
+        SMTPTransportPool.Connection connection = pool.acquire(KEY, 1000);
+        assertNotNull(connection);
+        assertNull(pool.acquire(KEY, 100));
+        assertNotNull(pool.acquire("otherhost", 100));
+        pool.release(connection, false);
+        assertNotNull(pool.acquire(KEY, 100));
+    }
+
+    private Transport connect(SMTPTransportPool.Connection connection) throws Exception {
+        Properties props = new Properties();
+        props.put("mail.smtp.host", "localhost");
+        props.put("mail.smtp.port", String.valueOf(server.getPort()));
+        Session session = Session.getInstance(props);
+        Transport transport = session.getTransport("smtp");
+        transport.connect("localhost", server.getPort(), null, null);
+        connection.setTransport(session, transport);
+        return transport;
+    }
+
+    private void send(SMTPTransportPool.Connection connection) throws Exception {
+        connection.getSession().getProperties().put("mail.smtp.from", "sender@localhost");
+        MimeMessage message = new MimeMessage(connection.getSession());
+        message.setFrom(new InternetAddress("sender@localhost"));
+        message.setRecipient(Message.RecipientType.TO, new InternetAddress("rcpt@localhost"));
+        message.setSubject("test");
+        message.setText("test");
+        message.saveChanges();
+        connection.getTransport().sendMessage(message, new Address[] { new InternetAddress("rcpt@localhost") });
+    }
+
+    /**
+     * Minimal SMTP server which counts the connections, mails and resets
+     */
+    private final static class FakeSMTPServer extends Thread {
+        private final ServerSocket socket;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final AtomicInteger messages = new AtomicInteger();
+        private final AtomicInteger resets = new AtomicInteger();
+        private volatile boolean rejectReset = false;
+
+        public FakeSMTPServer() throws IOException {
+            socket = new ServerSocket(0);
+            setDaemon(true);
+        }
+
+        public int getPort() {
+            return socket.getLocalPort();
+        }
+
+        public void shutdown() throws IOException {
+            socket.close();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    final Socket client = socket.accept();
+                    connections.incrementAndGet();
+                    Thread handler = new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                handle(client);
+                            } catch (IOException e) {
+                                // client went away
+                            } finally {
+                                try {
+                                    client.close();
+                                } catch (IOException e) {
+                                    // ignore
+                                }
+                            }
+                        }
+                    };
+                    handler.setDaemon(true);
+                    handler.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        private void handle(Socket client) throws IOException {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), "US-ASCII"));
+            OutputStream out = client.getOutputStream();
+            reply(out, "220 localhost ESMTP");
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.toUpperCase();
+                if (command.startsWith("EHLO")) {
+                    reply(out, "250-localhost\r\n250 8BITMIME");
+                } else if (command.startsWith("DATA")) {
+                    reply(out, "354 go ahead");
+                    while ((line = in.readLine()) != null && !line.equals(".")) {
+                        // skip the message
+                    }
+                    messages.incrementAndGet();
+                    reply(out, "250 OK");
+                } else if (command.startsWith("RSET")) {
+                    resets.incrementAndGet();
+                    if (rejectReset) {
+                        reply(out, "421 closing");
+                        return;
+                    }
+                    reply(out, "250 OK");
+                } else if (command.startsWith("QUIT")) {
+                    reply(out, "221 bye");
+                    return;
+                } else {
+                    reply(out, "250 OK");
+                }
+            }
+        }
+
+        private void reply(OutputStream out, String reply) throws IOException {
+            out.write((reply + "\r\n").getBytes("US-ASCII"));
+            out.flush();
+        }
+    }
+}
@@ -68,8 +68,10 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
 
     public Response onLine(SMTPSession session, ByteBuffer lineByteBuffer, LineHandler<SMTPSession> next) {
 
-        byte[] line = new byte[lineByteBuffer.remaining()];
-        lineByteBuffer.get(line, 0, line.length);
+        // the line is inspected in place and copied straight from the buffer
+        // to the message source, without an intermediate byte[]
+        int start = lineByteBuffer.position();
+        int length = lineByteBuffer.remaining();
 
         MimeMessageInputStreamSource mmiss = (MimeMessageInputStreamSource) session.getAttachment(SMTPConstants.DATA_MIMEMESSAGE_STREAMSOURCE, State.Transaction);
 
@@ -78,7 +80,7 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
 
             // 46 is "."
             // Stream terminated
-            if (line.length == 3 && line[0] == 46) {
+            if (length == 3 && lineByteBuffer.get(start) == 46) {
                 out.flush();
                 out.close();
 
@@ -121,14 +123,15 @@ public class DataLineJamesMessageHookHandler implements DataLineFilter, Extensib
                 }
 
                 // DotStuffing.
-            } else if (line[0] == 46 && line[1] == 46) {
-                out.write(line, 1, line.length - 1);
+            } else if (length > 1 && lineByteBuffer.get(start) == 46 && lineByteBuffer.get(start + 1) == 46) {
+                lineByteBuffer.position(start + 1);
+                mmiss.write(lineByteBuffer);
                 // Standard write
             } else {
                 // TODO: maybe we should handle the Header/Body recognition here
                 // and if needed let a filter to cache the headers to apply some
                 // transformation before writing them to output.
-                out.write(line);
+                mmiss.write(lineByteBuffer);
             }
         } catch (IOException e) {
             LifecycleUtil.dispose(mmiss);
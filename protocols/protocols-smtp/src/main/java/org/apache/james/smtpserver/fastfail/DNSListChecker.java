@@ -0,0 +1,432 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.commons.configuration.Configuration;
+import org.apache.james.dnsservice.api.AsyncDNSService;
+import org.apache.james.dnsservice.api.DNSFuture;
+import org.apache.james.dnsservice.api.DNSFutureListener;
+import org.apache.james.dnsservice.api.DNSService;
+import org.apache.james.util.TimeToLiveCache;
+
+/**
+ * Check names against DNS lists (DNSBL, URIBL): a name is listed if its A
+ * record resolves.
+ * 
+ * The verdicts are cached for all the sessions, listed names for
+ * listedCacheTime and not listed ones for notListedCacheTime, as the same
+ * hosts and domains are looked up again and again on a busy server.
+ * Lookups which failed or timed out are not cached.
+ * 
+ * If the {@link DNSService} is an {@link AsyncDNSService} the lookups of a
+ * {@link Lookups} batch run concurrently, at most maxConcurrentLookups of them
+ * at a time so that one batch can not take the whole resolver pool of the
+ * service. Else they are done one after the other when their result is
+ * needed.
+ */
+public class DNSListChecker {
+
+    /**
+     * Default time in milliseconds to wait for the lookups of a batch
+     */
+    public final static long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Default time in milliseconds a listed verdict is cached
+     */
+    public final static long DEFAULT_LISTED_CACHE_TIME = 300000;
+
+    /**
+     * Default time in milliseconds a not listed verdict is cached
+     */
+    public final static long DEFAULT_NOT_LISTED_CACHE_TIME = 60000;
+
+    /**
+     * Default maximum number of cached verdicts
+     */
+    public final static int DEFAULT_CACHE_SIZE = 10000;
+
+    /**
+     * Default maximum number of lookups of a batch running at the same time
+     */
+    public final static int DEFAULT_MAX_CONCURRENT_LOOKUPS = 8;
+
+    private final TimeToLiveCache<String, Boolean> cache = new TimeToLiveCache<String, Boolean>(DEFAULT_CACHE_SIZE);
+
+    private DNSService dnsService;
+
+    private long timeout = DEFAULT_TIMEOUT;
+
+    private long listedCacheTime = DEFAULT_LISTED_CACHE_TIME;
+
+    private long notListedCacheTime = DEFAULT_NOT_LISTED_CACHE_TIME;
+
+    private int maxConcurrentLookups = DEFAULT_MAX_CONCURRENT_LOOKUPS;
+
+    public void setDNSService(DNSService dnsService) {
+        this.dnsService = dnsService;
+    }
+
+    /**
+     * Set the time to wait for the lookups of a batch, after which the names
+     * not resolved yet are considered not listed.
+     * 
+     * @param timeout
+     *            the time in milliseconds
+     */
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Set the time to cache the listed verdicts, 0 to not cache them
+     * 
+     * @param listedCacheTime
+     *            the time in milliseconds
+     */
+    public void setListedCacheTime(long listedCacheTime) {
+        this.listedCacheTime = listedCacheTime;
+    }
+
+    /**
+     * Set the time to cache the not listed verdicts, 0 to not cache them
+     * 
+     * @param notListedCacheTime
+     *            the time in milliseconds
+     */
+    public void setNotListedCacheTime(long notListedCacheTime) {
+        this.notListedCacheTime = notListedCacheTime;
+    }
+
+    /**
+     * Set the maximum number of cached verdicts
+     * 
+     * @param cacheSize
+     *            the number of verdicts
+     */
+    public void setCacheSize(int cacheSize) {
+        cache.setMaxSize(cacheSize);
+    }
+
+    /**
+     * Set the maximum number of lookups of a batch running at the same time
+     * 
+     * @param maxConcurrentLookups
+     *            the number of lookups, at least 1
+     */
+    public void setMaxConcurrentLookups(int maxConcurrentLookups) {
+        this.maxConcurrentLookups = Math.max(1, maxConcurrentLookups);
+    }
+
+    /**
+     * Read the settings from the handler configuration: lookupTimeout,
+     * listedCacheTime, notListedCacheTime (all in milliseconds), cacheSize and
+     * maxConcurrentLookups.
+     * 
+     * @param config
+     *            the handler configuration
+     */
+    public void configure(Configuration config) {
+        setTimeout(config.getLong("lookupTimeout", DEFAULT_TIMEOUT));
+        setListedCacheTime(config.getLong("listedCacheTime", DEFAULT_LISTED_CACHE_TIME));
+        setNotListedCacheTime(config.getLong("notListedCacheTime", DEFAULT_NOT_LISTED_CACHE_TIME));
+        setCacheSize(config.getInt("cacheSize", DEFAULT_CACHE_SIZE));
+        setMaxConcurrentLookups(config.getInt("maxConcurrentLookups", DEFAULT_MAX_CONCURRENT_LOOKUPS));
+    }
+
+    /**
+     * Start the lookups of the given names. The verdicts are then got from
+     * the returned batch, which must be cancelled once done with.
+     * 
+     * @param names
+     *            the names to look up, each one being a host or domain
+     *            followed by the zone of the list
+     * @return the batch of lookups
+     */
+    public Lookups lookup(Collection<String> names) {
+        return new Lookups(names);
+    }
+
+    /**
+     * Look up a single name, waiting for the answer.
+     * 
+     * @param name
+     *            the name to look up
+     * @return true if the name is listed
+     */
+    public boolean isListed(String name) {
+        Boolean listed = cache.get(name);
+        if (listed == null) {
+            listed = resolve(name);
+        }
+        return listed.booleanValue();
+    }
+
+    /**
+     * Return the number of cached verdicts.
+     * 
+     * @return the size of the cache
+     */
+    public int getCacheSize() {
+        return cache.size();
+    }
+
+    private Boolean resolve(String name) {
+        try {
+            dnsService.getByName(name);
+            cache(name, true);
+            return Boolean.TRUE;
+        } catch (UnknownHostException e) {
+            cache(name, false);
+            return Boolean.FALSE;
+        }
+    }
+
+    private void cache(String name, boolean listed) {
+        cache.put(name, Boolean.valueOf(listed), listed ? listedCacheTime : notListedCacheTime);
+    }
+
+    /**
+     * Return the verdict of a completed lookup, null if the lookup failed.
+     */
+    private Boolean verdict(String name, DNSFuture<InetAddress> future) {
+        try {
+            future.get();
+            cache(name, true);
+            return Boolean.TRUE;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                cache(name, false);
+                return Boolean.FALSE;
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A batch of lookups, sharing a deadline. Instances are used by a single
+     * thread, only the completion of the running lookups is handled by the
+     * threads of the {@link AsyncDNSService}.
+     */
+    public final class Lookups {
+
+        private final long deadline;
+
+        /**
+         * The verdicts known so far, null for the names still pending
+         */
+        private final Map<String, Boolean> verdicts = new LinkedHashMap<String, Boolean>();
+
+        /**
+         * The lookups started and not completed yet, if the DNSService is
+         * asynchronous. Guarded by this.
+         */
+        private final Map<String, DNSFuture<InetAddress>> futures = new LinkedHashMap<String, DNSFuture<InetAddress>>();
+
+        /**
+         * The names waiting for a lookup to complete before their own one is
+         * started. Guarded by this.
+         */
+        private final LinkedList<String> waiting = new LinkedList<String>();
+
+        /**
+         * The number of lookups running. Guarded by this.
+         */
+        private int running;
+
+        private boolean cancelled;
+
+        /**
+         * The names whose lookup completed
+         */
+        private final BlockingQueue<String> completed = new LinkedBlockingQueue<String>();
+
+        private Lookups(Collection<String> names) {
+            deadline = System.currentTimeMillis() + timeout;
+            for (String name : names) {
+                Boolean listed = cache.get(name);
+                verdicts.put(name, listed);
+                if (listed == null && dnsService instanceof AsyncDNSService) {
+                    waiting.add(name);
+                }
+            }
+            startLookups();
+        }
+
+        /**
+         * Start the lookups of the waiting names, as long as less than
+         * maxConcurrentLookups are running.
+         */
+        private synchronized void startLookups() {
+            while (!cancelled && running < maxConcurrentLookups && !waiting.isEmpty()) {
+                final String name = waiting.removeFirst();
+                DNSFuture<InetAddress> future = ((AsyncDNSService) dnsService).getByNameAsync(name);
+                futures.put(name, future);
+                running++;
+                future.addListener(new DNSFutureListener<InetAddress>() {
+                    public void operationComplete(DNSFuture<InetAddress> future) {
+                        completed.offer(name);
+                        synchronized (Lookups.this) {
+                            running--;
+                        }
+                        startLookups();
+                    }
+                });
+            }
+        }
+
+        private synchronized DNSFuture<InetAddress> getFuture(String name) {
+            return futures.get(name);
+        }
+
+        /**
+         * Return true if a lookup is running or waiting to be started
+         */
+        private synchronized boolean isPending() {
+            return !futures.isEmpty() || !waiting.isEmpty();
+        }
+
+        /**
+         * Return true if the given name is listed, waiting for its lookup
+         * until the deadline. A name which was not part of the batch is looked
+         * up now.
+         * 
+         * @param name
+         *            the name
+         * @return true if listed, false if not listed or unknown
+         */
+        public boolean isListed(String name) {
+            if (!verdicts.containsKey(name)) {
+                return DNSListChecker.this.isListed(name);
+            }
+            Boolean listed = verdicts.get(name);
+            if (listed == null) {
+                DNSFuture<InetAddress> future = getFuture(name);
+                if (future == null) {
+                    // not started yet, or no asynchronous DNSService: resolve
+                    // it in this thread
+                    synchronized (this) {
+                        waiting.remove(name);
+                    }
+                    if (System.currentTimeMillis() < deadline) {
+                        listed = resolve(name);
+                    }
+                } else {
+                    try {
+                        future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                    } catch (TimeoutException e) {
+                        return false;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } catch (ExecutionException e) {
+                        // handled by verdict()
+                    }
+                    listed = complete(name);
+                }
+                verdicts.put(name, listed == null ? Boolean.FALSE : listed);
+            }
+            return listed != null && listed.booleanValue();
+        }
+
+        /**
+         * Return the first name found listed, waiting for the lookups until
+         * one of them is listed, all are completed or the deadline is reached.
+         * The cached verdicts come first.
+         * 
+         * @return the listed name or null if none was found listed
+         */
+        public String firstListed() {
+            for (Map.Entry<String, Boolean> entry : verdicts.entrySet()) {
+                if (Boolean.TRUE.equals(entry.getValue())) {
+                    return entry.getKey();
+                }
+            }
+            if (!isPending()) {
+                for (String name : verdicts.keySet()) {
+                    if (isListed(name)) {
+                        return name;
+                    }
+                }
+                return null;
+            }
+            while (isPending()) {
+                long wait = deadline - System.currentTimeMillis();
+                String name;
+                try {
+                    name = wait > 0 ? completed.poll(wait, TimeUnit.MILLISECONDS) : null;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    name = null;
+                }
+                if (name == null) {
+                    return null;
+                }
+                if (getFuture(name) == null) {
+                    // already completed through isListed()
+                    continue;
+                }
+                Boolean listed = complete(name);
+                verdicts.put(name, listed == null ? Boolean.FALSE : listed);
+                if (Boolean.TRUE.equals(listed)) {
+                    return name;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Cancel the lookups still running.
+         */
+        public synchronized void cancel() {
+            cancelled = true;
+            waiting.clear();
+            for (DNSFuture<InetAddress> future : futures.values()) {
+                future.cancel(false);
+            }
+            futures.clear();
+        }
+
+        private Boolean complete(String name) {
+            DNSFuture<InetAddress> future;
+            synchronized (this) {
+                future = futures.remove(name);
+            }
+            return future == null ? verdicts.get(name) : verdict(name, future);
+        }
+    }
+}
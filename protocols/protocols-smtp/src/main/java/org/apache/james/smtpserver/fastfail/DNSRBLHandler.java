@@ -18,10 +18,10 @@
  ****************************************************************/
 package org.apache.james.smtpserver.fastfail;
 
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.StringTokenizer;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -31,15 +31,55 @@ import org.apache.commons.configuration.ConfigurationException;
 import org.apache.commons.configuration.HierarchicalConfiguration;
 import org.apache.james.dnsservice.api.DNSService;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
+import org.apache.james.protocols.smtp.SMTPSession;
 
+/**
+ * Check the connecting ip against DNS white and black lists. The lookups for
+ * all the lists are started at once and their verdicts are cached, see
+ * {@link DNSListChecker}.
+ */
 public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail.DNSRBLHandler implements InitializingLifecycleAwareProtocolHandler {
 
     private DNSService dns;
 
+    private final DNSListChecker checker = new DNSListChecker();
+
+    private String[] whitelist;
+
+    private String[] blacklist;
+
+    /**
+     * The lookups started for the ip being checked by the current thread
+     */
+    private final ThreadLocal<DNSListChecker.Lookups> lookups = new ThreadLocal<DNSListChecker.Lookups>();
+
     @Inject
     @Named("dnsservice")
     public void setDNSService(DNSService dns) {
         this.dns = dns;
+        checker.setDNSService(dns);
+    }
+
+    /**
+     * Return the checker doing the lookups, to configure its timeout and
+     * cache.
+     * 
+     * @return the checker
+     */
+    public DNSListChecker getChecker() {
+        return checker;
+    }
+
+    @Override
+    public void setWhitelist(String[] whitelist) {
+        super.setWhitelist(whitelist);
+        this.whitelist = whitelist == null ? null : whitelist.clone();
+    }
+
+    @Override
+    public void setBlacklist(String[] blacklist) {
+        super.setBlacklist(blacklist);
+        this.blacklist = blacklist == null ? null : blacklist.clone();
     }
 
     @SuppressWarnings("unchecked")
@@ -68,6 +108,7 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
         }
 
         setGetDetail(handlerConfiguration.getBoolean("getDetail", false));
+        checker.configure(handlerConfiguration);
     }
 
     @Override
@@ -75,14 +116,54 @@ public class DNSRBLHandler extends org.apache.james.protocols.smtp.core.fastfail
         // Do nothing
     }
 
+    /**
+     * Start the lookups of the ip on all the lists before doing the checks,
+     * which then only wait for their results.
+     */
     @Override
-    protected boolean resolve(String ip) {
+    public void checkDNSRBL(SMTPSession session, String ipAddress) {
+        if (session.isRelayingAllowed() || (whitelist == null && blacklist == null)) {
+            super.checkDNSRBL(session, ipAddress);
+            return;
+        }
+
+        // the same reversed ip as the one used by the super class
+        StringBuffer sb = new StringBuffer();
+        StringTokenizer st = new StringTokenizer(ipAddress, " .", false);
+        while (st.hasMoreTokens()) {
+            sb.insert(0, st.nextToken() + ".");
+        }
+        String reversedOctets = sb.toString();
+
+        Collection<String> names = new ArrayList<String>();
+        if (whitelist != null) {
+            for (String rblServer : whitelist) {
+                names.add(reversedOctets + rblServer);
+            }
+        }
+        if (blacklist != null) {
+            for (String rblServer : blacklist) {
+                names.add(reversedOctets + rblServer);
+            }
+        }
+
+        DNSListChecker.Lookups started = checker.lookup(names);
+        lookups.set(started);
         try {
-            dns.getByName(ip);
-            return true;
-        } catch (UnknownHostException e) {
-            return false;
+            super.checkDNSRBL(session, ipAddress);
+        } finally {
+            lookups.remove();
+            started.cancel();
+        }
+    }
+
+    @Override
+    protected boolean resolve(String ip) {
+        DNSListChecker.Lookups started = lookups.get();
+        if (started != null) {
+            return started.isListed(ip);
         }
+        return checker.isListed(ip);
     }
 
     @Override
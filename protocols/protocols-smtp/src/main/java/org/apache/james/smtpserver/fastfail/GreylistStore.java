@@ -0,0 +1,455 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory store of the greylist triplets, written behind to a
+ * {@link Persistence}.
+ * 
+ * The memory is the authority: lookups and updates never wait for the
+ * persistence. The triplets changed since the last flush are written in one
+ * batch every flushInterval milliseconds, and the expired triplets are removed
+ * from the memory and from the persistence every sweepInterval milliseconds.
+ * The triplets are loaded from the persistence by {@link #start()}, so that a
+ * restart does not greylist the known senders again. The changes of the last
+ * flushInterval are lost if the server dies, which only means greylisting
+ * these triplets once more.
+ * 
+ * As the memory is the authority, a persistence shared by several servers is
+ * only read at startup.
+ * 
+ * The store holds at most maxSize triplets. Once it is full new triplets are
+ * refused, and the caller keeps them in the persistence itself. The store then
+ * reports itself as incomplete until these triplets expired, so that the
+ * triplets unknown to the store are looked up in the persistence too.
+ */
+public class GreylistStore {
+
+    /**
+     * Default time in milliseconds between two flushes
+     */
+    public final static long DEFAULT_FLUSH_INTERVAL = 5000;
+
+    /**
+     * Default time in milliseconds between two sweeps of the expired triplets
+     */
+    public final static long DEFAULT_SWEEP_INTERVAL = 60000;
+
+    /**
+     * Default maximum number of triplets held in memory
+     */
+    public final static int DEFAULT_MAX_SIZE = 100000;
+
+    private final static Logger LOG = LoggerFactory.getLogger(GreylistStore.class);
+
+    /**
+     * Where the triplets are kept between two runs
+     */
+    public interface Persistence {
+
+        /**
+         * Return all the stored triplets.
+         * 
+         * @return the triplets
+         * @throws Exception
+         *             if the triplets can not be read
+         */
+        Collection<Triplet> load() throws Exception;
+
+        /**
+         * Store the given triplets, replacing the stored ones with the same
+         * address, sender and recipient.
+         * 
+         * @param triplets
+         *            the triplets to store
+         * @throws Exception
+         *             if the triplets can not be stored, they are stored again
+         *             with the next flush
+         */
+        void store(Collection<Triplet> triplets) throws Exception;
+
+        /**
+         * Remove the triplets created before autoWhiteListTime, and the ones
+         * created before unseenTime which were only seen once.
+         * 
+         * @param autoWhiteListTime
+         *            the creation time of the oldest triplet to keep
+         * @param unseenTime
+         *            the creation time of the oldest triplet seen once to keep
+         * @throws Exception
+         *             if the triplets can not be removed
+         */
+        void remove(long autoWhiteListTime, long unseenTime) throws Exception;
+    }
+
+    /**
+     * An immutable triplet with its greylisting state
+     */
+    public final static class Triplet {
+
+        private final String ipAddress;
+
+        private final String sender;
+
+        private final String recip;
+
+        private final int count;
+
+        private final long createTime;
+
+        public Triplet(String ipAddress, String sender, String recip, int count, long createTime) {
+            this.ipAddress = ipAddress;
+            this.sender = sender;
+            this.recip = recip;
+            this.count = count;
+            this.createTime = createTime;
+        }
+
+        public String getIpAddress() {
+            return ipAddress;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getRecip() {
+            return recip;
+        }
+
+        /**
+         * Return the number of times the triplet was seen after the first one
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Return the time in milliseconds the triplet was last seen at
+         */
+        public long getCreateTime() {
+            return createTime;
+        }
+
+        private boolean isExpired(long autoWhiteListTime, long unseenTime) {
+            return createTime < autoWhiteListTime || (count == 0 && createTime < unseenTime);
+        }
+    }
+
+    /**
+     * Key of a triplet in the map
+     */
+    private final static class Key {
+
+        private final String ipAddress;
+
+        private final String sender;
+
+        private final String recip;
+
+        private final int hash;
+
+        private Key(String ipAddress, String sender, String recip) {
+            this.ipAddress = ipAddress;
+            this.sender = sender;
+            this.recip = recip;
+            hash = (ipAddress.hashCode() * 31 + sender.hashCode()) * 31 + recip.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return hash == key.hash && ipAddress.equals(key.ipAddress) && sender.equals(key.sender) && recip.equals(key.recip);
+        }
+    }
+
+    private final Persistence persistence;
+
+    private final long autoWhiteListLifeTime;
+
+    private final long unseenLifeTime;
+
+    private final long flushInterval;
+
+    private final long sweepInterval;
+
+    private final ConcurrentMap<Key, Triplet> triplets = new ConcurrentHashMap<Key, Triplet>();
+
+    /**
+     * Keys of the triplets changed since the last flush
+     */
+    private final Set<Key> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Key, Boolean>());
+
+    private volatile int maxSize = DEFAULT_MAX_SIZE;
+
+    /**
+     * Time the last triplet was refused or not loaded, 0 if none
+     */
+    private volatile long lastRefused;
+
+    private final AtomicLong refused = new AtomicLong();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Create the store. It must be started with {@link #start()}.
+     * 
+     * @param persistence
+     *            where the triplets are written
+     * @param autoWhiteListLifeTime
+     *            the time in milliseconds a triplet is kept after it was last
+     *            seen
+     * @param unseenLifeTime
+     *            the time in milliseconds a triplet seen only once is kept
+     * @param flushInterval
+     *            the time in milliseconds between two flushes
+     * @param sweepInterval
+     *            the time in milliseconds between two sweeps of the expired
+     *            triplets
+     */
+    public GreylistStore(Persistence persistence, long autoWhiteListLifeTime, long unseenLifeTime, long flushInterval, long sweepInterval) {
+        this.persistence = persistence;
+        this.autoWhiteListLifeTime = autoWhiteListLifeTime;
+        this.unseenLifeTime = unseenLifeTime;
+        this.flushInterval = flushInterval;
+        this.sweepInterval = sweepInterval;
+    }
+
+    /**
+     * Set the maximum number of triplets held in memory. The new triplets are
+     * refused once it is reached.
+     * 
+     * @param maxSize
+     *            the number of triplets
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the maximum number of triplets held in memory.
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Load the stored triplets and schedule the flushes and the sweeps.
+     * 
+     * @throws Exception
+     *             if the triplets can not be loaded
+     */
+    public synchronized void start() throws Exception {
+        long now = System.currentTimeMillis();
+        int skipped = 0;
+        for (Triplet triplet : persistence.load()) {
+            if (!triplet.isExpired(now - autoWhiteListLifeTime, now - unseenLifeTime)) {
+                if (triplets.size() < maxSize) {
+                    triplets.put(new Key(triplet.ipAddress, triplet.sender, triplet.recip), triplet);
+                } else {
+                    skipped++;
+                }
+            }
+        }
+        LOG.info("Loaded " + triplets.size() + " greylist triplets");
+        if (skipped > 0) {
+            // they stay in the persistence only
+            lastRefused = now;
+            LOG.warn("Skipped " + skipped + " greylist triplets, the store is full (maxSize " + maxSize + ")");
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("greylist"));
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    flush();
+                } catch (Exception e) {
+                    LOG.warn("Unable to store the greylist triplets, retrying with the next flush", e);
+                }
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    sweep(System.currentTimeMillis());
+                } catch (Exception e) {
+                    LOG.warn("Unable to remove the expired greylist triplets", e);
+                }
+            }
+        }, sweepInterval, sweepInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the triplet with the given address, sender and recipient.
+     * 
+     * @return the triplet, null if it is unknown
+     */
+    public Triplet get(String ipAddress, String sender, String recip) {
+        return triplets.get(new Key(ipAddress, sender, recip));
+    }
+
+    /**
+     * Store a triplet. It is written with the next flush.
+     * 
+     * @return false if the triplet is new and the store is full, the caller
+     *         must then write it to the persistence itself
+     */
+    public boolean put(String ipAddress, String sender, String recip, int count, long createTime) {
+        Key key = new Key(ipAddress, sender, recip);
+        if (triplets.size() >= maxSize && !triplets.containsKey(key)) {
+            if (refused.getAndIncrement() == 0) {
+                LOG.warn("The greylist store is full (maxSize " + maxSize + "), new triplets are written directly");
+            }
+            lastRefused = System.currentTimeMillis();
+            return false;
+        }
+        triplets.put(key, new Triplet(ipAddress, sender, recip, count, createTime));
+        // marked after the update, so that a flush reading the key reads it
+        dirty.add(key);
+        return true;
+    }
+
+    /**
+     * Return true if triplets were refused or not loaded since the store was
+     * full, and may not have expired yet. These triplets are only in the
+     * persistence, which must then be queried for the triplets unknown to the
+     * store.
+     */
+    public boolean isIncomplete() {
+        long last = lastRefused;
+        return last != 0 && last >= System.currentTimeMillis() - autoWhiteListLifeTime;
+    }
+
+    /**
+     * Return the number of triplets in memory.
+     */
+    public int size() {
+        return triplets.size();
+    }
+
+    /**
+     * Return the number of triplets refused as the store was full.
+     */
+    public long getRefusedCount() {
+        return refused.get();
+    }
+
+    /**
+     * Return the number of triplets waiting for the next flush.
+     */
+    public int getPendingCount() {
+        return dirty.size();
+    }
+
+    /**
+     * Write the triplets changed since the last flush.
+     * 
+     * @throws Exception
+     *             if the triplets can not be stored, they are kept for the
+     *             next flush
+     */
+    public synchronized void flush() throws Exception {
+        List<Key> keys = new ArrayList<Key>();
+        List<Triplet> batch = new ArrayList<Triplet>();
+        Iterator<Key> it = dirty.iterator();
+        while (it.hasNext()) {
+            Key key = it.next();
+            it.remove();
+            Triplet triplet = triplets.get(key);
+            // swept since, the sweep removes it from the persistence too
+            if (triplet != null) {
+                keys.add(key);
+                batch.add(triplet);
+            }
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            persistence.store(batch);
+        } catch (Exception e) {
+            dirty.addAll(keys);
+            throw e;
+        }
+    }
+
+    /**
+     * Remove the triplets which expired at the given time.
+     * 
+     * @param now
+     *            the current time in milliseconds
+     * @throws Exception
+     *             if the triplets can not be removed from the persistence
+     */
+    public synchronized void sweep(long now) throws Exception {
+        long autoWhiteListTime = now - autoWhiteListLifeTime;
+        long unseenTime = now - unseenLifeTime;
+        int removed = 0;
+        for (Map.Entry<Key, Triplet> entry : triplets.entrySet()) {
+            // keep the triplet if it was seen again meanwhile
+            if (entry.getValue().isExpired(autoWhiteListTime, unseenTime) && triplets.remove(entry.getKey(), entry.getValue())) {
+                removed++;
+            }
+        }
+        LOG.debug("Removed " + removed + " expired greylist triplets");
+        persistence.remove(autoWhiteListTime, unseenTime);
+    }
+
+    /**
+     * Stop the flushes and the sweeps, and write the pending triplets.
+     */
+    public synchronized void dispose() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        try {
+            flush();
+        } catch (Exception e) {
+            LOG.warn("Unable to store " + dirty.size() + " greylist triplets", e);
+        }
+    }
+
+}
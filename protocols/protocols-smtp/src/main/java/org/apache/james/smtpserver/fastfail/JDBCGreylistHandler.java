@@ -55,6 +55,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * GreylistHandler which can be used to activate Greylisting
+ * 
+ * With enableWriteBehind the triplets are kept in a {@link GreylistStore}:
+ * the RCPT commands are answered from memory, and the database is written in
+ * batches every flushInterval and cleaned every sweepInterval. At most
+ * maxTriplets triplets are kept in memory, the other ones are read and written
+ * directly in the database.
  */
 public class JDBCGreylistHandler extends AbstractGreylistHandler implements InitializingLifecycleAwareProtocolHandler {
 
@@ -81,6 +87,8 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
     private String updateQuery;
 
+    private String selectAllQuery;
+
     /**
      * Contains all of the sql strings for this component.
      */
@@ -96,6 +104,12 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
 
     private NetMatcher wNetworks;
 
+    private long autoWhiteListLifeTime = 3110400000L;
+
+    private long unseenLifeTime = 14400000L;
+
+    private GreylistStore store;
+
     /**
      * Gets the file system service.
      * 
@@ -169,6 +183,22 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
         setUnseenLifeTime(TimeConverter.getMilliSeconds(unseenLifeTime));
     }
 
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#setAutoWhiteListLifeTime(long)
+     */
+    public void setAutoWhiteListLifeTime(long autoWhiteListLifeTime) {
+        super.setAutoWhiteListLifeTime(autoWhiteListLifeTime);
+        this.autoWhiteListLifeTime = autoWhiteListLifeTime;
+    }
+
+    /**
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#setUnseenLifeTime(long)
+     */
+    public void setUnseenLifeTime(long unseenLifeTime) {
+        super.setUnseenLifeTime(unseenLifeTime);
+        this.unseenLifeTime = unseenLifeTime;
+    }
+
     @Inject
     @Named("dnsservice")
     public final void setDNSService(DNSService dnsService) {
@@ -189,6 +219,18 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      */
     protected Iterator<String> getGreyListData(String ipAddress, String sender, String recip) throws SQLException {
         Collection<String> data = new ArrayList<String>(2);
+        if (store != null) {
+            GreylistStore.Triplet triplet = store.get(ipAddress, sender, recip);
+            if (triplet != null) {
+                data.add(String.valueOf(triplet.getCreateTime()));
+                data.add(String.valueOf(triplet.getCount()));
+                return data.iterator();
+            }
+            if (!store.isIncomplete()) {
+                return data.iterator();
+            }
+            // the triplet may have been refused by the full store
+        }
         PreparedStatement mappingStmt = null;
         Connection conn = datasource.getConnection();
         try {
@@ -219,6 +261,9 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void insertTriplet(String ipAddress, String sender, String recip, int count, long createTime) throws SQLException {
+        if (store != null && store.put(ipAddress, sender, recip, count, createTime)) {
+            return;
+        }
         Connection conn = datasource.getConnection();
 
         PreparedStatement mappingStmt = null;
@@ -243,6 +288,9 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      *      java.lang.String, java.lang.String, int, long)
      */
     protected void updateTriplet(String ipAddress, String sender, String recip, int count, long time) throws SQLException {
+        if (store != null && store.put(ipAddress, sender, recip, count + 1, time)) {
+            return;
+        }
         Connection conn = datasource.getConnection();
         PreparedStatement mappingStmt = null;
 
@@ -264,6 +312,10 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupAutoWhiteListGreyList(long)
      */
     protected void cleanupAutoWhiteListGreyList(long time) throws SQLException {
+        if (store != null) {
+            // done by the sweeps of the store
+            return;
+        }
         PreparedStatement mappingStmt = null;
         Connection conn = datasource.getConnection();
 
@@ -283,6 +335,10 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
      * @see org.apache.james.protocols.smtp.core.fastfail.AbstractGreylistHandler#cleanupGreyList(long)
      */
     protected void cleanupGreyList(long time) throws SQLException {
+        if (store != null) {
+            // done by the sweeps of the store
+            return;
+        }
         Connection conn = datasource.getConnection();
 
         PreparedStatement mappingStmt = null;
@@ -339,12 +395,104 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
             deleteQuery = sqlQueries.getSqlString("deleteQuery", true);
             deleteAutoWhiteListQuery = sqlQueries.getSqlString("deleteAutoWhitelistQuery", true);
             updateQuery = sqlQueries.getSqlString("updateQuery", true);
+            // only needed by the write behind store
+            selectAllQuery = sqlQueries.getSqlString("selectAllQuery", false);
 
         } finally {
             theJDBCUtil.closeJDBCConnection(conn);
         }
     }
 
+    /**
+     * Persistence of the {@link GreylistStore} in the greylist table. The
+     * triplets are updated in one batch, and the ones which were not in the
+     * table (new or removed by a sweep meanwhile) inserted in a second one.
+     */
+    private final GreylistStore.Persistence persistence = new GreylistStore.Persistence() {
+
+        public Collection<GreylistStore.Triplet> load() throws SQLException {
+            Collection<GreylistStore.Triplet> triplets = new ArrayList<GreylistStore.Triplet>();
+            Connection conn = datasource.getConnection();
+            PreparedStatement mappingStmt = null;
+            ResultSet mappingRS = null;
+            try {
+                mappingStmt = conn.prepareStatement(selectAllQuery);
+                mappingRS = mappingStmt.executeQuery();
+                while (mappingRS.next()) {
+                    triplets.add(new GreylistStore.Triplet(mappingRS.getString(1), mappingRS.getString(2), mappingRS.getString(3), mappingRS.getInt(4), mappingRS.getTimestamp(5).getTime()));
+                }
+            } finally {
+                theJDBCUtil.closeJDBCResultSet(mappingRS);
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+                theJDBCUtil.closeJDBCConnection(conn);
+            }
+            return triplets;
+        }
+
+        public void store(Collection<GreylistStore.Triplet> triplets) throws SQLException {
+            Connection conn = datasource.getConnection();
+            PreparedStatement mappingStmt = null;
+            try {
+                List<GreylistStore.Triplet> updated = new ArrayList<GreylistStore.Triplet>(triplets);
+                mappingStmt = conn.prepareStatement(updateQuery);
+                for (GreylistStore.Triplet triplet : updated) {
+                    mappingStmt.setTimestamp(1, new Timestamp(triplet.getCreateTime()));
+                    mappingStmt.setInt(2, triplet.getCount());
+                    mappingStmt.setString(3, triplet.getIpAddress());
+                    mappingStmt.setString(4, triplet.getSender());
+                    mappingStmt.setString(5, triplet.getRecip());
+                    mappingStmt.addBatch();
+                }
+                int[] counts = mappingStmt.executeBatch();
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+                mappingStmt = null;
+
+                List<GreylistStore.Triplet> inserted = new ArrayList<GreylistStore.Triplet>();
+                for (int i = 0; i < counts.length; i++) {
+                    // drivers may not tell the update counts, the row is
+                    // then assumed to exist
+                    if (counts[i] == 0) {
+                        inserted.add(updated.get(i));
+                    }
+                }
+                if (inserted.isEmpty()) {
+                    return;
+                }
+                mappingStmt = conn.prepareStatement(insertQuery);
+                for (GreylistStore.Triplet triplet : inserted) {
+                    mappingStmt.setString(1, triplet.getIpAddress());
+                    mappingStmt.setString(2, triplet.getSender());
+                    mappingStmt.setString(3, triplet.getRecip());
+                    mappingStmt.setInt(4, triplet.getCount());
+                    mappingStmt.setTimestamp(5, new Timestamp(triplet.getCreateTime()));
+                    mappingStmt.addBatch();
+                }
+                mappingStmt.executeBatch();
+            } finally {
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+                theJDBCUtil.closeJDBCConnection(conn);
+            }
+        }
+
+        public void remove(long autoWhiteListTime, long unseenTime) throws SQLException {
+            Connection conn = datasource.getConnection();
+            PreparedStatement mappingStmt = null;
+            try {
+                mappingStmt = conn.prepareStatement(deleteAutoWhiteListQuery);
+                mappingStmt.setTimestamp(1, new Timestamp(autoWhiteListTime));
+                mappingStmt.executeUpdate();
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+
+                mappingStmt = conn.prepareStatement(deleteQuery);
+                mappingStmt.setTimestamp(1, new Timestamp(unseenTime));
+                mappingStmt.executeUpdate();
+            } finally {
+                theJDBCUtil.closeJDBCStatement(mappingStmt);
+                theJDBCUtil.closeJDBCConnection(conn);
+            }
+        }
+    };
+
     /**
      * Create the table if not exists.
      * 
@@ -459,10 +607,42 @@ public class JDBCGreylistHandler extends AbstractGreylistHandler implements Init
         } catch (Exception e) {
             throw new RuntimeException("Unable to init datasource", e);
         }
+
+        if (handlerConfiguration.getBoolean("enableWriteBehind", false)) {
+            if (selectAllQuery == null) {
+                throw new ConfigurationException("enableWriteBehind needs the selectAllQuery of " + sFile);
+            }
+            long flushInterval;
+            long sweepInterval;
+            try {
+                flushInterval = TimeConverter.getMilliSeconds(handlerConfiguration.getString("flushInterval", "5 secs"));
+                sweepInterval = TimeConverter.getMilliSeconds(handlerConfiguration.getString("sweepInterval", "1 minute"));
+            } catch (NumberFormatException e) {
+                throw new ConfigurationException(e.getMessage());
+            }
+            store = new GreylistStore(persistence, autoWhiteListLifeTime, unseenLifeTime, flushInterval, sweepInterval);
+            store.setMaxSize(handlerConfiguration.getInt("maxTriplets", GreylistStore.DEFAULT_MAX_SIZE));
+            try {
+                store.start();
+            } catch (Exception e) {
+                throw new RuntimeException("Unable to load the greylist", e);
+            }
+        }
+    }
+
+    /**
+     * Return the store of the triplets.
+     * 
+     * @return the store, null if enableWriteBehind is not set
+     */
+    public GreylistStore getGreylistStore() {
+        return store;
     }
 
     @Override
     public void destroy() {
-        // nothing todo
+        if (store != null) {
+            store.dispose();
+        }
     }
 }
@@ -0,0 +1,359 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver.fastfail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.james.rrt.api.RecipientRewriteTable;
+import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.james.user.api.UsersRepositoryException;
+import org.apache.james.util.BloomFilter;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bloom filter of the local recipients, telling the recipients which are
+ * certainly unknown without asking the {@link UsersRepository} and the
+ * {@link RecipientRewriteTable}. On large user bases this saves a database or
+ * directory query for most of the recipients of a dictionary attack.
+ * 
+ * The filter holds the lower cased user names and the sources of all the
+ * mappings, with their wildcards. It is built in the background, and then
+ * rebuilt every rebuildInterval milliseconds; until the first build completes
+ * every recipient passes.
+ * 
+ * Users and mappings may have been created since the last rebuild, so a
+ * recipient unknown to the filter is still looked up if
+ * {@link #allowVerification()} allows it, at most maxVerifications times per
+ * second. The recipients found this way are then added with
+ * {@link #addRecipient(String)} (also available over JMX). Once the rate is
+ * reached, the unknown recipients are refused with a temporary error without
+ * lookup, so that their senders retry.
+ * 
+ * The filter is registered in JMX as
+ * <code>org.apache.james:type=component,name=recipientfilter,filter=N</code>
+ * and must be shut down with {@link #dispose()}.
+ */
+public class RecipientFilter implements RecipientFilterMBean {
+
+    /**
+     * Default probability that an unknown recipient passes the filter
+     */
+    public final static double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * Default time in milliseconds between two rebuilds
+     */
+    public final static long DEFAULT_REBUILD_INTERVAL = 600000;
+
+    /**
+     * Default number of recipients unknown to the filter looked up per second
+     */
+    public final static int DEFAULT_MAX_VERIFICATIONS = 10;
+
+    private final static Logger LOG = LoggerFactory.getLogger(RecipientFilter.class);
+
+    private final static AtomicInteger FILTER_COUNT = new AtomicInteger();
+
+    private final static String WILDCARD = "*";
+
+    private final UsersRepository users;
+
+    private final RecipientRewriteTable vut;
+
+    /**
+     * Number of lookups in the filter for each recipient
+     */
+    private final int keysPerRecipient;
+
+    /**
+     * False positive rate of each lookup, so that the one of a recipient is
+     * the configured rate
+     */
+    private final double keyFalsePositiveRate;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final String mbeanName;
+
+    private volatile BloomFilter filter;
+
+    private volatile long lastRebuild;
+
+    private volatile long lastRebuildTime = -1;
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong rejects = new AtomicLong();
+
+    private final AtomicLong verifications = new AtomicLong();
+
+    private volatile int maxVerifications = DEFAULT_MAX_VERIFICATIONS;
+
+    /**
+     * Start of the current second of verifications and their number, guarded
+     * by the verificationLock
+     */
+    private final Object verificationLock = new Object();
+
+    private long verificationWindow;
+
+    private int windowVerifications;
+
+    /**
+     * Create the filter and schedule its builds. The filter is only filled
+     * once the first build completed.
+     * 
+     * @param users
+     *            the users repository
+     * @param vut
+     *            the recipient rewrite table, null if the mappings are not
+     *            used to validate the recipients
+     * @param falsePositiveRate
+     *            the probability that an unknown recipient passes the filter
+     * @param rebuildInterval
+     *            the time in milliseconds between two rebuilds, 0 to build
+     *            the filter only once
+     */
+    public RecipientFilter(UsersRepository users, RecipientRewriteTable vut, double falsePositiveRate, long rebuildInterval) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        this.users = users;
+        this.vut = vut;
+        keysPerRecipient = vut == null ? 1 : 5;
+        keyFalsePositiveRate = 1 - Math.pow(1 - falsePositiveRate, 1.0 / keysPerRecipient);
+
+        mbeanName = "org.apache.james:type=component,name=recipientfilter,filter=" + FILTER_COUNT.incrementAndGet();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("recipientfilter"));
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    rebuild();
+                } catch (Exception e) {
+                    LOG.warn("Unable to rebuild the recipient filter, keeping the previous one", e);
+                }
+            }
+        };
+        if (rebuildInterval > 0) {
+            scheduler.scheduleWithFixedDelay(task, 0, rebuildInterval, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.execute(task);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(mbeanName));
+        } catch (Exception e) {
+            // the filter works without JMX
+        }
+    }
+
+    /**
+     * Set the number of recipients unknown to the filter which are looked up
+     * per second, in case they were created since the last rebuild.
+     * 
+     * @param maxVerifications
+     *            the number of lookups per second, 0 to reject all the
+     *            recipients unknown to the filter
+     */
+    public void setMaxVerifications(int maxVerifications) {
+        this.maxVerifications = maxVerifications;
+    }
+
+    /**
+     * Return false if the given recipient is certainly unknown: neither a
+     * user nor the source of a mapping when the filter was built, nor added
+     * since.
+     * 
+     * @param username
+     *            the user name of the recipient, which is its address or its
+     *            local part depending on virtual hosting
+     * @param localPart
+     *            the local part of the recipient address
+     * @param domain
+     *            the domain of the recipient address
+     * @return true if the recipient may be known
+     */
+    public boolean mightBeValid(String username, String localPart, String domain) {
+        BloomFilter current = filter;
+        if (current == null) {
+            return true;
+        }
+        checks.incrementAndGet();
+        if (current.mightContain(username.toLowerCase(Locale.US))) {
+            return true;
+        }
+        // the recipient may also be the source of a mapping, or match one
+        // through a wildcard
+        if (vut != null) {
+            String user = localPart.toLowerCase(Locale.US);
+            String host = domain.toLowerCase(Locale.US);
+            if (current.mightContain(user + "@" + host) || current.mightContain(WILDCARD + "@" + host) || current.mightContain(user + "@" + WILDCARD) || current.mightContain(WILDCARD + "@" + WILDCARD)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return true if a recipient unknown to the filter may still be looked up,
+     * as it may have been created since the last rebuild. The caller adds it
+     * with {@link #addRecipient(String)} if it is found. Returns false once
+     * maxVerifications lookups were allowed in the current second, and the
+     * recipient must then be refused with a temporary error.
+     * 
+     * @return true if the recipient is to be looked up
+     */
+    public boolean allowVerification() {
+        if (maxVerifications > 0) {
+            long now = System.currentTimeMillis();
+            synchronized (verificationLock) {
+                if (now - verificationWindow >= 1000) {
+                    verificationWindow = now;
+                    windowVerifications = 0;
+                }
+                if (windowVerifications < maxVerifications) {
+                    windowVerifications++;
+                    verifications.incrementAndGet();
+                    return true;
+                }
+            }
+        }
+        rejects.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#rebuild()
+     */
+    public synchronized void rebuild() throws UsersRepositoryException, RecipientRewriteTableException {
+        long start = System.currentTimeMillis();
+        Map<String, Collection<String>> mappings = vut == null ? null : vut.getAllMappings();
+        long expected = users.countUsers() + (mappings == null ? 0 : mappings.size());
+        // leave room for the recipients added until the next rebuild
+        BloomFilter built = new BloomFilter(expected + expected / 4 + 1000, keyFalsePositiveRate);
+        for (Iterator<String> it = users.list(); it.hasNext();) {
+            built.add(it.next().toLowerCase(Locale.US));
+        }
+        if (mappings != null) {
+            for (String source : mappings.keySet()) {
+                built.add(source.toLowerCase(Locale.US));
+            }
+        }
+        filter = built;
+        lastRebuild = System.currentTimeMillis();
+        lastRebuildTime = lastRebuild - start;
+        LOG.info("Rebuilt the recipient filter with " + built.getEntryCount() + " entries in " + lastRebuildTime + " ms");
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#addRecipient(java.lang.String)
+     */
+    public void addRecipient(String name) {
+        BloomFilter current = filter;
+        if (current != null) {
+            current.add(name.toLowerCase(Locale.US));
+        }
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getEntryCount()
+     */
+    public long getEntryCount() {
+        BloomFilter current = filter;
+        return current == null ? 0 : current.getEntryCount();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getFalsePositiveRate()
+     */
+    public double getFalsePositiveRate() {
+        BloomFilter current = filter;
+        return current == null ? 1 : 1 - Math.pow(1 - current.getFalsePositiveRate(), keysPerRecipient);
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getMemoryUsage()
+     */
+    public long getMemoryUsage() {
+        BloomFilter current = filter;
+        return current == null ? 0 : current.getMemoryUsage();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getLastRebuildTime()
+     */
+    public long getLastRebuildTime() {
+        return lastRebuildTime;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getLastRebuild()
+     */
+    public long getLastRebuild() {
+        return lastRebuild;
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getCheckCount()
+     */
+    public long getCheckCount() {
+        return checks.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getRejectCount()
+     */
+    public long getRejectCount() {
+        return rejects.get();
+    }
+
+    /**
+     * @see org.apache.james.smtpserver.fastfail.RecipientFilterMBean#getVerificationCount()
+     */
+    public long getVerificationCount() {
+        return verifications.get();
+    }
+
+    /**
+     * Stop the rebuilds and unregister the filter from JMX.
+     */
+    public void dispose() {
+        scheduler.shutdownNow();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(mbeanName));
+        } catch (Exception e) {
+            // not registered
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.smtpserver.fastfail;
+
+/**
+ * JMX view of a {@link RecipientFilter}
+ */
+public interface RecipientFilterMBean {
+
+    /**
+     * Return the number of strings (user names and mapping sources) held by
+     * the filter.
+     * 
+     * @return the number of entries, 0 if the filter was not built yet
+     */
+    long getEntryCount();
+
+    /**
+     * Return the probability that an unknown recipient passes the filter.
+     * 
+     * @return the false positive rate, 1 if the filter was not built yet
+     */
+    double getFalsePositiveRate();
+
+    /**
+     * Return the memory used by the filter.
+     * 
+     * @return the size in bytes
+     */
+    long getMemoryUsage();
+
+    /**
+     * Return the time the last rebuild took.
+     * 
+     * @return the duration in milliseconds, -1 if the filter was never built
+     */
+    long getLastRebuildTime();
+
+    /**
+     * Return when the filter was last rebuilt.
+     * 
+     * @return the time in milliseconds since the epoch, 0 if never
+     */
+    long getLastRebuild();
+
+    /**
+     * Return the number of recipients checked against the filter.
+     * 
+     * @return the number of checks
+     */
+    long getCheckCount();
+
+    /**
+     * Return the number of recipients unknown to the filter which were refused
+     * with a temporary error, without asking the users repository or the
+     * recipient rewrite table.
+     * 
+     * @return the number of rejections
+     */
+    long getRejectCount();
+
+    /**
+     * Return the number of recipients unknown to the filter which were looked
+     * up in the users repository and the recipient rewrite table anyway, as
+     * they may have been created since the last rebuild.
+     * 
+     * @return the number of lookups
+     */
+    long getVerificationCount();
+
+    /**
+     * Rebuild the filter from the users repository and the recipient rewrite
+     * table.
+     * 
+     * @throws Exception
+     *             if the users or mappings can not be read
+     */
+    void rebuild() throws Exception;
+
+    /**
+     * Add a user name or address to the filter, for a user or mapping created
+     * since the last rebuild.
+     * 
+     * @param name
+     *            the user name, address or mapping source
+     *            (<code>user@domain</code>, with <code>*</code> as wildcard)
+     */
+    void addRecipient(String name);
+}
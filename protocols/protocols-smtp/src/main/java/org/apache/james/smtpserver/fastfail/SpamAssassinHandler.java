@@ -33,7 +33,8 @@ import org.apache.james.protocols.smtp.dsn.DSNStatus;
 import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.smtpserver.JamesMessageHook;
-import org.apache.james.util.scanner.SpamAssassinInvoker;
+import org.apache.james.util.scanner.SpamdClient;
+import org.apache.james.util.scanner.SpamdResult;
 import org.apache.mailet.Mail;
 
 /**
@@ -59,11 +60,21 @@ import org.apache.mailet.Mail;
  *   &lt;spamdHost&gt;localhost&lt;/spamdHost&gt;
  *   &lt;spamdPort&gt;783&lt;/spamdPort&gt; <br>
  *   &lt;spamdRejectionHits&gt;15.0&lt;/spamdRejectionHits&gt;
+ *   &lt;spamdMaxConnections&gt;5&lt;/spamdMaxConnections&gt;
+ *   &lt;spamdTimeout&gt;30000&lt;/spamdTimeout&gt;
  *   &lt;checkAuthNetworks&gt;false&lt;/checkAuthNetworks&gt;
  * &lt;/handler&gt;
  * </pre>
  * 
  * </p>
+ * <p>
+ * spamdHost may list several spamd hosts, separated by commas, each one
+ * optionally followed by ":port". The messages are scanned by the hosts in
+ * turn, skipping the ones which can not be reached. At most
+ * spamdMaxConnections messages are sent to each host at once, and a message
+ * which is not scanned within spamdTimeout milliseconds is accepted without
+ * the attributes.
+ * </p>
  */
 public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecycleAwareProtocolHandler {
 
@@ -76,6 +87,15 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
     /** The hits on which the message get rejected */
     private double spamdRejectionHits = 0.0;
 
+    /** The maximum number of concurrent connections per spamd host */
+    private int spamdMaxConnections = SpamdClient.DEFAULT_MAX_CONNECTIONS;
+
+    /** The maximum time to scan a message */
+    private long spamdTimeout = SpamdClient.DEFAULT_TIMEOUT;
+
+    /** The client shared by all the messages */
+    private SpamdClient client;
+
     /**
      * Set the host the spamd daemon is running at
      * 
@@ -107,6 +127,36 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
     }
 
+    /**
+     * Set the maximum number of messages sent at once to each spamd host
+     * 
+     * @param spamdMaxConnections
+     *            the number of connections
+     */
+    public void setSpamdMaxConnections(int spamdMaxConnections) {
+        this.spamdMaxConnections = spamdMaxConnections;
+    }
+
+    /**
+     * Set the maximum time to wait for the scan of a message
+     * 
+     * @param spamdTimeout
+     *            the timeout in milliseconds
+     */
+    public void setSpamdTimeout(long spamdTimeout) {
+        this.spamdTimeout = spamdTimeout;
+    }
+
+    /**
+     * Return the spamd client, created on first use with the current settings
+     */
+    private synchronized SpamdClient getClient() {
+        if (client == null) {
+            client = new SpamdClient(spamdHost, spamdPort, spamdMaxConnections, spamdTimeout, SpamdClient.DEFAULT_RETRY_INTERVAL);
+        }
+        return client;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -115,8 +165,7 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
 
         try {
             MimeMessage message = mail.getMessage();
-            SpamAssassinInvoker sa = new SpamAssassinInvoker(spamdHost, spamdPort);
-            sa.scanMail(message);
+            SpamdResult sa = getClient().scan(message);
 
             Iterator<String> headers = sa.getHeadersAsAttribute().keySet().iterator();
 
@@ -156,11 +205,16 @@ public class SpamAssassinHandler implements JamesMessageHook, InitializingLifecy
     public void init(Configuration config) throws ConfigurationException {
         setSpamdHost(config.getString("spamdHost", "localhost"));
         setSpamdPort(config.getInt("spamdPort", 783));
-        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));        
+        setSpamdRejectionHits(config.getDouble("spamdRejectionHits", 0.0));
+        setSpamdMaxConnections(config.getInt("spamdMaxConnections", SpamdClient.DEFAULT_MAX_CONNECTIONS));
+        setSpamdTimeout(config.getLong("spamdTimeout", SpamdClient.DEFAULT_TIMEOUT));
     }
 
     @Override
-    public void destroy() {
-        // nothing to-do
+    public synchronized void destroy() {
+        if (client != null) {
+            client.dispose();
+            client = null;
+        }
     }
 }
@@ -0,0 +1,373 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver.fastfail;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Set;
+
+import org.apache.james.smtpserver.TLDLookup;
+
+/**
+ * Extract the registrar domains of the URIs and email addresses found in a
+ * text, like {@link URIScanner}, in a single pass over a {@link Reader}.
+ *
+ * The text is split in tokens made of the characters which may appear in a
+ * URI, using a character class table. Each token is then checked for a scheme
+ * (or a schemeless "www." / "ftp." host) and for email addresses, without any
+ * regular expression, and the multi-part TLDs are looked up in the
+ * {@link TLDLookup} sets. Only one token is held in memory at a time, and
+ * tokens longer than {@link #MAX_TOKEN_LENGTH} are scanned in overlapping
+ * slices. At most maxScanSize characters are read, over all the calls to
+ * {@link #scan(Reader, Set)}.
+ *
+ * Instances are not thread safe; use one per message.
+ */
+public class StreamingURIScanner {
+
+    /**
+     * Default number of characters scanned per message
+     */
+    public final static int DEFAULT_MAX_SCAN_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum number of characters of a token held in memory
+     */
+    final static int MAX_TOKEN_LENGTH = 4096;
+
+    /**
+     * Number of characters kept from a slice of a token when scanning the next
+     * one, enough for an email address and a host name
+     */
+    private final static int OVERLAP = 512;
+
+    private final static String[] SCHEMES = { "http", "https", "ftp", "mailto", "javascript", "file" };
+
+    /** The character may appear in a URI */
+    private final static int URI = 1;
+
+    /** The character is a regex word character */
+    private final static int WORD = 2;
+
+    /** The character may appear in the local part of an email address */
+    private final static int ATOM = 4;
+
+    /** The character may appear in a host name label */
+    private final static int LABEL = 8;
+
+    private final static byte[] CLASSES = new byte[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            CLASSES[c] = CLASSES[Character.toUpperCase(c)] = URI | WORD | ATOM | LABEL;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            CLASSES[c] = URI | WORD | ATOM | LABEL;
+        }
+        addClass(";/?:@&=+$,[]\\#|-_.!~*'()%", URI);
+        addClass("/?&=+$#|-_!~*'%", ATOM);
+        addClass("_", WORD);
+        addClass("-", LABEL);
+    }
+
+    private static void addClass(String chars, int flag) {
+        for (int i = 0; i < chars.length(); i++) {
+            CLASSES[chars.charAt(i)] |= flag;
+        }
+    }
+
+    private static boolean is(char c, int flag) {
+        return c < 128 && (CLASSES[c] & flag) != 0;
+    }
+
+    private final int maxScanSize;
+
+    private final char[] buffer = new char[4096];
+
+    private final char[] token = new char[MAX_TOKEN_LENGTH];
+
+    private int scanned;
+
+    private boolean truncated;
+
+    /**
+     * True while the current token holds a URI found in one of its previous
+     * slices
+     */
+    private boolean inUri;
+
+    /**
+     * Construct a scanner reading at most maxScanSize characters.
+     * 
+     * @param maxScanSize
+     *            the maximum number of characters to scan
+     */
+    public StreamingURIScanner(int maxScanSize) {
+        this.maxScanSize = maxScanSize;
+    }
+
+    /**
+     * Scan the given text and add the domains found to the given set. The
+     * reader is not closed.
+     * 
+     * @param reader
+     *            the text to scan
+     * @param domains
+     *            the set to add the domains to
+     * @return false if the text was not read entirely because the maximum
+     *         scan size was reached
+     * @throws IOException
+     *             if the text can not be read
+     */
+    public boolean scan(Reader reader, Set<String> domains) throws IOException {
+        int length = 0;
+        boolean continued = false;
+        inUri = false;
+        while (scanned < maxScanSize) {
+            int read = reader.read(buffer, 0, Math.min(buffer.length, maxScanSize - scanned));
+            if (read == -1) {
+                break;
+            }
+            scanned += read;
+            for (int i = 0; i < read; i++) {
+                char c = buffer[i];
+                if (is(c, URI)) {
+                    if (length == token.length) {
+                        scanToken(length, continued, domains);
+                        System.arraycopy(token, length - OVERLAP, token, 0, OVERLAP);
+                        length = OVERLAP;
+                        continued = true;
+                    }
+                    token[length++] = c;
+                } else if (length > 0) {
+                    scanToken(length, continued, domains);
+                    length = 0;
+                    continued = false;
+                    inUri = false;
+                }
+            }
+        }
+        if (length > 0) {
+            scanToken(length, continued, domains);
+        }
+        if (scanned >= maxScanSize && reader.read() != -1) {
+            truncated = true;
+        }
+        return !truncated;
+    }
+
+    /**
+     * Return true if the maximum scan size was reached before the end of the
+     * text.
+     * 
+     * @return truncated
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Return the registrar domain of the given lower case host name: the
+     * reversed address for an IPv4 address, else the label before the
+     * (possibly multi-part) TLD and the TLD.
+     * 
+     * @param host
+     *            the host name
+     * @return the domain, or null if the host has a single label
+     */
+    public static String domainFromHost(String host) {
+        // the start offsets of the last four labels, from the last one
+        int[] starts = new int[4];
+        int labels = 0;
+        int end = host.length();
+        for (int i = end - 1; i >= -1 && labels < 4; i--) {
+            if (i == -1 || host.charAt(i) == '.') {
+                starts[labels++] = i + 1;
+            }
+        }
+        if (labels == 4 && isOctet(host, starts[0], end) && isOctet(host, starts[1], starts[0] - 1) && isOctet(host, starts[2], starts[1] - 1) && isOctet(host, starts[3], starts[2] - 1)) {
+            return host.substring(starts[0]) + "." + host.substring(starts[1], starts[0] - 1) + "." + host.substring(starts[2], starts[1] - 1) + "." + host.substring(starts[3], starts[2] - 1);
+        }
+        if (labels == 4 && TLDLookup.isThreePartTLD(host.substring(starts[2]))) {
+            return host.substring(starts[3]);
+        }
+        if (labels >= 3 && TLDLookup.isTwoPartTLD(host.substring(starts[1]))) {
+            return host.substring(starts[2]);
+        }
+        if (labels >= 2) {
+            return host.substring(starts[1]);
+        }
+        return null;
+    }
+
+    private static boolean isOctet(String host, int start, int end) {
+        if (start >= end || end - start > 3) {
+            return false;
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = host.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value <= 255;
+    }
+
+    /**
+     * Look for a URI and for email addresses in the token. Like the URIScanner
+     * regular expression, a URI extends to the end of its token so the first
+     * one only is used.
+     */
+    private void scanToken(int length, boolean continued, Set<String> domains) {
+        if (!inUri) {
+            // the character before the first one of a slice is lost, do not
+            // take it as a word boundary
+            for (int i = continued ? 1 : 0; i < length; i++) {
+                if (i > 0 && is(token[i - 1], WORD)) {
+                    continue;
+                }
+                int hostStart = uriHostStart(i, length);
+                if (hostStart != -1) {
+                    if (hostStart >= 0) {
+                        addHost(hostStart, length, domains);
+                    }
+                    inUri = true;
+                    break;
+                }
+            }
+        }
+        for (int i = 1; i < length - 1; i++) {
+            if (token[i] == '@') {
+                addEmail(i, length, domains);
+            }
+        }
+    }
+
+    /**
+     * Return the offset of the host of the URI starting at the given offset,
+     * -1 if there is no URI starting there or -2 if the URI has no host.
+     */
+    private int uriHostStart(int start, int length) {
+        char first = Character.toLowerCase(token[start]);
+        if (first == 'w' || first == 'f') {
+            if (start == 0 || (token[start - 1] != '.' && token[start - 1] != '=')) {
+                int p = matchIgnoreCase(start, length, first == 'w' ? "www" : "ftp");
+                if (p != -1 && first == 'w') {
+                    while (p < length && token[p] >= '0' && token[p] <= '9') {
+                        p++;
+                    }
+                }
+                if (p != -1 && p < length && token[p] == '.') {
+                    return start;
+                }
+            }
+        }
+        for (String scheme : SCHEMES) {
+            int p = matchIgnoreCase(start, length, scheme);
+            if (p == -1 || p + 1 >= length || token[p] != ':' || token[p + 1] == ':') {
+                continue;
+            }
+            p++;
+            boolean mailto = scheme.equals("mailto");
+            boolean authority = p + 1 < length && token[p] == '/' && token[p + 1] == '/';
+            if (authority) {
+                p += 2;
+            } else if (!mailto) {
+                return -2;
+            }
+            // skip the user info, or the local part of the address
+            int hostStart = p;
+            for (int i = p; i < length; i++) {
+                char c = token[i];
+                if (c == '@') {
+                    hostStart = i + 1;
+                } else if (c == '/' || c == '?' || c == '#' || (mailto && !is(c, ATOM) && c != '.')) {
+                    break;
+                }
+            }
+            return hostStart;
+        }
+        return -1;
+    }
+
+    /**
+     * Return the offset following the given string if the token holds it
+     * (ignoring case) at the given offset, -1 otherwise.
+     */
+    private int matchIgnoreCase(int start, int length, String s) {
+        if (start + s.length() > length) {
+            return -1;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (Character.toLowerCase(token[start + i]) != s.charAt(i)) {
+                return -1;
+            }
+        }
+        return start + s.length();
+    }
+
+    private void addEmail(int at, int length, Set<String> domains) {
+        int start = at;
+        while (start > 0 && (is(token[start - 1], ATOM) || token[start - 1] == '.')) {
+            start--;
+        }
+        while (start < at && token[start] == '.') {
+            start++;
+        }
+        if (start < at) {
+            addHost(at + 1, length, domains);
+        }
+    }
+
+    /**
+     * Add the domain of the host name starting at the given offset. The host
+     * name is made of the labels found there, each starting and ending with a
+     * letter or digit.
+     */
+    private void addHost(int start, int length, Set<String> domains) {
+        int end = start;
+        int labelStart = start;
+        for (int i = start; i <= length; i++) {
+            char c = i < length ? token[i] : 0;
+            if (is(c, LABEL)) {
+                if (i == labelStart && c == '-') {
+                    break;
+                }
+                continue;
+            }
+            if (i == labelStart || token[i - 1] == '-') {
+                break;
+            }
+            end = i;
+            if (c != '.') {
+                break;
+            }
+            labelStart = i + 1;
+        }
+        if (end > start) {
+            String domain = domainFromHost(new String(token, start, end - start).toLowerCase());
+            if (domain != null) {
+                domains.add(domain);
+            }
+        }
+    }
+
+}
@@ -19,19 +19,28 @@
 package org.apache.james.smtpserver.fastfail;
 
 import java.io.IOException;
-import java.net.UnknownHostException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.mail.MessagingException;
+import javax.mail.internet.ContentType;
 import javax.mail.internet.MimeBodyPart;
 import javax.mail.internet.MimeMessage;
 import javax.mail.internet.MimeMultipart;
 import javax.mail.internet.MimePart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.internet.ParseException;
 
 import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
@@ -53,6 +62,11 @@ import org.slf4j.LoggerFactory;
  */
 public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwareProtocolHandler {
 
+    /**
+     * Default maximum number of domains of a message which are looked up
+     */
+    public final static int DEFAULT_MAX_DOMAINS = 20;
+
     /** This log is the fall back shared by all instances */
     private static final Logger FALLBACK_LOG = LoggerFactory.getLogger(URIRBLHandler.class);
 
@@ -72,6 +86,12 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
 
     private boolean getDetail = false;
 
+    private int maxScanSize = StreamingURIScanner.DEFAULT_MAX_SCAN_SIZE;
+
+    private int maxDomains = DEFAULT_MAX_DOMAINS;
+
+    private final DNSListChecker checker = new DNSListChecker();
+
     /**
      * Gets the DNS service.
      * 
@@ -91,6 +111,7 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
     @Named("dnsservice")
     public final void setDNSService(DNSService dnsService) {
         this.dnsService = dnsService;
+        checker.setDNSService(dnsService);
     }
 
     /**
@@ -113,6 +134,39 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         this.getDetail = getDetail;
     }
 
+    /**
+     * Return the checker doing the lookups, to configure its timeout and
+     * cache.
+     * 
+     * @return the checker
+     */
+    public DNSListChecker getChecker() {
+        return checker;
+    }
+
+    /**
+     * Set the maximum number of characters of the message text scanned for
+     * URIs. The text past this limit is not checked.
+     * 
+     * @param maxScanSize
+     *            the maximum number of characters
+     */
+    public void setMaxScanSize(int maxScanSize) {
+        this.maxScanSize = maxScanSize;
+    }
+
+    /**
+     * Set the maximum number of domains of a message which are looked up, in
+     * the order they appear in the message. The other domains are not
+     * checked.
+     * 
+     * @param maxDomains
+     *            the maximum number of domains
+     */
+    public void setMaxDomains(int maxDomains) {
+        this.maxDomains = maxDomains;
+    }
+
     /**
      * @see org.apache.james.smtpserver.JamesMessageHook#onMessage(org.apache.james.protocols.smtp.SMTPSession,
      *      org.apache.mailet.Mail)
@@ -148,44 +202,63 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
 
     /**
      * Recursively scans all MimeParts of an email for domain strings. Domain
-     * strings that are found are added to the supplied HashSet.
+     * strings that are found are added to the supplied HashSet. The text parts
+     * are decoded and scanned as streams, until the scanner reaches its
+     * maximum scan size.
      * 
      * @param part
      *            MimePart to scan
+     * @param scanner
+     *            the scanner used for all the parts of the message
+     * @param domains
+     *            The HashSet to add the extracted domains to
      * @param session
      *            not null
-     * @return domains The HashSet that contains the domains which were
-     *         extracted
      */
-    private HashSet<String> scanMailForDomains(MimePart part, SMTPSession session) throws MessagingException, IOException {
-        HashSet<String> domains = new HashSet<String>();
+    private void scanMailForDomains(MimePart part, StreamingURIScanner scanner, HashSet<String> domains, SMTPSession session) throws MessagingException, IOException {
         session.getLogger().debug("mime type is: \"" + part.getContentType() + "\"");
 
         if (part.isMimeType("text/plain") || part.isMimeType("text/html")) {
-            session.getLogger().debug("scanning: \"" + part.getContent().toString() + "\"");
-            HashSet<String> newDom = URIScanner.scanContentForDomains(domains, part.getContent().toString());
-
-            // Check if new domains are found and add the domains
-            if (newDom != null && newDom.size() > 0) {
-                domains.addAll(newDom);
+            Reader reader = new InputStreamReader(part.getInputStream(), getCharset(part));
+            try {
+                if (!scanner.scan(reader, domains)) {
+                    session.getLogger().debug("maximum scan size of " + maxScanSize + " characters reached, skipping the rest of the message");
+                }
+            } finally {
+                reader.close();
             }
         } else if (part.isMimeType("multipart/*")) {
             MimeMultipart multipart = (MimeMultipart) part.getContent();
             int count = multipart.getCount();
             session.getLogger().debug("multipart count is: " + count);
 
-            for (int index = 0; index < count; index++) {
+            for (int index = 0; index < count && !scanner.isTruncated(); index++) {
                 session.getLogger().debug("recursing index: " + index);
                 MimeBodyPart mimeBodyPart = (MimeBodyPart) multipart.getBodyPart(index);
-                HashSet<String> newDomains = scanMailForDomains(mimeBodyPart, session);
+                scanMailForDomains(mimeBodyPart, scanner, domains, session);
+            }
+        }
+    }
 
-                // Check if new domains are found and add the domains
-                if (newDomains != null && newDomains.size() > 0) {
-                    domains.addAll(newDomains);
+    /**
+     * Return the charset of the given text part, or ISO-8859-1 if it has none
+     * or if it is not supported.
+     */
+    private static Charset getCharset(MimePart part) throws MessagingException {
+        try {
+            String charset = new ContentType(part.getContentType()).getParameter("charset");
+            if (charset != null) {
+                charset = MimeUtility.javaCharset(charset);
+                if (Charset.isSupported(charset)) {
+                    return Charset.forName(charset);
                 }
             }
+        } catch (ParseException e) {
+            // use the default
+        } catch (IllegalCharsetNameException e) {
+            // use the default
         }
-        return domains;
+        return Charset.forName("ISO-8859-1");
     }
 
     /**
@@ -197,35 +270,42 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
         try {
             message = mail.getMessage();
 
-            HashSet<String> domains = scanMailForDomains(message, session);
+            HashSet<String> domains = new LinkedHashSet<String>();
+            scanMailForDomains(message, new StreamingURIScanner(maxScanSize), domains, session);
+            if (domains.size() > maxDomains && session.getLogger().isDebugEnabled()) {
+                session.getLogger().debug("Checking only the first " + maxDomains + " of the " + domains.size() + " domains found");
+            }
 
+            // start the lookups of the domains on all the servers
+            Map<String, String[]> queries = new LinkedHashMap<String, String[]>();
             Iterator<String> fDomains = domains.iterator();
-
-            while (fDomains.hasNext()) {
+            for (int i = 0; i < maxDomains && fDomains.hasNext(); i++) {
+                String target = fDomains.next();
                 Iterator<String> uRbl = uriRbl.iterator();
-                String target = fDomains.next().toString();
-
                 while (uRbl.hasNext()) {
-                    try {
-                        String uRblServer = uRbl.next().toString();
-                        String address = target + "." + uRblServer;
-
-                        if (session.getLogger().isDebugEnabled()) {
-                            session.getLogger().debug("Lookup " + address);
-                        }
-
-                        dnsService.getByName(address);
+                    String uRblServer = uRbl.next();
+                    String address = target + "." + uRblServer;
 
-                        // store server name for later use
-                        session.setAttachment(URBLSERVER, uRblServer, State.Transaction);
-                        session.setAttachment(LISTED_DOMAIN, target, State.Transaction);
+                    if (session.getLogger().isDebugEnabled()) {
+                        session.getLogger().debug("Lookup " + address);
+                    }
+                    queries.put(address, new String[] { target, uRblServer });
+                }
+            }
 
-                        return true;
+            DNSListChecker.Lookups lookups = checker.lookup(queries.keySet());
+            try {
+                String listed = lookups.firstListed();
+                if (listed != null) {
+                    // store server name for later use
+                    String[] query = queries.get(listed);
+                    session.setAttachment(URBLSERVER, query[1], State.Transaction);
+                    session.setAttachment(LISTED_DOMAIN, query[0], State.Transaction);
 
-                    } catch (UnknownHostException uhe) {
-                        // domain not found. keep processing
-                    }
+                    return true;
                 }
+            } finally {
+                lookups.cancel();
             }
         } catch (MessagingException e) {
             session.getLogger().error(e.getMessage());
@@ -252,7 +332,10 @@ public class URIRBLHandler implements JamesMessageHook, InitializingLifecycleAwa
             throw new ConfigurationException("Please provide at least one server");
         }
 
-        setGetDetail(config.getBoolean("getDetail", false));        
+        setGetDetail(config.getBoolean("getDetail", false));
+        setMaxScanSize(config.getInt("maxScanSize", StreamingURIScanner.DEFAULT_MAX_SCAN_SIZE));
+        setMaxDomains(config.getInt("maxDomains", DEFAULT_MAX_DOMAINS));
+        checker.configure(config);
     }
 
     @Override
@@ -27,10 +27,15 @@ import org.apache.commons.configuration.Configuration;
 import org.apache.commons.configuration.ConfigurationException;
 import org.apache.james.domainlist.api.DomainList;
 import org.apache.james.domainlist.api.DomainListException;
+import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.lib.lifecycle.InitializingLifecycleAwareProtocolHandler;
 import org.apache.james.protocols.smtp.MailAddress;
+import org.apache.james.protocols.smtp.SMTPRetCode;
 import org.apache.james.protocols.smtp.SMTPSession;
 import org.apache.james.protocols.smtp.core.fastfail.AbstractValidRcptHandler;
+import org.apache.james.protocols.smtp.dsn.DSNStatus;
+import org.apache.james.protocols.smtp.hook.HookResult;
+import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTable.ErrorMappingException;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
@@ -39,9 +44,23 @@ import org.apache.james.user.api.UsersRepositoryException;
 
 /**
  * Handler which reject invalid recipients
+ * 
+ * With enableRecipientFilter the recipients are first checked against a
+ * {@link RecipientFilter}, so that the unknown ones are rejected without
+ * querying the users repository and the recipient rewrite table. The filter is
+ * tuned with recipientFilterFalsePositiveRate and
+ * recipientFilterRebuildInterval (in milliseconds). Up to
+ * recipientFilterMaxVerifications recipients per second unknown to the filter
+ * are looked up anyway, and added to the filter if found. The others are
+ * refused with a temporary error, as they may have been created since the last
+ * rebuild: the sender retries, and the recipient is accepted once it is looked
+ * up or the filter is rebuilt.
  */
 public class ValidRcptHandler extends AbstractValidRcptHandler implements InitializingLifecycleAwareProtocolHandler {
 
+    /** Transaction attachment set when the filter refused to look up a recipient. */
+    private final static String NOT_VERIFIED = ValidRcptHandler.class.getName() + ".NOT_VERIFIED";
+
     private UsersRepository users;
 
     private RecipientRewriteTable vut;
@@ -50,6 +69,16 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
 
     private DomainList domains;
 
+    private boolean useRecipientFilter = false;
+
+    private double recipientFilterFalsePositiveRate = RecipientFilter.DEFAULT_FALSE_POSITIVE_RATE;
+
+    private long recipientFilterRebuildInterval = RecipientFilter.DEFAULT_REBUILD_INTERVAL;
+
+    private int recipientFilterMaxVerifications = RecipientFilter.DEFAULT_MAX_VERIFICATIONS;
+
+    private volatile RecipientFilter recipientFilter;
+
     /**
      * Gets the users repository.
      * 
@@ -92,6 +121,77 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
         this.useVut = useVut;
     }
 
+    /**
+     * Enable or disable the Bloom filter of the known recipients.
+     * 
+     * @param useRecipientFilter
+     *            true to check the recipients against the filter first
+     */
+    public void setRecipientFilterSupport(boolean useRecipientFilter) {
+        this.useRecipientFilter = useRecipientFilter;
+    }
+
+    /**
+     * Set the probability that an unknown recipient passes the filter.
+     * 
+     * @param recipientFilterFalsePositiveRate
+     *            the rate, between 0 and 1 exclusive
+     */
+    public void setRecipientFilterFalsePositiveRate(double recipientFilterFalsePositiveRate) {
+        this.recipientFilterFalsePositiveRate = recipientFilterFalsePositiveRate;
+    }
+
+    /**
+     * Set the time between two rebuilds of the filter.
+     * 
+     * @param recipientFilterRebuildInterval
+     *            the time in milliseconds, 0 to build it only once
+     */
+    public void setRecipientFilterRebuildInterval(long recipientFilterRebuildInterval) {
+        this.recipientFilterRebuildInterval = recipientFilterRebuildInterval;
+    }
+
+    /**
+     * Set the number of recipients unknown to the filter which are looked up
+     * per second.
+     * 
+     * @param recipientFilterMaxVerifications
+     *            the number of lookups per second, 0 to reject them all
+     */
+    public void setRecipientFilterMaxVerifications(int recipientFilterMaxVerifications) {
+        this.recipientFilterMaxVerifications = recipientFilterMaxVerifications;
+    }
+
+    /**
+     * Return the filter of the known recipients.
+     * 
+     * @return the filter, null if not enabled
+     */
+    public RecipientFilter getRecipientFilter() {
+        return recipientFilter;
+    }
+
+    /**
+     * Refuse with a temporary error the recipients unknown to the filter which
+     * could not be looked up, instead of the permanent error of the unknown
+     * users.
+     * 
+     * @see org.apache.james.protocols.smtp.core.fastfail.AbstractValidRcptHandler#doRcpt(org.apache.james.protocols.smtp.SMTPSession,
+     *      org.apache.james.protocols.smtp.MailAddress,
+     *      org.apache.james.protocols.smtp.MailAddress)
+     */
+    @Override
+    public HookResult doRcpt(SMTPSession session, MailAddress sender, MailAddress rcpt) {
+        HookResult result = super.doRcpt(session, sender, rcpt);
+        if (session.getAttachment(NOT_VERIFIED, State.Transaction) != null) {
+            session.setAttachment(NOT_VERIFIED, null, State.Transaction);
+            if (result.getResult() == HookReturnCode.DENY) {
+                return new HookResult(HookReturnCode.DENYSOFT, SMTPRetCode.MAILBOX_TEMP_UNAVAILABLE, DSNStatus.getStatus(DSNStatus.TRANSIENT, DSNStatus.ADDRESS_MAILBOX) + " Temporarily rejected: unable to verify user " + rcpt);
+            }
+        }
+        return result;
+    }
+
     @Override
     protected boolean isValidRecipient(SMTPSession session, MailAddress recipient) {
 
@@ -104,7 +204,23 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
                 username = recipient.getLocalPart();
             }
 
+            // the recipients unknown to the filter which are found anyway
+            // were created since its last rebuild, and are added to it
+            RecipientFilter filter = recipientFilter;
+            boolean verifying = false;
+            if (filter != null && filter.mightBeValid(username, recipient.getLocalPart(), recipient.getDomain()) == false) {
+                if (filter.allowVerification() == false) {
+                    session.getLogger().debug("Unknown user " + username + " not verified by the recipient filter");
+                    session.setAttachment(NOT_VERIFIED, Boolean.TRUE, State.Transaction);
+                    return false;
+                }
+                verifying = true;
+            }
+
             if (users.contains(username) == true) {
+                if (verifying) {
+                    filter.addRecipient(username);
+                }
                 return true;
             } else {
 
@@ -115,6 +231,9 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
                         Collection<String> targetString = vut.getMappings(recipient.getLocalPart(), recipient.getDomain());
 
                         if (targetString != null && targetString.isEmpty() == false) {
+                            if (verifying) {
+                                filter.addRecipient(recipient.getLocalPart() + "@" + recipient.getDomain());
+                            }
                             return true;
                         }
                     } catch (ErrorMappingException e) {
@@ -152,11 +271,27 @@ public class ValidRcptHandler extends AbstractValidRcptHandler implements Initia
     @Override
     public void init(Configuration config) throws ConfigurationException {
         setRecipientRewriteTableSupport(config.getBoolean("enableRecipientRewriteTable", true));
-        
+        setRecipientFilterSupport(config.getBoolean("enableRecipientFilter", false));
+        setRecipientFilterFalsePositiveRate(config.getDouble("recipientFilterFalsePositiveRate", RecipientFilter.DEFAULT_FALSE_POSITIVE_RATE));
+        setRecipientFilterRebuildInterval(config.getLong("recipientFilterRebuildInterval", RecipientFilter.DEFAULT_REBUILD_INTERVAL));
+        setRecipientFilterMaxVerifications(config.getInt("recipientFilterMaxVerifications", RecipientFilter.DEFAULT_MAX_VERIFICATIONS));
+        if (useRecipientFilter) {
+            try {
+                RecipientFilter filter = new RecipientFilter(users, useVut ? vut : null, recipientFilterFalsePositiveRate, recipientFilterRebuildInterval);
+                filter.setMaxVerifications(recipientFilterMaxVerifications);
+                recipientFilter = filter;
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Invalid recipient filter configuration", e);
+            }
+        }
     }
 
     @Override
     public void destroy() {
-        // nothing to-do
+        RecipientFilter filter = recipientFilter;
+        if (filter != null) {
+            recipientFilter = null;
+            filter.dispose();
+        }
     }
 }
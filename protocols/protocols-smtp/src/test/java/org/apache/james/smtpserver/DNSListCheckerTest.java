@@ -0,0 +1,276 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.james.dnsservice.api.AsyncDNSService;
+import org.apache.james.dnsservice.api.DNSFuture;
+import org.apache.james.dnsservice.api.DNSFutureListener;
+import org.apache.james.dnsservice.api.mock.MockDNSService;
+import org.apache.james.smtpserver.fastfail.DNSListChecker;
+import org.junit.After;
+import org.junit.Test;
+
+public class DNSListCheckerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger queries = new AtomicInteger();
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    /**
+     * Resolve the names starting with "listed" after the given delay, in
+     * milliseconds, which is encoded in the name after "slow"
+     */
+    private InetAddress resolve(String host) throws UnknownHostException {
+        queries.incrementAndGet();
+        int current = running.incrementAndGet();
+        try {
+            synchronized (maxRunning) {
+                maxRunning.set(Math.max(maxRunning.get(), current));
+            }
+            return doResolve(host);
+        } finally {
+            running.decrementAndGet();
+        }
+    }
+
+    private InetAddress doResolve(String host) throws UnknownHostException {
+        int slow = host.indexOf("slow");
+        if (slow != -1) {
+            try {
+                Thread.sleep(Integer.parseInt(host.substring(slow + 4, host.indexOf('.', slow))));
+            } catch (InterruptedException e) {
+                throw new UnknownHostException(host);
+            }
+        }
+        if (host.startsWith("listed")) {
+            return InetAddress.getByName("127.0.0.2");
+        }
+        throw new UnknownHostException(host);
+    }
+
+    private class AsyncMockDNSService extends MockDNSService implements AsyncDNSService {
+
+        @Override
+        public InetAddress getByName(String host) throws UnknownHostException {
+            return resolve(host);
+        }
+
+        public DNSFuture<InetAddress> getByNameAsync(final String host) {
+            MockFuture<InetAddress> future = new MockFuture<InetAddress>(new Callable<InetAddress>() {
+                public InetAddress call() throws Exception {
+                    return resolve(host);
+                }
+            });
+            executor.execute(future);
+            return future;
+        }
+
+        public DNSFuture<Collection<String>> findMXRecordsAsync(String hostname) {
+            throw new UnsupportedOperationException();
+        }
+
+        public DNSFuture<Collection<String>> findTXTRecordsAsync(String hostname) {
+            throw new UnsupportedOperationException();
+        }
+
+        public DNSFuture<InetAddress[]> getAllByNameAsync(String host) {
+            throw new UnsupportedOperationException();
+        }
+
+        public DNSFuture<String> getHostNameAsync(InetAddress addr) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class MockFuture<T> extends FutureTask<T> implements DNSFuture<T> {
+
+        private final List<DNSFutureListener<T>> listeners = new ArrayList<DNSFutureListener<T>>();
+
+        private MockFuture(Callable<T> callable) {
+            super(callable);
+        }
+
+        public void addListener(DNSFutureListener<T> listener) {
+            synchronized (listeners) {
+                if (!isDone()) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.operationComplete(this);
+        }
+
+        @Override
+        protected void done() {
+            synchronized (listeners) {
+                for (DNSFutureListener<T> listener : listeners) {
+                    listener.operationComplete(this);
+                }
+            }
+        }
+    }
+
+    private DNSListChecker checker(boolean async) {
+        DNSListChecker checker = new DNSListChecker();
+        checker.setDNSService(async ? new AsyncMockDNSService() : new MockDNSService() {
+            @Override
+            public InetAddress getByName(String host) throws UnknownHostException {
+                return resolve(host);
+            }
+        });
+        return checker;
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstListedIsTheFastest() {
+        DNSListChecker checker = checker(true);
+        DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("listed.slow500.example.com", "listed.slow10.example.com", "clean.example.com"));
+        long start = System.currentTimeMillis();
+        assertEquals("listed.slow10.example.com", lookups.firstListed());
+        assertTrue(System.currentTimeMillis() - start < 400);
+        lookups.cancel();
+    }
+
+    @Test
+    public void testTimeout() {
+        DNSListChecker checker = checker(true);
+        checker.setTimeout(50);
+        DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("listed.slow2000.example.com", "clean.example.com"));
+        assertNull(lookups.firstListed());
+        assertFalse(lookups.isListed("listed.slow2000.example.com"));
+        lookups.cancel();
+
+        // the timed out lookup is not cached
+        assertEquals(1, checker.getCacheSize());
+    }
+
+    @Test
+    public void testIsListed() {
+        DNSListChecker checker = checker(true);
+        DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("clean.example.com", "listed.example.com"));
+        assertFalse(lookups.isListed("clean.example.com"));
+        assertTrue(lookups.isListed("listed.example.com"));
+        assertEquals("listed.example.com", lookups.firstListed());
+        lookups.cancel();
+    }
+
+    @Test
+    public void testVerdictsAreCached() {
+        for (boolean async : new boolean[] { true, false }) {
+            queries.set(0);
+            DNSListChecker checker = checker(async);
+            for (int i = 0; i < 3; i++) {
+                DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("clean.example.com", "listed.example.com"));
+                assertEquals("listed.example.com", lookups.firstListed());
+                lookups.cancel();
+            }
+            assertFalse(checker.isListed("clean.example.com"));
+            assertTrue(checker.isListed("listed.example.com"));
+            assertTrue(queries.get() <= 2);
+        }
+    }
+
+    @Test
+    public void testNoCache() {
+        DNSListChecker checker = checker(false);
+        checker.setListedCacheTime(0);
+        checker.setNotListedCacheTime(0);
+        assertTrue(checker.isListed("listed.example.com"));
+        assertTrue(checker.isListed("listed.example.com"));
+        assertEquals(2, queries.get());
+        assertEquals(0, checker.getCacheSize());
+    }
+
+    @Test
+    public void testCacheSize() {
+        DNSListChecker checker = checker(false);
+        checker.setCacheSize(2);
+        checker.isListed("clean1.example.com");
+        checker.isListed("clean2.example.com");
+        checker.isListed("clean3.example.com");
+        assertEquals(2, checker.getCacheSize());
+    }
+
+    @Test
+    public void testConcurrentLookupsOfBatchAreLimited() {
+        DNSListChecker checker = checker(true);
+        checker.setMaxConcurrentLookups(2);
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            names.add("clean.slow50.example" + i + ".com");
+        }
+        names.add("listed.example.com");
+
+        DNSListChecker.Lookups lookups = checker.lookup(names);
+        assertEquals("listed.example.com", lookups.firstListed());
+        lookups.cancel();
+
+        assertEquals(7, queries.get());
+        assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testCancelDropsWaitingLookups() throws InterruptedException {
+        DNSListChecker checker = checker(true);
+        checker.setMaxConcurrentLookups(1);
+        DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("clean.slow50.example.com", "clean.example1.com", "clean.example2.com"));
+        lookups.cancel();
+        Thread.sleep(100);
+        // only the running lookup may have been queried
+        assertTrue(queries.get() <= 1);
+    }
+
+    @Test
+    public void testWaitingLookupIsResolvedWhenAsked() {
+        DNSListChecker checker = checker(true);
+        checker.setMaxConcurrentLookups(1);
+        DNSListChecker.Lookups lookups = checker.lookup(Arrays.asList("clean.slow200.example.com", "listed.example.com"));
+        long start = System.currentTimeMillis();
+        assertTrue(lookups.isListed("listed.example.com"));
+        assertTrue(System.currentTimeMillis() - start < 150);
+        lookups.cancel();
+    }
+
+}
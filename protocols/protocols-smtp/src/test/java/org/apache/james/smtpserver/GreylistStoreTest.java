@@ -0,0 +1,208 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.smtpserver;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.james.smtpserver.fastfail.GreylistStore;
+import org.apache.james.smtpserver.fastfail.GreylistStore.Triplet;
+import org.junit.After;
+import org.junit.Test;
+
+public class GreylistStoreTest {
+
+    private final static long HOUR = 3600000;
+
+    /**
+     * Persistence keeping the triplets in a map and recording the batches
+     */
+    private static class MapPersistence implements GreylistStore.Persistence {
+
+        private final Map<String, Triplet> rows = new HashMap<String, Triplet>();
+
+        private final List<Integer> batches = new ArrayList<Integer>();
+
+        private boolean failing;
+
+        private static String key(Triplet triplet) {
+            return triplet.getIpAddress() + "|" + triplet.getSender() + "|" + triplet.getRecip();
+        }
+
+        public Collection<Triplet> load() throws Exception {
+            return new ArrayList<Triplet>(rows.values());
+        }
+
+        public void store(Collection<Triplet> triplets) throws Exception {
+            if (failing) {
+                throw new Exception("Unavailable");
+            }
+            batches.add(triplets.size());
+            for (Triplet triplet : triplets) {
+                rows.put(key(triplet), triplet);
+            }
+        }
+
+        public void remove(long autoWhiteListTime, long unseenTime) throws Exception {
+            for (Triplet triplet : new ArrayList<Triplet>(rows.values())) {
+                if (triplet.getCreateTime() < autoWhiteListTime || (triplet.getCount() == 0 && triplet.getCreateTime() < unseenTime)) {
+                    rows.remove(key(triplet));
+                }
+            }
+        }
+    }
+
+    private final MapPersistence persistence = new MapPersistence();
+
+    private GreylistStore store;
+
+    private GreylistStore start() throws Exception {
+        return start(GreylistStore.DEFAULT_MAX_SIZE);
+    }
+
+    private GreylistStore start(int maxSize) throws Exception {
+        // long intervals, the tests flush and sweep themselves
+        store = new GreylistStore(persistence, 36 * 24 * HOUR, 4 * HOUR, HOUR, HOUR);
+        store.setMaxSize(maxSize);
+        store.start();
+        return store;
+    }
+
+    @After
+    public void tearDown() {
+        if (store != null) {
+            store.dispose();
+        }
+    }
+
+    @Test
+    public void testWritesBehindInBatches() throws Exception {
+        start();
+        long now = System.currentTimeMillis();
+        store.put("127.0.0.1", "sender@domain", "rcpt1@domain", 0, now);
+        store.put("127.0.0.1", "sender@domain", "rcpt2@domain", 0, now);
+        store.put("127.0.0.1", "sender@domain", "rcpt1@domain", 1, now + 1);
+
+        assertEquals(1, store.get("127.0.0.1", "sender@domain", "rcpt1@domain").getCount());
+        assertNull(store.get("127.0.0.2", "sender@domain", "rcpt1@domain"));
+        assertEquals(0, persistence.rows.size());
+        assertEquals(2, store.getPendingCount());
+
+        store.flush();
+        assertEquals(2, persistence.rows.size());
+        assertEquals(1, persistence.rows.get("127.0.0.1|sender@domain|rcpt1@domain").getCount());
+        assertEquals(0, store.getPendingCount());
+
+        store.flush();
+        assertEquals(1, persistence.batches.size());
+    }
+
+    @Test
+    public void testFailedFlushIsRetried() throws Exception {
+        start();
+        store.put("127.0.0.1", "sender@domain", "rcpt@domain", 0, System.currentTimeMillis());
+        persistence.failing = true;
+        try {
+            store.flush();
+            fail("The failure should be reported");
+        } catch (Exception e) {
+            // expected
+        }
+        assertEquals(1, store.getPendingCount());
+
+        persistence.failing = false;
+        store.flush();
+        assertEquals(1, persistence.rows.size());
+    }
+
+    @Test
+    public void testSweepRemovesExpiredTriplets() throws Exception {
+        start();
+        long now = System.currentTimeMillis();
+        store.put("127.0.0.1", "sender@domain", "unseen@domain", 0, now - 5 * HOUR);
+        store.put("127.0.0.1", "sender@domain", "seen@domain", 1, now - 5 * HOUR);
+        store.put("127.0.0.1", "sender@domain", "old@domain", 3, now - 40 * 24 * HOUR);
+        store.put("127.0.0.1", "sender@domain", "new@domain", 0, now);
+        store.flush();
+
+        store.sweep(now);
+        assertEquals(2, store.size());
+        assertNull(store.get("127.0.0.1", "sender@domain", "unseen@domain"));
+        assertNull(store.get("127.0.0.1", "sender@domain", "old@domain"));
+        assertEquals(2, persistence.rows.size());
+    }
+
+    @Test
+    public void testStartLoadsStoredTriplets() throws Exception {
+        long now = System.currentTimeMillis();
+        persistence.store(Arrays.asList(new Triplet("127.0.0.1", "sender@domain", "rcpt@domain", 2, now), new Triplet("127.0.0.1", "sender@domain", "expired@domain", 0, now - 5 * HOUR)));
+        start();
+        assertEquals(1, store.size());
+        assertEquals(2, store.get("127.0.0.1", "sender@domain", "rcpt@domain").getCount());
+        assertEquals(0, store.getPendingCount());
+    }
+
+    @Test
+    public void testFullStoreRefusesNewTriplets() throws Exception {
+        start(2);
+        long now = System.currentTimeMillis();
+        assertTrue(store.put("127.0.0.1", "sender@domain", "rcpt1@domain", 0, now));
+        assertTrue(store.put("127.0.0.1", "sender@domain", "rcpt2@domain", 0, now));
+        assertFalse(store.isIncomplete());
+
+        assertFalse(store.put("127.0.0.1", "sender@domain", "rcpt3@domain", 0, now));
+        assertNull(store.get("127.0.0.1", "sender@domain", "rcpt3@domain"));
+        assertTrue(store.isIncomplete());
+        assertEquals(1, store.getRefusedCount());
+
+        // the known triplets are still updated
+        assertTrue(store.put("127.0.0.1", "sender@domain", "rcpt1@domain", 1, now + 1));
+        assertEquals(1, store.get("127.0.0.1", "sender@domain", "rcpt1@domain").getCount());
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void testStartLoadsAtMostMaxSize() throws Exception {
+        long now = System.currentTimeMillis();
+        persistence.store(Arrays.asList(new Triplet("127.0.0.1", "sender@domain", "rcpt1@domain", 1, now), new Triplet("127.0.0.1", "sender@domain", "rcpt2@domain", 1, now)));
+        start(1);
+        assertEquals(1, store.size());
+        assertTrue(store.isIncomplete());
+    }
+
+    @Test
+    public void testDisposeFlushes() throws Exception {
+        start();
+        store.put("127.0.0.1", "sender@domain", "rcpt@domain", 0, System.currentTimeMillis());
+        store.dispose();
+        store = null;
+        assertEquals(1, persistence.rows.size());
+    }
+
+}
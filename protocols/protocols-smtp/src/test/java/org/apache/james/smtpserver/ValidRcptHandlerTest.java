@@ -20,22 +20,28 @@ package org.apache.james.smtpserver;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+
+import org.apache.commons.configuration.BaseConfiguration;
 import org.apache.james.domainlist.api.mock.SimpleDomainList;
 import org.apache.james.protocols.api.ProtocolSession.State;
 import org.apache.james.protocols.smtp.MailAddress;
 import org.apache.james.protocols.smtp.SMTPConfiguration;
 import org.apache.james.protocols.smtp.SMTPSession;
+import org.apache.james.protocols.smtp.hook.HookResult;
 import org.apache.james.protocols.smtp.hook.HookReturnCode;
 import org.apache.james.protocols.smtp.utils.BaseFakeSMTPSession;
 import org.apache.james.rrt.api.RecipientRewriteTable;
 import org.apache.james.rrt.api.RecipientRewriteTableException;
+import org.apache.james.smtpserver.fastfail.RecipientFilter;
 import org.apache.james.smtpserver.fastfail.ValidRcptHandler;
 import org.apache.james.user.api.UsersRepository;
 import org.apache.james.user.lib.mock.MockUsersRepository;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -181,7 +187,10 @@ public class ValidRcptHandlerTest {
 
             @Override
             public Map<String, Collection<String>> getAllMappings() throws RecipientRewriteTableException {
-                throw new UnsupportedOperationException("Not implemented");
+                Map<String, Collection<String>> mappings = new HashMap<String, Collection<String>>();
+                mappings.put(USER1 + "@" + VALID_DOMAIN, Collections.singletonList("address@localhost"));
+                mappings.put(USER2 + "@" + VALID_DOMAIN, Collections.singletonList(RecipientRewriteTable.ERROR_PREFIX + "554 BOUNCE"));
+                return mappings;
             }
 
             @Override
@@ -301,4 +310,98 @@ public class ValidRcptHandlerTest {
         assertEquals("Error mapping", rCode, HookReturnCode.DENY);
     }
     
+
+    private RecipientFilter enableRecipientFilter(int maxVerifications) throws Exception {
+        BaseConfiguration config = new BaseConfiguration();
+        config.addProperty("enableRecipientFilter", "true");
+        config.addProperty("recipientFilterRebuildInterval", "0");
+        config.addProperty("recipientFilterMaxVerifications", String.valueOf(maxVerifications));
+        handler.init(config);
+        RecipientFilter filter = handler.getRecipientFilter();
+        long timeout = System.currentTimeMillis() + 10000;
+        while (filter.getLastRebuild() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertTrue("filter built", filter.getLastRebuild() > 0);
+        return filter;
+    }
+
+    @Test
+    public void testRecipientFilter() throws Exception {
+        RecipientFilter filter = enableRecipientFilter(0);
+        try {
+            String[] valid = { VALID_USER, USER1 };
+            for (String user : valid) {
+                MailAddress mailAddress = new MailAddress(user + "@localhost");
+                SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+                assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+            }
+
+            MailAddress mailAddress = new MailAddress(USER2 + "@localhost");
+            SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Error mapping", HookReturnCode.DENY, handler.doRcpt(session, null, mailAddress).getResult());
+
+            mailAddress = new MailAddress(INVALID_USER + "@localhost");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            // may have been created since the last rebuild
+            HookResult result = handler.doRcpt(session, null, mailAddress);
+            assertEquals("Deferred", HookReturnCode.DENYSOFT, result.getResult());
+            assertEquals("450", result.getSmtpRetCode());
+            assertEquals(4, filter.getCheckCount());
+            assertEquals(1, filter.getRejectCount());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testRecipientFilterIncrementalUpdate() throws Exception {
+        RecipientFilter filter = enableRecipientFilter(0);
+        try {
+            users.addUser("newuser", "xxx");
+            MailAddress mailAddress = new MailAddress("newuser@localhost");
+            SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            // not known until the filter is told or rebuilt
+            assertEquals("Deferred", HookReturnCode.DENYSOFT, handler.doRcpt(session, null, mailAddress).getResult());
+
+            filter.addRecipient("newuser");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+        } finally {
+            handler.destroy();
+        }
+    }
+
+    @Test
+    public void testRecipientFilterVerifiesUnknownRecipients() throws Exception {
+        RecipientFilter filter = enableRecipientFilter(1);
+        try {
+            users.addUser("newuser", "xxx");
+            MailAddress mailAddress = new MailAddress("newuser@localhost");
+            SMTPSession session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            // looked up as it may have been created since the last rebuild
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+            assertEquals(1, filter.getVerificationCount());
+
+            // the verification rate is reached
+            MailAddress invalid = new MailAddress(INVALID_USER + "@localhost");
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), invalid, false);
+            assertEquals("Deferred", HookReturnCode.DENYSOFT, handler.doRcpt(session, null, invalid).getResult());
+            assertEquals(1, filter.getRejectCount());
+
+            // looked up again in the next second, and rejected
+            Thread.sleep(1000);
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), invalid, false);
+            assertEquals("Rejected", HookReturnCode.DENY, handler.doRcpt(session, null, invalid).getResult());
+            assertEquals(2, filter.getVerificationCount());
+
+            // the user found was added to the filter
+            session = setupMockedSMTPSession(setupMockedSMTPConfiguration(), mailAddress, false);
+            assertEquals("Not rejected", HookReturnCode.DECLINED, handler.doRcpt(session, null, mailAddress).getResult());
+            assertEquals(2, filter.getVerificationCount());
+        } finally {
+            handler.destroy();
+        }
+    }
+
 }
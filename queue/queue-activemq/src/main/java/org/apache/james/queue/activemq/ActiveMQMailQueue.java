@@ -46,6 +46,8 @@ import org.apache.james.core.MimeMessageInputStream;
 import org.apache.james.core.MimeMessageSource;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.jms.JMSMailQueue;
+import org.apache.james.queue.jms.JMSSessionPool;
+import org.apache.james.queue.jms.JMSSessionPool.ConsumerSession;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 import org.springframework.jms.connection.SessionProxy;
@@ -109,7 +111,22 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
      * @throws NotCompliantMBeanException
      */
     public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final String queuename, boolean useBlob, final Logger logger) {
-        super(connectionFactory, queuename, logger);
+        this(connectionFactory, null, queuename, useBlob, logger);
+    }
+
+    /**
+     * Construct a new ActiveMQ based {@link MailQueue} which use the given
+     * {@link JMSSessionPool} for enqueue and dequeue operations
+     * 
+     * @param connectionFactory
+     * @param sessionPool
+     *            may be null if no pooling should be used
+     * @param queuename
+     * @param useBlob
+     * @param logger
+     */
+    public ActiveMQMailQueue(final ConnectionFactory connectionFactory, final JMSSessionPool sessionPool, final String queuename, boolean useBlob, final Logger logger) {
+        super(connectionFactory, sessionPool, queuename, logger);
         this.useBlob = useBlob;
     }
 
@@ -144,8 +161,7 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
     /**
      * Produce the mail to the JMS Queue
      */
-    protected void produceMail(Session session, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
-        MessageProducer producer = null;
+    protected void produceMail(Session session, MessageProducer producer, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
         BlobMessage blobMessage = null;
         boolean reuse = false;
 
@@ -195,9 +211,6 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
                 // store the queue name in the props
                 props.put(JAMES_QUEUE_NAME, queuename);
 
-                Queue queue = session.createQueue(queuename);
-
-                producer = session.createProducer(queue);
                 for (Map.Entry<String, Object> entry : props.entrySet()) {
                     blobMessage.setObjectProperty(entry.getKey(), entry.getValue());
                 }
@@ -206,21 +219,13 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
               
 
             } else {
-                super.produceMail(session, props, msgPrio, mail);
+                super.produceMail(session, producer, props, msgPrio, mail);
             }
         } catch (JMSException e) {
             if (!reuse && blobMessage != null && blobMessage instanceof ActiveMQBlobMessage) {
                 ((ActiveMQBlobMessage) blobMessage).deleteFile();
             }
             throw e;
-        } finally {
-
-            try {
-                if (producer != null)
-                    producer.close();
-            } catch (JMSException e) {
-                // ignore here
-            }
         }
 
     }
@@ -251,6 +256,12 @@ public class ActiveMQMailQueue extends JMSMailQueue implements ActiveMQSupport {
         return new ActiveMQMailQueueItem(mail, connection, session, consumer, message, logger);
     }
 
+    @Override
+    protected MailQueueItem createMailQueueItem(ConsumerSession consumerSession, Message message) throws JMSException, MessagingException {
+        Mail mail = createMail(message);
+        return new ActiveMQMailQueueItem(mail, sessionPool, consumerSession, message, logger);
+    }
+
     @Override
     public List<Message> removeWithSelector(String selector) throws MailQueueException {
         List<Message> mList = super.removeWithSelector(selector);
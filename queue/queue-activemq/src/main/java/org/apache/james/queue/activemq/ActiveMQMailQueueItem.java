@@ -31,6 +31,8 @@ import org.apache.activemq.command.ActiveMQBlobMessage;
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
 import org.apache.james.queue.jms.JMSMailQueueItem;
+import org.apache.james.queue.jms.JMSSessionPool;
+import org.apache.james.queue.jms.JMSSessionPool.ConsumerSession;
 import org.apache.mailet.Mail;
 import org.slf4j.Logger;
 
@@ -49,6 +51,12 @@ public class ActiveMQMailQueueItem extends JMSMailQueueItem implements ActiveMQS
         this.logger = logger;
     }
 
+    public ActiveMQMailQueueItem(Mail mail, JMSSessionPool sessionPool, ConsumerSession consumerSession, Message message, Logger logger) {
+        super(mail, sessionPool, consumerSession);
+        this.message = message;
+        this.logger = logger;
+    }
+
     /**
      * @see org.apache.james.queue.jms.JMSMailQueueItem#done(boolean)
      */
@@ -19,6 +19,7 @@
 
 package org.apache.james.queue.api;
 
+import java.util.Collection;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
@@ -81,6 +82,17 @@ public interface MailQueue {
      */
     void enQueue(Mail mail) throws MailQueueException;
 
+    /**
+     * Enqueue all the given Mails to the queue. Implementations should take
+     * care to enqueue the Mails as one unit of work, so either all or none of
+     * them are enqueued. This allows to commit many Mails with one operation
+     * instead of doing it for every Mail.
+     * 
+     * @param mails
+     * @throws MailQueueException
+     */
+    void enQueue(Collection<Mail> mails) throws MailQueueException;
+
     /**
      * Dequeue the next ready-to-process Mail of the queue. This method will
      * block until a Mail is ready and then process the operation.
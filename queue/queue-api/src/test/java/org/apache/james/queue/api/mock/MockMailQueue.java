@@ -18,6 +18,7 @@
  ****************************************************************/
 package org.apache.james.queue.api.mock;
 
+import java.util.Collection;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -104,6 +105,17 @@ public class MockMailQueue implements MailQueue {
         }
     }
 
+    @Override
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        if (throwException) {
+            throwException = false;
+            throw new MailQueueException("Mock");
+        }
+        for (Mail mail : mails) {
+            enQueue(mail);
+        }
+    }
+
     public Mail getLastMail() {
         return lastMail;
     }
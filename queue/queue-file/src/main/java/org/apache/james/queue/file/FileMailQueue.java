@@ -20,18 +20,18 @@ package org.apache.james.queue.file;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Map.Entry;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.SortedMap;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
@@ -52,39 +52,127 @@ import org.apache.mailet.Mail;
 /**
  * {@link ManageableMailQueue} implementation which use the fs to store {@link Mail}'s
  * 
- * On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of 
- * loading the needed meta-data into memory for fast access.
+ * The {@link Mail}'s are stored in a {@link FileMailQueueJournal}, which appends them to segment files and keeps
+ * a compact index of them. On create of the {@link FileMailQueue} the {@link #init()} will get called. This takes care of 
+ * loading the needed meta-data from the index into memory for fast access.
  */
-public class FileMailQueue implements ManageableMailQueue {
-    private final ConcurrentHashMap<String, FileItem> keyMappings = new ConcurrentHashMap<String, FileMailQueue.FileItem>();
+public class FileMailQueue implements ManageableMailQueue, Disposable {
     private final BlockingQueue<String> inmemoryQueue = new LinkedBlockingQueue<String>();
     private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
     private final static AtomicLong COUNTER = new AtomicLong();
-    private final String queueDirName;
     private final File queueDir;
+    private final FileMailQueueJournal journal;
+    private final FileMailQueueTimingWheel wheel;
+    private final long tickMillis;
     private final Logger log;
     
     private final boolean sync;
     private final static String MSG_EXTENSION = ".msg";
     private final static String OBJECT_EXTENSION = ".obj";
     private final static String NEXT_DELIVERY = "FileQueueNextDelivery";
+    private final static String JOURNAL_DIR = "journal";
     private final static int SPLITCOUNT = 10;
+    private final static long COMPACTION_INTERVAL = 60;
+
+    public final static long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public final static double DEFAULT_COMPACTION_THRESHOLD = 0.5;
+    public final static long DEFAULT_TICK_MILLIS = 1000;
+    public final static int DEFAULT_WHEEL_SIZE = 64;
 
     public FileMailQueue(File parentDir, String queuename, boolean sync, Logger log) throws IOException {
+        this(parentDir, queuename, sync, DEFAULT_MAX_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD, log);
+    }
+
+    /**
+     * Create a new {@link FileMailQueue}
+     * 
+     * @param parentDir
+     * @param queuename
+     * @param sync
+     *            if true the {@link Mail}'s are synced to disk before the
+     *            enqueue returns
+     * @param maxSegmentSize
+     *            size in bytes after which a new segment file is started
+     * @param compactionThreshold
+     *            segments with a smaller ratio of live data get compacted
+     * @param log
+     * @throws IOException
+     */
+    public FileMailQueue(File parentDir, String queuename, boolean sync, long maxSegmentSize, double compactionThreshold, Logger log) throws IOException {
+        this(parentDir, queuename, sync, maxSegmentSize, compactionThreshold, DEFAULT_TICK_MILLIS, DEFAULT_WHEEL_SIZE, log);
+    }
+
+    /**
+     * Create a new {@link FileMailQueue}
+     * 
+     * @param parentDir
+     * @param queuename
+     * @param sync
+     *            if true the {@link Mail}'s are synced to disk before the
+     *            enqueue returns
+     * @param maxSegmentSize
+     *            size in bytes after which a new segment file is started
+     * @param compactionThreshold
+     *            segments with a smaller ratio of live data get compacted
+     * @param tickMillis
+     *            granularity of the delayed delivery in milliseconds
+     * @param wheelSize
+     *            number of buckets per wheel of the delayed delivery
+     * @param log
+     * @throws IOException
+     */
+    public FileMailQueue(File parentDir, String queuename, boolean sync, long maxSegmentSize, double compactionThreshold, long tickMillis, int wheelSize, Logger log) throws IOException {
         this.log = log;
+        this.tickMillis = tickMillis;
+        this.wheel = new FileMailQueueTimingWheel(tickMillis, wheelSize, System.currentTimeMillis());
         this.sync = sync;
         this.queueDir = new File(parentDir, queuename);
-        this.queueDirName = queueDir.getAbsolutePath();
+        this.journal = new FileMailQueueJournal(new File(queueDir, JOURNAL_DIR), maxSegmentSize, compactionThreshold, log);
         init();
     }
     
     private void init() throws IOException {
-        
+        Map<String, Long> nextDeliveries = journal.open();
+        for (Map.Entry<String, Long> entry : nextDeliveries.entrySet()) {
+            schedule(entry.getKey(), entry.getValue());
+        }
+
+        migrate();
+
+        scheduler.scheduleAtFixedRate(new Runnable() {
+
+            @Override
+            public void run() {
+                List<String> keys = wheel.advance(System.currentTimeMillis());
+                for (int i = 0; i < keys.size(); i++) {
+                    inmemoryQueue.add(keys.get(i));
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    journal.compact();
+                } catch (IOException e) {
+                    log.error("Unable to compact queue " + queueDir, e);
+                }
+            }
+        }, COMPACTION_INTERVAL, COMPACTION_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Move the {@link Mail}'s which were stored by older versions as an object
+     * and a msg file into the journal
+     */
+    private void migrate() throws IOException {
         for (int i = 1; i <= SPLITCOUNT; i++) {
 
             File qDir = new File(queueDir, Integer.toString(i));
-            if (!qDir.exists() && !qDir.mkdirs()) {
-                throw new IOException("Unable to create queue directory " +  qDir);
+            if (!qDir.exists()) {
+                continue;
             }
             
             String[] files = qDir.list(new FilenameFilter() {
@@ -97,53 +185,33 @@ public class FileMailQueue implements ManageableMailQueue {
             for (int a=0; a < files.length; a++) {
                 
                 final String name = files[a];
+                final String key = name.substring(0, name.length() - OBJECT_EXTENSION.length());
+                File objectFile = new File(qDir, name);
+                File msgFile = new File(qDir, key + MSG_EXTENSION);
                 ObjectInputStream oin = null;
+                Mail mail = null;
                 
                 try {
-
-                    final String msgFileName = name.substring(0, name.length() - OBJECT_EXTENSION.length()) + MSG_EXTENSION;
-
-                    FileItem item = new FileItem(qDir.getAbsolutePath() + File.separator + name, qDir.getAbsolutePath() + File.separator + msgFileName);
-
-                    oin = new ObjectInputStream(new FileInputStream(item.getObjectFile()));
-                    Mail mail = (Mail) oin.readObject();
+                    oin = new ObjectInputStream(new FileInputStream(objectFile));
+                    mail = (Mail) oin.readObject();
+                    mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
                     Long next = (Long) mail.getAttribute(NEXT_DELIVERY);
                     if (next == null) {
                         next = 0L;
                     }
 
-                    final String key = mail.getName();
-                    keyMappings.put(key, item);
-                    if (next <= System.currentTimeMillis()) {
-
-                        try {
-                            inmemoryQueue.put(key);
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }
-                    } else {
-
-                        // Schedule a task which will put the mail in the queue
-                        // for processing after a given delay
-                        scheduler.schedule(new Runnable() {
-
-                            @Override
-                            public void run() {
-                                try {
-                                    inmemoryQueue.put(key);
-                                } catch (InterruptedException e) {
-                                    Thread.currentThread().interrupt();
-                                    throw new RuntimeException("Unable to init", e);
-                                }
-                            }
-                        }, next - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+                    journal.sync(journal.append(key, mail, next));
+                    if (!objectFile.delete() || !msgFile.delete()) {
+                        log.warn("Unable to delete migrated files of mail " + key);
                     }
+                    schedule(key, next);
 
                 } catch (ClassNotFoundException e1) {
                     log.error("Unable to load Mail", e1);
                 } catch (IOException e) {
                     log.error("Unable to load Mail", e);
+                } catch (MessagingException e) {
+                    log.error("Unable to load Mail", e);
                 } finally {
                     if (oin != null) {
                         try {
@@ -152,96 +220,119 @@ public class FileMailQueue implements ManageableMailQueue {
                             // ignore on close
                         }
                     }
+                    LifecycleUtil.dispose(mail);
                 }
 
             }
+            if (!qDir.delete()) {
+                log.debug("Unable to delete queue directory " + qDir);
+            }
         }
     }
-    
+
+    /**
+     * Put the key in the queue for processing, either directly or once the
+     * timing wheel reaches the given time
+     */
+    private void schedule(String key, long nextDelivery) {
+        if (nextDelivery <= System.currentTimeMillis()) {
+            inmemoryQueue.add(key);
+        } else {
+            wheel.add(key, nextDelivery);
+        }
+    }
+
+    /**
+     * Return a histogram of the next delivery times of the delayed
+     * {@link Mail}'s. Each entry maps the start of a time slot to the number of
+     * {@link Mail}'s which will get delivered in it. Slots further in the future
+     * are coarser.
+     * 
+     * @return histogram
+     */
+    public SortedMap<Long, Integer> getNextDeliveryHistogram() {
+        return wheel.histogram();
+    }
+
+    /**
+     * Return the number of {@link Mail}'s which wait for their next delivery
+     * 
+     * @return delayed
+     */
+    public int getDelayedCount() {
+        return wheel.size();
+    }
+
+    private String createKey(Mail mail) {
+        return mail.getName() + "-" + COUNTER.incrementAndGet();
+    }
+
+    private long nextDelivery(Mail mail, long delay, TimeUnit unit) {
+        if (delay > 0) {
+            long next = System.currentTimeMillis() + unit.toMillis(delay);
+            mail.setAttribute(NEXT_DELIVERY, next);
+            return next;
+        }
+        return 0;
+    }
+
     @Override
     public void enQueue(final Mail mail, long delay, TimeUnit unit) throws MailQueueException {
-        final String key = mail.getName() + "-" + COUNTER.incrementAndGet();
-        FileOutputStream out = null;
-        FileOutputStream foout = null;
-        ObjectOutputStream oout = null;
+        final String key = createKey(mail);
         try {
-            int i = (int) (Math.random() * SPLITCOUNT + 1);
+            long next = nextDelivery(mail, delay, unit);
+            long seq = journal.append(key, mail, next);
+            if (sync) journal.sync(seq);
 
-            
-            String name = queueDirName + "/" + i + "/" + key;
-            
-            final FileItem item = new FileItem(name + OBJECT_EXTENSION, name + MSG_EXTENSION);
-            if (delay > 0) {
-                mail.setAttribute(NEXT_DELIVERY, System.currentTimeMillis() + unit.toMillis(delay));
-            }
-            foout = new FileOutputStream(item.getObjectFile());
-            oout = new ObjectOutputStream(foout);
-            oout.writeObject(mail);
-            oout.flush();
-            if (sync) foout.getFD().sync();
-            out = new FileOutputStream(item.getMessageFile());
-           
-            mail.getMessage().writeTo(out);
-            out.flush();
-            if (sync) out.getFD().sync();
-            
-            keyMappings.put(key, item);
-
-            if (delay > 0) {
-                // The message should get delayed so schedule it for later
-                scheduler.schedule(new Runnable() {
-                    
-                    @Override
-                    public void run() {
-                        try {                           
-                            inmemoryQueue.put(key);
-
-                        } catch (InterruptedException e) {
-                            Thread.currentThread().interrupt();
-                            throw new RuntimeException("Unable to init", e);
-                        }                                
-                    }
-                }, delay, unit);
-            
-            } else {
-                inmemoryQueue.put(key);
-            }
+            schedule(key, next);
             
             //TODO: Think about exception handling in detail
-        } catch (FileNotFoundException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
         } catch (IOException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-
         } catch (MessagingException e) {
             throw new MailQueueException("Unable to enqueue mail", e);
-        } catch (InterruptedException e) {
-            throw new MailQueueException("Unable to enqueue mail", e);
+        }
 
-        } finally {
-            if (out != null) {
-                try {
-                    out.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+    }
+
+    /**
+     * Enqueue all mails. The mails are appended to the journal first and then
+     * synced as a group, so the cost of the sync is shared by all of them.
+     * If one of the mails can not be written, none of them is enqueued.
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    @Override
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        List<String> keys = new ArrayList<String>(mails.size());
+        boolean success = false;
+        try {
+            long seq = 0;
+            for (Mail mail : mails) {
+                String key = createKey(mail);
+                seq = journal.append(key, mail, 0);
+                keys.add(key);
             }
-            if (oout != null) {
-                try {
-                    oout.close();
-                } catch (IOException e) {
-                    // ignore on close
-                }
+            if (sync) journal.sync(seq);
+            success = true;
+            for (String key : keys) {
+                schedule(key, 0);
             }
-            if (foout != null) {
-                try {
-                    foout.close();
-                } catch (IOException e) {
-                    // ignore on close
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to enqueue mails", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to enqueue mails", e);
+        } finally {
+            if (!success) {
+                for (String key : keys) {
+                    try {
+                        journal.remove(key);
+                    } catch (IOException e) {
+                        log.debug("Unable to remove not enqueued mail " + key, e);
+                    }
                 }
             }
         }
-
     }
 
     @Override
@@ -252,32 +343,26 @@ public class FileMailQueue implements ManageableMailQueue {
     @Override
     public MailQueueItem deQueue() throws MailQueueException {
         try {
-            FileItem item = null;
+            Mail m = null;
             String k = null;
-            while (item == null) {
+            while (m == null) {
                 k = inmemoryQueue.take();
                 
-                item = keyMappings.get(k);
+                m = journal.read(k);
 
             }
             final String key = k;
-            final FileItem fitem = item;
-            ObjectInputStream oin = null;
-            try {
-                final File objectFile = new File(fitem.getObjectFile());
-                final File msgFile = new File(fitem.getMessageFile());
-                oin = new ObjectInputStream(new FileInputStream(objectFile));
-                final Mail mail = (Mail) oin.readObject();
-                mail.setMessage(new MimeMessageCopyOnWriteProxy(new FileMimeMessageSource(msgFile)));
-                return new MailQueueItem() {
-
-                    @Override
-                    public Mail getMail() {
-                        return mail;
-                    }
+            final Mail mail = m;
+            return new MailQueueItem() {
+
+                @Override
+                public Mail getMail() {
+                    return mail;
+                }
 
-                    @Override
-                    public void done(boolean success) throws MailQueueException {
+                @Override
+                public void done(boolean success) throws MailQueueException {
+                    try {
                         if (!success) {
                             try {
                                 inmemoryQueue.put(key);
@@ -286,40 +371,44 @@ public class FileMailQueue implements ManageableMailQueue {
                                 throw new MailQueueException("Unable to rollback", e);
                             }
                         } else {
-                            fitem.delete();
-                            keyMappings.remove(key);
+                            try {
+                                journal.remove(key);
+                            } catch (IOException e) {
+                                throw new MailQueueException("Unable to delete mail", e);
+                            }
                         }
-
+                    } finally {
                         LifecycleUtil.dispose(mail);
                     }
-                };
-                
-                // TODO: Think about exception handling in detail
-            } catch (FileNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (IOException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (ClassNotFoundException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-            } catch (MessagingException e) {
-                throw new MailQueueException("Unable to dequeue", e);
-                
-            } finally {
-                if (oin != null) {
-                    try {
-                        oin.close();
-                    } catch (IOException e) {
-                        // ignore on close
-                    }
                 }
-            }
-
+            };
+                
+            // TODO: Think about exception handling in detail
+        } catch (IOException e) {
+            throw new MailQueueException("Unable to dequeue", e);
+        } catch (MessagingException e) {
+            throw new MailQueueException("Unable to dequeue", e);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new MailQueueException("Unable to dequeue", e);
         }
     }
 
+    /**
+     * Close the journal and stop the scheduler
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    @Override
+    public void dispose() {
+        scheduler.shutdownNow();
+        journal.close();
+    }
+
+    /**
+     * {@link MimeMessageSource} for the msg files which were written by older
+     * versions
+     */
     private final class FileMimeMessageSource extends MimeMessageSource implements Disposable{
 
         private File file;
@@ -362,58 +451,21 @@ public class FileMailQueue implements ManageableMailQueue {
         }
         
     }
-    
-    /**
-     * Helper class which is used to reference the path to the object and msg file
-     */
-    private final class FileItem {
-        private String objectfile;
-        private String messagefile;
-
-        public FileItem(String objectfile, String messagefile) {
-            this.objectfile = objectfile;
-            this.messagefile = messagefile;
-        }
-        
-        
-        public String getObjectFile() {
-            return objectfile;
-        }
-        
-        public String getMessageFile() {
-            return messagefile;
-        }
-        
-        public void delete() throws MailQueueException {
-            File msgFile = new File(getMessageFile());
-            File objectFile = new File(getObjectFile());
-            
-            if (objectFile.exists()) {
-                if (!objectFile.delete()) {
-                    throw new MailQueueException("Unable to delete mail");
-                } 
-            }
-            if (msgFile.exists()) {
-                if (!msgFile.delete()) {
-                    log.debug("Remove of msg file for mail failed");
-                }
-                
-            }
-        }
-        
-    }
 
     @Override
     public long getSize() throws MailQueueException {
-        return keyMappings.size();
+        return journal.size();
     }
 
     @Override
     public long flush() throws MailQueueException {
-        Iterator<String> keys = keyMappings.keySet().iterator();
+        Iterator<String> keys = journal.keys().iterator();
         long i = 0;
         while(keys.hasNext()) {
             String key = keys.next();
+            // delayed mails are delivered now instead of once their time is
+            // reached
+            wheel.remove(key);
             if (inmemoryQueue.contains(key) == false) {
                 inmemoryQueue.add(key);
                 i++;
@@ -424,17 +476,18 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public long clear() throws MailQueueException {
-        final Iterator<Entry<String, FileItem>> items = keyMappings.entrySet().iterator();
+        final Iterator<String> keys = journal.keys().iterator();
         long count = 0;
-        while(items.hasNext()) {
-            Entry<String, FileItem> entry = items.next();
-            FileItem item = entry.getValue();
-            String key = entry.getKey();
-           
-            item.delete();
-            keyMappings.remove(key);
-            count++;
-
+        while(keys.hasNext()) {
+            String key = keys.next();
+            try {
+                if (journal.remove(key)) {
+                    wheel.remove(key);
+                    count++;
+                }
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to delete mail", e);
+            }
         }
         return count;
     }
@@ -448,12 +501,15 @@ public class FileMailQueue implements ManageableMailQueue {
     public long remove(Type type, String value) throws MailQueueException {
         switch (type) {
         case Name:
-            FileItem item = keyMappings.remove(value);
-            if (item != null) {
-                item.delete();
-                return 1;
-            } else {
-                return 0;
+            try {
+                if (journal.remove(value)) {
+                    wheel.remove(value);
+                    return 1;
+                } else {
+                    return 0;
+                }
+            } catch (IOException e) {
+                throw new MailQueueException("Unable to delete mail", e);
             }
             
         default:
@@ -465,7 +521,7 @@ public class FileMailQueue implements ManageableMailQueue {
 
     @Override
     public MailQueueIterator browse() throws MailQueueException {
-        final Iterator<FileItem> items = keyMappings.values().iterator();
+        final Iterator<String> keys = journal.keys().iterator();
         return new MailQueueIterator() {
             private MailQueueItemView item = null;
 
@@ -489,16 +545,20 @@ public class FileMailQueue implements ManageableMailQueue {
             @Override
             public boolean hasNext() {
                 if (item == null) {
-                    while (items.hasNext()) {
-                        ObjectInputStream in = null;
+                    while (keys.hasNext()) {
+                        String key = keys.next();
                         try {
-                            in = new ObjectInputStream(new FileInputStream(items.next().getObjectFile()));
-                            final Mail mail = (Mail) in.readObject();
+                            final Mail mail = journal.readWithoutMessage(key);
+                            if (mail == null) {
+                                // removed in the meantime
+                                continue;
+                            }
+                            final long nextDelivery = journal.getNextDelivery(key);
                             item = new MailQueueItemView() {
 
                                 @Override
                                 public long getNextDelivery() {
-                                    return (Long) mail.getAttribute(NEXT_DELIVERY);
+                                    return nextDelivery;
                                 }
 
                                 @Override
@@ -507,21 +567,10 @@ public class FileMailQueue implements ManageableMailQueue {
                                 }
                             };
                             return true;
-                        } catch (FileNotFoundException e) {
-                            log.info("Unable to load mail", e);
                         } catch (IOException e) {
                             log.info("Unable to load mail", e);
-
-                        } catch (ClassNotFoundException e) {
+                        } catch (MessagingException e) {
                             log.info("Unable to load mail", e);
-                        } finally {
-                            if (in != null) {
-                                try {
-                                    in.close();
-                                } catch (IOException e) {
-                                    // ignore on close
-                                }
-                            }
                         }
                     }
                     return false;
@@ -20,11 +20,14 @@ package org.apache.james.queue.file;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
+import javax.annotation.PreDestroy;
 import javax.inject.Inject;
 
 import org.apache.james.filesystem.api.FileSystem;
+import org.apache.james.lifecycle.api.LifecycleUtil;
 import org.apache.james.lifecycle.api.LogEnabled;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.MailQueueFactory;
@@ -39,8 +42,12 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
     private FileSystem fs;
     private Logger log;
     private boolean sync = true;
+    private long maxSegmentSize = FileMailQueue.DEFAULT_MAX_SEGMENT_SIZE;
+    private double compactionThreshold = FileMailQueue.DEFAULT_COMPACTION_THRESHOLD;
+    private long tickMillis = FileMailQueue.DEFAULT_TICK_MILLIS;
+    private int wheelSize = FileMailQueue.DEFAULT_WHEEL_SIZE;
     
-    @Inject
+    @Inject
     public void setFileSystem(FileSystem fs) {
         this.fs = fs;
     }
@@ -57,6 +64,63 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
         this.sync = sync;
     }
     
+    /**
+     * Size in bytes after which the journal of a {@link FileMailQueue} starts a new segment file.
+     * 
+     * The default is 64MB
+     * 
+     * @param maxSegmentSize
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Segments of the journal whose ratio of still queued data drops below the given threshold
+     * get compacted by copying the remaining mails to a new segment.
+     * 
+     * The default is <code>0.5</code>
+     * 
+     * @param compactionThreshold
+     */
+    public void setCompactionThreshold(double compactionThreshold) {
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * Granularity in milliseconds with which delayed {@link org.apache.mailet.Mail}'s get delivered.
+     * 
+     * The default is <code>1000</code>
+     * 
+     * @param tickMillis
+     */
+    public void setTickMillis(long tickMillis) {
+        this.tickMillis = tickMillis;
+    }
+
+    /**
+     * Number of buckets per wheel which hold the delayed {@link org.apache.mailet.Mail}'s. Delays longer than
+     * <code>tickMillis * wheelSize</code> are kept in coarser wheels.
+     * 
+     * The default is <code>64</code>
+     * 
+     * @param wheelSize
+     */
+    public void setWheelSize(int wheelSize) {
+        this.wheelSize = wheelSize;
+    }
+
+    @PreDestroy
+    public void destroy() {
+        synchronized (queues) {
+            Iterator<MailQueue> it = queues.values().iterator();
+            while (it.hasNext()) {
+                LifecycleUtil.dispose(it.next());
+            }
+            queues.clear();
+        }
+    }
+    
     /**
      * @see org.apache.james.queue.api.MailQueueFactory#getQueue(java.lang.String)
      */
@@ -65,7 +129,7 @@ public class FileMailQueueFactory implements MailQueueFactory, LogEnabled{
         if (queue == null) {
             synchronized (queues) {
                 try {
-                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, log);
+                    queue = new FileMailQueue(fs.getFile("file://var/store/queue"), name, sync, maxSegmentSize, compactionThreshold, tickMillis, wheelSize, log);
                     queues.put(name, queue);
                 } catch (IOException e) {
                     throw new RuntimeException("Unable to access queue " + name, e);
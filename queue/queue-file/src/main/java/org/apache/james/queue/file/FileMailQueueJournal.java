@@ -0,0 +1,1082 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.core.MimeMessageSource;
+import org.apache.james.lifecycle.api.Disposable;
+import org.apache.mailet.Mail;
+import org.slf4j.Logger;
+
+/**
+ * Append-only store for the {@link Mail}s of a {@link FileMailQueue}.
+ * <p>
+ * The serialized {@link Mail} and its message are appended to segment files.
+ * Every change is recorded in a compact index log, which holds the position of
+ * each {@link Mail} in the segments and its next delivery time. On startup
+ * only the index log is read, so there is no need to deserialize every stored
+ * {@link Mail}.
+ * </p>
+ * <p>
+ * Callers append without syncing and then call {@link #sync(long)}. Concurrent
+ * callers share one <code>fsync</code> (group commit). The space of a
+ * {@link Mail} is reserved in the active segment under the write lock, but the
+ * {@link Mail} itself is written outside of it, so concurrent appends do not
+ * wait for each other's messages.
+ * </p>
+ * <p>
+ * Segments which contain only a small amount of live data are compacted by
+ * {@link #compact()}, which copies the live records to the active segment and
+ * deletes the old one.
+ * </p>
+ * <p>
+ * If the index log is damaged, its entries are read up to the damage and the
+ * log is kept as <code>index.log.&lt;time&gt;.corrupt</code>. As long as such a
+ * file exists no segment is deleted on startup, because the lost entries may
+ * point to it.
+ * </p>
+ */
+public class FileMailQueueJournal {
+
+    private final static String SEGMENT_PREFIX = "segment-";
+    private final static String SEGMENT_EXTENSION = ".dat";
+    private final static String INDEX_FILE = "index.log";
+    private final static String INDEX_TMP_FILE = "index.tmp";
+    private final static String INDEX_CORRUPT_EXTENSION = ".corrupt";
+    private final static byte ADD = 1;
+    private final static byte REMOVE = 2;
+
+    /**
+     * Minimal count of obsolete index entries before the index log gets
+     * rewritten
+     */
+    private final static int MIN_INDEX_REWRITE = 1000;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final double compactionThreshold;
+    private final Logger log;
+
+    private final Object writeLock = new Object();
+    private final Object syncLock = new Object();
+    private final Object compactLock = new Object();
+
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<Integer, Segment>();
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    private Segment active;
+    private RandomAccessFile indexFile;
+    private FileChannel indexChannel;
+    private int obsoleteIndexEntries;
+
+    private long writeSeq;
+    private long syncedSeq;
+
+    /**
+     * Create a new journal
+     * 
+     * @param dir
+     *            the directory in which the segments and the index are stored
+     * @param maxSegmentSize
+     *            the size in bytes after which a new segment is started
+     * @param compactionThreshold
+     *            segments with a smaller ratio of live data get compacted
+     * @param log
+     */
+    public FileMailQueueJournal(File dir, long maxSegmentSize, double compactionThreshold, Logger log) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.compactionThreshold = compactionThreshold;
+        this.log = log;
+    }
+
+    /**
+     * Open the journal and recover the stored entries from the index log
+     * 
+     * @return nextDeliveries the keys of all stored {@link Mail}s mapped to
+     *         their next delivery time
+     * @throws IOException
+     */
+    public Map<String, Long> open() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Unable to create queue directory " + dir);
+        }
+
+        int maxId = 0;
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION)) {
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+                segments.put(id, new Segment(id, files[i], false));
+                maxId = Math.max(maxId, id);
+            }
+        }
+
+        boolean complete = recoverIndex();
+        boolean keepSegments = !complete || hasCorruptIndex();
+
+        synchronized (writeLock) {
+            active = new Segment(maxId + 1, segmentFile(maxId + 1), true);
+            segments.put(active.id, active);
+
+            // remove all segments which do not contain any live data. If index
+            // entries got lost, the segments are left on disk untouched
+            for (Segment segment : new ArrayList<Segment>(segments.values())) {
+                if (segment != active && segment.liveCount == 0) {
+                    if (keepSegments && segment.size > 0) {
+                        log.warn("Keep segment " + segment.file + " without live data as the index log of queue " + dir + " was damaged");
+                        segments.remove(segment.id);
+                        segment.close();
+                    } else {
+                        retire(segment);
+                    }
+                }
+            }
+            rewriteIndex();
+        }
+
+        Map<String, Long> nextDeliveries = new HashMap<String, Long>();
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            nextDeliveries.put(e.getKey(), e.getValue().nextDelivery);
+        }
+        return nextDeliveries;
+    }
+
+    /**
+     * Read the index log and apply all entries up to the first torn or corrupt
+     * one. In this case the damaged log is kept for a manual recovery and the
+     * rest of it is cut off.
+     * 
+     * @return complete true if the whole log could be read
+     */
+    private boolean recoverIndex() throws IOException {
+        File file = new File(dir, INDEX_FILE);
+        if (!file.exists()) {
+            return true;
+        }
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+        DataInputStream in = new DataInputStream(counter);
+        long validLength = 0;
+        boolean complete = true;
+        try {
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                String key = in.readUTF();
+                if (type == ADD) {
+                    entries.put(key, new Entry(in.readInt(), in.readLong(), in.readInt(), in.readLong(), in.readLong(), in.readInt(), in.readInt()));
+                } else if (type == REMOVE) {
+                    entries.remove(key);
+                } else {
+                    throw new IOException("Unknown index entry type " + type);
+                }
+                validLength = counter.count;
+            }
+        } catch (IOException e) {
+            log.warn("Index log of queue " + dir + " is damaged at position " + validLength + ", ignore the rest of it", e);
+            complete = false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+
+        if (!complete) {
+            File corrupt = new File(dir, INDEX_FILE + "." + System.currentTimeMillis() + INDEX_CORRUPT_EXTENSION);
+            if (!file.renameTo(corrupt)) {
+                throw new IOException("Unable to rename damaged index " + file + " to " + corrupt);
+            }
+        }
+
+        // entries of compacted segments are superseded later in the log, so
+        // only check the final state for missing data
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Entry> e = it.next();
+            Entry entry = e.getValue();
+            Segment segment = segments.get(entry.segment);
+            if (segment == null || entry.offset + entry.length() > segment.file.length()) {
+                log.warn("Ignore index entry for mail " + e.getKey() + " as the data is missing");
+                it.remove();
+            } else {
+                segment.addLive(entry);
+            }
+        }
+        return complete;
+    }
+
+    private boolean hasCorruptIndex() {
+        String[] names = dir.list();
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].startsWith(INDEX_FILE) && names[i].endsWith(INDEX_CORRUPT_EXTENSION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Append the given {@link Mail} to the active segment. The data is not
+     * synced to disk, use {@link #sync(long)} with the returned sequence for
+     * this.
+     * <p>
+     * The message is written twice: once to get its size, so that its space
+     * can be reserved, and once to the reserved space. If the append fails the
+     * reserved space is left unused until the segment gets compacted.
+     * </p>
+     * 
+     * @param key
+     * @param mail
+     * @param nextDelivery
+     * @return sequence
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public long append(String key, Mail mail, long nextDelivery) throws IOException, MessagingException {
+        ByteArrayOutputStream objOut = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(objOut);
+        oout.writeObject(mail);
+        oout.close();
+        byte[] obj = objOut.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(obj);
+        // the checksum of the message is taken from the bytes which are
+        // actually written
+        CRC32 msgCrc = new CRC32();
+
+        MimeMessage message = mail.getMessage();
+        CountingOutputStream counter = new CountingOutputStream();
+        message.writeTo(counter);
+        long msgLength = counter.count;
+
+        Segment segment;
+        long offset;
+        synchronized (writeLock) {
+            ensureOpen();
+            if (active.size >= maxSegmentSize) {
+                roll();
+            }
+            segment = active;
+            offset = segment.size;
+            segment.size += obj.length + msgLength;
+            segment.pendingWrites++;
+        }
+        try {
+            writeFully(segment.channel, ByteBuffer.wrap(obj), offset);
+            long end = offset + obj.length + msgLength;
+            ChannelOutputStream out = new ChannelOutputStream(segment.channel, offset + obj.length, end, msgCrc);
+            message.writeTo(out);
+            out.flush();
+            if (out.position != end) {
+                throw new IOException("Message of mail " + key + " changed while it was written");
+            }
+
+            synchronized (writeLock) {
+                ensureOpen();
+                if (segment != active) {
+                    // the segment was rolled while the mail was written, so
+                    // the sync of the roll did not cover it
+                    segment.channel.force(false);
+                }
+                Entry entry = new Entry(segment.id, offset, obj.length, msgLength, nextDelivery, (int) crc.getValue(), (int) msgCrc.getValue());
+                writeIndex(ADD, key, entry);
+                put(key, entry);
+                return ++writeSeq;
+            }
+        } finally {
+            synchronized (writeLock) {
+                segment.pendingWrites--;
+            }
+        }
+    }
+
+    /**
+     * Remove the {@link Mail} with the given key
+     * 
+     * @param key
+     * @return removed
+     * @throws IOException
+     */
+    public boolean remove(String key) throws IOException {
+        synchronized (writeLock) {
+            ensureOpen();
+            Entry entry = entries.remove(key);
+            if (entry == null) {
+                return false;
+            }
+            writeIndex(REMOVE, key, null);
+            writeSeq++;
+            obsoleteIndexEntries += 2;
+            Segment segment = segments.get(entry.segment);
+            if (segment != null) {
+                segment.removeLive(entry);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Make sure all data up to the given sequence is synced to disk. If
+     * another thread is syncing right now, this call waits for it and returns
+     * without an extra sync if the data was covered.
+     * 
+     * @param seq
+     * @throws IOException
+     */
+    public void sync(long seq) throws IOException {
+        synchronized (syncLock) {
+            if (syncedSeq >= seq) {
+                return;
+            }
+            FileChannel segmentChannel;
+            synchronized (writeLock) {
+                ensureOpen();
+                segmentChannel = active.channel;
+            }
+            // flush the bulk of the data without blocking the appends. A
+            // closed channel was synced on segment roll
+            try {
+                segmentChannel.force(false);
+            } catch (ClosedChannelException e) {
+                // already synced
+            }
+            synchronized (writeLock) {
+                ensureOpen();
+                // appends may have written index entries since then, so the
+                // data is synced once more before the index. No entry can be
+                // added in between, so a synced index entry always points to
+                // synced data. Segments rolled in the meantime were synced by
+                // the roll or by the append which wrote to them
+                active.channel.force(false);
+                indexChannel.force(false);
+                syncedSeq = writeSeq;
+            }
+        }
+    }
+
+    /**
+     * Sync all data which was written until now
+     * 
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        long seq;
+        synchronized (writeLock) {
+            seq = writeSeq;
+        }
+        sync(seq);
+    }
+
+    /**
+     * Read the {@link Mail} with the given key. The message of the returned
+     * {@link Mail} is read lazy from the segment.
+     * 
+     * @param key
+     * @return mail or null if no {@link Mail} is stored for the key
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public Mail read(String key) throws IOException, MessagingException {
+        return read(key, true);
+    }
+
+    /**
+     * Read the {@link Mail} with the given key without its message. This is
+     * useful to inspect the stored {@link Mail}s.
+     * 
+     * @param key
+     * @return mail or null if no {@link Mail} is stored for the key
+     * @throws IOException
+     * @throws MessagingException
+     */
+    public Mail readWithoutMessage(String key) throws IOException, MessagingException {
+        return read(key, false);
+    }
+
+    private Mail read(String key, boolean withMessage) throws IOException, MessagingException {
+        while (true) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            Segment segment = segments.get(entry.segment);
+            // if the segment is gone the entry was moved by a compaction, so
+            // just try again
+            if (segment != null && segment.acquire()) {
+                boolean success = false;
+                try {
+                    ByteBuffer buf = ByteBuffer.allocate(entry.objLength);
+                    readFully(segment.channel, buf, entry.offset);
+                    CRC32 crc = new CRC32();
+                    crc.update(buf.array());
+                    if ((int) crc.getValue() != entry.crc) {
+                        throw new IOException("Checksum mismatch for mail " + key + " in " + segment.file);
+                    }
+                    if (withMessage && messageCrc(segment, entry) != entry.msgCrc) {
+                        throw new IOException("Checksum mismatch for message of mail " + key + " in " + segment.file);
+                    }
+                    ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(buf.array()));
+                    Mail mail;
+                    try {
+                        mail = (Mail) oin.readObject();
+                    } catch (ClassNotFoundException e) {
+                        throw new IOException("Unable to read mail " + key + ": " + e.getMessage());
+                    }
+                    if (withMessage) {
+                        mail.setMessage(new MimeMessageCopyOnWriteProxy(new SegmentMimeMessageSource(segment, entry.offset + entry.objLength, entry.msgLength)));
+                        success = true;
+                    }
+                    return mail;
+                } finally {
+                    // the message source keeps the segment until it is
+                    // disposed
+                    if (!success) {
+                        segment.release();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Calculate the checksum of the message stored for the given entry
+     */
+    private static int messageCrc(Segment segment, Entry entry) throws IOException {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(entry.msgLength, 8192));
+        long position = entry.offset + entry.objLength;
+        long end = position + entry.msgLength;
+        while (position < end) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), end - position));
+            readFully(segment.channel, buf, position);
+            crc.update(buf.array(), 0, buf.limit());
+            position += buf.limit();
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Return the next delivery time of the {@link Mail} with the given key
+     * 
+     * @param key
+     * @return nextDelivery or -1 if no {@link Mail} is stored for the key
+     */
+    public long getNextDelivery(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return -1;
+        }
+        return entry.nextDelivery;
+    }
+
+    /**
+     * Return true if a {@link Mail} is stored for the given key
+     * 
+     * @param key
+     * @return contains
+     */
+    public boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * Return the keys of all stored {@link Mail}s
+     * 
+     * @return keys
+     */
+    public Set<String> keys() {
+        return entries.keySet();
+    }
+
+    /**
+     * Return the count of stored {@link Mail}s
+     * 
+     * @return size
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Compact the segments which contain less live data than the configured
+     * threshold. The live records are copied to the active segment and the old
+     * segment gets deleted. The index log is rewritten if it contains too many
+     * obsolete entries.
+     * <p>
+     * Like an append, a record only reserves its space in the active segment
+     * under the write lock and is copied outside of it.
+     * </p>
+     * 
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            compactSegments();
+        }
+    }
+
+    private void compactSegments() throws IOException {
+        List<Segment> candidates = new ArrayList<Segment>();
+        synchronized (writeLock) {
+            ensureOpen();
+            for (Segment segment : segments.values()) {
+                if (segment == active || segment.retired || segment.pendingWrites > 0) {
+                    continue;
+                }
+                if (segment.liveCount == 0) {
+                    retire(segment);
+                } else if (segment.liveBytes < segment.size * compactionThreshold) {
+                    candidates.add(segment);
+                }
+            }
+        }
+
+        for (Segment segment : candidates) {
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (e.getValue().segment == segment.id) {
+                    move(e.getKey(), e.getValue(), segment);
+                }
+            }
+            // make sure the copies are on disk before the old data is deleted
+            sync();
+            synchronized (writeLock) {
+                if (segment.liveCount == 0 && segment.pendingWrites == 0) {
+                    retire(segment);
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            if (obsoleteIndexEntries > Math.max(MIN_INDEX_REWRITE, entries.size())) {
+                rewriteIndex();
+            }
+        }
+    }
+
+    /**
+     * Copy the record of the given entry from its segment to the active
+     * segment. If the {@link Mail} is removed or replaced during the copy, the
+     * copied record is left unused until its segment gets compacted.
+     */
+    private void move(String key, Entry entry, Segment segment) throws IOException {
+        long length = entry.length();
+        Segment target;
+        long offset;
+        synchronized (writeLock) {
+            ensureOpen();
+            if (entries.get(key) != entry) {
+                return;
+            }
+            if (active.size >= maxSegmentSize) {
+                roll();
+            }
+            target = active;
+            offset = target.size;
+            target.size += length;
+            target.pendingWrites++;
+        }
+        try {
+            // appends write at explicit positions, so only the compaction
+            // uses the position of the channel
+            long copied = 0;
+            while (copied < length) {
+                long transferred = segment.channel.transferTo(entry.offset + copied, length - copied, target.channel.position(offset + copied));
+                if (transferred <= 0) {
+                    throw new EOFException("Unexpected end of segment " + segment.file);
+                }
+                copied += transferred;
+            }
+
+            synchronized (writeLock) {
+                ensureOpen();
+                if (entries.get(key) != entry) {
+                    return;
+                }
+                if (target != active) {
+                    target.channel.force(false);
+                }
+                Entry moved = new Entry(target.id, offset, entry.objLength, entry.msgLength, entry.nextDelivery, entry.crc, entry.msgCrc);
+                writeIndex(ADD, key, moved);
+                writeSeq++;
+                obsoleteIndexEntries++;
+                segment.removeLive(entry);
+                put(key, moved);
+            }
+        } finally {
+            synchronized (writeLock) {
+                target.pendingWrites--;
+            }
+        }
+    }
+
+    /**
+     * Close the journal. All data is synced before
+     */
+    public void close() {
+        synchronized (writeLock) {
+            if (indexChannel == null) {
+                return;
+            }
+            try {
+                active.channel.force(false);
+                indexChannel.force(false);
+            } catch (IOException e) {
+                log.warn("Unable to sync journal " + dir + " on close", e);
+            }
+            for (Segment segment : segments.values()) {
+                segment.close();
+            }
+            try {
+                indexFile.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+            indexChannel = null;
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (indexChannel == null) {
+            throw new IOException("Journal " + dir + " is not open");
+        }
+    }
+
+    private void put(String key, Entry entry) {
+        entries.put(key, entry);
+        segments.get(entry.segment).addLive(entry);
+    }
+
+    /**
+     * Start a new active segment. Must be called with the write lock hold.
+     */
+    private void roll() throws IOException {
+        active.channel.force(false);
+        indexChannel.force(false);
+        Segment segment = new Segment(active.id + 1, segmentFile(active.id + 1), true);
+        segments.put(segment.id, segment);
+        active = segment;
+    }
+
+    /**
+     * Mark the segment as retired. It gets deleted once no message is read
+     * from it anymore. Must be called with the write lock hold.
+     */
+    private void retire(Segment segment) {
+        segments.remove(segment.id);
+        segment.retire();
+    }
+
+    /**
+     * Write all live entries to a new index log and replace the current one
+     * with it. Must be called with the write lock hold.
+     */
+    private void rewriteIndex() throws IOException {
+        File tmp = new File(dir, INDEX_TMP_FILE);
+        RandomAccessFile tmpFile = new RandomAccessFile(tmp, "rw");
+        try {
+            tmpFile.setLength(0);
+            FileChannel tmpChannel = tmpFile.getChannel();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                writeEntry(out, ADD, e.getKey(), e.getValue());
+                if (bytes.size() > 64 * 1024) {
+                    out.flush();
+                    writeFully(tmpChannel, ByteBuffer.wrap(bytes.toByteArray()), tmpChannel.size());
+                    bytes.reset();
+                }
+            }
+            out.flush();
+            writeFully(tmpChannel, ByteBuffer.wrap(bytes.toByteArray()), tmpChannel.size());
+            tmpChannel.force(false);
+            // the segments need to be on disk before the new index is used
+            if (active != null) {
+                active.channel.force(false);
+            }
+        } finally {
+            tmpFile.close();
+        }
+
+        if (indexFile != null) {
+            indexFile.close();
+        }
+        File file = new File(dir, INDEX_FILE);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Unable to delete old index " + file);
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Unable to rename index " + tmp + " to " + file);
+        }
+        indexFile = new RandomAccessFile(file, "rw");
+        indexChannel = indexFile.getChannel();
+        obsoleteIndexEntries = 0;
+    }
+
+    /**
+     * Append an entry to the index log. Must be called with the write lock
+     * hold.
+     */
+    private void writeIndex(byte type, String key, Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeEntry(out, type, key, entry);
+        out.flush();
+        long position = indexChannel.size();
+        try {
+            writeFully(indexChannel, ByteBuffer.wrap(bytes.toByteArray()), position);
+        } catch (IOException e) {
+            // never leave a partial entry in the middle of the log
+            indexChannel.truncate(position);
+            throw e;
+        }
+    }
+
+    private void writeEntry(DataOutputStream out, byte type, String key, Entry entry) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(key);
+        if (type == ADD) {
+            out.writeInt(entry.segment);
+            out.writeLong(entry.offset);
+            out.writeInt(entry.objLength);
+            out.writeLong(entry.msgLength);
+            out.writeLong(entry.nextDelivery);
+            out.writeInt(entry.crc);
+            out.writeInt(entry.msgCrc);
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%010d", id) + SEGMENT_EXTENSION);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int read = channel.read(buf, position);
+            if (read < 0) {
+                throw new EOFException("Unexpected end of segment");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Position of a stored {@link Mail} in the segments
+     */
+    private final static class Entry {
+        private final int segment;
+        private final long offset;
+        private final int objLength;
+        private final long msgLength;
+        private final long nextDelivery;
+        private final int crc;
+        private final int msgCrc;
+
+        public Entry(int segment, long offset, int objLength, long msgLength, long nextDelivery, int crc, int msgCrc) {
+            this.segment = segment;
+            this.offset = offset;
+            this.objLength = objLength;
+            this.msgLength = msgLength;
+            this.nextDelivery = nextDelivery;
+            this.crc = crc;
+            this.msgCrc = msgCrc;
+        }
+
+        public long length() {
+            return objLength + msgLength;
+        }
+    }
+
+    /**
+     * A segment file. The size, the live counters and the pending writes are
+     * guarded by the write lock of the journal.
+     */
+    private final class Segment {
+        private final int id;
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long size;
+        private int liveCount;
+        private long liveBytes;
+        private int pendingWrites;
+        private int readers;
+        private boolean retired;
+        private boolean deleted;
+
+        public Segment(int id, File file, boolean create) throws IOException {
+            this.id = id;
+            this.file = file;
+            if (create && file.exists()) {
+                throw new IOException("Segment " + file + " already exists");
+            }
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            this.size = channel.size();
+        }
+
+        public void addLive(Entry entry) {
+            liveCount++;
+            liveBytes += entry.length();
+        }
+
+        public void removeLive(Entry entry) {
+            liveCount--;
+            liveBytes -= entry.length();
+        }
+
+        public synchronized boolean acquire() {
+            if (deleted) {
+                return false;
+            }
+            readers++;
+            return true;
+        }
+
+        public synchronized void release() {
+            readers--;
+            deleteIfUnused();
+        }
+
+        public synchronized void retire() {
+            retired = true;
+            deleteIfUnused();
+        }
+
+        private void deleteIfUnused() {
+            if (retired && readers == 0 && !deleted) {
+                deleted = true;
+                close();
+                if (!file.delete()) {
+                    log.warn("Unable to delete segment " + file);
+                }
+            }
+        }
+
+        public void close() {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // ignore on close
+            }
+        }
+    }
+
+    /**
+     * {@link MimeMessageSource} which reads the message from a range of a
+     * segment
+     */
+    private final class SegmentMimeMessageSource extends MimeMessageSource implements Disposable {
+
+        private final Segment segment;
+        private final long offset;
+        private final long length;
+        private SharedFileInputStream in;
+
+        public SegmentMimeMessageSource(Segment segment, long offset, long length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public String getSourceId() {
+            return segment.file.getAbsolutePath() + "#" + offset;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                in = new SharedFileInputStream(segment.file);
+            }
+            return in.newStream(offset, offset + length);
+        }
+
+        @Override
+        public long getMessageSize() throws IOException {
+            return length;
+        }
+
+        /**
+         * @see org.apache.james.lifecycle.api.Disposable#dispose()
+         */
+        public synchronized void dispose() {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore on close
+                }
+                in = null;
+            }
+            segment.release();
+        }
+    }
+
+    /**
+     * {@link OutputStream} which writes to a {@link FileChannel} at a given
+     * position, up to a limit, and updates a checksum with the written bytes
+     */
+    private final static class ChannelOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private final long limit;
+        private final CRC32 crc;
+        private long position;
+
+        public ChannelOutputStream(FileChannel channel, long position, long limit, CRC32 crc) {
+            this.channel = channel;
+            this.position = position;
+            this.limit = limit;
+            this.crc = crc;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int l = Math.min(len, buffer.remaining());
+                buffer.put(b, off, l);
+                off += l;
+                len -= l;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            buffer.flip();
+            int len = buffer.remaining();
+            if (position + len > limit) {
+                // never overwrite the space reserved by the next append
+                throw new IOException("Data exceeds the reserved space");
+            }
+            crc.update(buffer.array(), 0, len);
+            writeFully(channel, buffer, position);
+            position += len;
+            buffer.clear();
+        }
+    }
+
+    /**
+     * {@link OutputStream} which only counts the written bytes
+     */
+    private final static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * {@link InputStream} which counts the read bytes
+     */
+    private final static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        public CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
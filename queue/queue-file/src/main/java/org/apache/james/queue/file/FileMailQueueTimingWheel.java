@@ -0,0 +1,320 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Hierarchical timing wheel which holds the keys of the delayed mails of a
+ * {@link FileMailQueue} until their next delivery time is reached.
+ * 
+ * The first wheel has <code>wheelSize</code> buckets of <code>tickMillis</code> each. Keys which are
+ * further in the future are stored in an overflow wheel whose buckets span a whole rotation of the
+ * wheel below, and so on. Adding a key and advancing the clock by one tick are O(1), no matter how many
+ * keys are waiting. Keys of a coarse bucket are moved down to the finer wheels once their bucket is reached.
+ * 
+ * Keys of the current tick are kept in a separate list and handed out by {@link #advance(long)} as soon as
+ * their delivery time is reached, so no key is handed out too early.
+ * 
+ * A key is held at most once: adding it again reschedules it, and {@link #remove(String)} cancels it.
+ * The buckets are intrusive linked lists, so rescheduling and cancelling are O(1) as well.
+ * 
+ * The wheel is not driven by its own thread, the owner has to call {@link #advance(long)} once per tick.
+ */
+public class FileMailQueueTimingWheel {
+
+    private final long tickMillis;
+    private final Level root;
+    private final Bucket current = new Bucket();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private long currentTime;
+
+    /**
+     * @param tickMillis
+     *            the granularity of the buckets of the first wheel
+     * @param wheelSize
+     *            the number of buckets per wheel
+     * @param startTime
+     */
+    public FileMailQueueTimingWheel(long tickMillis, int wheelSize, long startTime) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("tickMillis must be greater than 0");
+        }
+        if (wheelSize < 2) {
+            throw new IllegalArgumentException("wheelSize must be greater than 1");
+        }
+        this.tickMillis = tickMillis;
+        this.currentTime = startTime - (startTime % tickMillis);
+        this.root = new Level(tickMillis, wheelSize, currentTime);
+    }
+
+    /**
+     * Add the key with the given delivery time to the wheel. If the key is
+     * already waiting it is rescheduled.
+     * 
+     * @param key
+     * @param deliveryTime
+     */
+    public synchronized void add(String key, long deliveryTime) {
+        Entry entry = new Entry(key, deliveryTime);
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            unlink(old);
+        }
+        place(entry);
+    }
+
+    /**
+     * Remove the key from the wheel, so that it is not handed out
+     * 
+     * @param key
+     * @return true if the key was waiting
+     */
+    public synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        unlink(entry);
+        return true;
+    }
+
+    /**
+     * Put the entry in the bucket of its delivery time or in the current tick
+     */
+    private void place(Entry entry) {
+        if (!root.add(entry)) {
+            current.add(entry);
+        }
+    }
+
+    /**
+     * Remove the entry from its bucket or from the current tick
+     */
+    private void unlink(Entry entry) {
+        entry.bucket.unlink(entry);
+    }
+
+    /**
+     * Advance the clock of the wheel to the given time and return all keys
+     * whose delivery time was reached in the meantime
+     * 
+     * @param now
+     * @return keys
+     */
+    public synchronized List<String> advance(long now) {
+        List<String> expired = new ArrayList<String>();
+        List<Entry> drained = new ArrayList<Entry>();
+        while (currentTime + tickMillis <= now) {
+            currentTime += tickMillis;
+            root.advance(currentTime, drained);
+
+            for (int i = 0; i < drained.size(); i++) {
+                Entry entry = drained.get(i);
+                // re-add it so it moves down to a finer wheel or to the
+                // current tick
+                place(entry);
+            }
+            drained.clear();
+        }
+
+        Entry entry = current.head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.deliveryTime <= now) {
+                expired.add(entry.key);
+                current.unlink(entry);
+                entries.remove(entry.key);
+            }
+            entry = next;
+        }
+        return expired;
+    }
+
+    /**
+     * Return the number of keys which are waiting in the wheel
+     * 
+     * @return size
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Return a histogram of the waiting keys. Each entry maps the start time
+     * of a bucket to the number of keys in it. The buckets get coarser the
+     * further they are in the future, as they are taken directly from the
+     * wheels.
+     * 
+     * @return histogram
+     */
+    public synchronized SortedMap<Long, Integer> histogram() {
+        SortedMap<Long, Integer> histogram = new TreeMap<Long, Integer>();
+        if (current.size > 0) {
+            histogram.put(currentTime, current.size);
+        }
+        Level level = root;
+        while (level != null) {
+            for (int i = 0; i < level.buckets.length; i++) {
+                Bucket bucket = level.buckets[i];
+                if (bucket != null && bucket.size > 0) {
+                    Integer count = histogram.get(bucket.start);
+                    histogram.put(bucket.start, (count == null ? 0 : count) + bucket.size);
+                }
+            }
+            level = level.overflow;
+        }
+        return histogram;
+    }
+
+    private final static class Entry {
+        private final String key;
+        private final long deliveryTime;
+        /** the bucket holding the entry */
+        private Bucket bucket;
+        private Entry prev;
+        private Entry next;
+
+        public Entry(String key, long deliveryTime) {
+            this.key = key;
+            this.deliveryTime = deliveryTime;
+        }
+    }
+
+    /**
+     * Doubly linked list of the entries of one bucket
+     */
+    private final static class Bucket {
+        private Entry head;
+        private Entry tail;
+        private int size;
+        private long start;
+
+        public void add(Entry entry) {
+            entry.bucket = this;
+            entry.prev = tail;
+            entry.next = null;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+            }
+            tail = entry;
+            size++;
+        }
+
+        public void unlink(Entry entry) {
+            if (entry.prev == null) {
+                head = entry.next;
+            } else {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.prev;
+            } else {
+                entry.next.prev = entry.prev;
+            }
+            entry.bucket = null;
+            entry.prev = null;
+            entry.next = null;
+            size--;
+        }
+
+        /**
+         * Move all entries to the given list
+         */
+        public void drainTo(List<Entry> drained) {
+            Entry entry = head;
+            while (entry != null) {
+                Entry next = entry.next;
+                entry.bucket = null;
+                entry.prev = null;
+                entry.next = null;
+                drained.add(entry);
+                entry = next;
+            }
+            head = null;
+            tail = null;
+            size = 0;
+        }
+    }
+
+    /**
+     * One wheel of the hierarchy
+     */
+    private final static class Level {
+        private final long tickMillis;
+        private final long interval;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private Level overflow;
+
+        public Level(long tickMillis, int wheelSize, long startTime) {
+            this.tickMillis = tickMillis;
+            this.interval = tickMillis * wheelSize;
+            this.buckets = new Bucket[wheelSize];
+            this.currentTime = startTime - (startTime % tickMillis);
+        }
+
+        public boolean add(Entry entry) {
+            if (entry.deliveryTime < currentTime + tickMillis) {
+                // belongs to the current tick
+                return false;
+            } else if (entry.deliveryTime < currentTime + interval) {
+                long virtualId = entry.deliveryTime / tickMillis;
+                int index = (int) (virtualId % buckets.length);
+                Bucket bucket = buckets[index];
+                if (bucket == null) {
+                    bucket = new Bucket();
+                    buckets[index] = bucket;
+                }
+                bucket.start = virtualId * tickMillis;
+                bucket.add(entry);
+                return true;
+            } else {
+                if (overflow == null) {
+                    overflow = new Level(interval, buckets.length, currentTime);
+                }
+                return overflow.add(entry);
+            }
+        }
+
+        /**
+         * Advance the clock and move the entries of the now current bucket to
+         * the given list
+         */
+        public void advance(long time, List<Entry> drained) {
+            if (time >= currentTime + tickMillis) {
+                currentTime = time - (time % tickMillis);
+                Bucket bucket = buckets[(int) ((currentTime / tickMillis) % buckets.length)];
+                if (bucket != null) {
+                    bucket.drainTo(drained);
+                }
+                if (overflow != null) {
+                    overflow.advance(time, drained);
+                }
+            }
+        }
+    }
+}
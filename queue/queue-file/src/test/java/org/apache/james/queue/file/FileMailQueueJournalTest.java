@@ -0,0 +1,413 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.core.MailImpl;
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.mailet.Mail;
+import org.apache.mailet.MailAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueJournalTest {
+
+    private final Logger log = LoggerFactory.getLogger(FileMailQueueJournalTest.class);
+
+    private File dir;
+
+    private FileMailQueueJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("journal", "test");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (journal != null) {
+            journal.close();
+        }
+        delete(dir);
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    static Mail createMail(String name, String body) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setSubject(name);
+        message.setText(body);
+        message.saveChanges();
+        return new MailImpl(name, new MailAddress("sender@localhost"), Arrays.asList(new MailAddress("rcpt@localhost")), message);
+    }
+
+    static String body(Mail mail) throws IOException, MessagingException {
+        return (String) mail.getMessage().getContent();
+    }
+
+    private static String body(int size, char c) {
+        char[] chars = new char[size];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private FileMailQueueJournal open(long maxSegmentSize) throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        journal = new FileMailQueueJournal(dir, maxSegmentSize, 0.5, log);
+        journal.open();
+        return journal;
+    }
+
+    private void append(String name, String body) throws IOException, MessagingException {
+        Mail mail = createMail(name, body);
+        journal.sync(journal.append(name, mail, 0));
+        LifecycleUtil.dispose(mail);
+    }
+
+    private String readBody(String name) throws IOException, MessagingException {
+        Mail mail = journal.read(name);
+        try {
+            return body(mail);
+        } finally {
+            LifecycleUtil.dispose(mail);
+        }
+    }
+
+    private List<File> segmentFiles() {
+        List<File> files = new ArrayList<File>();
+        for (File file : dir.listFiles()) {
+            if (file.getName().startsWith("segment-")) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private static void truncate(File file, long bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() - bytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        journal.sync(journal.append("b", createMail("b", "body b"), 1234));
+
+        open(1024 * 1024);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "b")), journal.keys());
+        assertEquals("body a", readBody("a"));
+        assertEquals(1234, journal.getNextDelivery("b"));
+    }
+
+    @Test
+    public void testTruncatedIndexOnReopen() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        append("b", "body b");
+        journal.close();
+        journal = null;
+
+        // a crash while the last index entry was written
+        truncate(new File(dir, "index.log"), 3);
+
+        open(1024 * 1024);
+        assertEquals(Collections.singleton("a"), journal.keys());
+        assertEquals("body a", readBody("a"));
+
+        // the torn entry was cut off, so new entries are readable again
+        append("c", "body c");
+        open(1024 * 1024);
+        assertEquals(new HashSet<String>(Arrays.asList("a", "c")), journal.keys());
+        assertEquals("body c", readBody("c"));
+    }
+
+    @Test
+    public void testGarbageAtEndOfIndex() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        journal.close();
+        journal = null;
+
+        RandomAccessFile raf = new RandomAccessFile(new File(dir, "index.log"), "rw");
+        try {
+            raf.seek(raf.length());
+            raf.write(new byte[] { 7, 0, 1 });
+        } finally {
+            raf.close();
+        }
+
+        open(1024 * 1024);
+        assertEquals(Collections.singleton("a"), journal.keys());
+        assertEquals("body a", readBody("a"));
+    }
+
+    @Test
+    public void testTruncatedSegmentOnReopen() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        append("b", "body b");
+        journal.close();
+        journal = null;
+
+        // the index is synced after the data, but the data may still get lost
+        truncate(segmentFiles().get(0), 5);
+
+        open(1024 * 1024);
+        assertEquals(Collections.singleton("a"), journal.keys());
+        assertEquals("body a", readBody("a"));
+    }
+
+    @Test
+    public void testChecksumMismatch() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        journal.close();
+        journal = null;
+
+        RandomAccessFile raf = new RandomAccessFile(segmentFiles().get(0), "rw");
+        try {
+            raf.seek(20);
+            int b = raf.read();
+            raf.seek(20);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        open(1024 * 1024);
+        assertTrue(journal.contains("a"));
+        try {
+            journal.read("a");
+            fail("The corrupt mail must not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    @Test
+    public void testMessageChecksumMismatch() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        journal.close();
+        journal = null;
+
+        // the message is stored at the end of the segment
+        RandomAccessFile raf = new RandomAccessFile(segmentFiles().get(0), "rw");
+        try {
+            raf.seek(raf.length() - 3);
+            int b = raf.read();
+            raf.seek(raf.length() - 3);
+            raf.write(b ^ 0xFF);
+        } finally {
+            raf.close();
+        }
+
+        open(1024 * 1024);
+        assertEquals("a", journal.readWithoutMessage("a").getName());
+        try {
+            journal.read("a");
+            fail("The corrupt message must not be read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Checksum mismatch"));
+        }
+    }
+
+    @Test
+    public void testDamagedIndexKeepsSegments() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        // the second mail is stored in a new segment
+        open(1024 * 1024);
+        append("b", "body b");
+        journal.close();
+        journal = null;
+        assertEquals(2, segmentFiles().size());
+
+        truncate(new File(dir, "index.log"), 3);
+
+        open(1024 * 1024);
+        assertEquals(Collections.singleton("a"), journal.keys());
+        // the lost entry pointed to the second segment
+        List<File> segments = segmentFiles();
+        assertTrue(segments.size() >= 2);
+        File second = segments.get(1);
+        assertTrue(corruptIndexExists());
+
+        // the segment is kept as long as the damaged index is
+        open(1024 * 1024);
+        journal.compact();
+        assertTrue(second.exists());
+        assertEquals("body a", readBody("a"));
+    }
+
+    private boolean corruptIndexExists() {
+        for (String name : dir.list()) {
+            if (name.endsWith(".corrupt")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void testCompactionWithLiveReader() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        append("b", body(10000, 'b'));
+        // reopening starts a new active segment, so the first one can be
+        // compacted
+        open(1024 * 1024);
+        File first = segmentFiles().get(0);
+
+        Mail reading = journal.read("a");
+        assertTrue(journal.remove("b"));
+        journal.compact();
+
+        // the mail was moved, but the old segment is kept for the reader
+        assertTrue(first.exists());
+        assertEquals("body a", body(reading));
+        assertEquals("body a", readBody("a"));
+
+        LifecycleUtil.dispose(reading);
+        assertFalse(first.exists());
+
+        open(1024 * 1024);
+        assertEquals(Collections.singleton("a"), journal.keys());
+        assertEquals("body a", readBody("a"));
+    }
+
+    @Test
+    public void testRemove() throws Exception {
+        open(1024 * 1024);
+        append("a", "body a");
+        assertTrue(journal.remove("a"));
+        assertFalse(journal.remove("a"));
+        assertNull(journal.read("a"));
+
+        open(1024 * 1024);
+        assertEquals(0, journal.size());
+        // segments without live data are deleted on open
+        assertEquals(1, segmentFiles().size());
+    }
+
+    @Test
+    public void testConcurrentAppendAndSync() throws Exception {
+        // small segments, so that segments are rolled while mails are written
+        open(16 * 1024);
+        final int threads = 8;
+        final int mails = 50;
+        final AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            Future<?> compactor = executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    while (!done.get()) {
+                        journal.compact();
+                    }
+                    return null;
+                }
+            });
+            List<Future<?>> writers = new ArrayList<Future<?>>();
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                writers.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        for (int i = 0; i < mails; i++) {
+                            String name = thread + "-" + i;
+                            Mail mail = createMail(name, body(100 + i * 37, (char) ('a' + thread)));
+                            journal.sync(journal.append(name, mail, 0));
+                            LifecycleUtil.dispose(mail);
+                            if (i % 2 == 1) {
+                                assertTrue(journal.remove(name));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+            done.set(true);
+            compactor.get();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        open(16 * 1024);
+        Set<String> expected = new HashSet<String>();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < mails; i += 2) {
+                expected.add(t + "-" + i);
+            }
+        }
+        assertEquals(expected, journal.keys());
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < mails; i += 2) {
+                assertEquals(body(100 + i * 37, (char) ('a' + t)), readBody(t + "-" + i));
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+import org.apache.james.lifecycle.api.LifecycleUtil;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class FileMailQueueTest {
+
+    private File dir;
+
+    private FileMailQueue queue;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("queue", "test");
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        if (queue != null) {
+            queue.dispose();
+        }
+        FileMailQueueJournalTest.delete(dir);
+    }
+
+    @Test
+    public void testMigrateOldFiles() throws Exception {
+        // the layout written by older versions: an obj and a msg file per
+        // mail in numbered sub directories
+        File qDir = new File(new File(dir, "test"), "3");
+        qDir.mkdirs();
+        Mail mail = FileMailQueueJournalTest.createMail("old", "old body");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(qDir, "old.obj")));
+        try {
+            out.writeObject(mail);
+        } finally {
+            out.close();
+        }
+        OutputStream msgOut = new FileOutputStream(new File(qDir, "old.msg"));
+        try {
+            mail.getMessage().writeTo(msgOut);
+        } finally {
+            msgOut.close();
+        }
+        LifecycleUtil.dispose(mail);
+
+        queue = new FileMailQueue(dir, "test", true, LoggerFactory.getLogger(FileMailQueueTest.class));
+        assertFalse(qDir.exists());
+        assertEquals(1, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        assertEquals("old", item.getMail().getName());
+        assertEquals("old body", FileMailQueueJournalTest.body(item.getMail()));
+        item.done(true);
+        assertEquals(0, queue.getSize());
+
+        // the migrated mail is stored in the journal
+        queue.dispose();
+        queue = new FileMailQueue(dir, "test", true, LoggerFactory.getLogger(FileMailQueueTest.class));
+        assertEquals(0, queue.getSize());
+    }
+
+}
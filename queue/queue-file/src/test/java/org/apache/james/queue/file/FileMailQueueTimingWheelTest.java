@@ -0,0 +1,218 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+public class FileMailQueueTimingWheelTest {
+
+    /**
+     * Wheels of 4 buckets of 10 ms, so the levels span 40, 160, 640 and 2560
+     * ms
+     */
+    private final FileMailQueueTimingWheel wheel = new FileMailQueueTimingWheel(10, 4, 0);
+
+    /**
+     * Advance the wheel one millisecond at a time and return the time at
+     * which each key was handed out
+     */
+    private Map<String, Long> run(long until) {
+        Map<String, Long> handedOut = new HashMap<String, Long>();
+        for (long now = 0; now <= until; now++) {
+            for (String key : wheel.advance(now)) {
+                assertFalse("Key " + key + " handed out twice", handedOut.containsKey(key));
+                handedOut.put(key, now);
+            }
+        }
+        return handedOut;
+    }
+
+    @Test
+    public void testDelayLongerThanOneLevel() {
+        wheel.add("a", 1000);
+        wheel.add("b", 5000);
+        assertEquals(2, wheel.size());
+
+        Map<String, Long> handedOut = run(6000);
+        assertEquals(Long.valueOf(1000), handedOut.get("a"));
+        assertEquals(Long.valueOf(5000), handedOut.get("b"));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCascadeBoundaries() {
+        // first and last millisecond of the buckets around the level
+        // boundaries
+        long[] times = { 0, 9, 10, 39, 40, 41, 159, 160, 161, 639, 640, 641, 2559, 2560, 2561 };
+        for (long time : times) {
+            wheel.add("t" + time, time);
+        }
+
+        Map<String, Long> handedOut = run(3000);
+        assertEquals(times.length, handedOut.size());
+        for (long time : times) {
+            assertEquals("t" + time, Long.valueOf(time), handedOut.get("t" + time));
+        }
+    }
+
+    @Test
+    public void testRandomDelays() {
+        Random random = new Random(42);
+        Map<String, Long> expected = new HashMap<String, Long>();
+        for (int i = 0; i < 1000; i++) {
+            long time = random.nextInt(10000);
+            expected.put("k" + i, time);
+            wheel.add("k" + i, time);
+        }
+
+        assertEquals(expected, run(10000));
+    }
+
+    @Test
+    public void testAddWhileAdvancing() {
+        Map<String, Long> handedOut = new HashMap<String, Long>();
+        for (long now = 0; now <= 2000; now++) {
+            if (now == 333) {
+                wheel.add("late", 1234);
+                wheel.add("past", 100);
+            }
+            for (String key : wheel.advance(now)) {
+                handedOut.put(key, now);
+            }
+        }
+        assertEquals(Long.valueOf(1234), handedOut.get("late"));
+        assertEquals(Long.valueOf(333), handedOut.get("past"));
+    }
+
+    @Test
+    public void testCancel() {
+        wheel.add("a", 5);
+        wheel.add("b", 100);
+        wheel.add("c", 1000);
+        assertTrue(wheel.remove("a"));
+        assertTrue(wheel.remove("c"));
+        assertFalse(wheel.remove("c"));
+        assertFalse(wheel.remove("unknown"));
+        assertEquals(1, wheel.size());
+
+        assertEquals(Collections.singletonMap("b", 100L), run(2000));
+        assertFalse(wheel.remove("b"));
+    }
+
+    @Test
+    public void testReschedule() {
+        wheel.add("a", 1000);
+        wheel.add("b", 20);
+        // earlier, later and into the current tick
+        wheel.add("a", 50);
+        wheel.add("b", 700);
+        wheel.add("c", 300);
+        wheel.add("c", 3);
+        assertEquals(3, wheel.size());
+
+        Map<String, Long> handedOut = run(2000);
+        assertEquals(Long.valueOf(50), handedOut.get("a"));
+        assertEquals(Long.valueOf(700), handedOut.get("b"));
+        assertEquals(Long.valueOf(3), handedOut.get("c"));
+        assertEquals(3, handedOut.size());
+    }
+
+    @Test
+    public void testCancelWithinBucket() {
+        // the head, the tail and entries in the middle of the same buckets
+        for (int i = 0; i < 100; i++) {
+            wheel.add("first" + i, 15);
+            wheel.add("current" + i, 5);
+        }
+        Map<String, Long> expected = new HashMap<String, Long>();
+        for (int i = 0; i < 100; i++) {
+            if (i % 3 == 0 || i == 99) {
+                assertTrue(wheel.remove("first" + i));
+                assertTrue(wheel.remove("current" + i));
+            } else {
+                expected.put("first" + i, 15L);
+                expected.put("current" + i, 5L);
+            }
+        }
+        assertEquals(expected.size(), wheel.size());
+        assertEquals(expected, run(100));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testCancelAfterCascade() {
+        wheel.add("a", 1000);
+        List<String> handedOut = wheel.advance(990);
+        assertTrue(handedOut.isEmpty());
+        // the key moved down to the first level meanwhile
+        assertTrue(wheel.remove("a"));
+        assertTrue(wheel.advance(2000).isEmpty());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testHistogramBuckets() {
+        wheel.add("current", 5);
+        wheel.add("first1", 15);
+        wheel.add("first2", 17);
+        wheel.add("second", 100);
+        wheel.add("fourth", 1000);
+
+        SortedMap<Long, Integer> expected = new TreeMap<Long, Integer>();
+        // current tick
+        expected.put(0L, 1);
+        // buckets of 10 ms
+        expected.put(10L, 2);
+        // bucket of 40 ms
+        expected.put(80L, 1);
+        // bucket of 640 ms
+        expected.put(640L, 1);
+        assertEquals(expected, wheel.histogram());
+
+        wheel.remove("first2");
+        expected.put(10L, 1);
+        assertEquals(expected, wheel.histogram());
+
+        // the buckets get finer as the time goes by
+        assertEquals(Arrays.asList("current"), wheel.advance(5));
+        wheel.advance(700);
+        expected.clear();
+        // bucket of 160 ms
+        expected.put(960L, 1);
+        assertEquals(expected, wheel.histogram());
+        wheel.advance(960);
+        expected.clear();
+        expected.put(1000L, 1);
+        assertEquals(expected, wheel.histogram());
+    }
+
+}
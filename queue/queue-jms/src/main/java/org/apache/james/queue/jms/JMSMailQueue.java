@@ -22,6 +22,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
@@ -49,9 +50,12 @@ import javax.mail.internet.MimeMessage;
 
 import org.apache.james.core.MailImpl;
 import org.apache.james.core.MimeMessageCopyOnWriteProxy;
+import org.apache.james.lifecycle.api.Disposable;
 import org.apache.james.queue.api.MailPrioritySupport;
 import org.apache.james.queue.api.MailQueue;
 import org.apache.james.queue.api.ManageableMailQueue;
+import org.apache.james.queue.jms.JMSSessionPool.ConsumerSession;
+import org.apache.james.queue.jms.JMSSessionPool.ProducerSession;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.slf4j.Logger;
@@ -66,20 +70,52 @@ import org.slf4j.Logger;
  * It use {@link ObjectMessage} with a byte array as payload to store the
  * {@link Mail} objects.
  * </p>
+ * <p>
+ * If a {@link JMSSessionPool} is given, the enqueue and dequeue operations use
+ * the pooled connections, sessions, producers and consumers instead of
+ * creating them for every operation.
+ * </p>
  */
-public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport {
+public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPrioritySupport, Disposable {
 
     protected final String queuename;
     protected final ConnectionFactory connectionFactory;
+    protected final JMSSessionPool sessionPool;
     protected final Logger logger;
     public final static String FORCE_DELIVERY = "FORCE_DELIVERY";
 
     public JMSMailQueue(final ConnectionFactory connectionFactory, final String queuename, final Logger logger) {
+        this(connectionFactory, null, queuename, logger);
+    }
+
+    /**
+     * Construct a new {@link JMSMailQueue}
+     * 
+     * @param connectionFactory
+     * @param sessionPool
+     *            the pool to use for enqueue and dequeue operations. May be
+     *            null if no pooling should be used
+     * @param queuename
+     * @param logger
+     */
+    public JMSMailQueue(final ConnectionFactory connectionFactory, final JMSSessionPool sessionPool, final String queuename, final Logger logger) {
         this.connectionFactory = connectionFactory;
+        this.sessionPool = sessionPool;
         this.queuename = queuename;
         this.logger = logger;
     }
 
+    /**
+     * Close the {@link JMSSessionPool} if one is used
+     * 
+     * @see org.apache.james.lifecycle.api.Disposable#dispose()
+     */
+    public void dispose() {
+        if (sessionPool != null) {
+            sessionPool.close();
+        }
+    }
+
     /**
      * <p>
      * Dequeues a mail when it is ready to process. As JMS does not support delay scheduling out-of-the box,
@@ -93,6 +129,9 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
      * </p>
      */
     public MailQueueItem deQueue() throws MailQueueException {
+        if (sessionPool != null) {
+            return deQueuePooled();
+        }
         Connection connection = null;
         Session session = null;
         Message message = null;
@@ -173,6 +212,39 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
     }
 
+    /**
+     * Dequeue the next mail by using a pooled session and consumer. The
+     * session is given back to the pool by the returned
+     * {@link org.apache.james.queue.api.MailQueue.MailQueueItem}
+     */
+    protected MailQueueItem deQueuePooled() throws MailQueueException {
+        ConsumerSession consumerSession = null;
+
+        try {
+            consumerSession = sessionPool.borrowConsumerSession();
+            Session session = consumerSession.getSession();
+            while (true) {
+                Message message = consumerSession.getConsumer(getMessageSelector()).receive(10000);
+
+                if (message != null) {
+                    return createMailQueueItem(consumerSession, message);
+                } else {
+                    session.commit();
+                }
+            }
+        } catch (Exception e) {
+            if (consumerSession != null) {
+                try {
+                    consumerSession.getSession().rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+                sessionPool.release(consumerSession, false);
+            }
+            throw new MailQueueException("Unable to dequeue next message", e);
+        }
+    }
+
     /**
      * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail,
      * long, java.util.concurrent.TimeUnit)
@@ -187,21 +259,20 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             mydelay = TimeUnit.MILLISECONDS.convert(delay, unit);
         }
 
+        if (sessionPool != null) {
+            enQueuePooled(mail, mydelay);
+            return;
+        }
+
         try {
 
             connection = connectionFactory.createConnection();
             connection.start();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 
-            int msgPrio = NORMAL_PRIORITY;
-            Object prio = mail.getAttribute(MAIL_PRIORITY);
-            if (prio instanceof Integer) {
-                msgPrio = (Integer) prio;
-            }
-
             Map<String, Object> props = getJMSProperties(mail, mydelay);
 
-            produceMail(session, props, msgPrio, mail);
+            produceMail(session, props, getPriority(mail), mail);
 
         } catch (Exception e) {
             if (session != null) {
@@ -230,6 +301,145 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         }
     }
 
+    /**
+     * Enqueue all mails in one transacted session, so only one commit is needed
+     * 
+     * @see org.apache.james.queue.api.MailQueue#enQueue(java.util.Collection)
+     */
+    public void enQueue(Collection<Mail> mails) throws MailQueueException {
+        if (mails.isEmpty()) {
+            return;
+        }
+        if (sessionPool != null) {
+            enQueuePooled(mails);
+            return;
+        }
+
+        Connection connection = null;
+        Session session = null;
+        MessageProducer producer = null;
+
+        try {
+            connection = connectionFactory.createConnection();
+            connection.start();
+            session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            Queue queue = session.createQueue(queuename);
+            producer = session.createProducer(queue);
+
+            for (Mail mail : mails) {
+                produceMail(session, producer, getJMSProperties(mail, NO_DELAY), getPriority(mail), mail);
+            }
+            session.commit();
+        } catch (Exception e) {
+            if (session != null) {
+                try {
+                    session.rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            throw new MailQueueException("Unable to enqueue mails " + mails, e);
+
+        } finally {
+            try {
+                if (producer != null)
+                    producer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (session != null)
+                    session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+
+            try {
+                if (connection != null)
+                    connection.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * Enqueue the mails by using a pooled session and its cached producer.
+     * All mails are committed at once.
+     */
+    protected void enQueuePooled(Collection<Mail> mails) throws MailQueueException {
+        ProducerSession producerSession = null;
+        boolean valid = false;
+        try {
+            producerSession = sessionPool.borrowProducerSession();
+            Session session = producerSession.getSession();
+
+            for (Mail mail : mails) {
+                produceMail(session, producerSession.getProducer(), getJMSProperties(mail, NO_DELAY), getPriority(mail), mail);
+            }
+            session.commit();
+            valid = true;
+        } catch (Exception e) {
+            if (producerSession != null) {
+                try {
+                    producerSession.getSession().rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            throw new MailQueueException("Unable to enqueue mails " + mails, e);
+        } finally {
+            if (producerSession != null) {
+                sessionPool.release(producerSession, valid);
+            }
+        }
+    }
+
+    /**
+     * Enqueue the mail by using a pooled session and its cached producer
+     */
+    protected void enQueuePooled(Mail mail, long delayInMillis) throws MailQueueException {
+        ProducerSession producerSession = null;
+        boolean valid = false;
+        try {
+            producerSession = sessionPool.borrowProducerSession();
+            Session session = producerSession.getSession();
+
+            produceMail(session, producerSession.getProducer(), getJMSProperties(mail, delayInMillis), getPriority(mail), mail);
+            session.commit();
+            valid = true;
+        } catch (Exception e) {
+            if (producerSession != null) {
+                try {
+                    producerSession.getSession().rollback();
+                } catch (JMSException e1) {
+                    // ignore on rollback
+                }
+            }
+            throw new MailQueueException("Unable to enqueue mail " + mail, e);
+        } finally {
+            if (producerSession != null) {
+                sessionPool.release(producerSession, valid);
+            }
+        }
+    }
+
+    /**
+     * Return the JMS priority to use for the given {@link Mail}
+     * 
+     * @param mail
+     * @return priority
+     */
+    protected int getPriority(Mail mail) {
+        int msgPrio = NORMAL_PRIORITY;
+        Object prio = mail.getAttribute(MAIL_PRIORITY);
+        if (prio instanceof Integer) {
+            msgPrio = (Integer) prio;
+        }
+        return msgPrio;
+    }
+
     /**
      * @see org.apache.james.queue.api.MailQueue#enQueue(org.apache.mailet.Mail)
      */
@@ -247,27 +457,7 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
             Queue queue = session.createQueue(queuename);
 
             producer = session.createProducer(queue);
-            ObjectMessage message = session.createObjectMessage();
-
-            for (Map.Entry<String, Object> entry : props.entrySet()) {
-                message.setObjectProperty(entry.getKey(), entry.getValue());
-            }
-
-            long size = mail.getMessageSize();
-            ByteArrayOutputStream out;
-            if (size > -1) {
-                out = new ByteArrayOutputStream((int) size);
-            } else {
-                out = new ByteArrayOutputStream();
-            }
-            mail.getMessage().writeTo(out);
-
-            // store the byte array in a ObjectMessage so we can use a
-            // SharedByteArrayInputStream later
-            // without the need of copy the day
-            message.setObject(out.toByteArray());
-
-            producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+            produceMail(session, producer, props, msgPrio, mail);
 
         } finally {
 
@@ -281,6 +471,34 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
 
     }
 
+    /**
+     * Produce the mail to the JMS Queue by using the given
+     * {@link MessageProducer}
+     */
+    protected void produceMail(Session session, MessageProducer producer, Map<String, Object> props, int msgPrio, Mail mail) throws JMSException, MessagingException, IOException {
+        ObjectMessage message = session.createObjectMessage();
+
+        for (Map.Entry<String, Object> entry : props.entrySet()) {
+            message.setObjectProperty(entry.getKey(), entry.getValue());
+        }
+
+        long size = mail.getMessageSize();
+        ByteArrayOutputStream out;
+        if (size > -1) {
+            out = new ByteArrayOutputStream((int) size);
+        } else {
+            out = new ByteArrayOutputStream();
+        }
+        mail.getMessage().writeTo(out);
+
+        // store the byte array in a ObjectMessage so we can use a
+        // SharedByteArrayInputStream later
+        // without the need of copy the day
+        message.setObject(out.toByteArray());
+
+        producer.send(message, Message.DEFAULT_DELIVERY_MODE, msgPrio, Message.DEFAULT_TIME_TO_LIVE);
+    }
+
     /**
      * Get JMS Message properties with values
      * 
@@ -481,6 +699,21 @@ public class JMSMailQueue implements ManageableMailQueue, JMSSupport, MailPriori
         return new JMSMailQueueItem(mail, connection, session, consumer);
     }
 
+    /**
+     * Create a {@link org.apache.james.queue.api.MailQueue.MailQueueItem} for
+     * the given pooled session
+     * 
+     * @param consumerSession
+     * @param message
+     * @return item
+     * @throws JMSException
+     * @throws MessagingException
+     */
+    protected MailQueueItem createMailQueueItem(ConsumerSession consumerSession, Message message) throws JMSException, MessagingException {
+        final Mail mail = createMail(message);
+        return new JMSMailQueueItem(mail, sessionPool, consumerSession);
+    }
+
     protected String getMessageSelector() {
         return JAMES_NEXT_DELIVERY + " <= " + System.currentTimeMillis() + " OR " + FORCE_DELIVERY + " = true";
     }
@@ -34,6 +34,12 @@ public class JMSMailQueueFactory extends AbstractMailQueueFactory {
 
     protected ConnectionFactory connectionFactory;
 
+    private boolean usePooling = false;
+    private int connectionPoolSize = 2;
+    private int producerPoolSize = 20;
+    private int consumerPoolSize = 100;
+    private long consumerMaxAge = 10000;
+
     @Inject
     @Named("jmsConnectionFactory")
     @Resource(name = "jmsConnectionFactory")
@@ -41,13 +47,81 @@ public class JMSMailQueueFactory extends AbstractMailQueueFactory {
         this.connectionFactory = connectionFactory;
     }
 
+    /**
+     * Enable the use of a {@link JMSSessionPool} for enqueue and dequeue
+     * operations. Default is false.
+     * 
+     * @param usePooling
+     */
+    public void setUsePooling(boolean usePooling) {
+        this.usePooling = usePooling;
+    }
+
+    /**
+     * Set the count of long-lived connections per queue. Default is 2.
+     * 
+     * @param connectionPoolSize
+     */
+    public void setConnectionPoolSize(int connectionPoolSize) {
+        this.connectionPoolSize = connectionPoolSize;
+    }
+
+    /**
+     * Set the maximal count of producer sessions per queue. Default is 20.
+     * 
+     * @param producerPoolSize
+     */
+    public void setProducerPoolSize(int producerPoolSize) {
+        this.producerPoolSize = producerPoolSize;
+    }
+
+    /**
+     * Set the maximal count of consumer sessions per queue. As every dequeued
+     * mail holds its session until it is done, this should be at least the
+     * count of mails which can be in flight at the same time. Default is 100.
+     * 
+     * @param consumerPoolSize
+     */
+    public void setConsumerPoolSize(int consumerPoolSize) {
+        this.consumerPoolSize = consumerPoolSize;
+    }
+
+    /**
+     * Set the max age (in ms) of a pooled consumer before it gets recreated.
+     * This controls how long it can take until a delayed mail is seen by the
+     * consumer. Default is 10000.
+     * 
+     * @param consumerMaxAge
+     */
+    public void setConsumerMaxAge(long consumerMaxAge) {
+        this.consumerMaxAge = consumerMaxAge;
+    }
+
     /**
      * @see
      * org.apache.james.queue.library.AbstractMailQueueFactory#createMailQueue
      * (java.lang.String)
      */
     protected MailQueue createMailQueue(String name) {
-        return new JMSMailQueue(connectionFactory, name, log);
+        return new JMSMailQueue(connectionFactory, createSessionPool(name), name, log);
+    }
+
+    /**
+     * Create the {@link JMSSessionPool} for the queue with the given name. If
+     * pooling is disabled null is returned
+     * 
+     * @param name
+     * @return pool
+     */
+    protected JMSSessionPool createSessionPool(String name) {
+        if (!usePooling) {
+            return null;
+        }
+        JMSSessionPool pool = new JMSSessionPool(connectionFactory, name, connectionPoolSize, producerPoolSize, consumerPoolSize, consumerMaxAge, log);
+        if (isUseJMX()) {
+            registerMBean("org.apache.james:type=component,name=queue,queue=" + name + ",sub-type=pool", pool);
+        }
+        return pool;
     }
-    
+
 }
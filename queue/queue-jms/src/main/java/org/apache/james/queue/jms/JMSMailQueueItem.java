@@ -26,6 +26,7 @@ import javax.jms.Session;
 
 import org.apache.james.queue.api.MailQueue.MailQueueException;
 import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.james.queue.jms.JMSSessionPool.ConsumerSession;
 import org.apache.mailet.Mail;
 
 /**
@@ -37,18 +38,43 @@ public class JMSMailQueueItem implements MailQueueItem {
     protected final Connection connection;
     protected final Session session;
     protected final MessageConsumer consumer;
+    protected final JMSSessionPool sessionPool;
+    protected final ConsumerSession consumerSession;
 
     public JMSMailQueueItem(Mail mail, Connection connection, Session session, MessageConsumer consumer) {
         this.mail = mail;
         this.connection = connection;
         this.session = session;
         this.consumer = consumer;
+        this.sessionPool = null;
+        this.consumerSession = null;
+    }
+
+    /**
+     * Construct a {@link JMSMailQueueItem} which gives the session back to the
+     * {@link JMSSessionPool} once it is done
+     * 
+     * @param mail
+     * @param sessionPool
+     * @param consumerSession
+     */
+    public JMSMailQueueItem(Mail mail, JMSSessionPool sessionPool, ConsumerSession consumerSession) {
+        this.mail = mail;
+        this.connection = null;
+        this.session = consumerSession.getSession();
+        this.consumer = null;
+        this.sessionPool = sessionPool;
+        this.consumerSession = consumerSession;
     }
 
     /**
      * @see org.apache.james.queue.api.MailQueue.MailQueueItem#done(boolean)
      */
     public void done(boolean success) throws MailQueueException {
+        if (sessionPool != null) {
+            donePooled(success);
+            return;
+        }
         try {
             if (success) {
                 session.commit();
@@ -86,6 +112,28 @@ public class JMSMailQueueItem implements MailQueueItem {
         }
     }
 
+    /**
+     * Commit or rollback the pooled session and give it back to the pool
+     */
+    private void donePooled(boolean success) throws MailQueueException {
+        boolean valid = false;
+        try {
+            if (success) {
+                session.commit();
+            } else {
+                session.rollback();
+            }
+            valid = true;
+        } catch (JMSException ex) {
+            if (success) {
+                throw new MailQueueException("Unable to commit dequeue operation for mail " + mail.getName(), ex);
+            }
+            // ignore on rollback
+        } finally {
+            sessionPool.release(consumerSession, valid);
+        }
+    }
+
     /**
      * @see org.apache.james.queue.api.MailQueue.MailQueueItem#getMail()
      */
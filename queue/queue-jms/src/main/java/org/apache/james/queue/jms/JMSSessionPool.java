@@ -0,0 +1,548 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+
+import org.slf4j.Logger;
+
+/**
+ * Pool of long-lived JMS {@link Connection}s and transacted {@link Session}s
+ * which are used by a {@link JMSMailQueue} to enqueue and dequeue mails.
+ * <p>
+ * Producer sessions cache one {@link MessageProducer} for the queue.
+ * Consumer sessions close their {@link MessageConsumer} when they are
+ * released, as an idle consumer may hold messages prefetched by the provider
+ * which no other consumer can see. As the message selector of the consumer
+ * contains the current time (to support delayed mails), a consumer is also
+ * recreated once it is older than the configured max age while its session is
+ * borrowed.
+ * </p>
+ * <p>
+ * When a connection fails it is replaced by a new one, and the idle sessions
+ * of the failed connection are closed.
+ * </p>
+ */
+public class JMSSessionPool implements JMSSessionPoolMBean {
+
+    private final ConnectionFactory connectionFactory;
+    private final String queuename;
+    private final Logger logger;
+
+    private final PooledConnection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger(0);
+
+    private final int maxProducerSessions;
+    private final int maxConsumerSessions;
+    private final long consumerMaxAge;
+
+    private final BlockingQueue<ProducerSession> idleProducers = new LinkedBlockingQueue<ProducerSession>();
+    private final BlockingQueue<ConsumerSession> idleConsumers = new LinkedBlockingQueue<ConsumerSession>();
+    private final Semaphore producerPermits;
+    private final Semaphore consumerPermits;
+
+    private final AtomicLong createdSessions = new AtomicLong(0);
+    private final AtomicLong invalidatedSessions = new AtomicLong(0);
+    private final AtomicLong borrowedSessions = new AtomicLong(0);
+    private final AtomicLong createdConsumers = new AtomicLong(0);
+
+    private volatile boolean closed = false;
+
+    /**
+     * Create a new pool
+     * 
+     * @param connectionFactory
+     *            the factory which is used to create the connections
+     * @param queuename
+     *            the name of the queue for which producers and consumers are
+     *            created
+     * @param connections
+     *            count of connections which are shared by all sessions
+     * @param maxProducerSessions
+     *            maximal count of producer sessions
+     * @param maxConsumerSessions
+     *            maximal count of consumer sessions
+     * @param consumerMaxAge
+     *            max age of a consumer in ms before it gets recreated
+     * @param logger
+     */
+    public JMSSessionPool(ConnectionFactory connectionFactory, String queuename, int connections, int maxProducerSessions, int maxConsumerSessions, long consumerMaxAge, Logger logger) {
+        if (connections < 1 || maxProducerSessions < 1 || maxConsumerSessions < 1) {
+            throw new IllegalArgumentException("Pool sizes must be greater than 0");
+        }
+        this.connectionFactory = connectionFactory;
+        this.queuename = queuename;
+        this.logger = logger;
+        this.connections = new PooledConnection[connections];
+        this.maxProducerSessions = maxProducerSessions;
+        this.maxConsumerSessions = maxConsumerSessions;
+        this.consumerMaxAge = consumerMaxAge;
+        this.producerPermits = new Semaphore(maxProducerSessions);
+        this.consumerPermits = new Semaphore(maxConsumerSessions);
+    }
+
+    /**
+     * Borrow a producer session from the pool. This will block if the maximal
+     * count of producer sessions is in use. The session MUST get returned via
+     * {@link #release(ProducerSession, boolean)}
+     * 
+     * @return session
+     * @throws JMSException
+     */
+    public ProducerSession borrowProducerSession() throws JMSException {
+        acquire(producerPermits);
+        try {
+            ProducerSession session = idleProducers.poll();
+            while (session != null && !session.connection.isUsable()) {
+                session.close();
+                session = idleProducers.poll();
+            }
+            if (session == null) {
+                PooledConnection conn = getConnection();
+                session = new ProducerSession(conn, conn.createSession());
+            }
+            borrowedSessions.incrementAndGet();
+            return session;
+        } catch (JMSException e) {
+            producerPermits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            producerPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a producer session to the pool.
+     * 
+     * @param session
+     * @param valid
+     *            false if an error was detected while using the session. In
+     *            this case the session will get closed
+     */
+    public void release(ProducerSession session, boolean valid) {
+        try {
+            if (valid && !closed && session.connection.isUsable()) {
+                idleProducers.offer(session);
+            } else {
+                if (!valid) {
+                    invalidatedSessions.incrementAndGet();
+                }
+                session.close();
+            }
+        } finally {
+            producerPermits.release();
+        }
+    }
+
+    /**
+     * Borrow a consumer session from the pool. This will block if the maximal
+     * count of consumer sessions is in use. The session MUST get returned via
+     * {@link #release(ConsumerSession, boolean)}
+     * 
+     * @return session
+     * @throws JMSException
+     */
+    public ConsumerSession borrowConsumerSession() throws JMSException {
+        acquire(consumerPermits);
+        try {
+            ConsumerSession session = idleConsumers.poll();
+            while (session != null && !session.connection.isUsable()) {
+                session.close();
+                session = idleConsumers.poll();
+            }
+            if (session == null) {
+                PooledConnection conn = getConnection();
+                session = new ConsumerSession(conn, conn.createSession());
+            }
+            borrowedSessions.incrementAndGet();
+            return session;
+        } catch (JMSException e) {
+            consumerPermits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            consumerPermits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Return a consumer session to the pool. Its consumer is closed, so that
+     * the messages it prefetched are delivered to the other consumers.
+     * 
+     * @param session
+     * @param valid
+     *            false if an error was detected while using the session. In
+     *            this case the session will get closed
+     */
+    public void release(ConsumerSession session, boolean valid) {
+        try {
+            if (valid && !closed && session.connection.isUsable()) {
+                session.closeConsumer();
+                idleConsumers.offer(session);
+            } else {
+                if (!valid) {
+                    invalidatedSessions.incrementAndGet();
+                }
+                session.close();
+            }
+        } finally {
+            consumerPermits.release();
+        }
+    }
+
+    /**
+     * Close all idle sessions and all connections of the pool. Sessions which
+     * are in use get closed once they are returned
+     */
+    public void close() {
+        closed = true;
+        ProducerSession p;
+        while ((p = idleProducers.poll()) != null) {
+            p.close();
+        }
+        ConsumerSession c;
+        while ((c = idleConsumers.poll()) != null) {
+            c.close();
+        }
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    connections[i].close();
+                    connections[i] = null;
+                }
+            }
+        }
+    }
+
+    private void acquire(Semaphore permits) throws JMSException {
+        if (closed) {
+            throw new JMSException("Session pool for queue " + queuename + " is closed");
+        }
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new JMSException("Interrupted while waiting for a session of queue " + queuename);
+        }
+    }
+
+    /**
+     * Return the connection on which the next session is created. The
+     * connections are used in a round-robin fashion. Broken connections are
+     * replaced by new ones, and their idle sessions are closed.
+     */
+    private PooledConnection getConnection() throws JMSException {
+        int index = (nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+        PooledConnection conn;
+        PooledConnection replaced = null;
+        synchronized (connections) {
+            conn = connections[index];
+            if (conn == null || conn.broken) {
+                replaced = conn;
+                conn = new PooledConnection(connectionFactory.createConnection());
+                connections[index] = conn;
+            }
+        }
+        if (replaced != null) {
+            replaced.close();
+            evictIdleSessions();
+        }
+        return conn;
+    }
+
+    /**
+     * Close the idle sessions of the connections which are broken or were
+     * replaced
+     */
+    private void evictIdleSessions() {
+        Iterator<ProducerSession> producers = idleProducers.iterator();
+        while (producers.hasNext()) {
+            ProducerSession session = producers.next();
+            if (!session.connection.isUsable()) {
+                producers.remove();
+                session.close();
+            }
+        }
+        Iterator<ConsumerSession> consumers = idleConsumers.iterator();
+        while (consumers.hasNext()) {
+            ConsumerSession session = consumers.next();
+            if (!session.connection.isUsable()) {
+                consumers.remove();
+                session.close();
+            }
+        }
+    }
+
+    /**
+     * A pooled {@link Connection} which gets marked as broken once the JMS
+     * provider reports an error for it
+     */
+    private final class PooledConnection implements ExceptionListener {
+        private final Connection connection;
+        private volatile boolean broken = false;
+        private volatile boolean closed = false;
+
+        private PooledConnection(Connection connection) throws JMSException {
+            this.connection = connection;
+            try {
+                connection.setExceptionListener(this);
+            } catch (JMSException e) {
+                // not all providers allow to set the listener, so just ignore it
+                // here
+            }
+            connection.start();
+        }
+
+        public void onException(JMSException e) {
+            logger.warn("Connection for queue " + queuename + " failed, will recreate it", e);
+            broken = true;
+        }
+
+        /**
+         * Return true if sessions of this connection can still be used
+         */
+        private boolean isUsable() {
+            return !broken && !closed;
+        }
+
+        private Session createSession() throws JMSException {
+            Session session = connection.createSession(true, Session.SESSION_TRANSACTED);
+            createdSessions.incrementAndGet();
+            return session;
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                connection.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * A transacted {@link Session} with a cached {@link MessageProducer} for
+     * the queue
+     */
+    public final class ProducerSession {
+        private final PooledConnection connection;
+        private final Session session;
+        private MessageProducer producer;
+
+        private ProducerSession(PooledConnection connection, Session session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Return the cached {@link MessageProducer} for the queue
+         * 
+         * @return producer
+         * @throws JMSException
+         */
+        public MessageProducer getProducer() throws JMSException {
+            if (producer == null) {
+                Queue queue = session.createQueue(queuename);
+                producer = session.createProducer(queue);
+            }
+            return producer;
+        }
+
+        private void close() {
+            try {
+                if (producer != null)
+                    producer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+            try {
+                session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * A transacted {@link Session} which keeps its {@link MessageConsumer}
+     * open while it is borrowed, until the consumer reaches the max age
+     */
+    public final class ConsumerSession {
+        private final PooledConnection connection;
+        private final Session session;
+        private MessageConsumer consumer;
+        private long consumerCreated;
+
+        private ConsumerSession(PooledConnection connection, Session session) {
+            this.connection = connection;
+            this.session = session;
+        }
+
+        public Session getSession() {
+            return session;
+        }
+
+        /**
+         * Return the {@link MessageConsumer} of this session. If the current
+         * consumer is older than the max age it gets replaced by a new one
+         * which uses the given selector.
+         * 
+         * @param selector
+         * @return consumer
+         * @throws JMSException
+         */
+        public MessageConsumer getConsumer(String selector) throws JMSException {
+            long now = System.currentTimeMillis();
+            if (consumer != null && now - consumerCreated >= consumerMaxAge) {
+                closeConsumer();
+            }
+            if (consumer == null) {
+                Queue queue = session.createQueue(queuename);
+                consumer = session.createConsumer(queue, selector);
+                consumerCreated = now;
+                createdConsumers.incrementAndGet();
+            }
+            return consumer;
+        }
+
+        private void closeConsumer() {
+            try {
+                if (consumer != null)
+                    consumer.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+            consumer = null;
+        }
+
+        private void close() {
+            closeConsumer();
+            try {
+                session.close();
+            } catch (JMSException e) {
+                // ignore here
+            }
+        }
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getConnectionCount()
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        synchronized (connections) {
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null && !connections[i].broken) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getMaxProducerSessions()
+     */
+    public int getMaxProducerSessions() {
+        return maxProducerSessions;
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getActiveProducerSessions()
+     */
+    public int getActiveProducerSessions() {
+        return maxProducerSessions - producerPermits.availablePermits();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getIdleProducerSessions()
+     */
+    public int getIdleProducerSessions() {
+        return idleProducers.size();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getMaxConsumerSessions()
+     */
+    public int getMaxConsumerSessions() {
+        return maxConsumerSessions;
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getActiveConsumerSessions()
+     */
+    public int getActiveConsumerSessions() {
+        return maxConsumerSessions - consumerPermits.availablePermits();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getIdleConsumerSessions()
+     */
+    public int getIdleConsumerSessions() {
+        return idleConsumers.size();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getCreatedSessions()
+     */
+    public long getCreatedSessions() {
+        return createdSessions.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getInvalidatedSessions()
+     */
+    public long getInvalidatedSessions() {
+        return invalidatedSessions.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getBorrowedSessions()
+     */
+    public long getBorrowedSessions() {
+        return borrowedSessions.get();
+    }
+
+    /**
+     * @see org.apache.james.queue.jms.JMSSessionPoolMBean#getCreatedConsumers()
+     */
+    public long getCreatedConsumers() {
+        return createdConsumers.get();
+    }
+}
@@ -0,0 +1,103 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+/**
+ * JMX MBean for {@link JMSSessionPool}
+ */
+public interface JMSSessionPoolMBean {
+
+    /**
+     * Return the count of open connections
+     * 
+     * @return connections
+     */
+    int getConnectionCount();
+
+    /**
+     * Return the maximal count of producer sessions
+     * 
+     * @return maxProducerSessions
+     */
+    int getMaxProducerSessions();
+
+    /**
+     * Return the count of producer sessions which are currently in use
+     * 
+     * @return activeProducerSessions
+     */
+    int getActiveProducerSessions();
+
+    /**
+     * Return the count of idle producer sessions
+     * 
+     * @return idleProducerSessions
+     */
+    int getIdleProducerSessions();
+
+    /**
+     * Return the maximal count of consumer sessions
+     * 
+     * @return maxConsumerSessions
+     */
+    int getMaxConsumerSessions();
+
+    /**
+     * Return the count of consumer sessions which are currently in use
+     * 
+     * @return activeConsumerSessions
+     */
+    int getActiveConsumerSessions();
+
+    /**
+     * Return the count of idle consumer sessions
+     * 
+     * @return idleConsumerSessions
+     */
+    int getIdleConsumerSessions();
+
+    /**
+     * Return the total count of sessions which were created by the pool
+     * 
+     * @return createdSessions
+     */
+    long getCreatedSessions();
+
+    /**
+     * Return the total count of sessions which were closed because of an
+     * error
+     * 
+     * @return invalidatedSessions
+     */
+    long getInvalidatedSessions();
+
+    /**
+     * Return the total count of sessions which were handed out by the pool
+     * 
+     * @return borrowedSessions
+     */
+    long getBorrowedSessions();
+
+    /**
+     * Return the total count of consumers which were created by the pool
+     * 
+     * @return createdConsumers
+     */
+    long getCreatedConsumers();
+}
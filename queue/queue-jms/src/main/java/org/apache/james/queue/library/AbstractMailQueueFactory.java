@@ -55,6 +55,10 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
         this.useJMX = useJMX;
     }
 
+    protected boolean isUseJMX() {
+        return useJMX;
+    }
+
     @PostConstruct
     public void init() {
         mbeanServer = ManagementFactory.getPlatformMBeanServer();
@@ -121,6 +125,22 @@ public abstract class AbstractMailQueueFactory implements MailQueueFactory, LogE
 
     }
 
+    /**
+     * Register the given MBean with the given name. It will get unregistered
+     * on {@link #destroy()}
+     * 
+     * @param mbeanName
+     * @param mbean
+     */
+    protected synchronized void registerMBean(String mbeanName, Object mbean) {
+        try {
+            mbeanServer.registerMBean(mbean, new ObjectName(mbeanName));
+            mbeans.add(mbeanName);
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to register mbean", e);
+        }
+    }
+
     protected synchronized void unregisterMBean(String mbeanName) {
         try {
             mbeanServer.unregisterMBean(new ObjectName(mbeanName));
@@ -408,4 +408,32 @@ public class JMSMailQueueTest {
         assertFalse(it.hasNext());
         it.close();
     }
+
+    @Test
+    public void testBatchEnQueue() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        // should be empty
+        assertEquals(0, queue.getSize());
+
+        Mail mail = createMail();
+        Mail mail2 = createMail();
+
+        queue.enQueue(Arrays.asList(mail, mail2));
+
+        Thread.sleep(200);
+
+        assertEquals(2, queue.getSize());
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(true);
+
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail2, item2.getMail());
+        item2.done(true);
+
+        Thread.sleep(200);
+
+        // should be empty
+        assertEquals(0, queue.getSize());
+    }
 }
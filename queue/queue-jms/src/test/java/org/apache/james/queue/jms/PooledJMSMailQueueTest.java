@@ -0,0 +1,112 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.queue.jms;
+
+import java.io.IOException;
+import javax.jms.ConnectionFactory;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.mail.MessagingException;
+import org.apache.james.protocols.smtp.MailAddressException;
+import org.apache.james.queue.jms.JMSSessionPool.ConsumerSession;
+import org.apache.james.queue.api.MailQueue.MailQueueItem;
+import org.apache.mailet.Mail;
+import org.junit.After;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class PooledJMSMailQueueTest extends JMSMailQueueTest {
+
+    private JMSSessionPool pool;
+
+    @Override
+    protected JMSMailQueue createQueue(ConnectionFactory factory, String queueName) {
+        Logger log = LoggerFactory.getLogger("MockLog");
+        pool = new JMSSessionPool(factory, queueName, 1, 2, 4, 1000, log);
+        return new JMSMailQueue(factory, pool, queueName, log);
+    }
+
+    @After
+    @Override
+    public void tearDown() throws Exception {
+        queue.dispose();
+        super.tearDown();
+    }
+
+    @Test
+    public void testSessionsAreReused() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        for (int i = 0; i < 5; i++) {
+            queue.enQueue(createMail());
+        }
+
+        for (int i = 0; i < 5; i++) {
+            MailQueueItem item = queue.deQueue();
+            item.done(true);
+        }
+
+        assertEquals(1, pool.getConnectionCount());
+        assertEquals(0, pool.getActiveProducerSessions());
+        assertEquals(0, pool.getActiveConsumerSessions());
+        assertEquals(1, pool.getIdleProducerSessions());
+        assertEquals(1, pool.getIdleConsumerSessions());
+        assertEquals(2, pool.getCreatedSessions());
+        assertEquals(10, pool.getBorrowedSessions());
+        assertEquals(0, pool.getInvalidatedSessions());
+    }
+
+    @Test
+    public void testRollbackKeepsSession() throws MessagingException, InterruptedException, IOException, MailAddressException {
+        Mail mail = createMail();
+        queue.enQueue(mail);
+
+        MailQueueItem item = queue.deQueue();
+        checkMail(mail, item.getMail());
+        item.done(false);
+
+        MailQueueItem item2 = queue.deQueue();
+        checkMail(mail, item2.getMail());
+        item2.done(true);
+
+        assertEquals(0, pool.getInvalidatedSessions());
+        assertEquals(0, pool.getActiveConsumerSessions());
+    }
+
+    @Test
+    public void testReleasedConsumerDoesNotHoldMessages() throws MessagingException, IOException, MailAddressException, JMSException {
+        queue.enQueue(createMail());
+        queue.enQueue(createMail());
+
+        ConsumerSession first = pool.borrowConsumerSession();
+        ConsumerSession second = pool.borrowConsumerSession();
+        Message message = first.getConsumer(null).receive(10000);
+        assertNotNull(message);
+        first.getSession().commit();
+        // the consumer of the first session may have prefetched the second
+        // message, releasing it must make the message available again
+        pool.release(first, true);
+
+        Message message2 = second.getConsumer(null).receive(10000);
+        assertNotNull(message2);
+        second.getSession().commit();
+        pool.release(second, true);
+        assertEquals(0, queue.getSize());
+    }
+}
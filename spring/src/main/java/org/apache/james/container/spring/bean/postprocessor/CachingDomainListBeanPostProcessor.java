@@ -0,0 +1,76 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.container.spring.bean.postprocessor;
+
+import java.util.List;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.container.spring.lifecycle.ConfigurationProvider;
+import org.apache.james.domainlist.api.DomainList;
+import org.apache.james.domainlist.lib.CachingDomainList;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.FatalBeanException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * {@link BeanPostProcessor} which puts a {@link CachingDomainList} in front of
+ * the domain list when its configuration holds a <code>cache</code> element,
+ * so that all the components using the domain list share the snapshot.
+ */
+public class CachingDomainListBeanPostProcessor implements BeanPostProcessor {
+
+    private static final String DOMAIN_LIST = "domainlist";
+
+    private ConfigurationProvider provider;
+
+    public void setConfigurationProvider(ConfigurationProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @see org.springframework.beans.factory.config.BeanPostProcessor
+     * #postProcessBeforeInitialization(java.lang.Object, java.lang.String)
+     */
+    public Object postProcessBeforeInitialization(Object bean, String name) throws BeansException {
+        return bean;
+    }
+
+    /**
+     * @see org.springframework.beans.factory.config.BeanPostProcessor
+     * #postProcessAfterInitialization(java.lang.Object, java.lang.String)
+     */
+    public Object postProcessAfterInitialization(Object bean, String name) throws BeansException {
+        if (!DOMAIN_LIST.equals(name) || !(bean instanceof DomainList)) {
+            return bean;
+        }
+        try {
+            List<HierarchicalConfiguration> caches = provider.getConfiguration(name).configurationsAt("cache");
+            if (caches.isEmpty()) {
+                return bean;
+            }
+            CachingDomainList domainList = new CachingDomainList((DomainList) bean);
+            domainList.configure(caches.get(0));
+            return domainList;
+        } catch (ConfigurationException e) {
+            throw new FatalBeanException("Unable to configure the cache of bean " + name, e);
+        }
+    }
+
+}
@@ -0,0 +1,88 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.container.spring.bean.postprocessor;
+
+import java.util.List;
+
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.james.container.spring.lifecycle.ConfigurationProvider;
+import org.apache.james.user.api.JamesUsersRepository;
+import org.apache.james.user.api.UsersRepository;
+import org.apache.james.user.lib.CachingJamesUsersRepository;
+import org.apache.james.user.lib.CachingUsersRepository;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.FatalBeanException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+
+/**
+ * {@link BeanPostProcessor} which puts a {@link CachingUsersRepository} in
+ * front of the users repository when its configuration holds a
+ * <code>cache</code> element, so that all the components using the repository
+ * share the cache. A {@link JamesUsersRepository} gets a
+ * {@link CachingJamesUsersRepository}, which keeps its mappings available.
+ */
+public class CachingUsersRepositoryBeanPostProcessor implements BeanPostProcessor {
+
+    private static final String USERS_REPOSITORY = "usersrepository";
+
+    private ConfigurationProvider provider;
+
+    public void setConfigurationProvider(ConfigurationProvider provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * @see org.springframework.beans.factory.config.BeanPostProcessor
+     * #postProcessBeforeInitialization(java.lang.Object, java.lang.String)
+     */
+    public Object postProcessBeforeInitialization(Object bean, String name) throws BeansException {
+        return bean;
+    }
+
+    /**
+     * @see org.springframework.beans.factory.config.BeanPostProcessor
+     * #postProcessAfterInitialization(java.lang.Object, java.lang.String)
+     */
+    public Object postProcessAfterInitialization(Object bean, String name) throws BeansException {
+        if (!USERS_REPOSITORY.equals(name) || !(bean instanceof UsersRepository)) {
+            return bean;
+        }
+        try {
+            List<HierarchicalConfiguration> caches = provider.getConfiguration(name).configurationsAt("cache");
+            if (caches.isEmpty()) {
+                return bean;
+            }
+            CachingUsersRepository repository = createCache((UsersRepository) bean);
+            repository.configure(caches.get(0));
+            return repository;
+        } catch (ConfigurationException e) {
+            throw new FatalBeanException("Unable to configure the cache of bean " + name, e);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private CachingUsersRepository createCache(UsersRepository repository) {
+        if (repository instanceof JamesUsersRepository) {
+            return new CachingJamesUsersRepository((JamesUsersRepository) repository);
+        }
+        return new CachingUsersRepository(repository);
+    }
+
+}
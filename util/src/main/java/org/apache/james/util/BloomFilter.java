@@ -0,0 +1,190 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter of strings: a set which may answer that it contains a string
+ * which was never added, with the configured probability, but never misses
+ * one which was.
+ * 
+ * The filter is sized at creation for an expected number of strings and a
+ * false positive rate. Strings can be added concurrently with lookups.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray words;
+
+    private final long bitCount;
+
+    private final int hashCount;
+
+    private final AtomicLong setBits = new AtomicLong();
+
+    private final AtomicLong entries = new AtomicLong();
+
+    /**
+     * Create a filter for the given number of strings.
+     * 
+     * @param expectedEntries
+     *            the number of strings expected to be added
+     * @param falsePositiveRate
+     *            the probability that a string which was not added is
+     *            reported as contained once all the expected strings were
+     *            added, between 0 and 1 exclusive
+     */
+    public BloomFilter(long expectedEntries, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("False positive rate must be between 0 and 1: " + falsePositiveRate);
+        }
+        long n = Math.max(1, expectedEntries);
+        long bits = (long) Math.ceil(-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        // round up to whole words
+        long wordCount = Math.max(1, (bits + 63) >>> 6);
+        if (wordCount > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Bloom filter too large for " + expectedEntries + " entries");
+        }
+        words = new AtomicLongArray((int) wordCount);
+        bitCount = wordCount << 6;
+        hashCount = (int) Math.max(1, Math.round((double) bitCount / n * Math.log(2)));
+    }
+
+    /**
+     * Add the given string.
+     * 
+     * @param key
+     *            the string to add
+     */
+    public void add(CharSequence key) {
+        long hash = hash(key);
+        long h1 = mix(hash);
+        long h2 = mix(hash + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            while (true) {
+                long value = words.get(word);
+                if ((value & mask) != 0) {
+                    break;
+                }
+                if (words.compareAndSet(word, value, value | mask)) {
+                    setBits.incrementAndGet();
+                    break;
+                }
+            }
+        }
+        entries.incrementAndGet();
+    }
+
+    /**
+     * Return false if the given string was never added, true if it may have
+     * been.
+     * 
+     * @param key
+     *            the string to look up
+     * @return true if the string may be contained
+     */
+    public boolean mightContain(CharSequence key) {
+        long hash = hash(key);
+        long h1 = mix(hash);
+        long h2 = mix(hash + 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            long bit = ((h1 + i * h2) & Long.MAX_VALUE) % bitCount;
+            if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return the probability that a string which was not added is reported as
+     * contained, given the strings added so far.
+     * 
+     * @return the current false positive rate
+     */
+    public double getFalsePositiveRate() {
+        return Math.pow((double) setBits.get() / bitCount, hashCount);
+    }
+
+    /**
+     * Return the number of strings added, counting the duplicates.
+     * 
+     * @return the number of added strings
+     */
+    public long getEntryCount() {
+        return entries.get();
+    }
+
+    /**
+     * Return the size of the filter in bits.
+     * 
+     * @return the number of bits
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    /**
+     * Return the number of bits set for each string.
+     * 
+     * @return the number of hash functions
+     */
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Return the memory used by the bits of the filter.
+     * 
+     * @return the size in bytes
+     */
+    public long getMemoryUsage() {
+        return bitCount >>> 3;
+    }
+
+    /**
+     * FNV-1a hash of the characters.
+     */
+    private static long hash(CharSequence key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Spread the bits of the hash, see the MurmurHash3 finalizer.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
@@ -0,0 +1,214 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util;
+
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded cache whose entries expire after a time to live given per entry.
+ * 
+ * Once the maximum size is reached the expired entries are purged, at most
+ * once per second as all the entries are checked. New entries are not cached
+ * while the cache stays full.
+ * 
+ * A generation counter is incremented by each invalidation. Values looked up
+ * from the backend while the backend was changed are kept out of the cache by
+ * reading {@link #getGeneration()} before the lookup and passing it to
+ * {@link #put(Object, Object, long, int)}.
+ * 
+ * The cache is thread safe.
+ * 
+ * @param <K>
+ *            the type of the keys
+ * @param <V>
+ *            the type of the values
+ */
+public class TimeToLiveCache<K, V> {
+
+    /**
+     * A cached value
+     */
+    private final static class Entry<V> {
+
+        private final V value;
+
+        private final long expires;
+
+        private Entry(V value, long expires) {
+            this.value = value;
+            this.expires = expires;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<V>> cache = new ConcurrentHashMap<K, Entry<V>>();
+
+    private final AtomicInteger generation = new AtomicInteger();
+
+    private volatile long lastPurge;
+
+    private volatile int maxSize;
+
+    /**
+     * Create a cache holding at most the given number of entries.
+     * 
+     * @param maxSize
+     *            the maximum number of entries
+     */
+    public TimeToLiveCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Set the maximum number of entries
+     * 
+     * @param maxSize
+     *            the number of entries
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Return the value cached for the given key.
+     * 
+     * @param key
+     *            the key
+     * @return the value, or null if none is cached or it expired
+     */
+    public V get(K key) {
+        Entry<V> entry = cache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            cache.remove(key, entry);
+            return null;
+        }
+        return entry.value;
+    }
+
+    /**
+     * Return the current generation, to be read before looking up a value
+     * which is then passed to {@link #put(Object, Object, long, int)}.
+     * 
+     * @return generation
+     */
+    public int getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Cache the given value.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value, not null
+     * @param timeToLive
+     *            the time in milliseconds to cache it, nothing is cached if 0
+     *            or less
+     */
+    public void put(K key, V value, long timeToLive) {
+        put(key, value, timeToLive, generation.get());
+    }
+
+    /**
+     * Cache the given value, unless the cache was invalidated since the given
+     * generation.
+     * 
+     * @param key
+     *            the key
+     * @param value
+     *            the value, not null
+     * @param timeToLive
+     *            the time in milliseconds to cache it, nothing is cached if 0
+     *            or less
+     * @param lookupGeneration
+     *            the generation read before the value was looked up
+     */
+    public void put(K key, V value, long timeToLive, int lookupGeneration) {
+        if (timeToLive <= 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (cache.size() >= maxSize && !cache.containsKey(key)) {
+            // purge at most once per second, as all the entries are checked
+            if (now - lastPurge < 1000) {
+                return;
+            }
+            lastPurge = now;
+            for (Iterator<Entry<V>> it = cache.values().iterator(); it.hasNext();) {
+                if (it.next().expires < now) {
+                    it.remove();
+                }
+            }
+            if (cache.size() >= maxSize) {
+                return;
+            }
+        }
+        Entry<V> entry = new Entry<V>(value, now + timeToLive);
+        cache.put(key, entry);
+        if (generation.get() != lookupGeneration) {
+            // invalidated meanwhile, the value may be stale
+            cache.remove(key, entry);
+        }
+    }
+
+    /**
+     * Drop the entry of the given key and increment the generation.
+     * 
+     * @param key
+     *            the key
+     */
+    public void invalidate(K key) {
+        generation.incrementAndGet();
+        cache.remove(key);
+    }
+
+    /**
+     * Drop all the entries and increment the generation.
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    /**
+     * Return the keys of the cached entries. Removing a key drops its entry,
+     * without incrementing the generation.
+     * 
+     * @return keys
+     */
+    public Set<K> keySet() {
+        return cache.keySet();
+    }
+
+    /**
+     * Return the number of entries, including the expired ones not purged
+     * yet.
+     * 
+     * @return size
+     */
+    public int size() {
+        return cache.size();
+    }
+}
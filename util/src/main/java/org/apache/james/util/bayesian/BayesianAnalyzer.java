@@ -19,15 +19,8 @@
 
 package org.apache.james.util.bayesian;
 
+import java.util.Arrays;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Collection;
-import java.util.ArrayList;
 
 import java.io.IOException;
 import java.io.Reader;
@@ -106,10 +99,10 @@ public class BayesianAnalyzer {
     private final static double DEFAULT_TOKEN_PROBABILITY = 0.4;
 
     /** Map of ham tokens and their occurrences. */
-    private Map<String, Integer> hamTokenCounts = new HashMap<String, Integer>();
+    private TokenCounts hamTokenCounts = new TokenCounts();
 
     /** Map of spam tokens and their occurrences. */
-    private Map<String, Integer> spamTokenCounts = new HashMap<String, Integer>();
+    private TokenCounts spamTokenCounts = new TokenCounts();
 
     /** Number of ham messages analyzed. */
     private int hamMessageCount = 0;
@@ -117,58 +110,389 @@ public class BayesianAnalyzer {
     /** Number of spam messages analyzed. */
     private int spamMessageCount = 0;
 
-    /** Final token/probability corpus. */
-    private Map<String, Double> corpus = new HashMap<String, Double>();
+    /**
+     * Final token/probability corpus. It is never modified once built, a new
+     * corpus replaces it instead.
+     */
+    private volatile TokenCorpus corpus = new TokenCorpus(0, 0);
+
+    /** Per thread buffers used by computeSpamProbability. */
+    private final ThreadLocal<Analysis> analyses = new ThreadLocal<Analysis>() {
+        @Override
+        protected Analysis initialValue() {
+            return new Analysis();
+        }
+    };
+
+    /**
+     * Splits a stream into tokens, reading each token in a reused buffer.
+     * 
+     * The returned tokens are prefixed by the header they were found in, if
+     * it is one of the From, Return-Path, Subject and To headers. Tokens made
+     * of digits only and tokens of 90 characters or more are skipped.
+     */
+    private static final class Tokenizer {
+
+        private static final int MAX_TOKEN_LENGTH = 90;
+
+        private static final char[][] HEADER_NAMES = { "From".toCharArray(), "Return-Path".toCharArray(), "Subject".toCharArray(), "To".toCharArray() };
+
+        /**
+         * The current header, followed by the current token. Longer tokens
+         * are counted but not stored.
+         */
+        private final char[] chars = new char[128];
+
+        /** Length of the header followed by the token. */
+        private int length;
+
+        private int headerLength;
+
+        /** Length of the current token alone. */
+        private int tokenLength;
+
+        private boolean endingLine;
+
+        /** Character read ahead after a number, -1 if none. */
+        private int pending = -1;
+
+        private void reset() {
+            headerLength = 0;
+            endingLine = false;
+            pending = -1;
+        }
+
+        /**
+         * Read the next token into chars, returning false at the end of the
+         * stream.
+         */
+        private boolean next(Reader reader) throws IOException {
+            while (true) {
+                if (endingLine) {
+                    headerLength = 0;
+                }
+                if (!readToken(reader)) {
+                    return false;
+                }
+                if (tokenLength > 0 && headerLength + tokenLength < MAX_TOKEN_LENGTH && !allDigits()) {
+                    if (chars[headerLength + tokenLength - 1] == ':') {
+                        // header names are read as a whole token
+                        System.arraycopy(chars, headerLength, chars, 0, tokenLength);
+                        headerLength = tokenLength;
+                    } else {
+                        length = headerLength + tokenLength;
+                        return true;
+                    }
+                }
+            }
+        }
+
+        private boolean readToken(Reader reader) throws IOException {
+            int i;
+            char ch;
+            boolean previousWasDigit = false;
+            boolean tokenCharFound = false;
+
+            tokenLength = 0;
+            endingLine = false;
+            if (pending == -1 && !reader.ready()) {
+                return false;
+            }
+
+            while ((i = read(reader)) != -1) {
+
+                ch = (char) i;
+
+                if (ch == ':' && isHeaderName()) {
+                    append(ch);
+                    return true;
+                }
+
+                if (Character.isLetter(ch) || ch == '-' || ch == '$' || ch == '\u20AC' // the
+                                                                                       // EURO
+                                                                                       // symbol
+                        || ch == '!' || ch == '\'') {
+                    tokenCharFound = true;
+                    previousWasDigit = false;
+                    append(ch);
+                } else if (Character.isDigit(ch)) {
+                    tokenCharFound = true;
+                    previousWasDigit = true;
+                    append(ch);
+                } else if (previousWasDigit && (ch == '.' || ch == ',')) {
+                    previousWasDigit = false;
+                    i = read(reader);
+                    if (i == -1) {
+                        break;
+                    }
+                    if (Character.isDigit((char) i)) {
+                        tokenCharFound = true;
+                        previousWasDigit = true;
+                        append(ch);
+                        append((char) i);
+                    } else {
+                        pending = i;
+                        break;
+                    }
+                } else if (ch == '\r') {
+                    // cr found, ignore
+                } else if (ch == '\n') {
+                    // eol found
+                    tokenCharFound = true;
+                    endingLine = true;
+                    break;
+                } else if (tokenCharFound) {
+                    break;
+                }
+            }
+
+            return tokenCharFound;
+        }
+
+        private int read(Reader reader) throws IOException {
+            int i = pending;
+            if (i == -1) {
+                return reader.read();
+            }
+            pending = -1;
+            return i;
+        }
+
+        private void append(char ch) {
+            int position = headerLength + tokenLength++;
+            if (position < chars.length) {
+                chars[position] = ch;
+            }
+        }
+
+        private boolean isHeaderName() {
+            for (char[] name : HEADER_NAMES) {
+                if (name.length == tokenLength && regionMatches(chars, headerLength, name, tokenLength)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean allDigits() {
+            for (int i = headerLength; i < headerLength + tokenLength; i++) {
+                if (!Character.isDigit(chars[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 
     /**
-     * Inner class for managing Token Probability Strengths during the
-     * computeSpamProbability phase.
+     * The state of one computeSpamProbability call, reused by the following
+     * calls of the same thread.
      * 
      * By probability <i>strength</i> we mean the absolute distance of a
      * probability from the middle value 0.5.
-     * 
-     * It implements Comparable so that it's sorting is automatic.
      */
-    private class TokenProbabilityStrength implements Comparable<TokenProbabilityStrength> {
+    private static final class Analysis {
+
+        /** Tables larger than this are not kept for the next message. */
+        private static final int MAX_KEPT_TOKENS = 65536;
+
+        private final Tokenizer tokenizer = new Tokenizer();
+
+        /** The distinct tokens of the message. */
+        private TokenTable tokens = new TokenTable();
+
+        /** Probability of each token. */
+        private double[] probabilities = new double[16];
+
+        /** Probability strength of each token. */
+        private double[] strengths = new double[16];
+
+        /** Heap of the token indexes, strongest first. */
+        private int[] heap = new int[16];
+
+        private final char[] lower = new char[128];
+
+        private final char[] variant = new char[128];
+
+        private final char[] candidate = new char[256];
+
+        /** Best probability found among the degenerated tokens. */
+        private double degeneratedProbability;
+
+        private double degeneratedStrength;
+
+        private void reset() {
+            tokenizer.reset();
+            if (tokens.size() > MAX_KEPT_TOKENS) {
+                tokens = new TokenTable();
+                probabilities = new double[16];
+                strengths = new double[16];
+                heap = new int[16];
+            } else {
+                tokens.clear();
+            }
+        }
+
         /**
-         * Message token.
+         * Add the current token of the tokenizer, computing its probability
+         * from the corpus if it was not seen yet.
          */
-        String token = null;
+        private void addToken(TokenCorpus workCorpus) {
+            int size = tokens.size();
+            int index = tokens.add(tokenizer.chars, 0, tokenizer.length);
+            if (index < size) {
+                return;
+            }
+            if (index == probabilities.length) {
+                probabilities = Arrays.copyOf(probabilities, index * 2);
+                strengths = Arrays.copyOf(strengths, index * 2);
+                heap = new int[index * 2];
+            }
+            int corpusIndex = workCorpus.indexOf(tokenizer.chars, 0, tokenizer.length);
+            if (corpusIndex >= 0) {
+                probabilities[index] = workCorpus.probability(corpusIndex);
+            } else {
+                // This token has never been seen before, we'll give it the
+                // strongest probability of its degenerated forms, or the
+                // default probability.
+                degeneratedProbability = DEFAULT_TOKEN_PROBABILITY;
+                degeneratedStrength = Math.abs(0.5 - DEFAULT_TOKEN_PROBABILITY);
+                lookupDegenerated(workCorpus, tokenizer.chars, tokenizer.length);
+                probabilities[index] = degeneratedProbability;
+            }
+            strengths[index] = Math.abs(0.5 - probabilities[index]);
+        }
 
         /**
-         * Token's computed probability strength.
+         * Look up the degenerated forms of the given token: lower case,
+         * capitalized, without trailing exclamation marks, and without the
+         * header prefix.
          */
-        double strength = Math.abs(0.5 - DEFAULT_TOKEN_PROBABILITY);
+        private void lookupDegenerated(TokenCorpus workCorpus, char[] fullToken, int fullLength) {
+            // look for a header string termination
+            int headerEnd = 0;
+            while (headerEnd < fullLength && fullToken[headerEnd] != ':') {
+                headerEnd++;
+            }
+            if (headerEnd == fullLength) {
+                headerEnd = 0;
+            }
+            System.arraycopy(fullToken, 0, candidate, 0, headerEnd);
+            int tokenLength = fullLength - headerEnd;
+            for (int i = 0; i < tokenLength; i++) {
+                lower[i] = Character.toLowerCase(fullToken[headerEnd + i]);
+            }
+            char first = fullToken[headerEnd];
+
+            int end = tokenLength;
+            do {
+                if (!regionMatches(fullToken, headerEnd, lower, end)) {
+                    lookupVariant(workCorpus, headerEnd, lower, end);
+                }
+                if (end > 1 && first >= 'A' && first <= 'Z') {
+                    variant[0] = first;
+                    System.arraycopy(lower, 1, variant, 1, end - 1);
+                    lookupVariant(workCorpus, headerEnd, variant, end);
+                }
+
+                if (fullToken[headerEnd + end - 1] != '!') {
+                    break;
+                }
+
+                end--;
+
+                System.arraycopy(fullToken, headerEnd, variant, 0, end);
+                lookupVariant(workCorpus, headerEnd, variant, end);
+            } while (end > 0);
+        }
 
         /**
-         * Force the natural sort order for this object to be high-to-low.
-         * 
-         * @param anotherTokenProbabilityStrength
-         *            A TokenProbabilityStrength instance to compare this
-         *            instance with.
-         * 
-         * @return The result of the comparison (before, equal, after).
+         * Look up the given variant of the token, prefixed by the header and
+         * alone.
          */
-        public final int compareTo(TokenProbabilityStrength anotherTokenProbabilityStrength) {
-            int result = (int) ((((TokenProbabilityStrength) anotherTokenProbabilityStrength).strength - strength) * 1000000);
-            if (result == 0) {
-                return this.token.compareTo(((TokenProbabilityStrength) anotherTokenProbabilityStrength).token);
-            } else {
-                return result;
+        private void lookupVariant(TokenCorpus workCorpus, int headerLength, char[] token, int length) {
+            System.arraycopy(token, 0, candidate, headerLength, length);
+            lookup(workCorpus, candidate, headerLength + length);
+            if (headerLength > 0) {
+                lookup(workCorpus, token, length);
+            }
+        }
+
+        private void lookup(TokenCorpus workCorpus, char[] token, int length) {
+            int index = workCorpus.indexOf(token, 0, length);
+            if (index >= 0) {
+                double probability = workCorpus.probability(index);
+                double strength = Math.abs(0.5 - probability);
+                if (strength > degeneratedStrength) {
+                    degeneratedStrength = strength;
+                    degeneratedProbability = probability;
+                }
             }
         }
 
         /**
-         * Simple toString () implementation mostly for debugging purposes.
+         * Compute the spamminess probability of the interesting tokens, that
+         * is the MAX_INTERESTING_TOKENS strongest ones and the ones stronger
+         * than INTERESTINGNESS_THRESHOLD.
          * 
-         * @return String representation of this object.
+         * @return Computed spamminess.
          */
-        public String toString() {
-            StringBuffer sb = new StringBuffer(30);
+        private double computeOverallProbability() {
+            int size = tokens.size();
+            for (int i = 0; i < size; i++) {
+                heap[i] = i;
+            }
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i, size);
+            }
+
+            double p = 1.0;
+            double np = 1.0;
+            double tempStrength = 0.5;
+            int count = MAX_INTERESTING_TOKENS;
+            while (size > 0 && (count-- > 0 || tempStrength >= INTERESTINGNESS_THRESHOLD)) {
+                int index = heap[0];
+                heap[0] = heap[--size];
+                siftDown(0, size);
+
+                tempStrength = strengths[index];
+                p *= probabilities[index];
+                np *= (1.0 - probabilities[index]);
+            }
+
+            return (p / (p + np));
+        }
 
-            sb.append(token).append("=").append(strength);
+        private void siftDown(int position, int size) {
+            int index = heap[position];
+            while (true) {
+                int child = 2 * position + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && compare(heap[child + 1], heap[child]) < 0) {
+                    child++;
+                }
+                if (compare(index, heap[child]) <= 0) {
+                    break;
+                }
+                heap[position] = heap[child];
+                position = child;
+            }
+            heap[position] = index;
+        }
 
-            return sb.toString();
+        /**
+         * Order the tokens from the highest strength to the lowest one, then
+         * alphabetically.
+         */
+        private int compare(int a, int b) {
+            int result = (int) ((strengths[b] - strengths[a]) * 1000000);
+            if (result == 0) {
+                return tokens.compare(a, b);
+            } else {
+                return result;
+            }
         }
     }
 
@@ -179,34 +503,38 @@ public class BayesianAnalyzer {
     }
 
     /**
-     * Public setter for the hamTokenCounts Map.
+     * Public setter for the hamTokenCounts Map. The counts are copied to the
+     * analyzer's own representation unless they come from another analyzer.
      * 
      * @param hamTokenCounts
      *            The new ham Token counts Map.
      */
     public void setHamTokenCounts(Map<String, Integer> hamTokenCounts) {
-        this.hamTokenCounts = hamTokenCounts;
+        this.hamTokenCounts = TokenCounts.copyOf(hamTokenCounts);
     }
 
     /**
-     * Public getter for the hamTokenCounts Map.
+     * Public getter for the hamTokenCounts Map. Tokens can not be removed from
+     * the returned Map.
      */
     public Map<String, Integer> getHamTokenCounts() {
         return this.hamTokenCounts;
     }
 
     /**
-     * Public setter for the spamTokenCounts Map.
+     * Public setter for the spamTokenCounts Map. The counts are copied to the
+     * analyzer's own representation unless they come from another analyzer.
      * 
      * @param spamTokenCounts
      *            The new spam Token counts Map.
      */
     public void setSpamTokenCounts(Map<String, Integer> spamTokenCounts) {
-        this.spamTokenCounts = spamTokenCounts;
+        this.spamTokenCounts = TokenCounts.copyOf(spamTokenCounts);
     }
 
     /**
-     * Public getter for the spamTokenCounts Map.
+     * Public getter for the spamTokenCounts Map. Tokens can not be removed
+     * from the returned Map.
      */
     public Map<String, Integer> getSpamTokenCounts() {
         return this.spamTokenCounts;
@@ -250,7 +578,7 @@ public class BayesianAnalyzer {
      * Clears all analysis repositories and counters.
      */
     public void clear() {
-        corpus.clear();
+        corpus = new TokenCorpus(0, 0);
 
         tokenCountsClear();
 
@@ -267,40 +595,46 @@ public class BayesianAnalyzer {
     }
 
     /**
-     * Public setter for corpus.
+     * Public setter for corpus. The corpus is copied to the analyzer's own
+     * representation unless it comes from another analyzer.
      * 
      * @param corpus
      *            The new corpus.
      */
     public void setCorpus(Map<String, Double> corpus) {
-        this.corpus = corpus;
+        this.corpus = TokenCorpus.copyOf(corpus);
     }
 
     /**
-     * Public getter for corpus.
+     * Public getter for corpus. The returned Map is read only.
      */
     public Map<String, Double> getCorpus() {
         return this.corpus;
     }
 
     /**
-     * Builds the corpus from the existing ham & spam counts.
+     * Builds the corpus from the existing ham & spam counts. The corpus in use
+     * is replaced only once the new one is complete.
      */
     public void buildCorpus() {
-        // Combine the known ham & spam tokens.
-        Set<String> set = new HashSet<String>(hamTokenCounts.size() + spamTokenCounts.size());
-        set.addAll(hamTokenCounts.keySet());
-        set.addAll(spamTokenCounts.keySet());
-        Map<String, Double> tempCorpus = new HashMap<String, Double>(set.size());
+        TokenTable ham = hamTokenCounts.tokens();
+        TokenTable spam = spamTokenCounts.tokens();
+        TokenCorpus tempCorpus = new TokenCorpus(ham.size() + spam.size(), ham.charCount() + spam.charCount());
 
         // Iterate through all the tokens and compute their new
         // individual probabilities.
-        Iterator<String> i = set.iterator();
-        while (i.hasNext()) {
-            String token = i.next();
-            tempCorpus.put(token, new Double(computeProbability(token)));
+        for (int i = 0; i < ham.size(); i++) {
+            int spamIndex = spam.indexOf(ham.chars(), ham.offset(i), ham.length(i));
+            double probability = computeProbability(hamTokenCounts.count(i), spamIndex < 0 ? -1 : spamTokenCounts.count(spamIndex));
+            tempCorpus.add(ham.chars(), ham.offset(i), ham.length(i), probability);
         }
-        setCorpus(tempCorpus);
+        for (int i = 0; i < spam.size(); i++) {
+            if (ham.indexOf(spam.chars(), spam.offset(i), spam.length(i)) < 0) {
+                tempCorpus.add(spam.chars(), spam.offset(i), spam.length(i), computeProbability(-1, spamTokenCounts.count(i)));
+            }
+        }
+        tempCorpus.trim();
+        this.corpus = tempCorpus;
     }
 
     /**
@@ -339,214 +673,68 @@ public class BayesianAnalyzer {
      *             If any error occurs
      */
     public double computeSpamProbability(Reader stream) throws java.io.IOException {
-        // Build a set of the tokens in the Stream.
-        Set<String> tokens = parse(stream);
-
         // Get the corpus to use in this run
         // A new corpus may be being built in the meantime
-        Map<String, Double> workCorpus = getCorpus();
-
-        // Assign their probabilities from the Corpus (using an additional
-        // calculation to determine spamminess).
-        SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths = getTokenProbabilityStrengths(tokens, workCorpus);
+        TokenCorpus workCorpus = corpus;
+
+        // Assign their probabilities from the Corpus to the distinct tokens
+        // of the stream (using an additional calculation to determine
+        // spamminess).
+        Analysis analysis = analyses.get();
+        analysis.reset();
+        while (analysis.tokenizer.next(stream)) {
+            analysis.addToken(workCorpus);
+        }
 
         // Compute and return the overall probability that the
         // stream is SPAM.
-        return computeOverallProbability(tokenProbabilityStrengths, workCorpus);
+        return analysis.computeOverallProbability();
     }
 
     /**
-     * Parses a stream into tokens, and updates the target Map with the
+     * Parses a stream into tokens, and updates the target with the
      * token/counts.
      * 
      * @param stream
      * @param target
      */
-    private void addTokenOccurrences(Reader stream, Map<String, Integer> target) throws java.io.IOException {
-        String token;
-        String header = "";
-
-        // Update target with the tokens/count encountered.
-        while ((token = nextToken(stream)) != null) {
-            boolean endingLine = false;
-            if (token.length() > 0 && token.charAt(token.length() - 1) == '\n') {
-                endingLine = true;
-                token = token.substring(0, token.length() - 1);
-            }
-
-            if (token.length() > 0 && header.length() + token.length() < 90 && !allDigits(token)) {
-                if (token.equals("From:") || token.equals("Return-Path:") || token.equals("Subject:") || token.equals("To:")) {
-                    header = token;
-                    if (!endingLine) {
-                        continue;
-                    }
-                }
-
-                token = header + token;
-
-                Integer value = null;
-
-                if (target.containsKey(token)) {
-                    value = Integer.valueOf(((Integer) target.get(token)).intValue() + 1);
-                } else {
-                    value = Integer.valueOf(1);
-                }
-
-                target.put(token, value);
-            }
-
-            if (endingLine) {
-                header = "";
-            }
-        }
-    }
-
-    /**
-     * Parses a stream into tokens, and returns a Set of the unique tokens
-     * encountered.
-     * 
-     * @param stream
-     * @return Set
-     */
-    private Set<String> parse(Reader stream) throws java.io.IOException {
-        Set<String> tokens = new HashSet<String>();
-        String token;
-        String header = "";
-
-        // Build a Map of tokens encountered.
-        while ((token = nextToken(stream)) != null) {
-            boolean endingLine = false;
-            if (token.length() > 0 && token.charAt(token.length() - 1) == '\n') {
-                endingLine = true;
-                token = token.substring(0, token.length() - 1);
-            }
-
-            if (token.length() > 0 && header.length() + token.length() < 90 && !allDigits(token)) {
-                if (token.equals("From:") || token.equals("Return-Path:") || token.equals("Subject:") || token.equals("To:")) {
-                    header = token;
-                    if (!endingLine) {
-                        continue;
-                    }
-                }
-
-                token = header + token;
-
-                tokens.add(token);
-            }
-
-            if (endingLine) {
-                header = "";
-            }
-        }
-
-        // Return the unique set of tokens encountered.
-        return tokens;
-    }
-
-    private String nextToken(Reader reader) throws java.io.IOException {
-        StringBuffer token = new StringBuffer();
-        int i;
-        char ch, ch2;
-        boolean previousWasDigit = false;
-        boolean tokenCharFound = false;
-
-        if (!reader.ready()) {
-            return null;
-        }
-
-        while ((i = reader.read()) != -1) {
-
-            ch = (char) i;
-
-            if (ch == ':') {
-                String tokenString = token.toString() + ':';
-                if (tokenString.equals("From:") || tokenString.equals("Return-Path:") || tokenString.equals("Subject:") || tokenString.equals("To:")) {
-                    return tokenString;
-                }
-            }
-
-            if (Character.isLetter(ch) || ch == '-' || ch == '$' || ch == '\u20AC' // the
-                                                                                   // EURO
-                                                                                   // symbol
-                    || ch == '!' || ch == '\'') {
-                tokenCharFound = true;
-                previousWasDigit = false;
-                token.append(ch);
-            } else if (Character.isDigit(ch)) {
-                tokenCharFound = true;
-                previousWasDigit = true;
-                token.append(ch);
-            } else if (previousWasDigit && (ch == '.' || ch == ',')) {
-                reader.mark(1);
-                previousWasDigit = false;
-                i = reader.read();
-                if (i == -1) {
-                    break;
-                }
-                ch2 = (char) i;
-                if (Character.isDigit(ch2)) {
-                    tokenCharFound = true;
-                    previousWasDigit = true;
-                    token.append(ch);
-                    token.append(ch2);
-                } else {
-                    reader.reset();
-                    break;
-                }
-            } else if (ch == '\r') {
-                // cr found, ignore
-            } else if (ch == '\n') {
-                // eol found
-                tokenCharFound = true;
-                previousWasDigit = false;
-                token.append(ch);
-                break;
-            } else if (tokenCharFound) {
-                break;
-            }
-        }
-
-        if (tokenCharFound) {
-            // System.out.println("Token read: " + token);
-            return token.toString();
-        } else {
-            return null;
+    private void addTokenOccurrences(Reader stream, TokenCounts target) throws java.io.IOException {
+        Tokenizer tokenizer = new Tokenizer();
+        while (tokenizer.next(stream)) {
+            target.increment(tokenizer.chars, 0, tokenizer.length);
         }
     }
 
     /**
-     * Compute the probability that "token" is SPAM.
+     * Compute the probability that a token is SPAM.
      * 
-     * @param token
+     * @param hamCount
+     *            the ham occurrences of the token, -1 if it was not found in
+     *            ham
+     * @param spamCount
+     *            the spam occurrences of the token, -1 if it was not found in
+     *            spam
      * @return The probability that the token occurs within spam.
      */
-    private double computeProbability(String token) {
+    private double computeProbability(int hamCount, int spamCount) {
         double hamFactor = 0;
         double spamFactor = 0;
 
-        boolean foundInHam = false;
-        boolean foundInSpam = false;
+        boolean foundInHam = hamCount >= 0;
+        boolean foundInSpam = spamCount >= 0;
 
         double minThreshold = 0.01;
         double maxThreshold = 0.99;
 
-        if (hamTokenCounts.containsKey(token)) {
-            foundInHam = true;
-        }
-
-        if (spamTokenCounts.containsKey(token)) {
-            foundInSpam = true;
-        }
-
         if (foundInHam) {
-            hamFactor = 2 * ((Integer) hamTokenCounts.get(token)).doubleValue();
+            hamFactor = 2 * (double) hamCount;
             if (!foundInSpam) {
                 minThreshold = (hamFactor > 20) ? 0.0001 : 0.0002;
             }
         }
 
         if (foundInSpam) {
-            spamFactor = ((Integer) spamTokenCounts.get(token)).doubleValue();
+            spamFactor = (double) spamCount;
             if (!foundInHam) {
                 maxThreshold = (spamFactor > 10) ? 0.9999 : 0.9998;
             }
@@ -563,152 +751,6 @@ public class BayesianAnalyzer {
         return Math.max(minThreshold, Math.min(maxThreshold, (spamFreq / (hamFreq + spamFreq))));
     }
 
-    /**
-     * Returns a SortedSet of TokenProbabilityStrength built from the Corpus and
-     * the tokens passed in the "tokens" Set. The ordering is from the highest
-     * strength to the lowest strength.
-     * 
-     * @param tokens
-     * @param workCorpus
-     * @return SortedSet of TokenProbabilityStrength objects.
-     */
-    private SortedSet<TokenProbabilityStrength> getTokenProbabilityStrengths(Set<String> tokens, Map<String, Double> workCorpus) {
-        // Convert to a SortedSet of token probability strengths.
-        SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths = new TreeSet<TokenProbabilityStrength>();
-
-        Iterator<String> i = tokens.iterator();
-        while (i.hasNext()) {
-            TokenProbabilityStrength tps = new TokenProbabilityStrength();
-
-            tps.token = (String) i.next();
-
-            if (workCorpus.containsKey(tps.token)) {
-                tps.strength = Math.abs(0.5 - ((Double) workCorpus.get(tps.token)).doubleValue());
-            } else {
-                // This token has never been seen before,
-                // we'll give it initially the default probability.
-                Double corpusProbability = new Double(DEFAULT_TOKEN_PROBABILITY);
-                tps.strength = Math.abs(0.5 - DEFAULT_TOKEN_PROBABILITY);
-                boolean isTokenDegeneratedFound = false;
-
-                Collection<String> degeneratedTokens = buildDegenerated(tps.token);
-                Iterator<String> iDegenerated = degeneratedTokens.iterator();
-                String tokenDegenerated = null;
-                double strengthDegenerated;
-                while (iDegenerated.hasNext()) {
-                    tokenDegenerated = (String) iDegenerated.next();
-                    if (workCorpus.containsKey(tokenDegenerated)) {
-                        Double probabilityTemp = (Double) workCorpus.get(tokenDegenerated);
-                        strengthDegenerated = Math.abs(0.5 - probabilityTemp.doubleValue());
-                        if (strengthDegenerated > tps.strength) {
-                            isTokenDegeneratedFound = true;
-                            tps.strength = strengthDegenerated;
-                            corpusProbability = probabilityTemp;
-                        }
-                    }
-                }
-                // to reduce memory usage, put in the corpus only if the
-                // probability is different from (stronger than) the default
-                if (isTokenDegeneratedFound) {
-                    synchronized (workCorpus) {
-                        workCorpus.put(tps.token, corpusProbability);
-                    }
-                }
-            }
-
-            tokenProbabilityStrengths.add(tps);
-        }
-
-        return tokenProbabilityStrengths;
-    }
-
-    private Collection<String> buildDegenerated(String fullToken) {
-        ArrayList<String> tokens = new ArrayList<String>();
-        String header;
-        String token;
-        String tokenLower;
-
-        // look for a header string termination
-        int headerEnd = fullToken.indexOf(':');
-        if (headerEnd >= 0) {
-            header = fullToken.substring(0, headerEnd);
-            token = fullToken.substring(headerEnd);
-        } else {
-            header = "";
-            token = fullToken;
-        }
-
-        // prepare a version of the token containing all lower case (for
-        // performance reasons)
-        tokenLower = token.toLowerCase();
-
-        int end = token.length();
-        do {
-            if (!token.substring(0, end).equals(tokenLower.substring(0, end))) {
-                tokens.add(header + tokenLower.substring(0, end));
-                if (header.length() > 0) {
-                    tokens.add(tokenLower.substring(0, end));
-                }
-            }
-            if (end > 1 && token.charAt(0) >= 'A' && token.charAt(0) <= 'Z') {
-                tokens.add(header + token.charAt(0) + tokenLower.substring(1, end));
-                if (header.length() > 0) {
-                    tokens.add(token.charAt(0) + tokenLower.substring(1, end));
-                }
-            }
-
-            if (token.charAt(end - 1) != '!') {
-                break;
-            }
-
-            end--;
-
-            tokens.add(header + token.substring(0, end));
-            if (header.length() > 0) {
-                tokens.add(token.substring(0, end));
-            }
-        } while (end > 0);
-
-        return tokens;
-    }
-
-    /**
-     * Compute the spamminess probability of the interesting tokens in the
-     * tokenProbabilities SortedSet.
-     * 
-     * @param tokenProbabilityStrengths
-     * @param workCorpus
-     * @return Computed spamminess.
-     */
-    private double computeOverallProbability(SortedSet<TokenProbabilityStrength> tokenProbabilityStrengths, Map<String, Double> workCorpus) {
-        double p = 1.0;
-        double np = 1.0;
-        double tempStrength = 0.5;
-        int count = MAX_INTERESTING_TOKENS;
-        Iterator<TokenProbabilityStrength> iterator = tokenProbabilityStrengths.iterator();
-        while ((iterator.hasNext()) && (count-- > 0 || tempStrength >= INTERESTINGNESS_THRESHOLD)) {
-            TokenProbabilityStrength tps = iterator.next();
-            tempStrength = tps.strength;
-
-            // System.out.println(tps);
-
-            double theDoubleValue = DEFAULT_TOKEN_PROBABILITY; // initialize it
-                                                               // to the default
-            Double theDoubleObject = (Double) workCorpus.get(tps.token);
-            // if either the original token or a degeneration was found use the
-            // double value, otherwise use the default
-            if (theDoubleObject != null) {
-                theDoubleValue = theDoubleObject.doubleValue();
-            }
-            p *= theDoubleValue;
-            np *= (1.0 - theDoubleValue);
-            // System.out.println("Token " + tps + ", p=" + theDoubleValue +
-            // ", overall p=" + p / (p + np));
-        }
-
-        return (p / (p + np));
-    }
-
     private boolean allSameChar(String s) {
         if (s.length() < 2) {
             return false;
@@ -724,9 +766,13 @@ public class BayesianAnalyzer {
         return true;
     }
 
-    private boolean allDigits(String s) {
-        for (int i = 0; i < s.length(); i++) {
-            if (!Character.isDigit(s.charAt(i))) {
+    /**
+     * Return true if the first length characters of a, starting at offset,
+     * equal the first length characters of b.
+     */
+    private static boolean regionMatches(char[] a, int offset, char[] b, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[offset + i] != b[i]) {
                 return false;
             }
         }
@@ -22,7 +22,9 @@ package org.apache.james.util.bayesian;
 import org.apache.james.util.sql.JDBCUtil;
 import org.apache.james.util.sql.SqlResources;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import java.io.File;
@@ -32,12 +34,24 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.DatabaseMetaData;
+import java.sql.Statement;
 
 /**
  * Manages the persistence of the spam bayesian analysis corpus using a JDBC
  * database.
  * 
  * <p>
+ * If the sqlResources file defines the <code>selectMessageCountsRevision</code>
+ * statement and its siblings, every training increments a revision number kept
+ * with the message counts and stamps the token rows it updates with it. The
+ * corpus can then be refreshed by loading only the rows changed since the last
+ * loaded revision (see {@link #refreshCorpus(Connection)}), so that several
+ * servers can share one database without pulling the whole token tables on
+ * each change. The <code>revision</code> columns are added to existing tables
+ * when missing.
+ * </p>
+ * 
+ * <p>
  * This class is abstract to allow implementations to take advantage of
  * different logging capabilities/interfaces in different parts of the code.
  * </p>
@@ -80,6 +94,20 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     /** Holds value of property lastDatabaseUpdateTime. */
     private static long lastDatabaseUpdateTime;
 
+    /** True if the tables keep the revision of the token rows. */
+    private boolean revisionSupported;
+
+    /** Revision of the loaded token counts, -1 if they were not loaded. */
+    private long loadedRevision = -1;
+
+    /**
+     * The revision is split in a reset generation, stored in the bits above
+     * this shift, and a counter below. Each reset starts a new generation, so
+     * the revision keeps growing and a reset is detected even if the data was
+     * trained again up to the loaded revision.
+     */
+    private final static int RESET_SHIFT = 32;
+
     /**
      * Getter for property sqlFileName.
      * 
@@ -146,6 +174,16 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     public JDBCBayesianAnalyzer() {
     }
 
+    /**
+     * Returns true if the corpus can be refreshed incrementally, that is if
+     * the sqlResources file defines the revision statements.
+     * 
+     * @return true if the token rows changes are tracked
+     */
+    public boolean isRevisionSupported() {
+        return revisionSupported;
+    }
+
     /**
      * Loads the token frequencies from the database.
      * 
@@ -155,78 +193,179 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
      *             If a database error occurs
      */
     public void loadHamNSpam(Connection conn) throws java.sql.SQLException {
+        // rows changed while loading will be loaded again by the next refresh
+        long revision = revisionSupported ? selectRevision(conn)[2] : -1;
+
+        loadTokens(conn, sqlQueries.getSqlString("selectHamTokens", true), -1, getHamTokenCounts());
+        // Verbose.
+        delegatedLog("Ham tokens count: " + getHamTokenCounts().size());
+
+        // Get the spam tokens/counts.
+        loadTokens(conn, sqlQueries.getSqlString("selectSpamTokens", true), -1, getSpamTokenCounts());
+        // Verbose.
+        delegatedLog("Spam tokens count: " + getSpamTokenCounts().size());
+
+        // Get the ham/spam message counts.
         PreparedStatement pstmt = null;
         ResultSet rs = null;
 
         try {
-            pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectHamTokens", true));
+            pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectMessageCounts", true));
             rs = pstmt.executeQuery();
-
-            Map<String, Integer> ham = getHamTokenCounts();
-            while (rs.next()) {
-                String token = rs.getString(1);
-                int count = rs.getInt(2);
-                // to reduce memory, use the token only if the count is > 1
-                if (count > 1) {
-                    ham.put(token, Integer.valueOf(count));
-                }
+            if (rs.next()) {
+                setHamMessageCount(rs.getInt(1));
+                setSpamMessageCount(rs.getInt(2));
             }
-            // Verbose.
-            delegatedLog("Ham tokens count: " + ham.size());
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rs);
+            theJDBCUtil.closeJDBCStatement(pstmt);
+        }
 
-            rs.close();
-            pstmt.close();
+        loadedRevision = revision;
+    }
 
-            // Get the spam tokens/counts.
-            pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectSpamTokens", true));
+    /**
+     * Loads the token frequencies changed since the last load into the current
+     * token counts. Everything is loaded again if the revisions are not
+     * supported, if nothing was loaded yet or if the data was reset.
+     * 
+     * @param conn
+     *            The connection for accessing the database
+     * @return true if the token frequencies changed
+     * @throws SQLException
+     *             If a database error occurs
+     */
+    public boolean loadHamNSpamChanges(Connection conn) throws java.sql.SQLException {
+        if (!revisionSupported || loadedRevision < 0) {
+            tokenCountsClear();
+            loadHamNSpam(conn);
+            return true;
+        }
+
+        long[] counts = selectRevision(conn);
+        long revision = counts[2];
+        if (revision == loadedRevision) {
+            return false;
+        }
+        if ((revision >>> RESET_SHIFT) != (loadedRevision >>> RESET_SHIFT) || revision < loadedRevision || counts[0] < getHamMessageCount() || counts[1] < getSpamMessageCount()) {
+            // the data was reset
+            delegatedLog("Revision " + revision + " does not follow the loaded one (" + loadedRevision + "): reloading all tokens");
+            tokenCountsClear();
+            loadHamNSpam(conn);
+            return true;
+        }
+
+        int ham = loadTokens(conn, sqlQueries.getSqlString("selectHamTokensSince", true), loadedRevision, getHamTokenCounts());
+        int spam = loadTokens(conn, sqlQueries.getSqlString("selectSpamTokensSince", true), loadedRevision, getSpamTokenCounts());
+        delegatedLog("Loaded " + ham + " ham and " + spam + " spam tokens changed since revision " + loadedRevision);
+
+        setHamMessageCount((int) counts[0]);
+        setSpamMessageCount((int) counts[1]);
+        loadedRevision = revision;
+        return true;
+    }
+
+    /**
+     * Refreshes the corpus from the database: loads the changed token
+     * frequencies and rebuilds the corpus if needed.
+     * 
+     * The token counts are kept between two refreshes when the revisions are
+     * supported, and cleared after building the corpus otherwise.
+     * 
+     * @param conn
+     *            The connection for accessing the database
+     * @return true if the corpus was rebuilt
+     * @throws SQLException
+     *             If a database error occurs
+     */
+    public boolean refreshCorpus(Connection conn) throws java.sql.SQLException {
+        boolean changed = loadHamNSpamChanges(conn);
+        if (changed) {
+            // the probability of every token depends on the message counts,
+            // so all of them are computed again, but from memory
+            buildCorpus();
+        }
+        if (!revisionSupported) {
+            tokenCountsClear();
+        }
+        return changed;
+    }
+
+    /**
+     * Loads the token rows returned by the given statement into the target,
+     * and returns the number of rows read.
+     */
+    private int loadTokens(Connection conn, String sqlStatement, long sinceRevision, Map<String, Integer> target) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int rows = 0;
+
+        try {
+            pstmt = conn.prepareStatement(sqlStatement);
+            if (sinceRevision >= 0) {
+                pstmt.setLong(1, sinceRevision);
+            }
             rs = pstmt.executeQuery();
 
-            Map<String, Integer> spam = getSpamTokenCounts();
             while (rs.next()) {
                 String token = rs.getString(1);
                 int count = rs.getInt(2);
+                rows++;
                 // to reduce memory, use the token only if the count is > 1
                 if (count > 1) {
-                    spam.put(token, new Integer(count));
+                    target.put(token, Integer.valueOf(count));
                 }
             }
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rs);
+            theJDBCUtil.closeJDBCStatement(pstmt);
+        }
+        return rows;
+    }
 
-            // Verbose.
-            delegatedLog("Spam tokens count: " + spam.size());
-
-            rs.close();
-            pstmt.close();
+    /**
+     * Returns the ham message count, the spam message count and the revision
+     * stored in the database, all 0 if there is no message counts row.
+     */
+    private long[] selectRevision(Connection conn) throws SQLException {
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
 
-            // Get the ham/spam message counts.
-            pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectMessageCounts", true));
+        try {
+            pstmt = conn.prepareStatement(sqlQueries.getSqlString("selectMessageCountsRevision", true));
             rs = pstmt.executeQuery();
             if (rs.next()) {
-                setHamMessageCount(rs.getInt(1));
-                setSpamMessageCount(rs.getInt(2));
+                return new long[] { rs.getLong(1), rs.getLong(2), rs.getLong(3) };
             }
-
-            rs.close();
-            pstmt.close();
-
+            return new long[3];
         } finally {
-            if (rs != null) {
-                try {
-                    rs.close();
-                } catch (java.sql.SQLException se) {
-                }
+            theJDBCUtil.closeJDBCResultSet(rs);
+            theJDBCUtil.closeJDBCStatement(pstmt);
+        }
+    }
 
-                rs = null;
-            }
+    /**
+     * Increments the revision stored in the database and returns it. This
+     * locks the message counts row until the end of the transaction, so that
+     * the revisions are committed in order.
+     */
+    private long nextRevision(Connection conn) throws SQLException {
+        PreparedStatement init = null;
+        PreparedStatement increment = null;
 
-            if (pstmt != null) {
-                try {
-                    pstmt.close();
-                } catch (java.sql.SQLException se) {
-                }
+        try {
+            init = conn.prepareStatement(sqlQueries.getSqlString("initializeMessageCounts", true));
+            increment = conn.prepareStatement(sqlQueries.getSqlString("incrementRevision", true));
 
-                pstmt = null;
+            if (increment.executeUpdate() == 0) {
+                init.executeUpdate();
+                increment.executeUpdate();
             }
+        } finally {
+            theJDBCUtil.closeJDBCStatement(init);
+            theJDBCUtil.closeJDBCStatement(increment);
         }
+        return selectRevision(conn)[2];
     }
 
     /**
@@ -238,7 +377,11 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
      *             If a database error occurs
      */
     public void updateHamTokens(Connection conn) throws java.sql.SQLException {
-        updateTokens(conn, getHamTokenCounts(), sqlQueries.getSqlString("insertHamToken", true), sqlQueries.getSqlString("updateHamToken", true));
+        if (revisionSupported) {
+            updateTokens(conn, getHamTokenCounts(), "Ham");
+        } else {
+            updateTokens(conn, getHamTokenCounts(), sqlQueries.getSqlString("insertHamToken", true), sqlQueries.getSqlString("updateHamToken", true));
+        }
 
         setMessageCount(conn, sqlQueries.getSqlString("updateHamMessageCounts", true), getHamMessageCount());
     }
@@ -252,7 +395,11 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
      *             If a database error occurs
      */
     public void updateSpamTokens(Connection conn) throws java.sql.SQLException {
-        updateTokens(conn, getSpamTokenCounts(), sqlQueries.getSqlString("insertSpamToken", true), sqlQueries.getSqlString("updateSpamToken", true));
+        if (revisionSupported) {
+            updateTokens(conn, getSpamTokenCounts(), "Spam");
+        } else {
+            updateTokens(conn, getSpamTokenCounts(), sqlQueries.getSqlString("insertSpamToken", true), sqlQueries.getSqlString("updateSpamToken", true));
+        }
 
         setMessageCount(conn, sqlQueries.getSqlString("updateSpamMessageCounts", true), getSpamMessageCount());
     }
@@ -268,7 +415,36 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
     public void resetData(Connection conn) throws SQLException {
         deleteData(conn, sqlQueries.getSqlString("deleteHamTokens", true));
         deleteData(conn, sqlQueries.getSqlString("deleteSpamTokens", true));
-        deleteData(conn, sqlQueries.getSqlString("deleteMessageCounts", true));
+
+        String resetSqlStatement = revisionSupported ? sqlQueries.getSqlString("resetMessageCounts", false) : null;
+        if (resetSqlStatement == null) {
+            deleteData(conn, sqlQueries.getSqlString("deleteMessageCounts", true));
+        } else {
+            // keep the revision growing and start a new reset generation, so
+            // that the analyzers which loaded the old data reload everything
+            long revision = selectRevision(conn)[2];
+            resetMessageCounts(conn, resetSqlStatement, ((revision >>> RESET_SHIFT) + 1) << RESET_SHIFT);
+        }
+    }
+
+    private void resetMessageCounts(Connection conn, String sqlStatement, long revision) throws SQLException {
+        PreparedStatement init = null;
+        PreparedStatement reset = null;
+
+        try {
+            init = conn.prepareStatement(sqlQueries.getSqlString("initializeMessageCounts", true));
+            reset = conn.prepareStatement(sqlStatement);
+
+            reset.setLong(1, revision);
+
+            if (reset.executeUpdate() == 0) {
+                init.executeUpdate();
+                reset.executeUpdate();
+            }
+        } finally {
+            theJDBCUtil.closeJDBCStatement(init);
+            theJDBCUtil.closeJDBCStatement(reset);
+        }
     }
 
     private void setMessageCount(Connection conn, String sqlStatement, int count) throws java.sql.SQLException {
@@ -303,6 +479,72 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
         }
     }
 
+    /**
+     * Adds the given token counts to the database in two batches: one
+     * updating the existing rows, then one inserting the rows which were not
+     * found. The updated rows are stamped with a new revision.
+     * 
+     * @param kind
+     *            "Ham" or "Spam", used to find the sql statements
+     */
+    private void updateTokens(Connection conn, Map<String, Integer> tokens, String kind) throws java.sql.SQLException {
+        long revision = nextRevision(conn);
+        if (tokens.isEmpty()) {
+            return;
+        }
+        List<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>(tokens.entrySet());
+        PreparedStatement update = null;
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        ResultSet rs = null;
+
+        try {
+            update = conn.prepareStatement(sqlQueries.getSqlString("update" + kind + "TokenRevision", true));
+            for (Map.Entry<String, Integer> entry : entries) {
+                update.setInt(1, entry.getValue());
+                update.setLong(2, revision);
+                update.setString(3, entry.getKey());
+                update.addBatch();
+            }
+            int[] updated = update.executeBatch();
+
+            insert = conn.prepareStatement(sqlQueries.getSqlString("insert" + kind + "TokenRevision", true));
+            boolean inserts = false;
+            for (int i = 0; i < entries.size(); i++) {
+                boolean missing = updated[i] == 0;
+                if (updated[i] == Statement.SUCCESS_NO_INFO) {
+                    // the driver does not tell whether the row was there: it
+                    // was if it now has the new revision
+                    if (select == null) {
+                        select = conn.prepareStatement(sqlQueries.getSqlString("select" + kind + "TokenRevision", true));
+                    }
+                    select.setString(1, entries.get(i).getKey());
+                    rs = select.executeQuery();
+                    missing = !rs.next() || rs.getLong(1) != revision;
+                    rs.close();
+                    rs = null;
+                }
+                if (missing) {
+                    // the token hasn't been encountered before, and we need
+                    // to add it to the corpus.
+                    insert.setString(1, entries.get(i).getKey());
+                    insert.setInt(2, entries.get(i).getValue());
+                    insert.setLong(3, revision);
+                    insert.addBatch();
+                    inserts = true;
+                }
+            }
+            if (inserts) {
+                insert.executeBatch();
+            }
+        } finally {
+            theJDBCUtil.closeJDBCResultSet(rs);
+            theJDBCUtil.closeJDBCStatement(select);
+            theJDBCUtil.closeJDBCStatement(insert);
+            theJDBCUtil.closeJDBCStatement(update);
+        }
+    }
+
     private void updateTokens(Connection conn, Map<String, Integer> tokens, String insertSqlStatement, String updateSqlStatement) throws java.sql.SQLException {
         PreparedStatement insert = null;
         PreparedStatement update = null;
@@ -382,11 +624,24 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
 
         boolean dbUpdated = false;
 
-        dbUpdated = createTable(conn, "hamTableName", "createHamTable");
+        dbUpdated |= createTable(conn, "hamTableName", "createHamTable");
 
-        dbUpdated = createTable(conn, "spamTableName", "createSpamTable");
+        dbUpdated |= createTable(conn, "spamTableName", "createSpamTable");
 
-        dbUpdated = createTable(conn, "messageCountsTableName", "createMessageCountsTable");
+        dbUpdated |= createTable(conn, "messageCountsTableName", "createMessageCountsTable");
+
+        // The revisions are supported if the sqlResources file defines the
+        // statements using them; tables created before need a new column.
+        revisionSupported = sqlQueries.getSqlString("selectMessageCountsRevision", false) != null;
+        if (revisionSupported) {
+            dbUpdated |= addRevisionColumn(conn, "hamTableName", "addHamRevisionColumn");
+
+            dbUpdated |= addRevisionColumn(conn, "spamTableName", "addSpamRevisionColumn");
+
+            dbUpdated |= addRevisionColumn(conn, "messageCountsTableName", "addMessageCountsRevisionColumn");
+        } else {
+            delegatedLog("No 'selectMessageCountsRevision' sqlResources string: the corpus will be reloaded entirely on changes.");
+        }
 
         // Commit our changes if necessary.
         if (conn != null && dbUpdated && !conn.getAutoCommit()) {
@@ -423,6 +678,27 @@ abstract public class JDBCBayesianAnalyzer extends BayesianAnalyzer {
         return true;
     }
 
+    private boolean addRevisionColumn(Connection conn, String tableNameSqlStringName, String alterSqlStringName) throws SQLException {
+        String tableName = sqlQueries.getSqlString(tableNameSqlStringName, true);
+
+        if (theJDBCUtil.columnExists(conn.getMetaData(), tableName, "revision")) {
+            return false;
+        }
+
+        PreparedStatement alterStatement = null;
+
+        try {
+            alterStatement = conn.prepareStatement(sqlQueries.getSqlString(alterSqlStringName, true));
+            alterStatement.execute();
+
+            delegatedLog("Added column 'revision' to table '" + tableName + "' using sqlResources string '" + alterSqlStringName + "'.");
+        } finally {
+            theJDBCUtil.closeJDBCStatement(alterStatement);
+        }
+
+        return true;
+    }
+
     private void deleteData(Connection conn, String deleteSqlStatement) throws SQLException {
         PreparedStatement delete = null;
 
@@ -0,0 +1,151 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Token/probability corpus, kept in a {@link TokenTable} and a double array.
+ * 
+ * A corpus is filled once and never modified afterwards, so that a rebuilt
+ * corpus can replace the one in use by a simple reference swap while messages
+ * are being analyzed. The Map interface is read only.
+ */
+final class TokenCorpus extends AbstractMap<String, Double> {
+
+    private final TokenTable tokens;
+
+    private double[] probabilities;
+
+    /**
+     * Create an empty corpus sized for the given number of tokens.
+     */
+    TokenCorpus(int expectedSize, int expectedChars) {
+        tokens = new TokenTable(expectedSize, expectedChars);
+        probabilities = new double[Math.max(expectedSize, 16)];
+    }
+
+    /**
+     * Return the given corpus as a TokenCorpus, copying it if needed.
+     */
+    static TokenCorpus copyOf(Map<String, Double> map) {
+        if (map instanceof TokenCorpus) {
+            return (TokenCorpus) map;
+        }
+        TokenCorpus copy = new TokenCorpus(map.size(), 0);
+        for (Map.Entry<String, Double> entry : map.entrySet()) {
+            String token = entry.getKey();
+            copy.add(token.toCharArray(), 0, token.length(), entry.getValue().doubleValue());
+        }
+        copy.trim();
+        return copy;
+    }
+
+    /**
+     * Add a token while building the corpus.
+     */
+    void add(char[] buf, int off, int len, double probability) {
+        int index = tokens.add(buf, off, len);
+        if (index == probabilities.length) {
+            probabilities = Arrays.copyOf(probabilities, probabilities.length * 2);
+        }
+        probabilities[index] = probability;
+    }
+
+    /**
+     * Release the memory left over once the corpus is built.
+     */
+    void trim() {
+        tokens.trim();
+        probabilities = Arrays.copyOf(probabilities, tokens.size());
+    }
+
+    /**
+     * Return the index of the given token, or -1 if it is not in the corpus.
+     */
+    int indexOf(char[] buf, int off, int len) {
+        return tokens.indexOf(buf, off, len);
+    }
+
+    double probability(int index) {
+        return probabilities[index];
+    }
+
+    @Override
+    public int size() {
+        return tokens.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && tokens.indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public Double get(Object key) {
+        if (key instanceof String) {
+            int index = tokens.indexOf((String) key);
+            if (index >= 0) {
+                return Double.valueOf(probabilities[index]);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Double>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Double>>() {
+            @Override
+            public int size() {
+                return tokens.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Double>> iterator() {
+                return new Iterator<Map.Entry<String, Double>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < tokens.size();
+                    }
+
+                    public Map.Entry<String, Double> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int index = next++;
+                        return new AbstractMap.SimpleImmutableEntry<String, Double>(tokens.token(index), Double.valueOf(probabilities[index]));
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+}
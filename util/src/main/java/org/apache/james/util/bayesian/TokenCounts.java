@@ -0,0 +1,154 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Token occurrence counts, kept in a {@link TokenTable} and an int array.
+ * 
+ * The Map interface is there for the existing users of the counts: it boxes
+ * the values and creates the keys on demand, and does not support removing
+ * tokens. The analyzer itself uses the primitive methods.
+ */
+final class TokenCounts extends AbstractMap<String, Integer> {
+
+    private TokenTable tokens = new TokenTable();
+
+    private int[] counts = new int[16];
+
+    /**
+     * Return the given counts as a TokenCounts, copying them if needed.
+     */
+    static TokenCounts copyOf(Map<String, Integer> map) {
+        if (map instanceof TokenCounts) {
+            return (TokenCounts) map;
+        }
+        TokenCounts copy = new TokenCounts();
+        copy.putAll(map);
+        return copy;
+    }
+
+    TokenTable tokens() {
+        return tokens;
+    }
+
+    int count(int index) {
+        return counts[index];
+    }
+
+    /**
+     * Add one occurrence of the given token.
+     */
+    void increment(char[] buf, int off, int len) {
+        int index = slot(tokens.add(buf, off, len));
+        counts[index]++;
+    }
+
+    /**
+     * Return the index of the value of the given token, growing the counts if
+     * the token is new.
+     */
+    private int slot(int index) {
+        if (index == counts.length) {
+            counts = Arrays.copyOf(counts, counts.length * 2);
+        }
+        return index;
+    }
+
+    @Override
+    public int size() {
+        return tokens.size();
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return key instanceof String && tokens.indexOf((String) key) >= 0;
+    }
+
+    @Override
+    public Integer get(Object key) {
+        if (key instanceof String) {
+            int index = tokens.indexOf((String) key);
+            if (index >= 0) {
+                return Integer.valueOf(counts[index]);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Integer put(String key, Integer value) {
+        int size = tokens.size();
+        int index = slot(tokens.add(key));
+        Integer previous = index < size ? Integer.valueOf(counts[index]) : null;
+        counts[index] = value.intValue();
+        return previous;
+    }
+
+    /**
+     * Remove all the tokens, releasing the memory they used.
+     */
+    @Override
+    public void clear() {
+        tokens = new TokenTable();
+        counts = new int[16];
+    }
+
+    @Override
+    public Set<Map.Entry<String, Integer>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Integer>>() {
+            @Override
+            public int size() {
+                return tokens.size();
+            }
+
+            @Override
+            public Iterator<Map.Entry<String, Integer>> iterator() {
+                return new Iterator<Map.Entry<String, Integer>>() {
+                    private int next = 0;
+
+                    public boolean hasNext() {
+                        return next < tokens.size();
+                    }
+
+                    public Map.Entry<String, Integer> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        int index = next++;
+                        return new AbstractMap.SimpleImmutableEntry<String, Integer>(tokens.token(index), Integer.valueOf(counts[index]));
+                    }
+
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+}
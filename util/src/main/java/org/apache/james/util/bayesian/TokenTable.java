@@ -0,0 +1,257 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing set of tokens. The characters of the tokens are stored back
+ * to back in a single char array and each token gets an index, in insertion
+ * order, which the users of the table use to keep the values of the token in
+ * primitive arrays. A table of a million tokens thus costs a handful of arrays
+ * instead of millions of Strings, map entries and boxed values.
+ * 
+ * Tokens can be looked up from a range of a char array, so that no String has
+ * to be created to look up a token. Tokens can not be removed.
+ * 
+ * Instances are not thread safe, but may be read by several threads once
+ * filled and safely published.
+ */
+final class TokenTable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /** The characters of all the tokens, back to back. */
+    private char[] chars;
+
+    /** Number of characters used in chars. */
+    private int charCount;
+
+    /**
+     * Offset of each token in chars. The token i ends where the token i + 1
+     * starts, so offsets[size] is always charCount.
+     */
+    private int[] offsets;
+
+    /** Index + 1 of the token held by each slot, 0 for the free slots. */
+    private int[] slots;
+
+    private int size;
+
+    /**
+     * Create a table sized for the given number of tokens.
+     * 
+     * @param expectedSize
+     *            the expected number of tokens
+     * @param expectedChars
+     *            the expected total number of characters of the tokens
+     */
+    TokenTable(int expectedSize, int expectedChars) {
+        chars = new char[Math.max(expectedChars, MIN_CAPACITY)];
+        offsets = new int[Math.max(expectedSize, MIN_CAPACITY) + 1];
+        slots = new int[slotCount(expectedSize)];
+    }
+
+    TokenTable() {
+        this(0, 0);
+    }
+
+    /**
+     * Return the number of tokens.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Return the total number of characters of the tokens.
+     */
+    int charCount() {
+        return charCount;
+    }
+
+    /**
+     * Return the array holding the characters of the tokens, to be read
+     * between {@link #offset(int)} and {@link #offset(int)} +
+     * {@link #length(int)}.
+     */
+    char[] chars() {
+        return chars;
+    }
+
+    int offset(int index) {
+        return offsets[index];
+    }
+
+    int length(int index) {
+        return offsets[index + 1] - offsets[index];
+    }
+
+    /**
+     * Return the token of the given index as a String.
+     */
+    String token(int index) {
+        return new String(chars, offsets[index], length(index));
+    }
+
+    /**
+     * Return the index of the given token, or -1 if it is not in the table.
+     */
+    int indexOf(char[] buf, int off, int len) {
+        int mask = slots.length - 1;
+        for (int slot = hash(buf, off, len) & mask;; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                return -1;
+            }
+            if (matches(entry - 1, buf, off, len)) {
+                return entry - 1;
+            }
+        }
+    }
+
+    int indexOf(String token) {
+        return indexOf(token.toCharArray(), 0, token.length());
+    }
+
+    /**
+     * Add the given token if it is not in the table yet, and return its index.
+     * The token is new if the returned index equals the size of the table
+     * before the call.
+     */
+    int add(char[] buf, int off, int len) {
+        int mask = slots.length - 1;
+        int slot = hash(buf, off, len) & mask;
+        for (;; slot = (slot + 1) & mask) {
+            int entry = slots[slot];
+            if (entry == 0) {
+                break;
+            }
+            if (matches(entry - 1, buf, off, len)) {
+                return entry - 1;
+            }
+        }
+        if (charCount + len > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(chars.length * 2, charCount + len));
+        }
+        if (size + 2 > offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+        }
+        System.arraycopy(buf, off, chars, charCount, len);
+        charCount += len;
+        int index = size++;
+        offsets[size] = charCount;
+        slots[slot] = index + 1;
+        if (slots.length < slotCount(size)) {
+            rehash(slotCount(size));
+        }
+        return index;
+    }
+
+    int add(String token) {
+        return add(token.toCharArray(), 0, token.length());
+    }
+
+    /**
+     * Compare the tokens of the given indexes the way String.compareTo does.
+     */
+    int compare(int a, int b) {
+        int offsetA = offsets[a];
+        int offsetB = offsets[b];
+        int lengthA = length(a);
+        int lengthB = length(b);
+        int length = Math.min(lengthA, lengthB);
+        for (int i = 0; i < length; i++) {
+            char ca = chars[offsetA + i];
+            char cb = chars[offsetB + i];
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return lengthA - lengthB;
+    }
+
+    /**
+     * Remove all the tokens, keeping the allocated arrays.
+     */
+    void clear() {
+        Arrays.fill(slots, 0);
+        size = 0;
+        charCount = 0;
+    }
+
+    /**
+     * Shrink the arrays to the current content.
+     */
+    void trim() {
+        chars = Arrays.copyOf(chars, charCount);
+        offsets = Arrays.copyOf(offsets, size + 1);
+        if (slots.length > slotCount(size)) {
+            rehash(slotCount(size));
+        }
+    }
+
+    private boolean matches(int index, char[] buf, int off, int len) {
+        int start = offsets[index];
+        if (offsets[index + 1] - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (chars[start + i] != buf[off + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash(int slotCount) {
+        int[] newSlots = new int[slotCount];
+        int mask = slotCount - 1;
+        for (int index = 0; index < size; index++) {
+            int slot = hash(chars, offsets[index], length(index)) & mask;
+            while (newSlots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newSlots[slot] = index + 1;
+        }
+        slots = newSlots;
+    }
+
+    /**
+     * Return the number of slots for the given number of tokens: a power of
+     * two keeping the table at most two thirds full.
+     */
+    private static int slotCount(int size) {
+        int count = MIN_CAPACITY;
+        while (count * 2 < size * 3) {
+            count <<= 1;
+        }
+        return count;
+    }
+
+    private static int hash(char[] buf, int off, int len) {
+        int h = 0;
+        for (int i = 0; i < len; i++) {
+            h = 31 * h + buf[off + i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,505 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.james.util.concurrent.JMXEnabledThreadPoolExecutor;
+import org.apache.james.util.concurrent.NamedThreadFactory;
+
+/**
+ * Client for one or more spamd daemons, shared by all the messages a handler
+ * or mailet scans.
+ * 
+ * The scans run on a thread pool of the client, so callers may start a scan
+ * with {@link #scanAsync(MimeMessage)} and only wait for it when they need the
+ * result, or wait at most the configured timeout with
+ * {@link #scan(MimeMessage)}.
+ * 
+ * spamd answers a single request per connection, so connections can not be
+ * kept open between messages. Instead each endpoint allows at most
+ * maxConnections concurrent connections, which should match the number of
+ * spamd children. The endpoints are used in turn; an endpoint which can not be
+ * reached is skipped until a PING health check succeeds, which is tried every
+ * retryInterval.
+ * 
+ * The client is registered in JMX as
+ * <code>org.apache.james:type=component,name=spamdclient,client=N</code> and
+ * must be shut down with {@link #dispose()}.
+ */
+public class SpamdClient implements SpamdClientMBean {
+
+    /** The default port of spamd */
+    public final static int DEFAULT_PORT = 783;
+
+    /** The default number of concurrent connections per endpoint */
+    public final static int DEFAULT_MAX_CONNECTIONS = 5;
+
+    /** The default time to wait for a scan (in ms) */
+    public final static long DEFAULT_TIMEOUT = 30000;
+
+    /** The default time between two health checks of a down endpoint (in ms) */
+    public final static long DEFAULT_RETRY_INTERVAL = 30000;
+
+    private final static long[] LATENCY_BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000 };
+
+    private final static AtomicInteger CLIENT_COUNT = new AtomicInteger();
+
+    /**
+     * A spamd daemon
+     */
+    private final class Endpoint {
+
+        private final String host;
+
+        private final int port;
+
+        private final Semaphore connections;
+
+        /** The time until which the endpoint is not used, 0 if it is up */
+        private volatile long downUntil;
+
+        private final AtomicBoolean checking = new AtomicBoolean();
+
+        private Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+            this.connections = new Semaphore(maxConnections);
+        }
+
+        private boolean isUp() {
+            return downUntil == 0;
+        }
+
+        private void markDown() {
+            downUntil = System.currentTimeMillis() + retryInterval;
+        }
+
+        /**
+         * Start a health check if the endpoint is down and its retry interval
+         * elapsed.
+         */
+        private void checkIfDue() {
+            if (downUntil != 0 && downUntil <= System.currentTimeMillis() && checking.compareAndSet(false, true)) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (ping(Endpoint.this)) {
+                                downUntil = 0;
+                            } else {
+                                markDown();
+                            }
+                        } finally {
+                            checking.set(false);
+                        }
+                    }
+                });
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    /**
+     * The scan of a message. Aborting it closes its connection, so that the
+     * thread doing it does not block on the socket.
+     */
+    private final class Scan implements Callable<SpamdResult> {
+
+        private final MimeMessage message;
+
+        private volatile Socket socket;
+
+        private volatile boolean aborted;
+
+        private Scan(MimeMessage message) {
+            this.message = message;
+        }
+
+        public SpamdResult call() throws Exception {
+            long start = System.currentTimeMillis();
+            activeScans.incrementAndGet();
+            try {
+                IOException failure = null;
+                int first = next.getAndIncrement() & Integer.MAX_VALUE;
+                for (int i = 0; i < endpoints.length && !aborted; i++) {
+                    Endpoint endpoint = endpoints[(first + i) % endpoints.length];
+                    if (!endpoint.isUp()) {
+                        endpoint.checkIfDue();
+                        continue;
+                    }
+                    if (!endpoint.connections.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                        failure = new IOException("All connections to " + endpoint + " are busy");
+                        continue;
+                    }
+                    try {
+                        SpamdResult result = check(endpoint);
+                        record(System.currentTimeMillis() - start);
+                        return result;
+                    } catch (IOException e) {
+                        if (aborted) {
+                            break;
+                        }
+                        endpoint.markDown();
+                        failure = e;
+                    } finally {
+                        endpoint.connections.release();
+                    }
+                }
+                errors.incrementAndGet();
+                throw new MessagingException("Error communicating with spamd on " + getEndpointList() + (failure == null ? ": no endpoint available" : " Exception: " + failure));
+            } finally {
+                activeScans.decrementAndGet();
+            }
+        }
+
+        private SpamdResult check(Endpoint endpoint) throws IOException, MessagingException {
+            Socket socket = connect(endpoint);
+            this.socket = socket;
+            try {
+                if (aborted) {
+                    throw new IOException("Scan aborted");
+                }
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+                out.write("CHECK SPAMC/1.2\r\n\r\n".getBytes());
+
+                // pass the message to spamd
+                message.writeTo(out);
+                out.flush();
+                socket.shutdownOutput();
+                return SpamdResult.read(new BufferedReader(new InputStreamReader(socket.getInputStream())));
+            } finally {
+                this.socket = null;
+                close(socket);
+            }
+        }
+
+        private void abort() {
+            aborted = true;
+            Socket socket = this.socket;
+            if (socket != null) {
+                close(socket);
+            }
+        }
+    }
+
+    private final class ScanFuture extends FutureTask<SpamdResult> {
+
+        private final Scan scan;
+
+        private ScanFuture(Scan scan) {
+            super(scan);
+            this.scan = scan;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            scan.abort();
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    private final int maxConnections;
+
+    private final long timeout;
+
+    private final long retryInterval;
+
+    private final Endpoint[] endpoints;
+
+    private final JMXEnabledThreadPoolExecutor executor;
+
+    private final String mbeanName;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicInteger activeScans = new AtomicInteger();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong timeouts = new AtomicLong();
+
+    private final AtomicLong scans = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLongArray histogram = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+
+    /**
+     * Create a client for the given spamd endpoints.
+     * 
+     * @param hosts
+     *            the spamd hosts, separated by commas or spaces, each one
+     *            optionally followed by ":port"
+     * @param defaultPort
+     *            the port of the hosts given without one
+     * @param maxConnections
+     *            the maximum number of concurrent connections to each host
+     * @param timeout
+     *            the maximum time to scan a message (in ms)
+     * @param retryInterval
+     *            the time between two health checks of a host which could not
+     *            be reached (in ms)
+     */
+    public SpamdClient(String hosts, int defaultPort, int maxConnections, long timeout, long retryInterval) {
+        this.maxConnections = maxConnections;
+        this.timeout = timeout;
+        this.retryInterval = retryInterval;
+
+        List<Endpoint> list = new ArrayList<Endpoint>();
+        StringTokenizer st = new StringTokenizer(hosts, ", ");
+        while (st.hasMoreTokens()) {
+            String host = st.nextToken();
+            int colon = host.lastIndexOf(':');
+            if (colon > 0 && host.indexOf(':') == colon) {
+                list.add(new Endpoint(host.substring(0, colon), Integer.parseInt(host.substring(colon + 1))));
+            } else {
+                list.add(new Endpoint(host, defaultPort));
+            }
+        }
+        if (list.isEmpty()) {
+            throw new IllegalArgumentException("No spamd host given");
+        }
+        endpoints = list.toArray(new Endpoint[list.size()]);
+
+        mbeanName = "org.apache.james:type=component,name=spamdclient,client=" + CLIENT_COUNT.incrementAndGet();
+        int threads = endpoints.length * maxConnections;
+        executor = new JMXEnabledThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("spamd"), mbeanName);
+        executor.allowCoreThreadTimeOut(true);
+        try {
+            MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+            mbeanServer.registerMBean(this, new ObjectName(mbeanName));
+        } catch (Exception e) {
+            // the client works without JMX
+        }
+    }
+
+    /**
+     * Start the scan of the given message. The message must not be modified
+     * until the scan completed.
+     * 
+     * @param message
+     *            the message to scan
+     * @return the future result, which fails with a MessagingException if no
+     *         spamd could scan the message. Cancelling it aborts the scan.
+     */
+    public Future<SpamdResult> scanAsync(MimeMessage message) {
+        ScanFuture future = new ScanFuture(new Scan(message));
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Scan the given message, waiting at most the timeout of the client.
+     * 
+     * @param message
+     *            the message to scan
+     * @return result
+     * @throws MessagingException
+     *             if no spamd could scan the message in time
+     */
+    public SpamdResult scan(MimeMessage message) throws MessagingException {
+        Future<SpamdResult> future = scanAsync(message);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.incrementAndGet();
+            throw new MessagingException("Scan by spamd on " + getEndpointList() + " timed out after " + timeout + " ms");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for spamd");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MessagingException) {
+                throw (MessagingException) e.getCause();
+            }
+            throw new MessagingException("Error communicating with spamd on " + getEndpointList() + " Exception: " + e.getCause());
+        }
+    }
+
+    /**
+     * Shut the client down and unregister it from JMX.
+     */
+    public void dispose() {
+        executor.shutdownNow();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(mbeanName));
+        } catch (Exception e) {
+            // not registered
+        }
+    }
+
+    private Socket connect(Endpoint endpoint) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(endpoint.host, endpoint.port), (int) timeout);
+            socket.setSoTimeout((int) timeout);
+            return socket;
+        } catch (IOException e) {
+            close(socket);
+            throw e;
+        }
+    }
+
+    /**
+     * Return true if the given endpoint answers a PING request.
+     */
+    private boolean ping(Endpoint endpoint) {
+        Socket socket = null;
+        try {
+            socket = connect(endpoint);
+            OutputStream out = socket.getOutputStream();
+            out.write("PING SPAMC/1.2\r\n\r\n".getBytes());
+            out.flush();
+            String line = new BufferedReader(new InputStreamReader(socket.getInputStream())).readLine();
+            return line != null && line.indexOf("PONG") >= 0;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (socket != null) {
+                close(socket);
+            }
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private void record(long latency) {
+        scans.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        histogram.incrementAndGet(bucket);
+    }
+
+    private String getEndpointList() {
+        StringBuilder sb = new StringBuilder();
+        for (Endpoint endpoint : endpoints) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append(endpoint);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getEndpoints()
+     */
+    public String[] getEndpoints() {
+        String[] states = new String[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++) {
+            states[i] = endpoints[i] + (endpoints[i].isUp() ? " up" : " down");
+        }
+        return states;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getScanCount()
+     */
+    public long getScanCount() {
+        return scans.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getErrorCount()
+     */
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getTimeoutCount()
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getActiveScans()
+     */
+    public int getActiveScans() {
+        return activeScans.get();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getAverageLatency()
+     */
+    public double getAverageLatency() {
+        long count = scans.get();
+        return count == 0 ? 0 : (double) totalLatency.get() / count;
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getLatencyHistogramBounds()
+     */
+    public long[] getLatencyHistogramBounds() {
+        return LATENCY_BOUNDS.clone();
+    }
+
+    /**
+     * @see org.apache.james.util.scanner.SpamdClientMBean#getLatencyHistogram()
+     */
+    public long[] getLatencyHistogram() {
+        long[] counts = new long[histogram.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = histogram.get(i);
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,84 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+/**
+ * Management interface of the {@link SpamdClient}
+ */
+public interface SpamdClientMBean {
+
+    /**
+     * Return the spamd endpoints with their state, as "host:port up" or
+     * "host:port down"
+     * 
+     * @return endpoints
+     */
+    String[] getEndpoints();
+
+    /**
+     * Return the number of scans which completed
+     * 
+     * @return scans
+     */
+    long getScanCount();
+
+    /**
+     * Return the number of scans which failed because no spamd could be
+     * reached
+     * 
+     * @return errors
+     */
+    long getErrorCount();
+
+    /**
+     * Return the number of scans which were given up after the timeout
+     * 
+     * @return timeouts
+     */
+    long getTimeoutCount();
+
+    /**
+     * Return the number of scans in progress
+     * 
+     * @return active scans
+     */
+    int getActiveScans();
+
+    /**
+     * Return the average time of the completed scans (in ms)
+     * 
+     * @return average latency
+     */
+    double getAverageLatency();
+
+    /**
+     * Return the upper bounds (in ms) of the buckets of the latency histogram.
+     * The last bucket of the histogram has no upper bound.
+     * 
+     * @return bounds
+     */
+    long[] getLatencyHistogramBounds();
+
+    /**
+     * Return the number of completed scans per latency bucket
+     * 
+     * @return histogram
+     */
+    long[] getLatencyHistogram();
+}
@@ -0,0 +1,131 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * The answer of spamd to a CHECK request
+ */
+public class SpamdResult {
+
+    private final boolean spam;
+
+    private final String hits;
+
+    private final String required;
+
+    private final Map<String, String> headers;
+
+    private SpamdResult(boolean spam, String hits, String required, Map<String, String> headers) {
+        this.spam = spam;
+        this.hits = hits;
+        this.required = required;
+        this.headers = Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * Read the answer of spamd, up to its "Spam:" line. An answer without a
+     * valid "Spam:" line is read as not spam with unknown hits.
+     * 
+     * @param in
+     *            the answer
+     * @return result
+     * @throws IOException
+     *             if the answer can not be read
+     */
+    public static SpamdResult read(BufferedReader in) throws IOException {
+        String s = null;
+        while ((s = in.readLine()) != null) {
+            if (s.startsWith("Spam:")) {
+                StringTokenizer t = new StringTokenizer(s, " ");
+                boolean spam;
+                String hits;
+                String required;
+                try {
+                    t.nextToken();
+                    spam = Boolean.valueOf(t.nextToken()).booleanValue();
+                    t.nextToken();
+                    hits = t.nextToken();
+                    t.nextToken();
+                    required = t.nextToken();
+                } catch (Exception e) {
+                    // On exception return false
+                    return unknown();
+                }
+
+                Map<String, String> headers = new HashMap<String, String>();
+                if (spam) {
+                    headers.put(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME, "YES");
+                    headers.put(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME, new StringBuffer("Yes, hits=").append(hits).append(" required=").append(required).toString());
+                } else {
+                    headers.put(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME, "NO");
+                    headers.put(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME, new StringBuffer("No, hits=").append(hits).append(" required=").append(required).toString());
+                }
+                return new SpamdResult(spam, hits, required, headers);
+            }
+        }
+        return unknown();
+    }
+
+    private static SpamdResult unknown() {
+        return new SpamdResult(false, "?", "?", new HashMap<String, String>());
+    }
+
+    /**
+     * Return true if spamd found the message to be spam
+     * 
+     * @return spam
+     */
+    public boolean isSpam() {
+        return spam;
+    }
+
+    /**
+     * Return the hits which was returned by spamd
+     * 
+     * @return hits The hits which was detected
+     */
+    public String getHits() {
+        return hits;
+    }
+
+    /**
+     * Return the required hits
+     * 
+     * @return required The required hits before a message is handled as spam
+     */
+    public String getRequiredHits() {
+        return required;
+    }
+
+    /**
+     * Return the headers as attributes which spamd generates
+     * 
+     * @return headers Map of headers to add as attributes
+     */
+    public Map<String, String> getHeadersAsAttribute() {
+        return headers;
+    }
+}
@@ -0,0 +1,96 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class TimeToLiveCacheTest {
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        TimeToLiveCache<String, String> cache = new TimeToLiveCache<String, String>(10);
+        cache.put("short", "value", 50);
+        cache.put("long", "value", 60000);
+        cache.put("none", "value", 0);
+
+        assertEquals("value", cache.get("short"));
+        assertNull(cache.get("none"));
+        Thread.sleep(100);
+        assertNull(cache.get("short"));
+        assertEquals("value", cache.get("long"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testFullCacheOnlyAcceptsAfterPurge() throws InterruptedException {
+        TimeToLiveCache<String, String> cache = new TimeToLiveCache<String, String>(2);
+        cache.put("a", "value", 50);
+        cache.put("b", "value", 60000);
+        cache.put("c", "value", 60000);
+        assertNull(cache.get("c"));
+
+        // existing keys are still updated
+        cache.put("b", "updated", 60000);
+        assertEquals("updated", cache.get("b"));
+
+        // the expired entry is purged to make room, purges are done at
+        // most once per second
+        Thread.sleep(1100);
+        cache.put("c", "value", 60000);
+        assertEquals("value", cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testInvalidationKeepsStaleValuesOut() {
+        TimeToLiveCache<String, String> cache = new TimeToLiveCache<String, String>(10);
+        int generation = cache.getGeneration();
+        cache.invalidate("key");
+        cache.put("key", "stale", 60000, generation);
+        assertNull(cache.get("key"));
+
+        generation = cache.getGeneration();
+        cache.put("key", "fresh", 60000, generation);
+        assertEquals("fresh", cache.get("key"));
+    }
+
+    @Test
+    public void testClear() {
+        TimeToLiveCache<String, String> cache = new TimeToLiveCache<String, String>(10);
+        cache.put("a", "value", 60000);
+        int generation = cache.getGeneration();
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.put("b", "stale", 60000, generation);
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void testRemoveThroughKeySet() {
+        TimeToLiveCache<String, String> cache = new TimeToLiveCache<String, String>(10);
+        cache.put("Key", "value", 60000);
+        cache.put("other", "value", 60000);
+        cache.keySet().remove("Key");
+        assertNull(cache.get("Key"));
+        assertEquals("value", cache.get("other"));
+    }
+}
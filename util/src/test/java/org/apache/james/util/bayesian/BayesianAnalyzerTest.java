@@ -0,0 +1,133 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class BayesianAnalyzerTest {
+
+    private static BufferedReader reader(String text) {
+        return new BufferedReader(new StringReader(text));
+    }
+
+    private static double probability(BayesianAnalyzer analyzer, String text) throws IOException {
+        return analyzer.computeSpamProbability(reader(text));
+    }
+
+    @Test
+    public void testTokenCounts() throws IOException {
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.addHam(reader("From: alice\r\nSubject: Cheap pills\r\n\r\nHello 12.50 world, world 1234\r\n"));
+
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+        expected.put("From:alice", 1);
+        expected.put("Subject:Cheap", 1);
+        expected.put("Subject:pills", 1);
+        expected.put("Hello", 1);
+        expected.put("12.50", 1);
+        expected.put("world", 2);
+        assertEquals(expected, analyzer.getHamTokenCounts());
+        assertEquals(1, analyzer.getHamMessageCount());
+        assertEquals(0, analyzer.getSpamTokenCounts().size());
+    }
+
+    @Test
+    public void testManyTokens() throws IOException {
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            text.append("token").append(Integer.toString(i, 26).replace('0', 'z')).append(' ');
+        }
+        analyzer.addSpam(reader(text.toString()));
+        analyzer.addSpam(reader(text.toString()));
+
+        assertEquals(10000, analyzer.getSpamTokenCounts().size());
+        for (Map.Entry<String, Integer> entry : analyzer.getSpamTokenCounts().entrySet()) {
+            assertEquals(entry.getKey(), Integer.valueOf(2), entry.getValue());
+        }
+    }
+
+    @Test
+    public void testDegeneratedTokens() throws IOException {
+        Map<String, Double> corpus = new HashMap<String, Double>();
+        corpus.put("free", 0.99);
+        corpus.put("Subject:money", 0.02);
+        corpus.put("meeting", 0.01);
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        analyzer.setCorpus(corpus);
+
+        assertEquals(0.99, probability(analyzer, "free"), 0);
+        assertEquals(0.99, probability(analyzer, "FREE!!!"), 0);
+        assertEquals(0.02, probability(analyzer, "Subject: money\r\n"), 0);
+        assertEquals(0.02, probability(analyzer, "Subject: Money\r\n"), 0);
+        assertEquals(0.5, probability(analyzer, "meeting free"), 1e-12);
+        assertEquals(0.4, probability(analyzer, "hello"), 0);
+        // the corpus is not modified by the lookups
+        assertEquals(corpus, analyzer.getCorpus());
+    }
+
+    @Test
+    public void testTrainedCorpus() throws IOException {
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        for (int i = 0; i < 5; i++) {
+            analyzer.addHam(reader("Subject: meeting notes\r\n\r\nThe project meeting is moved to room " + i + ", see the agenda\r\n"));
+            analyzer.addSpam(reader("Subject: cheap pills\r\n\r\nBuy cheap pills now, FREE shipping, only $" + i + "9.99!!!\r\n"));
+        }
+        analyzer.buildCorpus();
+        analyzer.tokenCountsClear();
+
+        assertTrue(probability(analyzer, "Subject: cheap pills\r\n\r\nbuy now, free shipping!\r\n") > 0.9);
+        assertTrue(probability(analyzer, "Subject: meeting notes\r\n\r\nthe agenda of the project meeting\r\n") < 0.1);
+    }
+
+    @Test
+    public void testBuildCorpusReplacesCorpus() throws IOException {
+        BayesianAnalyzer analyzer = new BayesianAnalyzer();
+        for (int i = 0; i < 5; i++) {
+            analyzer.addSpam(reader("cheap pills"));
+        }
+        analyzer.buildCorpus();
+        Map<String, Double> first = analyzer.getCorpus();
+        assertEquals(2, first.size());
+
+        analyzer.addSpam(reader("free shipping"));
+        analyzer.buildCorpus();
+
+        assertNotSame(first, analyzer.getCorpus());
+        assertEquals(2, first.size());
+        assertEquals(4, analyzer.getCorpus().size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testCorpusIsReadOnly() {
+        new BayesianAnalyzer().getCorpus().put("token", 0.5);
+    }
+
+}
@@ -0,0 +1,153 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.util.bayesian;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.StringReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+import org.apache.derby.jdbc.EmbeddedDriver;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class JDBCBayesianAnalyzerTest {
+
+    private static int databases;
+
+    private String url;
+    private File sqlFile;
+
+    @Before
+    public void setUp() throws Exception {
+        DriverManager.registerDriver(new EmbeddedDriver());
+        url = "jdbc:derby:memory:bayesian" + (databases++);
+        sqlFile = new File(getClass().getResource("/sqlResources.xml").toURI());
+    }
+
+    @After
+    public void tearDown() {
+        try {
+            DriverManager.getConnection(url + ";drop=true");
+        } catch (SQLException e) {
+            // derby reports the drop with an exception
+        }
+    }
+
+    private Connection connect() throws SQLException {
+        Connection conn = DriverManager.getConnection(url + ";create=true");
+        conn.setAutoCommit(false);
+        return conn;
+    }
+
+    private JDBCBayesianAnalyzer createAnalyzer() throws Exception {
+        JDBCBayesianAnalyzer analyzer = new JDBCBayesianAnalyzer() {
+            protected void delegatedLog(String logString) {
+            }
+        };
+        analyzer.initSqlQueries(connect(), sqlFile);
+        return analyzer;
+    }
+
+    /**
+     * Trains the given analyzer with the text as ham, the same way the
+     * BayesianAnalysisFeeder does, once per message
+     */
+    private void feedHam(JDBCBayesianAnalyzer analyzer, String text, int messages) throws Exception {
+        Connection conn = connect();
+        try {
+            for (int i = 0; i < messages; i++) {
+                analyzer.clear();
+                analyzer.addHam(new BufferedReader(new StringReader(text)));
+                analyzer.updateHamTokens(conn);
+                conn.commit();
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private void resetData(JDBCBayesianAnalyzer analyzer) throws Exception {
+        Connection conn = connect();
+        try {
+            analyzer.resetData(conn);
+            conn.commit();
+        } finally {
+            conn.close();
+        }
+    }
+
+    private boolean refreshCorpus(JDBCBayesianAnalyzer analyzer) throws Exception {
+        Connection conn = connect();
+        try {
+            return analyzer.refreshCorpus(conn);
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test
+    public void testRefreshLoadsChanges() throws Exception {
+        JDBCBayesianAnalyzer feeder = createAnalyzer();
+        JDBCBayesianAnalyzer reader = createAnalyzer();
+        assertTrue(feeder.isRevisionSupported());
+
+        feedHam(feeder, "alpha", 2);
+        assertTrue(refreshCorpus(reader));
+        assertEquals(Integer.valueOf(2), reader.getHamTokenCounts().get("alpha"));
+        assertFalse(refreshCorpus(reader));
+
+        feedHam(feeder, "alpha beta", 2);
+        assertTrue(refreshCorpus(reader));
+        assertEquals(Integer.valueOf(4), reader.getHamTokenCounts().get("alpha"));
+        assertEquals(Integer.valueOf(2), reader.getHamTokenCounts().get("beta"));
+        assertEquals(4, reader.getHamMessageCount());
+    }
+
+    @Test
+    public void testRefreshAfterResetAndRetraining() throws Exception {
+        JDBCBayesianAnalyzer feeder = createAnalyzer();
+        JDBCBayesianAnalyzer reader = createAnalyzer();
+
+        feedHam(feeder, "alpha", 2);
+        assertTrue(refreshCorpus(reader));
+        assertEquals(Integer.valueOf(2), reader.getHamTokenCounts().get("alpha"));
+
+        // trained again with more messages and revisions than before the
+        // reset, so neither the counts nor the revision went down
+        resetData(feeder);
+        feedHam(feeder, "beta", 3);
+
+        assertTrue(refreshCorpus(reader));
+        assertNull(reader.getHamTokenCounts().get("alpha"));
+        assertNull(reader.getCorpus().get("alpha"));
+        assertEquals(Integer.valueOf(3), reader.getHamTokenCounts().get("beta"));
+        assertEquals(3, reader.getHamMessageCount());
+        assertFalse(refreshCorpus(reader));
+    }
+}
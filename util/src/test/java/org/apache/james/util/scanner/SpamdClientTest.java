@@ -0,0 +1,256 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+package org.apache.james.util.scanner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class SpamdClientTest {
+
+    /**
+     * Stand-in for spamd: answers CHECK requests, reporting spam if the
+     * message contains "-SPAM-", and PING requests.
+     */
+    private static class LocalSpamd implements Runnable {
+
+        private final ServerSocket server;
+
+        private final AtomicInteger checks = new AtomicInteger();
+
+        private volatile long delay;
+
+        private LocalSpamd() throws IOException {
+            this(0);
+        }
+
+        private LocalSpamd(int port) throws IOException {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress("127.0.0.1", port));
+            Thread thread = new Thread(this, "local-spamd");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private String getHost() {
+            return "127.0.0.1:" + server.getLocalPort();
+        }
+
+        public void run() {
+            while (!server.isClosed()) {
+                try {
+                    final Socket socket = server.accept();
+                    Thread thread = new Thread(new Runnable() {
+                        public void run() {
+                            handle(socket);
+                        }
+                    });
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void handle(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                OutputStream out = socket.getOutputStream();
+                String request = in.readLine();
+                if (request.startsWith("PING")) {
+                    out.write("SPAMD/1.5 0 PONG\r\n".getBytes());
+                } else {
+                    checks.incrementAndGet();
+                    boolean spam = false;
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        spam |= line.indexOf("-SPAM-") >= 0;
+                    }
+                    Thread.sleep(delay);
+                    out.write(("SPAMD/1.1 0 EX_OK\r\n" + (spam ? "Spam: True ; 1000.0 / 5.0" : "Spam: False ; 3.0 / 5.0") + "\r\n\r\n").getBytes());
+                }
+                out.flush();
+                socket.close();
+            } catch (Exception e) {
+                // client went away
+            }
+        }
+
+        private void close() throws IOException {
+            server.close();
+        }
+    }
+
+    private final List<SpamdClient> clients = new ArrayList<SpamdClient>();
+
+    private final List<LocalSpamd> spamds = new ArrayList<LocalSpamd>();
+
+    private LocalSpamd spamd() throws IOException {
+        LocalSpamd spamd = new LocalSpamd();
+        spamds.add(spamd);
+        return spamd;
+    }
+
+    private SpamdClient client(String hosts, long timeout, long retryInterval) {
+        SpamdClient client = new SpamdClient(hosts, SpamdClient.DEFAULT_PORT, 2, timeout, retryInterval);
+        clients.add(client);
+        return client;
+    }
+
+    private static MimeMessage message(String text) throws MessagingException {
+        MimeMessage message = new MimeMessage(Session.getDefaultInstance(new Properties()));
+        message.setText(text);
+        message.saveChanges();
+        return message;
+    }
+
+    /**
+     * Return a host on which nothing listens
+     */
+    private static String deadHost() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        socket.close();
+        return "127.0.0.1:" + socket.getLocalPort();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (SpamdClient client : clients) {
+            client.dispose();
+        }
+        for (LocalSpamd spamd : spamds) {
+            spamd.close();
+        }
+    }
+
+    @Test
+    public void testScan() throws Exception {
+        SpamdClient client = client(spamd().getHost(), 5000, 1000);
+
+        SpamdResult result = client.scan(message("Hello -SPAM- world"));
+        assertTrue(result.isSpam());
+        assertEquals("1000.0", result.getHits());
+        assertEquals("YES", result.getHeadersAsAttribute().get(SpamAssassinInvoker.FLAG_MAIL_ATTRIBUTE_NAME));
+
+        Future<SpamdResult> future = client.scanAsync(message("Hello world"));
+        result = future.get();
+        assertFalse(result.isSpam());
+        assertEquals("No, hits=3.0 required=5.0", result.getHeadersAsAttribute().get(SpamAssassinInvoker.STATUS_MAIL_ATTRIBUTE_NAME));
+
+        assertEquals(2, client.getScanCount());
+        long total = 0;
+        for (long count : client.getLatencyHistogram()) {
+            total += count;
+        }
+        assertEquals(2, total);
+    }
+
+    @Test
+    public void testLoadBalancing() throws Exception {
+        LocalSpamd spamd1 = spamd();
+        LocalSpamd spamd2 = spamd();
+        SpamdClient client = client(spamd1.getHost() + ", " + spamd2.getHost(), 5000, 1000);
+        for (int i = 0; i < 10; i++) {
+            client.scan(message("Hello world"));
+        }
+        assertEquals(5, spamd1.checks.get());
+        assertEquals(5, spamd2.checks.get());
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        LocalSpamd spamd = spamd();
+        SpamdClient client = client(deadHost() + "," + spamd.getHost(), 5000, 60000);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(client.scan(message("-SPAM-")).isSpam());
+        }
+        assertEquals(4, spamd.checks.get());
+        assertTrue(client.getEndpoints()[0].endsWith(" down"));
+        assertTrue(client.getEndpoints()[1].endsWith(" up"));
+        assertEquals(0, client.getErrorCount());
+    }
+
+    @Test
+    public void testHealthCheck() throws Exception {
+        LocalSpamd spamd = spamd();
+        SpamdClient client = client(spamd.getHost(), 5000, 100);
+        spamd.close();
+        try {
+            client.scan(message("Hello world"));
+            fail("spamd is down");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertEquals(1, client.getErrorCount());
+        assertTrue(client.getEndpoints()[0].endsWith(" down"));
+
+        // a new spamd on the same port gets used once the ping succeeded
+        LocalSpamd restarted = new LocalSpamd(Integer.parseInt(spamd.getHost().substring(spamd.getHost().indexOf(':') + 1)));
+        spamds.add(restarted);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (client.getEndpoints()[0].endsWith(" down") && System.currentTimeMillis() < deadline) {
+            try {
+                client.scan(message("Hello world"));
+            } catch (MessagingException e) {
+                Thread.sleep(50);
+            }
+        }
+        assertTrue(client.getEndpoints()[0].endsWith(" up"));
+        assertFalse(client.scan(message("Hello world")).isSpam());
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        LocalSpamd spamd = spamd();
+        spamd.delay = 2000;
+        SpamdClient client = client(spamd.getHost(), 200, 1000);
+        long start = System.currentTimeMillis();
+        try {
+            client.scan(message("Hello world"));
+            fail("scan should time out");
+        } catch (MessagingException e) {
+            // expected
+        }
+        assertTrue(System.currentTimeMillis() - start < 1500);
+        assertEquals(1, client.getTimeoutCount());
+    }
+}